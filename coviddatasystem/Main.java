@@ -1,10 +1,14 @@
 package coviddatasystem;
 
 import coviddatasystem.datamanagement.*;
+import coviddatasystem.distributed.Coordinator;
 import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
 import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.QueryCache;
 import coviddatasystem.ui.UserInterface;
-import coviddatasystem.util.ZipCode;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.ShardedRegionStore;
 import org.json.simple.parser.ParseException;
 
 import java.io.File;
@@ -16,25 +20,40 @@ public class Main {
 
     /**
      * Accepts names of files as parameters and runs program
-     * @param args 4 optional runtime arguments - covid, properties, population, log
+     * @param args optional runtime arguments - covid, properties, population, log, storage, metrics, cache, shards,
+     *             workers, progressive
      */
     public static void main(String[] args) {
         // VARIABLES
         String covidFileName= "";
         String covidFileExt = "";
+        // covid files resolved from a directory or glob ("--covid=feeds/" or "--covid=feeds/*.csv"), otherwise null
+        List<String> covidFileNames = null;
         String populationFileName = "";
         String propertiesFileName = "";
         String logFileName = "";
+        // directory of on-disk query result cache ("--cache="), empty if results are not persisted
+        String cacheDirectory = "";
+        // number of shards zip codes are split into ("--shards="), one per available processor by default
+        int shards = ShardedRegionStore.DEFAULT_SHARDS;
+        // number of worker processes holding a partition of the zip codes each ("--workers="), 0 to load everything in
+        // this process
+        int workers = 0;
+        // seconds between partial snapshots of CSV datasets still loading ("--progressive="), 0 to wait for whole
+        // datasets
+        double progressiveSeconds = 0;
+        // arguments passed on to worker processes
+        List<String> workerArgs = new ArrayList<>();
+        String metricsFileName = "";
+        
+        // property columns are kept on the heap unless "--storage=offheap" is provided
+        ColumnStorage storage = ColumnStorage.HEAP;
         
         // booleans to check whether input data was provided
         boolean hasCovidData = false;
         boolean hasPopulationData = false;
         boolean hasPropertiesData = false;
         boolean hasLogFile = false;
-        
-        // instantiate empty zipCodes map to pass to readers if covid file isn't provided, otherwise gets updated with
-        // data from covid file if provided
-        Map<Integer, ZipCode> zipCodes = new TreeMap<>();
 
         try {
             // runtime arguments should be in form "--name=value"
@@ -43,9 +62,10 @@ public class Main {
             // retrieve singleton instance of logger
             Logger logger = Logger.getInstance();
 
-             // if arg is not one of the 4 keys in map, it is invalid
+             // if arg is not one of the valid keys in map, it is invalid
              Map<String, Integer> validArgNames = new HashMap<>();
-             String[] validNames = {"covid", "properties", "population", "log"};
+             String[] validNames = {"covid", "properties", "population", "log", "storage", "metrics", "cache",
+                     "shards", "workers", "progressive"};
 
              for (String name: validNames) {
                  // add entries to map, with initial count of each arg name = 0
@@ -68,8 +88,8 @@ public class Main {
 
                  if (!validArgNames.containsKey(name))  {
                      // if arg name is not a key in the map (case-sensitive), it is invalid
-                     System.out.println("Error: " + arg + "does not have a valid argument name. The 4 valid names are: " +
-                             "'covid', 'properties', 'population', and 'log'.");
+                     System.out.println("Error: " + arg + "does not have a valid argument name. The valid names are: '" +
+                             String.join("', '", validNames) + "'.");
                      return;
                  }
 
@@ -82,21 +102,44 @@ public class Main {
                      validArgNames.put(name, validArgNames.get(name) + 1);
                  }
 
-                 // if arg name is "covid", check for valid file extension
-                 if (name.equals("covid")) {
-                     Pattern validCovidFileExt = Pattern.compile(".*\\.(?<ext>json|csv)$", Pattern.CASE_INSENSITIVE);
+                 // if arg name is "covid" and value is a directory or glob, resolve the covid files it matches
+                 if (name.equals("covid") && (new File(value).isDirectory() || CovidMultiFileLoader.isGlob(value))) {
+                     // value is a directory or glob of covid files (e.g. one file per etl_timestamp batch)
+                     covidFileNames = CovidMultiFileLoader.resolve(value);
+
+                     if (covidFileNames.isEmpty()) {
+                         System.out.println("Error: No covid files with extension 'json' or 'csv' (optionally " +
+                                 "followed by '.gz') were found in: " + value);
+                         return;
+                     }
+
+                     // CHECK IF EVERY FILE CAN BE OPENED
+                     for (String fileName : covidFileNames) {
+                         if (!new File(fileName).canRead()) {
+                             System.out.println("Error: Covid file cannot be read/accessed due to file permissions: " +
+                                     fileName);
+                             return;
+                         }
+                     }
+
+                     hasCovidData = true;
+                     covidFileName = value;
+                 } else if (name.equals("covid")) {
+                     // otherwise, check for valid file extension of single covid file
+                     // gzip-compressed files (".csv.gz" or ".json.gz") are decompressed while reading
+                     Pattern validCovidFileExt = Pattern.compile(".*\\.(?<ext>json|csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE);
                      Matcher validCovidFile = validCovidFileExt.matcher(arg);
 
                      if (!validCovidFile.matches()) {
                          System.out.println("Error: The file extension for 'covid' is invalid. The extension must be either" +
-                                 " 'json' or 'csv' (case-insensitive).)");
+                                 " 'json' or 'csv', optionally followed by '.gz' (case-insensitive).)");
                          return;
                      }
 
                      // UPDATE FILE NAME VARIABLES IF FILE IS VALID
                      hasCovidData = true;
                      covidFileName = value;
-                     covidFileExt = validCovidFile.group("ext");
+                     covidFileExt = validCovidFile.group("ext").toLowerCase();
 
                      // CHECK IF FILE EXISTS AND CAN BE OPENED
                      File covidFileObj = new File(covidFileName);
@@ -109,12 +152,12 @@ public class Main {
 
                  // if arg name is "population", check for valid file extension
                  if (name.equals("population")) {
-                     Pattern validPopulationFileExt = Pattern.compile(".*\\.(?<ext>csv)$", Pattern.CASE_INSENSITIVE);
+                     Pattern validPopulationFileExt = Pattern.compile(".*\\.(?<ext>csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE);
                      Matcher validPopulationFile = validPopulationFileExt.matcher(arg);
 
                      if (!validPopulationFile.matches()) {
                          System.out.println("Error: The file extension for 'population' is invalid. The extension must be " +
-                                 "'csv' (case-insensitive).)");
+                                 "'csv', optionally followed by '.gz' (case-insensitive).)");
                          return;
                      }
 
@@ -134,12 +177,12 @@ public class Main {
 
                  // if arg name is "properties", check for valid file extension
                  if (name.equals("properties")) {
-                     Pattern validPropertiesFileExt = Pattern.compile(".*\\.(?<ext>csv)$", Pattern.CASE_INSENSITIVE);
+                     Pattern validPropertiesFileExt = Pattern.compile(".*\\.(?<ext>csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE);
                      Matcher validPropertiesFile = validPropertiesFileExt.matcher(arg);
 
                      if (!validPropertiesFile.matches()) {
                          System.out.println("Error: The file extension for 'properties' is invalid. The extension must be " +
-                                 "'csv' (case-insensitive).)");
+                                 "'csv', optionally followed by '.gz' (case-insensitive).)");
                          return;
                      }
 
@@ -162,6 +205,75 @@ public class Main {
                      logger.setOutput(logFileName);
                      hasLogFile = true;
                  }
+
+                 // if arg name is "storage", check for valid storage option
+                 if (name.equals("storage")) {
+                     storage = ColumnStorage.fromArgument(value);
+
+                     if (storage == null) {
+                         System.out.println("Error: The value for 'storage' is invalid. The value must be either 'heap'" +
+                                 " or 'offheap' (case-insensitive).");
+                         return;
+                     }
+                 }
+
+                 // if arg name is "metrics", write ingest and runtime metrics to this file when the program exits
+                 if (name.equals("metrics")) {
+                     Metrics.getInstance().setOutput(value);
+                     metricsFileName = value;
+                 }
+
+                 // if arg name is "cache", persist results of heavy queries in this directory
+                 if (name.equals("cache")) {
+                     cacheDirectory = value;
+                 }
+
+                 // if arg name is "shards", check for a positive number of shards
+                 if (name.equals("shards")) {
+                     if (!value.matches("\\d{1,4}") || Integer.parseInt(value) < 1) {
+                         System.out.println("Error: The value for 'shards' is invalid. The value must be a positive " +
+                                 "whole number.");
+                         return;
+                     }
+                     shards = Integer.parseInt(value);
+                 }
+
+                 // if arg name is "workers", check for a positive number of worker processes
+                 if (name.equals("workers")) {
+                     if (!value.matches("\\d{1,3}") || Integer.parseInt(value) < 1) {
+                         System.out.println("Error: The value for 'workers' is invalid. The value must be a positive " +
+                                 "whole number.");
+                         return;
+                     }
+                     workers = Integer.parseInt(value);
+                 }
+
+                 // if arg name is "progressive", actions read partial snapshots of datasets that are still loading
+                 if (name.equals("progressive")) {
+                     if (!value.matches("\\d{1,4}(\\.\\d{1,3})?") || Double.parseDouble(value) <= 0) {
+                         System.out.println("Error: The value for 'progressive' is invalid. The value must be a " +
+                                 "positive number of seconds.");
+                         return;
+                     }
+                     progressiveSeconds = Double.parseDouble(value);
+                 }
+
+                 // input arguments are passed on to worker processes as they are
+                 if (name.equals("covid") || name.equals("population") || name.equals("properties") ||
+                         name.equals("storage") || name.equals("shards")) {
+                     workerArgs.add(arg);
+                 }
+             }
+
+             if (workers > 0 && !cacheDirectory.isEmpty()) {
+                 // cached results are keyed by input files only, so results of one partition would be served to others
+                 System.out.println("Error: The arguments 'cache' and 'workers' cannot be used together.");
+                 return;
+             }
+             if (workers > 0 && progressiveSeconds > 0) {
+                 // workers load their partitions before serving any action
+                 System.out.println("Error: The arguments 'progressive' and 'workers' cannot be used together.");
+                 return;
              }
              
              StringBuilder runtimeArgs = new StringBuilder();
@@ -184,73 +296,84 @@ public class Main {
              
 
         // after checking that all provided runtime arguments are valid, start program logic
-        
-        // if covid file is provided, instantiate either csv or json covid reader and lex/parse data from covid file,
-            // which returns a list of ZipCode objects
-        if (hasCovidData)  {
-            if (covidFileExt.equals("csv")) {
-                CovidCsvReader covidCsvReader = new CovidCsvReader(covidFileName);
-                covidCsvReader.readCovidCSV();
-                
-                // log file name right after reading
-                logger.log(covidFileName);
-                
-                // update zipCodes map instance var with data from covid file
-                zipCodes = covidCsvReader.covidParser(covidCsvReader.getRecords());
-            } else if (covidFileExt.equals("json")) {
-                CovidJsonReader covidJsonReader = new CovidJsonReader(covidFileName);
-                // store records returned from reading json file
-                List<String[]> records = covidJsonReader.readCovidJson();
-                
-                // log file name right after reading
-                logger.log(covidFileName);
-                
-                // update zipCodes map instance var with data from json file
-                zipCodes = covidJsonReader.covidParser(records);
+
+        try {
+            if (workers > 0) {
+                // distributed mode: worker processes load and query their partitions, this process runs the menu
+                runDistributed(workers, workerArgs, logFileName, metricsFileName, logger, hasCovidData,
+                        hasPopulationData, hasPropertiesData);
+                return;
             }
-        } 
-        
-        if (hasPopulationData)  {
-            // read data from population file if provided, and update zipCodes map
-            PopulationCsvReader populationReader = new PopulationCsvReader(populationFileName);
-            populationReader.readPopulationCSV();
-            
-            // log file name after reading
-            logger.log(populationFileName);
-            
-            // update zipCode list
-            populationReader.populationParser(zipCodes);
-        }
-        
-        if (hasPropertiesData) {
-            // read data from properties file if provided, and update zipCodes map
-            PropertiesCsvReader propertiesReader = new PropertiesCsvReader(propertiesFileName);
-            propertiesReader.readPropertiesCSV();
-            
-            // log file name after reading
-            logger.log(propertiesFileName);
-            
-            // update zipCode list
-            propertiesReader.propertiesParser(zipCodes);
-        }
-        
 
-        // INITIALIZE PROCESSOR
-        Processor processor = new Processor(zipCodes, logger);
+            // start loading each provided dataset in the background, so the menu is usable immediately; each action
+            // waits only for the datasets it needs. The loader is closed however the menu ends (an action may fail
+            // on a dataset that could not be parsed), which stops unfinished loads and releases property columns
+            // (frees native memory when stored off-heap)
+            try (DatasetLoader loader = new DatasetLoader(logger, shards)) {
+                loader.setSnapshotInterval((long) Math.ceil(progressiveSeconds * 1000));
+
+                if (hasCovidData)  {
+                    if (covidFileNames != null) {
+                        loader.loadCovid(covidFileNames);
+                    } else {
+                        loader.loadCovid(covidFileName, covidFileExt);
+                    }
+                }
+
+                if (hasPopulationData)  {
+                    loader.loadPopulation(populationFileName);
+                }
+
+                if (hasPropertiesData) {
+                    loader.loadProperties(propertiesFileName, storage);
+                }
+
 
-        // CREATE UI INSTANCE (maybe pass logger as a param)
-        UserInterface ui = new UserInterface(processor);
+                // INITIALIZE PROCESSOR
+                Processor processor = new Processor(loader, logger);
 
-        // START UI LOGIC (DISPLAYS MENU, PROMPTS FOR USER INPUT, HANDLES USER INPUT)
-        ui.start(hasCovidData, hasPopulationData, hasPropertiesData);
+                if (!cacheDirectory.isEmpty()) {
+                    // cached results are keyed by a fingerprint of every input file, so they are dropped when any
+                    // input changes
+                    List<String> inputFiles = new ArrayList<>();
+                    if (covidFileNames != null) {
+                        inputFiles.addAll(covidFileNames);
+                    } else if (hasCovidData) {
+                        inputFiles.add(covidFileName);
+                    }
+                    if (hasPopulationData) {
+                        inputFiles.add(populationFileName);
+                    }
+                    if (hasPropertiesData) {
+                        inputFiles.add(propertiesFileName);
+                    }
+                    processor.setQueryCache(new QueryCache(cacheDirectory, inputFiles));
+                }
+
+                // CREATE UI INSTANCE (maybe pass logger as a param)
+                UserInterface ui = new UserInterface(processor);
+
+                // START UI LOGIC (DISPLAYS MENU, PROMPTS FOR USER INPUT, HANDLES USER INPUT)
+                ui.start(hasCovidData, hasPopulationData, hasPropertiesData);
+            }
+        } finally {
+            // write metrics report if "--metrics=" was provided, also when an action failed
+            Metrics.getInstance().write();
+        }
         } catch (IOException e) {
             System.out.println("An IOException was thrown.");
             e.printStackTrace();
-        } catch (CSVFormatException e) {
-            System.out.println("A CSVFormatException occurred when parsing a CSV file.");
-            e.printStackTrace();
-        } catch (ParseException e) {
-            System.out.println("A ParseException occurred when parsing the input JSON file.");
+        } catch (IllegalStateException e) {
+            // datasets load in the background, so parsing errors surface when an action first needs the dataset
+            if (e.getCause() instanceof CSVFormatException) {
+                System.out.println("A CSVFormatException occurred when parsing a CSV file.");
+            } else if (e.getCause() instanceof ParseException) {
+                System.out.println("A ParseException occurred when parsing the input JSON file.");
+            } else if (e.getCause() instanceof IOException) {
+                System.out.println("An IOException was thrown.");
+            } else {
+                System.out.println("An exception was thrown during program execution.");
+            }
             e.printStackTrace();
         } catch (NullPointerException e) {
             System.out.println("An NullPointerException occurred.");
@@ -261,4 +384,34 @@ public class Main {
             e.printStackTrace();
         }
     }
+
+    // start worker processes and run the menu against a coordinator merging their results
+    private static void runDistributed(int workers, List<String> workerArgs, String logFileName,
+                                       String metricsFileName, Logger logger, boolean hasCovidData,
+                                       boolean hasPopulationData, boolean hasPropertiesData) throws IOException {
+        try (Coordinator coordinator = new Coordinator(workers, withWorkerOutputs(workerArgs, logFileName,
+                metricsFileName), logger)) {
+            // workers open the input files as they start, file names are logged once here
+            for (String arg : workerArgs) {
+                if (arg.startsWith("--covid=") || arg.startsWith("--population=") || arg.startsWith("--properties=")) {
+                    logger.log(arg.substring(arg.indexOf('=') + 1));
+                }
+            }
+            UserInterface ui = new UserInterface(coordinator);
+            ui.start(hasCovidData, hasPopulationData, hasPropertiesData);
+        }
+    }
+
+    // each worker logs and writes metrics next to this process's files (see Worker for their names)
+    private static List<String> withWorkerOutputs(List<String> workerArgs, String logFileName,
+                                                  String metricsFileName) {
+        List<String> args = new ArrayList<>(workerArgs);
+        if (!logFileName.isEmpty()) {
+            args.add("--log=" + logFileName);
+        }
+        if (!metricsFileName.isEmpty()) {
+            args.add("--metrics=" + metricsFileName);
+        }
+        return args;
+    }
 }
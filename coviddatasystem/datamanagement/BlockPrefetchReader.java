@@ -0,0 +1,148 @@
+package coviddatasystem.datamanagement;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@code BlockPrefetchReader} reads a source {@code Reader} in large blocks on its own I/O thread and hands the blocks
+ * to the consuming thread through a bounded queue.
+ *
+ * When the consumer falls behind, the queue fills up and the I/O thread blocks (backpressure), so at most
+ * {@code queueCapacity} blocks are buffered. I/O errors on the I/O thread are rethrown to the consumer by read().
+ */
+public class BlockPrefetchReader extends Reader {
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    // marks the end of the source (or a failure, see ioFailure)
+    private static final char[] END = new char[0];
+
+    private final Reader source;
+    private final int blockSize;
+    private final BlockingQueue<char[]> blocks;
+    private final Thread ioThread;
+
+    private final StageStats readStats;
+    private final StageStats consumerStats;
+
+    private volatile IOException ioFailure;
+
+    private char[] current = null;
+    private int position = 0;
+    private boolean finished = false;
+
+    /**
+     * Starts the I/O thread reading blocks from the source with default block size and queue capacity
+     * @param source Reader to read from on the I/O thread
+     */
+    public BlockPrefetchReader(Reader source) {
+        this(source, DEFAULT_BLOCK_SIZE, DEFAULT_QUEUE_CAPACITY, new StageStats("read"), new StageStats("parse"));
+    }
+
+    /**
+     * Starts the I/O thread reading blocks from the source
+     * @param source Reader to read from on the I/O thread
+     * @param blockSize number of characters per block
+     * @param queueCapacity maximum number of blocks buffered between the I/O thread and the consumer
+     * @param readStats stats of the read stage (updated by the I/O thread)
+     * @param consumerStats stats of the consuming stage, whose blocked time includes waiting for blocks
+     */
+    public BlockPrefetchReader(Reader source, int blockSize, int queueCapacity, StageStats readStats,
+                               StageStats consumerStats) {
+        this.source = source;
+        this.blockSize = blockSize;
+        this.blocks = new ArrayBlockingQueue<>(queueCapacity);
+        this.readStats = readStats;
+        this.consumerStats = consumerStats;
+        this.ioThread = new Thread(this::readBlocks, "ingest-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    // body of the I/O thread
+    private void readBlocks() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                char[] block = new char[blockSize];
+                int length = source.read(block, 0, blockSize);
+                long read = System.nanoTime();
+                readStats.busyNanos += read - start;
+
+                if (length == -1) {
+                    break;
+                }
+                if (length < blockSize) {
+                    block = Arrays.copyOf(block, length);
+                }
+                readStats.items++;
+                readStats.chars += length;
+
+                // blocks while queue is full
+                blocks.put(block);
+                readStats.blockedNanos += System.nanoTime() - read;
+            }
+        } catch (IOException e) {
+            ioFailure = e;
+        } catch (InterruptedException e) {
+            // consumer closed the reader, stop reading
+            return;
+        }
+        try {
+            blocks.put(END);
+        } catch (InterruptedException e) {
+            // consumer closed the reader
+        }
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (current == null || position == current.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    // takes next block from the queue, returns false at end of source
+    private boolean nextBlock() throws IOException {
+        if (finished) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            current = blocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input block");
+        }
+        consumerStats.blockedNanos += System.nanoTime() - start;
+        position = 0;
+
+        if (current == END) {
+            finished = true;
+            if (ioFailure != null) {
+                throw ioFailure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ioThread.interrupt();
+        source.close();
+    }
+}
@@ -2,14 +2,18 @@ package coviddatasystem.datamanagement;
 
 import java.io.Reader;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
 
 /**
  * {@code CharacterReader} is a wrapper for normal {@code Reader} and
- * {@code InputStream} objects to restrict processing to a single character at
- * a time. It is only intended for educational purposes and is generally
- * unnecessary for ordinary applications.
+ * {@code InputStream} objects that reads a single character at a time with
+ * {@code read()}, or a block of characters with
+ * {@code read(char[], int, int)} (as {@code CsvReader} does). It also opens
+ * files, decompressing ".gz" files on a separate thread.
  *
  * @author Joshua Hanson
  * @author Rafi Rubin
@@ -20,8 +24,18 @@ public class CharacterReader implements AutoCloseable {
     private static final long serialVersionUID = 1160622270049L;
     private final BufferedReader reader;
 
+    // size of the buffer used when inflating gzip input
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Opens a file for reading. Files ending in ".gz" are decompressed on a separate thread that hands decoded
+     * blocks to this reader, so decompression and parsing run in parallel.
+     *
+     * @param filename name of the file to read
+     * @throws IOException If the file cannot be opened
+     */
     public CharacterReader(String filename) throws IOException {
-        this.reader = Files.newBufferedReader(Paths.get(filename));
+        this.reader = new BufferedReader(openReader(filename));
     }
 
     public CharacterReader(Reader reader) {
@@ -32,6 +46,44 @@ public class CharacterReader implements AutoCloseable {
         this(new InputStreamReader(inputStream));
     }
 
+    /**
+     * Opens a file as a character stream, decompressing it on its own thread if its name ends in ".gz"
+     *
+     * @param filename name of the file to read
+     * @return reader over the (decompressed) contents of the file
+     * @throws IOException If the file cannot be opened
+     */
+    public static Reader openReader(String filename) throws IOException {
+        if (isGzip(filename)) {
+            return new BlockPrefetchReader(openSource(filename));
+        }
+        return openSource(filename);
+    }
+
+    /**
+     * Opens a file as a character stream on the calling thread, decompressing it if its name ends in ".gz"
+     *
+     * @param filename name of the file to read
+     * @return reader over the (decompressed) contents of the file
+     * @throws IOException If the file cannot be opened
+     */
+    public static Reader openSource(String filename) throws IOException {
+        Path path = Paths.get(filename);
+        if (isGzip(filename)) {
+            InputStream inflated = new GZIPInputStream(Files.newInputStream(path), GZIP_BUFFER_SIZE);
+            return new InputStreamReader(inflated, StandardCharsets.UTF_8);
+        }
+        return Files.newBufferedReader(path);
+    }
+
+    /**
+     * @param filename name of a file
+     * @return true if the file name ends in ".gz" (case-insensitive)
+     */
+    public static boolean isGzip(String filename) {
+        return filename.toLowerCase().endsWith(".gz");
+    }
+
     /**
      * Reads a single character, or -1 on EOF.
      *
@@ -44,6 +96,20 @@ public class CharacterReader implements AutoCloseable {
         return this.reader.read();
     }
 
+    /**
+     * Reads characters into a portion of an array, e.g. a block at a time.
+     *
+     * @param buffer destination buffer
+     * @param offset offset at which to start storing characters
+     * @param length maximum number of characters to read
+     * @return The number of characters read, or -1 if the end of the stream
+     *         has been reached
+     * @throws IOException If an I/O error occurs
+     */
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        return this.reader.read(buffer, offset, length);
+    }
+
     /**
      * Closes the stream and releases any system resources associated with it.
      * Once the stream has been closed, further read(), ready(), mark(),
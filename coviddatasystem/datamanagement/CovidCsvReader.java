@@ -1,5 +1,6 @@
 package coviddatasystem.datamanagement;
 
+import coviddatasystem.logging.MergeEvent;
 import coviddatasystem.util.ZipCode;
 
 import java.io.IOException;
@@ -7,7 +8,18 @@ import java.io.IOException;
 import java.util.*;
 import java.util.regex.Matcher;
 
-public class CovidCsvReader extends CsvReader implements CovidReader {
+public class CovidCsvReader extends CsvReader implements CovidReader, RecordMerger {
+
+    // indices in fieldTitles of each column, determined from the header row
+    int zipCodeIndex;
+    int negIndex;
+    int posIndex;
+    int deathsIndex;
+    int hospitalizedIndex;
+    int partialVacIndex;
+    int fullVacIndex;
+    int boostedIndex;
+    int timeStampIndex;
     
     /**
      * Instantiates char reader based on input CSV file
@@ -19,6 +31,15 @@ public class CovidCsvReader extends CsvReader implements CovidReader {
         super(filename);
     }
 
+    /**
+     * Instantiates covid CSV reader over an already opened char reader
+     *
+     * @param reader CharacterReader positioned at the start of the CSV header row
+     */
+    public CovidCsvReader(CharacterReader reader) {
+        super(reader);
+    }
+
     /**
      * Reads entire covid CSV file, recording field/column titles and storing all valid records in a list
      * @throws IOException when the underlying reader encountered an error
@@ -26,41 +47,71 @@ public class CovidCsvReader extends CsvReader implements CovidReader {
      */
     public void readCovidCSV() throws IOException, CSVFormatException {
         // read in header row by calling readRecord() and update fieldTitles list
-        this.fieldTitles = Arrays.asList(readRow());
+        readHeader();
 
         // read in remaining records in CSV file 
         String[] record;
 
         while ((record = readRow()) != null) {
-            // fetch indices in fieldTitles of "zip_code" and "etl_timestamp" headers
-            int zipCodeIndex = this.fieldTitles.indexOf("zip_code");
-            int timeStampIndex = this.fieldTitles.indexOf("etl_timestamp");
-            
-            // check if zip code is 5 digits
-            String zipCode = record[zipCodeIndex];
-            if (zipCode.length() != 5 || !isDouble(zipCode)) {
-                // if length is not 5 or chars aren't numeric, record is invalid and skip to next record
-                continue;
+            rowsRead++;
+            // add valid record to records list
+            record = validateRecord(record);
+            if (record != null) {
+                this.records.add(record);
             }
-            
-            // use regex to check if timestamp is correctly formatted (YYYY-MM-DD hh:mm:ss)
-            Matcher validTimestamp = VALID_TIMESTAMP.matcher(record[timeStampIndex]);
+        }
+    }
 
-            if (!validTimestamp.matches()) {
-                // if timestamp is incorrectly formatted, record is invalid and skip to next record
-                continue;
-            }
-            
-            for (int i = 0; i < record.length; i++) {
-                if (record[i].isEmpty()) {
-                    // if a field is empty, then replace with "0"
-                    record[i] = "0";
-                }
+    /**
+     * Reads header row and determines the column of each covid field
+     * @throws IOException when the underlying reader encountered an error
+     * @throws CSVFormatException when the CSV file is formatted incorrectly
+     */
+    @Override
+    public void readHeader() throws IOException, CSVFormatException {
+        super.readHeader();
+        
+        zipCodeIndex = fieldTitles.indexOf("zip_code");
+        negIndex = fieldTitles.indexOf("NEG");
+        posIndex = fieldTitles.indexOf("POS");
+        deathsIndex = fieldTitles.indexOf("deaths");
+        hospitalizedIndex = fieldTitles.indexOf("hospitalized");
+        partialVacIndex = fieldTitles.indexOf("partially_vaccinated");
+        fullVacIndex = fieldTitles.indexOf("fully_vaccinated");
+        boostedIndex = fieldTitles.indexOf("boosted");
+        timeStampIndex = fieldTitles.indexOf("etl_timestamp");
+    }
+
+    /**
+     * Checks that a record has a 5 digit zip code and a correctly formatted timestamp, replacing empty fields with "0"
+     * @param record fields of a row as returned by readRow()
+     * @return cleaned record, or null if the record is invalid
+     */
+    @Override
+    public String[] validateRecord(String[] record) {
+        // check if zip code is 5 digits
+        String zipCode = record[zipCodeIndex];
+        if (zipCode.length() != 5 || !isDouble(zipCode)) {
+            // if length is not 5 or chars aren't numeric, record is invalid
+            return null;
+        }
+        
+        // use regex to check if timestamp is correctly formatted (YYYY-MM-DD hh:mm:ss)
+        Matcher validTimestamp = VALID_TIMESTAMP.matcher(record[timeStampIndex]);
+
+        if (!validTimestamp.matches()) {
+            // if timestamp is incorrectly formatted, record is invalid
+            return null;
+        }
+        
+        for (int i = 0; i < record.length; i++) {
+            if (record[i].isEmpty()) {
+                // if a field is empty, then replace with "0"
+                record[i] = "0";
             }
-            
-            // add valid record to records list
-            this.records.add(record);
         }
+        
+        return record;
     }
 
     /**
@@ -70,42 +121,64 @@ public class CovidCsvReader extends CsvReader implements CovidReader {
      */
     @Override
     public Map<Integer, ZipCode> covidParser(List<String[]> records) {
+        MergeEvent event = new MergeEvent();
+        event.begin();
+
         // instantiate map to return
         Map<Integer, ZipCode> zipCodes = new TreeMap<>();
 
         // iterate through list of valid records
         for (String[] record : records) {
-            // retrieve data from record
-            String zipCodeStr = record[fieldTitles.indexOf("zip_code")];
-            String negInfectionTests = record[fieldTitles.indexOf("NEG")];
-            String posInfectionTests = record[fieldTitles.indexOf("POS")];
-            String deaths = record[fieldTitles.indexOf("deaths")];
-            String hospitalized = record[fieldTitles.indexOf("hospitalized")];
-            String partialVac = record[fieldTitles.indexOf("partially_vaccinated")];
-            String fullVac = record[fieldTitles.indexOf("fully_vaccinated")];
-            String boosted = record[fieldTitles.indexOf("boosted")];
-            String timeStamp = record[fieldTitles.indexOf("etl_timestamp")];
-
-            // convert zip_code string to integer
-            Integer zipCodeValue = Integer.parseInt(zipCodeStr);
-            
-            if (!zipCodes.containsKey(zipCodeValue)) {
-                // if zipCodeValue is not a key in the map, associate it with new ZipCode instance and add to map 
-            zipCodes.put(zipCodeValue, new ZipCode(zipCodeStr, negInfectionTests, posInfectionTests, deaths, hospitalized, 
-                    partialVac, fullVac, boosted, timeStamp));
-            } else {
-                // else, zip code already exists
-                
-                // retrieve ZipCode object associated with zipCodeValue
-                ZipCode zipCode = zipCodes.get(zipCodeValue);
-
-                // add entry to zip code object's covidDataAsOfTime map with updated data for new timestamp
-                zipCode.getCovidDataAsOfTime().put(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac),
-                        Double.parseDouble(negInfectionTests), Double.parseDouble(posInfectionTests), Double.parseDouble(deaths),
-                        Double.parseDouble(hospitalized), Double.parseDouble(boosted)});
-            }
+            mergeRecord(record, zipCodes);
         }
         
+        event.commit("covidParser", "covid", records.size(), zipCodes.size());
         return zipCodes;
     }
+
+    /**
+     * @return zip code of a valid record
+     */
+    @Override
+    public int recordKey(String[] record) {
+        return Integer.parseInt(record[zipCodeIndex]);
+    }
+
+    /**
+     * Adds the covid data of a valid record to its ZipCode object, creating the object if needed
+     * @param record valid record
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     */
+    @Override
+    public void mergeRecord(String[] record, Map<Integer, ZipCode> zipCodes) {
+        // retrieve data from record
+        String zipCodeStr = record[zipCodeIndex];
+        String negInfectionTests = record[negIndex];
+        String posInfectionTests = record[posIndex];
+        String deaths = record[deathsIndex];
+        String hospitalized = record[hospitalizedIndex];
+        String partialVac = record[partialVacIndex];
+        String fullVac = record[fullVacIndex];
+        String boosted = record[boostedIndex];
+        String timeStamp = record[timeStampIndex];
+
+        // convert zip_code string to integer
+        Integer zipCodeValue = Integer.parseInt(zipCodeStr);
+        
+        if (!zipCodes.containsKey(zipCodeValue)) {
+            // if zipCodeValue is not a key in the map, associate it with new ZipCode instance and add to map 
+            zipCodes.put(zipCodeValue, new ZipCode(zipCodeStr, negInfectionTests, posInfectionTests, deaths, hospitalized, 
+                    partialVac, fullVac, boosted, timeStamp));
+        } else {
+            // else, zip code already exists
+            
+            // retrieve ZipCode object associated with zipCodeValue
+            ZipCode zipCode = zipCodes.get(zipCodeValue);
+
+            // add entry to zip code object's covid data (and its rollups) with updated data for new timestamp
+            zipCode.putCovidData(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac),
+                    Double.parseDouble(negInfectionTests), Double.parseDouble(posInfectionTests), Double.parseDouble(deaths),
+                    Double.parseDouble(hospitalized), Double.parseDouble(boosted)});
+        }
+    }
 }
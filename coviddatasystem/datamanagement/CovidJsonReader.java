@@ -4,10 +4,12 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import coviddatasystem.logging.IngestFileEvent;
+import coviddatasystem.logging.MergeEvent;
 import coviddatasystem.util.ZipCode;
 
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.*;
 import java.util.regex.*;
 
@@ -75,8 +77,14 @@ public class CovidJsonReader implements CovidReader {
      * @throws ParseException occurs when there is error parsing JSON file with JSON Simple library
      */
     public List<String[]> readCovidJson() throws IOException, ParseException {
-        // parse JSON file and cast to JSONArray
-        JSONArray jsonArray = (JSONArray) new JSONParser().parse(new FileReader(this.fileName));
+        IngestFileEvent event = new IngestFileEvent();
+        event.begin();
+
+        // parse JSON file (decompressing ".gz" files on a separate thread) and cast to JSONArray
+        JSONArray jsonArray;
+        try (Reader jsonReader = CharacterReader.openReader(this.fileName)) {
+            jsonArray = (JSONArray) new JSONParser().parse(jsonReader);
+        }
 
         // iterate through objects/records in array
         for (Object obj : jsonArray) {
@@ -90,6 +98,7 @@ public class CovidJsonReader implements CovidReader {
                 records.add(record);
             }
         }
+        event.commit("covid", fileName, jsonArray.size(), jsonArray.size() - records.size());
         // returns updated list of valid records
         return this.records;
     }
@@ -101,6 +110,9 @@ public class CovidJsonReader implements CovidReader {
      */
     @Override
     public Map<Integer, ZipCode> covidParser(List<String[]> records) {
+        MergeEvent event = new MergeEvent();
+        event.begin();
+
         // instantiate map of ZipCode objects to return
         Map<Integer, ZipCode> zipCodes = new TreeMap<>();
         
@@ -130,13 +142,14 @@ public class CovidJsonReader implements CovidReader {
                 // retrieve ZipCode object associated with zipCodeValue
                 ZipCode zipCode = zipCodes.get(zipCodeValue);
 
-                // add entry to zip code object's covidDataAsOfTime map with updated data for new timestamp
-                zipCode.getCovidDataAsOfTime().put(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac),
+                // add entry to zip code object's covid data (and its rollups) with updated data for new timestamp
+                zipCode.putCovidData(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac),
                         Double.parseDouble(negInfectionTests), Double.parseDouble(posInfectionTests), Double.parseDouble(deaths),
                         Double.parseDouble(hospitalized), Double.parseDouble(boosted)});
             }
         }
         
+        event.commit("covidParser", "covid", records.size(), zipCodes.size());
         return zipCodes;
     }
 }
@@ -0,0 +1,193 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.logging.IngestFileEvent;
+import coviddatasystem.logging.MergeEvent;
+import coviddatasystem.util.ZipCode;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@code CovidMultiFileLoader} loads a covid feed that is split into several files (e.g. one file per etl_timestamp
+ * batch), given either a directory or a glob pattern such as "data/covid_*.csv".
+ *
+ * Each file is parsed on its own thread by {@code CovidCsvReader} or {@code CovidJsonReader} (formats can be mixed,
+ * and ".gz" files are decompressed). The per-file results are then merged by (zip code, timestamp), with zip codes
+ * merged in parallel.
+ *
+ * Duplicate rule: if the same zip code and timestamp appear in more than one file, the record from the file whose
+ * path sorts last wins. Within a single file the last matching row wins, just like loading that file on its own.
+ * Feeds named by batch date therefore resolve duplicates in favour of the newest batch.
+ */
+public class CovidMultiFileLoader {
+
+    // valid covid file names: ".csv" or ".json", optionally gzip-compressed
+    public static final Pattern COVID_FILE = Pattern.compile(".*\\.(json|csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE);
+
+    private final int threads;
+
+    /**
+     * Creates loader that parses up to one file per available processor at a time
+     */
+    public CovidMultiFileLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads maximum number of files parsed at the same time
+     */
+    public CovidMultiFileLoader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param value value of the "--covid=" runtime argument
+     * @return true if value contains glob characters (*, ?, [ or {)
+     */
+    public static boolean isGlob(String value) {
+        return value.matches(".*[*?\\[{].*");
+    }
+
+    /**
+     * Lists the covid files in a directory, or the files matching a glob whose wildcards are in the last path
+     * component (e.g. "feeds/2021-*.csv.gz"). Only files with a valid covid extension are returned.
+     * @param directoryOrGlob directory name or glob pattern
+     * @return matching file names, sorted by path
+     * @throws IOException when the directory cannot be listed
+     */
+    public static List<String> resolve(String directoryOrGlob) throws IOException {
+        Path directory;
+        PathMatcher matcher;
+
+        if (Files.isDirectory(Paths.get(directoryOrGlob))) {
+            directory = Paths.get(directoryOrGlob);
+            matcher = path -> true;
+        } else {
+            // split glob into parent directory and a pattern for file names
+            Path globPath = Paths.get(directoryOrGlob);
+            directory = globPath.getParent() == null ? Paths.get(".") : globPath.getParent();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + globPath.getFileName());
+        }
+
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(path.getFileName()))
+                    .filter(path -> COVID_FILE.matcher(path.getFileName().toString()).matches())
+                    .sorted()
+                    .map(Path::toString)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Parses files in parallel and merges them by (zip code, timestamp)
+     * @param fileNames covid files, in the order used to resolve duplicates (later files win)
+     * @return map associating numerical zip code value with a ZipCode object storing data from all files
+     * @throws IOException when a file could not be read
+     * @throws CSVFormatException when a CSV file is formatted incorrectly
+     * @throws ParseException when a JSON file could not be parsed
+     */
+    public Map<Integer, ZipCode> load(List<String> fileNames) throws IOException, CSVFormatException, ParseException {
+        List<Map<Integer, ZipCode>> partials = parseAll(fileNames);
+        return merge(partials);
+    }
+
+    // parse every file on the thread pool, returning per-file zip code maps in the same order as fileNames
+    private List<Map<Integer, ZipCode>> parseAll(List<String> fileNames)
+            throws IOException, CSVFormatException, ParseException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, fileNames.size())));
+        try {
+            List<Future<Map<Integer, ZipCode>>> futures = new ArrayList<>();
+            for (String fileName : fileNames) {
+                futures.add(pool.submit(() -> parseFile(fileName)));
+            }
+
+            List<Map<Integer, ZipCode>> partials = new ArrayList<>();
+            for (Future<Map<Integer, ZipCode>> future : futures) {
+                partials.add(future.get());
+            }
+            return partials;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading covid files", e);
+        } catch (ExecutionException e) {
+            // rethrow failure of a file with its original type
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof CSVFormatException) {
+                throw (CSVFormatException) cause;
+            }
+            if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            }
+            throw new IOException("Failed to load covid file", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // parse a single covid file with the reader matching its extension
+    private static Map<Integer, ZipCode> parseFile(String fileName)
+            throws IOException, CSVFormatException, ParseException {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".json") || name.endsWith(".json.gz")) {
+            CovidJsonReader jsonReader = new CovidJsonReader(fileName);
+            return jsonReader.covidParser(jsonReader.readCovidJson());
+        }
+        IngestFileEvent event = new IngestFileEvent();
+        event.begin();
+        try (CharacterReader characterReader = new CharacterReader(fileName)) {
+            CovidCsvReader csvReader = new CovidCsvReader(characterReader);
+            csvReader.readCovidCSV();
+            Map<Integer, ZipCode> zipCodes = csvReader.covidParser(csvReader.getRecords());
+            event.commit("covid", fileName, csvReader.getRowsRead(),
+                    csvReader.getRowsRead() - csvReader.getRecords().size());
+            return zipCodes;
+        }
+    }
+
+    // merge per-file maps zip code by zip code (in parallel), applying files in order so later files win
+    private static Map<Integer, ZipCode> merge(List<Map<Integer, ZipCode>> partials) {
+        MergeEvent event = new MergeEvent();
+        event.begin();
+        Set<Integer> allZips = new TreeSet<>();
+        for (Map<Integer, ZipCode> partial : partials) {
+            allZips.addAll(partial.keySet());
+        }
+
+        ConcurrentMap<Integer, ZipCode> merged = new ConcurrentHashMap<>();
+        allZips.parallelStream().forEach(zip -> {
+            ZipCode mergedZip = null;
+            for (Map<Integer, ZipCode> partial : partials) {
+                ZipCode zipCode = partial.get(zip);
+                if (zipCode == null) {
+                    continue;
+                }
+                if (mergedZip == null) {
+                    // per-file objects are discarded after merging, so the first one is reused
+                    mergedZip = zipCode;
+                } else {
+                    for (Map.Entry<String, Double[]> snapshot : zipCode.getCovidDataAsOfTime().entrySet()) {
+                        mergedZip.putCovidData(snapshot.getKey(), snapshot.getValue());
+                    }
+                }
+            }
+            merged.put(zip, mergedZip);
+        });
+
+        event.commit("mergeFiles", "covid", partials.stream().mapToLong(Map::size).sum(), merged.size());
+        return new TreeMap<>(merged);
+    }
+}
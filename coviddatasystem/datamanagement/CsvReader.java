@@ -1,5 +1,7 @@
 package coviddatasystem.datamanagement;
 
+import coviddatasystem.util.ZipCode;
+
 import java.io.IOException;
 import java.util.*;
 
@@ -9,6 +11,9 @@ public class  CsvReader {
     protected List<String> fieldTitles;
     protected ArrayList<String[]> records = new ArrayList<>();
 
+    // rows read after the header by a whole-file read (readCovidCSV(), ...), valid or not
+    protected long rowsRead;
+
 
     // ASCII values for escape characters
     final int COMMA = 44; // ASCII for ','
@@ -16,6 +21,25 @@ public class  CsvReader {
     final int CARRIAGE_RETURN = 13; // ASCII for '\r'
     final int LINE_FEED = 10; // ASCII for '\n'
 
+    // characters read from the reader per block
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // current block of input (allocated on first read) and bitmasks of its structural characters and of its dquotes,
+    // one bit per character (see StructuralIndex)
+    private char[] block;
+    private long[] structuralBits;
+    private long[] quoteBits;
+    private int blockLength;
+
+    // next character of the block to parse
+    private int position;
+    private boolean endOfInput;
+
+    // current field: characters copied so far, plus a run of block characters not copied yet (runStart < 0 if none)
+    private final StringBuilder field = new StringBuilder();
+    private int runStart = -1;
+    private int runEnd;
+
     /**
      * Instantiates char reader based on input CSV file
      * @param filename String representing name of input CSv file
@@ -25,6 +49,32 @@ public class  CsvReader {
         this.reader = new CharacterReader(filename);
     }
 
+    /**
+     * Instantiates CSV reader over an already opened char reader (e.g. one fed by an ingest pipeline)
+     * @param reader CharacterReader positioned at the start of the CSV header row
+     */
+    public CsvReader(CharacterReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the header row and records field/column titles
+     * @throws IOException when the underlying reader encountered an error
+     * @throws CSVFormatException when the CSV file is formatted incorrectly
+     */
+    public void readHeader() throws IOException, CSVFormatException {
+        this.fieldTitles = Arrays.asList(readRow());
+    }
+
+    /**
+     * Checks whether a record read after the header is valid. Subclasses override this to drop invalid records and
+     * to keep only the fields they need.
+     * @param record fields of a row as returned by readRow()
+     * @return record to keep (possibly shrunk or cleaned), or null if the record is invalid
+     */
+    public String[] validateRecord(String[] record) {
+        return record;
+    }
 
     /**
      * This method uses the class's {@code CharacterReader} to read in just enough
@@ -34,6 +84,11 @@ public class  CsvReader {
      * {@code CSVFormatException} that specifies the exact point at which the error
      * occurred.
      *
+     * Characters are read a block at a time and the structural characters of each
+     * block are indexed first ({@code StructuralIndex}), so the row is parsed by
+     * jumping from one structural character to the next (or, inside a quoted field,
+     * from one double quote to the next) and each field is copied in one go.
+     *
      * @return a single row of CSV represented as a string array, where each
      * element of the array is a field of the row; or {@code null} when
      * there are no more rows left to be read.
@@ -41,143 +96,193 @@ public class  CsvReader {
      * @throws CSVFormatException when the CSV file is formatted incorrectly
      */
     public String[] readRow() throws IOException, CSVFormatException {
-        // initialize string array to store each field
-        ArrayList<String> fields = new ArrayList<>();
-
-        // initialize string builder to store current field being read
-        StringBuilder field = new StringBuilder();
-
-        // initialize variable to store int value of current char being read
-        int current = reader.read();
-
-        if (current == -1) {
+        if (!fillBlock()) {
             // if file is empty or end of stream has been reached, return null
             return null;
         }
 
+        // initialize string array to store each field
+        ArrayList<String> fields = new ArrayList<>();
+
         boolean inQuote = false;
         boolean fieldStart = true;
+        // true once the current unquoted field has any characters
+        boolean hasText = false;
 
-        while (current != -1) {
-            if (fieldStart && current == DOUBLE_QUOTE) {
+        while (true) {
+            if (!fillBlock()) {
+                if (inQuote) {
+                    // an escaped field was not properly closed
+                    throw new CSVFormatException();
+                }
+                if (hasText) {
+                    // last field of the file ends without a line break
+                    fields.add(takeField());
+                }
+                return fields.toArray(new String[0]);
+            }
+
+            if (inQuote) {
+                // everything up to the next dquote (commas and line breaks included) is part of the field
+                int quote = nextStructural(quoteBits);
+                appendRun(position, quote);
+                position = quote;
+                if (quote == blockLength) {
+                    continue;
+                }
+                position++;
+
+                if (!fillBlock()) {
+                    // if dquote is end of file, add field and return fields
+                    fields.add(takeField());
+                    return fields.toArray(new String[0]);
+                }
+                if (block[position] == DOUBLE_QUOTE) {
+                    // two dquotes in an escaped field are an escaped dquote, keep one of them
+                    appendRun(position, position + 1);
+                    position++;
+                    continue;
+                }
+                // else, dquote is end of quoted field and must be followed by a delimiter, handled below
+                inQuote = false;
+                int next = block[position];
+                if (next != COMMA && next != CARRIAGE_RETURN && next != LINE_FEED) {
+                    // invalid character after the end of a quoted field
+                    throw new CSVFormatException();
+                }
+                continue;
+            }
+
+            if (fieldStart && !hasText && block[position] == DOUBLE_QUOTE) {
                 // if first char in field is a dquote, represents start of escaped context
                 inQuote = true;
                 fieldStart = false;
-                // increment current to char after dquote
-                current = reader.read();
+                position++;
+                continue;
+            }
+
+            // characters up to the next structural character are TEXTDATA of a non-escaped field
+            int structural = nextStructural(structuralBits);
+            if (structural > position) {
+                appendRun(position, structural);
+                hasText = true;
+            }
+            position = structural;
+            if (structural == blockLength) {
                 continue;
             }
 
+            int current = block[position++];
             switch (current) {
                 case COMMA:
-                    if (inQuote) {
-                        // inside quoted/escaped field, append comma to field
-                        field.append((char) current);
-                    } else {
-                        // in non-escaped field, comma is delimiter so add prev field and reset string builder
-                        fields.add(field.toString());
-                        field.setLength(0);
-                        fieldStart = true;
-                    }
+                    // comma is delimiter so add prev field and start the next one
+                    fields.add(takeField());
+                    fieldStart = true;
+                    hasText = false;
                     break;
 
-                case DOUBLE_QUOTE:
-                    if (inQuote) {
-                        // validity of dquote depends on next char, so instantiate next
-                        int next = reader.read();
-
-                        if (next == DOUBLE_QUOTE) {
-                            // if dquote in escaped field and next char is also a dquote, this is a valid escaped dquote
-                            
-                            /* don't need to evaluate second dquote in pair, so don't need to set current to next
-                            at end of while loop, current = reader.read() will increment current to next char after
-                            second dquote */
-                            field.append((char) current);
-                        } else {
-                            // else, double quote is end of quoted field
-                            inQuote = false;
-
-                            // check if the next character is valid delimiter after end of escaped field
-                            if (next == -1) {
-                                // if dquote is end of file, add prev field and return fields
-                                fields.add(field.toString());
-                                return fields.toArray(new String[0]);
-                            } else if (next == COMMA || next == CARRIAGE_RETURN || next == LINE_FEED) {
-                                // set current to next so next iteration of loop evaluates next, not next char in reader
-                                current = next;
-                                continue;
-                            }
-                            else {
-                                // invalid character after the end of a quoted field
-                                throw new CSVFormatException();
-                            }
-                        }
-                    } else {
-                        // invalid double quote in unquoted field
-                        throw new CSVFormatException();
-                    }
-                    break;
+                case LINE_FEED:
+                    // LF is valid line break and end of record
+                    fields.add(takeField());
+                    return fields.toArray(new String[0]);
 
                 case CARRIAGE_RETURN:
-                    if (inQuote) {
-                        // inside quoted field, CR is part of the field
-                        field.append((char) current);
-                    } else {
-                        // else, CR is potential end of line
-                        int next = reader.read();
-                        if (next == LINE_FEED) {
-                            // if next is LF, then CRLF is valid line break and end of record
-                            fields.add(field.toString());
-                            return fields.toArray(new String[0]);
-                        } else {
-                            // else, lone CR in non-escaped field is invalid
-                            throw new CSVFormatException();
-                        }
+                    if (!fillBlock() || block[position] != LINE_FEED) {
+                        // lone CR in non-escaped field is invalid
+                        throw new CSVFormatException();
                     }
-                    break;
-
-                case LINE_FEED:
-                    if (inQuote) {
-                        // inside quoted field, LF is part of the field
-                        field.append((char) current);
-                    } else {
-                        // in non-escaped field, LF is valid line break and end of record
-                        fields.add(field.toString());
-                        return fields.toArray(new String[0]);
-                    }
-                    break;
+                    // CRLF is valid line break and end of record
+                    position++;
+                    fields.add(takeField());
+                    return fields.toArray(new String[0]);
 
                 default:
-                    field.append((char) current);
-
-                    if (!inQuote) {
-                        int next = reader.read();
-                        if (next == DOUBLE_QUOTE) {
-                            // anytime a TEXTDATA char is followed by a dquote in a non-escaped field, this is invalid
-                            throw new CSVFormatException();
-                        } else if (next == -1) {
-                            // if char is last in row and any prev escaped fields have been properly closed,
-                            // add field to list and return fields
-                            fields.add(field.toString());
-                            return fields.toArray(new String[0]);
-                        } else {
-                            // move to next character
-                            current = next;
-                            continue;
-                        }
-                    }
-                    break;
+                    // dquote after TEXTDATA (or anywhere but the start of a field) in a non-escaped field is invalid
+                    throw new CSVFormatException();
+            }
+        }
+    }
+
+    // true if a character is available at position, reading and indexing the next block once the current one has
+    // been consumed (characters of the current field still in the block are copied first)
+    private boolean fillBlock() throws IOException {
+        if (position < blockLength) {
+            return true;
+        }
+        if (endOfInput) {
+            return false;
+        }
+        flushRun();
+        if (block == null) {
+            block = new char[BLOCK_SIZE];
+            structuralBits = new long[BLOCK_SIZE / 64];
+            quoteBits = new long[BLOCK_SIZE / 64];
+        }
+        int length;
+        do {
+            length = reader.read(block, 0, BLOCK_SIZE);
+        } while (length == 0);
+
+        position = 0;
+        if (length < 0) {
+            blockLength = 0;
+            endOfInput = true;
+            return false;
+        }
+        blockLength = length;
+        StructuralIndex.index(block, length, structuralBits, quoteBits);
+        return true;
+    }
+
+    // position of the next character at or after position whose bit is set, or blockLength if there is none
+    private int nextStructural(long[] bits) {
+        int word = position >>> 6;
+        int words = (blockLength + 63) >>> 6;
+        long mask = bits[word] & (-1L << position);
+        while (mask == 0) {
+            if (++word == words) {
+                return blockLength;
             }
-            // increment current to next char in reader
-            current = reader.read();
+            mask = bits[word];
         }
+        return (word << 6) + Long.numberOfTrailingZeros(mask);
+    }
 
-        if (inQuote) {
-            // if inQuote == true by end of row, that means that an escaped field was not properly closed
-            throw new CSVFormatException();
+    // add block characters from start to end to the current field; a field within one run of the block is not copied
+    // until it is taken
+    private void appendRun(int start, int end) {
+        if (start == end) {
+            return;
+        }
+        if (runStart < 0 && field.length() == 0) {
+            runStart = start;
+            runEnd = end;
+            return;
         }
+        flushRun();
+        field.append(block, start, end - start);
+    }
 
-        return fields.toArray(new String[0]);
+    // copy the run of the current field that is still in the block
+    private void flushRun() {
+        if (runStart >= 0) {
+            field.append(block, runStart, runEnd - runStart);
+            runStart = -1;
+        }
+    }
+
+    // current field as a string, starting the next field
+    private String takeField() {
+        String value;
+        if (field.length() == 0) {
+            value = (runStart >= 0) ? new String(block, runStart, runEnd - runStart) : "";
+        } else {
+            flushRun();
+            value = field.toString();
+            field.setLength(0);
+        }
+        runStart = -1;
+        return value;
     }
 
     /**
@@ -204,4 +309,11 @@ public class  CsvReader {
     public ArrayList<String[]> getRecords() {
         return this.records;
     }
+
+    /**
+     * @return rows read after the header by a whole-file read, including rows that failed validation
+     */
+    public long getRowsRead() {
+        return this.rowsRead;
+    }
 }
\ No newline at end of file
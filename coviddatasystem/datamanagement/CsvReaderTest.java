@@ -0,0 +1,69 @@
+package coviddatasystem.datamanagement;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Checks the structural index against a plain character scan, and that rows are still parsed field by field when
+ * they span the blocks CsvReader reads its input in.
+ */
+public class CsvReaderTest {
+
+    @Test
+    void testIndexMatchesScalarScan() {
+        Random random = new Random(42);
+        String alphabet = "ab1,\"\r\n ";
+        char[] chars = new char[1000];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        // the SIMD kernel is opt-in (see StructuralIndex), so test it directly whenever it can be loaded
+        StructuralKernel vectorKernel = StructuralIndex.loadVectorKernel();
+        // odd lengths leave a tail after the last full vector
+        for (int length : new int[] {0, 1, 63, 64, 65, 999}) {
+            long[] structural = new long[16];
+            long[] quotes = new long[16];
+            long[] expectedStructural = new long[16];
+            long[] expectedQuotes = new long[16];
+            StructuralIndex.scalarIndex(chars, 0, length, expectedStructural, expectedQuotes);
+            StructuralIndex.index(chars, length, structural, quotes);
+            assertArrayEquals(expectedStructural, structural, "length " + length);
+            assertArrayEquals(expectedQuotes, quotes, "length " + length);
+            if (vectorKernel != null) {
+                structural = new long[16];
+                quotes = new long[16];
+                vectorKernel.index(chars, length, structural, quotes);
+                assertArrayEquals(expectedStructural, structural, "vector, length " + length);
+                assertArrayEquals(expectedQuotes, quotes, "vector, length " + length);
+            }
+        }
+    }
+
+    @Test
+    void testRowsSpanningBlocks() throws Exception {
+        // a quoted field with escaped quotes and line breaks, longer than a block
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 100_000) {
+            value.append("x\"\"y,\r\nz");
+        }
+        String quoted = "\"" + value + "\"";
+        String csv = "a,b\r\n1," + quoted + "\n2,\n";
+        CsvReader reader = new CsvReader(new CharacterReader(new StringReader(csv)));
+
+        assertArrayEquals(new String[] {"a", "b"}, reader.readRow());
+        assertArrayEquals(new String[] {"1", value.toString().replace("\"\"", "\"")}, reader.readRow());
+        assertArrayEquals(new String[] {"2", ""}, reader.readRow());
+        assertNull(reader.readRow());
+    }
+
+    @Test
+    void testMalformedQuotingIsRejected() {
+        for (String csv : new String[] {"a\"b\n", "\"ab\"c\n", "\"ab\n", "a\rb\n"}) {
+            CsvReader reader = new CsvReader(new CharacterReader(new StringReader(csv)));
+            assertThrows(CSVFormatException.class, reader::readRow, csv);
+        }
+    }
+}
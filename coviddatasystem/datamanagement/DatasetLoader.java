@@ -0,0 +1,649 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.MergeEvent;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.ShardedRegionStore;
+import coviddatasystem.util.ValueRangeIndex;
+import coviddatasystem.util.ZipCode;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * {@code DatasetLoader} loads the covid, population and properties datasets in the background so the menu can be
+ * shown right away, and merges each dataset into the zip code store the first time an action needs it.
+ *
+ * Each dataset is parsed on its own thread into a separate map, so the datasets load in parallel and a slow one
+ * (usually properties) does not delay the others. require() waits for the datasets an action needs and merges them
+ * into the store. Merging is cheap compared to parsing, and datasets only touch their own fields of a
+ * {@code ZipCode}, so the merge order does not change the result.
+ *
+ * Zip codes are kept in a {@code ShardedRegionStore}. CSV datasets are ingested straight into shards (records routed to
+ * shards and merged in parallel), and a dataset is merged into the store one shard per task.
+ *
+ * The store is copy-on-write: every merge or reload builds a new {@code DatasetVersion} next to the current one and
+ * publishes it atomically, and published versions are never modified. Queries acquire() a version and read it without
+ * locking while datasets are merged or reloaded; a reload replaces a dataset once it has been parsed, without blocking
+ * queries that are running on the previous version. Merges and reloads are serialized with each other.
+ *
+ * In progressive mode (setSnapshotInterval()), CSV datasets are also published while they are read: their ingest
+ * pipeline copies the records merged so far at intervals, and each copy is published as a partial version of the
+ * dataset, replacing the previous one like a reload. Actions then wait only for the first snapshot of the datasets they
+ * need and read the latest one, marked with how much input it holds ({@code DatasetVersion.getProgress()}); the
+ * complete dataset replaces the last snapshot as soon as it is loaded.
+ */
+public class DatasetLoader implements AutoCloseable {
+
+    public enum Dataset { COVID, POPULATION, PROPERTIES }
+
+    private final int shardCount;
+
+    // current version of the zip code store, replaced (never modified) by merges and reloads
+    private final AtomicReference<DatasetVersion> current;
+
+    private final Map<Dataset, Future<Map<Integer, ZipCode>>> loads = new EnumMap<>(Dataset.class);
+
+    // concurrent, so require() can check it without the lock (a dataset is added only after its merge completes)
+    private final Set<Dataset> merged = ConcurrentHashMap.newKeySet();
+
+    // retired versions not reclaimed yet, oldest first (a version's replaced columns may still be read by older ones)
+    private final Deque<DatasetVersion> retired = new ArrayDeque<>();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dataset-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger;
+
+    // zip codes kept from every dataset, null to keep all of them
+    private volatile IntPredicate zipFilter;
+
+    // milliseconds between partial snapshots of datasets being loaded, 0 to publish datasets only once loaded
+    private volatile long snapshotIntervalMillis;
+
+    // latest partial snapshot of each dataset that has not been published yet
+    private final Map<Dataset, AtomicReference<Snapshot>> pendingSnapshots = new ConcurrentHashMap<>();
+
+    // datasets published at least partially (or whose load failed), which actions can read in progressive mode
+    private final Set<Dataset> available = ConcurrentHashMap.newKeySet();
+
+    // partial snapshot of a dataset handed over by its ingest pipeline
+    private static final class Snapshot {
+        final Map<Integer, ZipCode> zipCodes;
+        final IngestProgress progress;
+
+        Snapshot(Map<Integer, ZipCode> zipCodes, IngestProgress progress) {
+            this.zipCodes = zipCodes;
+            this.progress = progress;
+        }
+    }
+
+    /**
+     * @param logger Singleton instance of logger, each file name is logged once it has been read
+     */
+    public DatasetLoader(Logger logger) {
+        this(logger, ShardedRegionStore.DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param logger Singleton instance of logger, each file name is logged once it has been read
+     * @param shards number of shards zip codes are split into
+     */
+    public DatasetLoader(Logger logger, int shards) {
+        this.logger = logger;
+        this.shardCount = shards;
+        this.current = new AtomicReference<>(new DatasetVersion(0, 0, new ShardedRegionStore(shards),
+                EnumSet.noneOf(Dataset.class), new EnumMap<>(Dataset.class), this::reclaim));
+    }
+
+    /**
+     * Keeps only the given zip codes of every dataset loaded or reloaded afterwards (e.g. the partition of a worker
+     * process). CSV records of other zip codes are dropped while parsing, so they are never merged or stored.
+     * @param zipFilter tests each zip code
+     */
+    public void setZipFilter(IntPredicate zipFilter) {
+        this.zipFilter = zipFilter;
+    }
+
+    /**
+     * Publishes datasets loaded afterwards progressively: a CSV file (a single covid file, population or properties)
+     * is published as a partial snapshot at each interval while it is read, and actions read the latest snapshot
+     * instead of waiting for the whole file (e.g. a large file or a named pipe still being written). JSON and
+     * multi-file covid data are published once loaded. Reloads always replace a dataset once it has been parsed.
+     * @param intervalMillis milliseconds from one snapshot to the next, 0 to publish datasets only once loaded
+     */
+    public void setSnapshotInterval(long intervalMillis) {
+        this.snapshotIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts loading a single covid file in the background
+     * @param fileName name of covid file
+     * @param extension "csv" or "json"
+     */
+    public void loadCovid(String fileName, String extension) {
+        start(Dataset.COVID, covidLoad(fileName, extension, true));
+    }
+
+    /**
+     * Starts loading a covid feed split into several files in the background
+     * @param fileNames names of covid files, in the order used to resolve duplicates
+     */
+    public void loadCovid(List<String> fileNames) {
+        start(Dataset.COVID, covidLoad(fileNames));
+    }
+
+    /**
+     * Starts loading a population file in the background
+     * @param fileName name of population file
+     */
+    public void loadPopulation(String fileName) {
+        start(Dataset.POPULATION, populationLoad(fileName, true));
+    }
+
+    /**
+     * Starts loading a properties file in the background
+     * @param fileName name of properties file
+     * @param storage heap or off-heap storage for property columns
+     */
+    public void loadProperties(String fileName, ColumnStorage storage) {
+        start(Dataset.PROPERTIES, propertiesLoad(fileName, storage, true));
+    }
+
+    /**
+     * Reloads the covid dataset from a single file in the background, replacing the loaded covid data
+     * @param fileName name of covid file
+     * @param extension "csv" or "json"
+     * @return version published once the file has been parsed and merged
+     */
+    public Future<DatasetVersion> reloadCovid(String fileName, String extension) {
+        return reload(Dataset.COVID, covidLoad(fileName, extension, false));
+    }
+
+    /**
+     * Reloads the covid dataset from a feed split into several files in the background
+     * @param fileNames names of covid files, in the order used to resolve duplicates
+     * @return version published once the files have been parsed and merged
+     */
+    public Future<DatasetVersion> reloadCovid(List<String> fileNames) {
+        return reload(Dataset.COVID, covidLoad(fileNames));
+    }
+
+    /**
+     * Reloads the population dataset in the background, replacing the loaded populations
+     * @param fileName name of population file
+     * @return version published once the file has been parsed and merged
+     */
+    public Future<DatasetVersion> reloadPopulation(String fileName) {
+        return reload(Dataset.POPULATION, populationLoad(fileName, false));
+    }
+
+    /**
+     * Reloads the properties dataset in the background, replacing the loaded property columns (replaced columns are
+     * closed once no query reads them)
+     * @param fileName name of properties file
+     * @param storage heap or off-heap storage for property columns
+     * @return version published once the file has been parsed and merged
+     */
+    public Future<DatasetVersion> reloadProperties(String fileName, ColumnStorage storage) {
+        return reload(Dataset.PROPERTIES, propertiesLoad(fileName, storage, false));
+    }
+
+    // pipeline for a dataset, taking partial snapshots in progressive mode unless the dataset is reloaded
+    private IngestPipeline pipeline(Dataset dataset, boolean firstLoad) {
+        IngestPipeline pipeline = new IngestPipeline(dataset.name().toLowerCase()).setKeyFilter(zipFilter);
+        long interval = snapshotIntervalMillis;
+        if (firstLoad && interval > 0) {
+            pipeline.setSnapshots(interval, (zipCodes, progress) -> offerSnapshot(dataset, zipCodes, progress));
+        }
+        return pipeline;
+    }
+
+    private Callable<Map<Integer, ZipCode>> covidLoad(String fileName, String extension, boolean firstLoad) {
+        return () -> {
+            Map<Integer, ZipCode> covidZipCodes = new ShardedRegionStore(shardCount);
+            if (extension.equals("csv")) {
+                // read, parse and merge covid file concurrently
+                pipeline(Dataset.COVID, firstLoad).ingest(fileName, CovidCsvReader::new, covidZipCodes);
+            } else if (extension.equals("json")) {
+                CovidJsonReader covidJsonReader = new CovidJsonReader(fileName);
+                covidZipCodes = filter(covidJsonReader.covidParser(covidJsonReader.readCovidJson()));
+            }
+            
+            // log file name right after reading
+            logger.log(fileName);
+            return covidZipCodes;
+        };
+    }
+
+    private Callable<Map<Integer, ZipCode>> covidLoad(List<String> fileNames) {
+        return () -> {
+            // parse all covid files in parallel and merge them by zip code and timestamp
+            Map<Integer, ZipCode> covidZipCodes = filter(new CovidMultiFileLoader().load(fileNames));
+            
+            // log each file name after reading
+            for (String fileName : fileNames) {
+                logger.log(fileName);
+            }
+            return covidZipCodes;
+        };
+    }
+
+    private Callable<Map<Integer, ZipCode>> populationLoad(String fileName, boolean firstLoad) {
+        return () -> {
+            Map<Integer, ZipCode> populationZipCodes = new ShardedRegionStore(shardCount);
+            pipeline(Dataset.POPULATION, firstLoad).ingest(fileName, PopulationCsvReader::new, populationZipCodes);
+            
+            // log file name after reading
+            logger.log(fileName);
+            return populationZipCodes;
+        };
+    }
+
+    private Callable<Map<Integer, ZipCode>> propertiesLoad(String fileName, ColumnStorage storage, boolean firstLoad) {
+        return () -> {
+            Map<Integer, ZipCode> propertiesZipCodes = new ShardedRegionStore(shardCount);
+            pipeline(Dataset.PROPERTIES, firstLoad)
+                    .ingest(fileName, reader -> new PropertiesCsvReader(reader, storage), propertiesZipCodes);
+            PropertiesCsvReader.buildIndexes(propertiesZipCodes);
+            
+            // log file name after reading
+            logger.log(fileName);
+            return propertiesZipCodes;
+        };
+    }
+
+    // drop zip codes rejected by the zip filter from a dataset that was not ingested with it
+    private Map<Integer, ZipCode> filter(Map<Integer, ZipCode> datasetZipCodes) {
+        IntPredicate filter = zipFilter;
+        if (filter != null) {
+            datasetZipCodes.keySet().removeIf(zip -> !filter.test(zip));
+        }
+        return datasetZipCodes;
+    }
+
+    private void start(Dataset dataset, Callable<Map<Integer, ZipCode>> load) {
+        if (snapshotIntervalMillis == 0) {
+            loads.put(dataset, executor.submit(load));
+            return;
+        }
+        pendingSnapshots.put(dataset, new AtomicReference<>());
+        Future<Map<Integer, ZipCode>> future = executor.submit(load);
+        loads.put(dataset, future);
+        executor.submit(() -> {
+            try {
+                // publish the complete dataset as soon as it is loaded, replacing its last snapshot (waiting outside
+                // the lock, so snapshots are published meanwhile)
+                future.get();
+                require(dataset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IllegalStateException e) {
+                // rethrown by require() to the actions needing the dataset
+            } finally {
+                markAvailable(dataset);
+            }
+        });
+    }
+
+    // called on the merge stage of a dataset's ingest pipeline: keep only the latest snapshot and publish it on a
+    // loader thread, so ingest never waits for the merge lock
+    private void offerSnapshot(Dataset dataset, Map<Integer, ZipCode> zipCodes, IngestProgress progress) {
+        Snapshot previous = pendingSnapshots.get(dataset).getAndSet(new Snapshot(zipCodes, progress));
+        if (previous != null) {
+            // superseded before it was published
+            closeAll(previous.zipCodes);
+        }
+        executor.submit(() -> publishSnapshot(dataset));
+    }
+
+    private void publishSnapshot(Dataset dataset) {
+        Snapshot snapshot = pendingSnapshots.get(dataset).getAndSet(null);
+        if (snapshot == null) {
+            // already published by the task of a later snapshot
+            return;
+        }
+        synchronized (this) {
+            if (merged.contains(dataset)) {
+                // the complete dataset has been published
+                closeAll(snapshot.zipCodes);
+                return;
+            }
+            publish(dataset, snapshot.zipCodes, false, snapshot.progress);
+        }
+        markAvailable(dataset);
+    }
+
+    private void markAvailable(Dataset dataset) {
+        synchronized (available) {
+            available.add(dataset);
+            available.notifyAll();
+        }
+    }
+
+    // in progressive mode, wait until each dataset has been published at least partially; a dataset whose load
+    // failed before any snapshot was published is required, which rethrows the failure
+    private void awaitAvailable(Dataset... datasets) {
+        synchronized (available) {
+            for (Dataset dataset : datasets) {
+                while (loads.containsKey(dataset) && !available.contains(dataset)) {
+                    try {
+                        available.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while loading " + dataset + " data", e);
+                    }
+                }
+            }
+        }
+        for (Dataset dataset : datasets) {
+            if (!current.get().contains(dataset)) {
+                require(dataset);
+            }
+        }
+    }
+
+    private static void closeAll(Map<Integer, ZipCode> zipCodes) {
+        for (ZipCode zipCode : zipCodes.values()) {
+            zipCode.close();
+        }
+    }
+
+    // parse a dataset again on a loader thread and publish it once parsed, queries keep using the current version
+    private Future<DatasetVersion> reload(Dataset dataset, Callable<Map<Integer, ZipCode>> load) {
+        if (!loads.containsKey(dataset)) {
+            throw new IllegalStateException(dataset + " data was not provided, so it cannot be reloaded");
+        }
+        return executor.submit(() -> {
+            Map<Integer, ZipCode> datasetZipCodes = load.call();
+            // the first load must be merged before it is replaced
+            require(dataset);
+            synchronized (this) {
+                return publish(dataset, datasetZipCodes, true, null);
+            }
+        });
+    }
+
+    /**
+     * @return zip codes of the current version (a snapshot that later merges and reloads do not change)
+     */
+    public Map<Integer, ZipCode> getZipCodes() {
+        return current.get().getZipCodes();
+    }
+
+    /**
+     * @return current version, without acquiring it (e.g. to read its number)
+     */
+    public DatasetVersion getCurrentVersion() {
+        return current.get();
+    }
+
+    /**
+     * Waits until the given datasets are loaded and merged, then acquires the current version. In progressive mode,
+     * waits only until each dataset has been published, so the version may hold partial snapshots of them. The caller
+     * must release() the version once it no longer reads it.
+     * @param datasets datasets needed by a query
+     * @return current version, holding at least the given datasets that were provided
+     * @throws IllegalStateException when loading a dataset failed (with the original exception as cause)
+     */
+    public DatasetVersion acquire(Dataset... datasets) {
+        if (snapshotIntervalMillis > 0) {
+            awaitAvailable(datasets);
+        } else {
+            require(datasets);
+        }
+        while (true) {
+            // a version retired and released between get() and acquire() cannot be acquired, so read it again
+            DatasetVersion version = current.get();
+            if (version.acquire()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * @param dataset dataset to check
+     * @return true if the dataset was provided (whether or not it has finished loading)
+     */
+    public boolean isProvided(Dataset dataset) {
+        return loads.containsKey(dataset);
+    }
+
+    /**
+     * @param dataset dataset to check
+     * @return true if the dataset has finished loading in the background (or failed)
+     */
+    public boolean isLoaded(Dataset dataset) {
+        return loads.containsKey(dataset) && loads.get(dataset).isDone();
+    }
+
+    /**
+     * Waits until the given datasets are loaded and merges any that are not merged yet into the store, publishing a
+     * new version per dataset. Datasets that were not provided are ignored.
+     * @param datasets datasets needed by an action
+     * @throws IllegalStateException when loading a dataset failed (with the original exception as cause)
+     */
+    public void require(Dataset... datasets) {
+        if (isMerged(datasets)) {
+            return;
+        }
+        for (Dataset dataset : datasets) {
+            if (merged.contains(dataset) || !loads.containsKey(dataset)) {
+                continue;
+            }
+            // wait for the load without holding the lock, so merges of other datasets, snapshots and reloads go on
+            Map<Integer, ZipCode> datasetZipCodes = await(dataset);
+            synchronized (this) {
+                if (executor.isShutdown()) {
+                    // close() has released the loaded columns
+                    throw new IllegalStateException("Loader closed while loading " + dataset + " data");
+                }
+                // another thread may have merged the dataset while this one waited
+                if (!merged.contains(dataset)) {
+                    publish(dataset, datasetZipCodes, false, null);
+                    merged.add(dataset);
+                }
+            }
+        }
+    }
+
+    // true if every given dataset that was provided has been merged
+    private boolean isMerged(Dataset... datasets) {
+        for (Dataset dataset : datasets) {
+            if (!merged.contains(dataset) && loads.containsKey(dataset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for and merges every provided dataset
+     */
+    public void requireAll() {
+        require(Dataset.values());
+    }
+
+    private Map<Integer, ZipCode> await(Dataset dataset) {
+        try {
+            return loads.get(dataset).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + dataset + " data", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load " + dataset + " data", e.getCause());
+        }
+    }
+
+    // build the next version from the current one and a dataset's own map (complete, or a partial snapshot with its
+    // progress), then swap it in and retire the current one
+    private DatasetVersion publish(Dataset dataset, Map<Integer, ZipCode> datasetZipCodes, boolean reload,
+                                   IngestProgress progress) {
+        MergeEvent event = new MergeEvent();
+        event.begin();
+        DatasetVersion previous = current.get();
+        ShardedRegionStore previousZipCodes = (ShardedRegionStore) previous.getZipCodes();
+        List<Map<Integer, ZipCode>> routed = new ArrayList<>(shardCount);
+
+        if (datasetZipCodes instanceof ShardedRegionStore
+                && ((ShardedRegionStore) datasetZipCodes).getShardCount() == shardCount) {
+            // ingested with the same shard count, so each of its shards maps onto the same store shard
+            for (int shard = 0; shard < shardCount; shard++) {
+                routed.add(((ShardedRegionStore) datasetZipCodes).getShard(shard));
+            }
+        } else {
+            // otherwise (e.g. JSON or multi-file covid data), route zip codes to the shards that own them
+            for (int shard = 0; shard < shardCount; shard++) {
+                routed.add(new HashMap<>());
+            }
+            for (Map.Entry<Integer, ZipCode> entry : datasetZipCodes.entrySet()) {
+                routed.get(previousZipCodes.shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // shards are independent maps, so they are built in parallel without locking
+        ShardedRegionStore zipCodes = new ShardedRegionStore(shardCount);
+        List<List<DoubleColumn>> replaced = IntStream.range(0, shardCount).parallel()
+                .mapToObj(shard -> mergeShard(dataset, routed.get(shard), previousZipCodes.getShard(shard),
+                        zipCodes.getShard(shard)))
+                .collect(Collectors.toList());
+
+        EnumSet<Dataset> datasets = EnumSet.of(dataset);
+        for (Dataset other : Dataset.values()) {
+            if (previous.contains(other)) {
+                datasets.add(other);
+            }
+        }
+        Map<Dataset, IngestProgress> partial = new EnumMap<>(Dataset.class);
+        partial.putAll(previous.getProgress());
+        if (progress != null) {
+            partial.put(dataset, progress);
+        } else {
+            partial.remove(dataset);
+        }
+        DatasetVersion next = new DatasetVersion(previous.getNumber() + 1,
+                previous.getGeneration() + (reload ? 1 : 0), zipCodes, datasets, partial, this::reclaim);
+
+        synchronized (retired) {
+            retired.addLast(previous);
+        }
+        current.set(next);
+        previous.retire(replaced.stream().flatMap(List::stream).collect(Collectors.toList()));
+        event.commit(reload ? "reload" : (progress != null) ? "snapshot" : "publish", dataset.name().toLowerCase(), datasetZipCodes.size(),
+                zipCodes.size());
+        return next;
+    }
+
+    // build one shard of the next version: ZipCode objects the dataset does not touch are shared with the previous
+    // version, the others are copied and get the dataset's fields; returns property columns replaced by the dataset
+    private static List<DoubleColumn> mergeShard(Dataset dataset, Map<Integer, ZipCode> datasetShard,
+                                                 Map<Integer, ZipCode> previousShard, Map<Integer, ZipCode> shard) {
+        List<DoubleColumn> replaced = new ArrayList<>();
+        for (Map.Entry<Integer, ZipCode> entry : previousShard.entrySet()) {
+            ZipCode existing = entry.getValue();
+            ZipCode loaded = datasetShard.get(entry.getKey());
+
+            if (loaded == null && !hasData(dataset, existing)) {
+                shard.put(entry.getKey(), existing);
+                continue;
+            }
+            ZipCode merged = new ZipCode(existing);
+            if (dataset == Dataset.COVID) {
+                merged.setCovidData(loaded);
+            } else if (dataset == Dataset.POPULATION) {
+                merged.setPopulation(loaded != null ? loaded.getPopulation() : 0);
+            } else {
+                for (DoubleColumn column : new DoubleColumn[]{existing.peekPropertiesMarketValueColumn(),
+                        existing.peekPropertiesLivableAreaColumn()}) {
+                    if (column != null) {
+                        replaced.add(column);
+                    }
+                }
+                for (ValueRangeIndex index : new ValueRangeIndex[]{existing.peekMarketValueIndex(),
+                        existing.peekLivableAreaIndex()}) {
+                    if (index != null) {
+                        replaced.addAll(Arrays.asList(index.getColumns()));
+                    }
+                }
+                merged.setProperties(loaded);
+            }
+
+            // zip codes that only had data of a reloaded dataset are dropped when the reload leaves them out
+            if (merged.hasData()) {
+                shard.put(entry.getKey(), merged);
+            }
+        }
+        for (Map.Entry<Integer, ZipCode> entry : datasetShard.entrySet()) {
+            if (!previousShard.containsKey(entry.getKey())) {
+                shard.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return replaced;
+    }
+
+    // true if a zip code has data of the given dataset
+    private static boolean hasData(Dataset dataset, ZipCode zipCode) {
+        if (dataset == Dataset.COVID) {
+            return !zipCode.getCovidDataAsOfTime().isEmpty();
+        }
+        if (dataset == Dataset.POPULATION) {
+            return zipCode.getPopulation() != 0;
+        }
+        return zipCode.hasProperties();
+    }
+
+    // close replaced columns of released versions, oldest first, stopping at the first version still in use
+    private void reclaim() {
+        synchronized (retired) {
+            while (!retired.isEmpty() && retired.peekFirst().isReleased()) {
+                retired.pollFirst().reclaim();
+            }
+        }
+    }
+
+    /**
+     * Stops loads that are still running and releases property columns of all loaded datasets and versions
+     */
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+        for (AtomicReference<Snapshot> pending : pendingSnapshots.values()) {
+            Snapshot snapshot = pending.getAndSet(null);
+            if (snapshot != null) {
+                closeAll(snapshot.zipCodes);
+            }
+        }
+        for (Map.Entry<Dataset, Future<Map<Integer, ZipCode>>> load : loads.entrySet()) {
+            Future<Map<Integer, ZipCode>> future = load.getValue();
+            if (merged.contains(load.getKey()) || !future.isDone() || future.isCancelled()) {
+                continue;
+            }
+            try {
+                // loaded but never merged, release its columns directly
+                for (ZipCode zipCode : future.get().values()) {
+                    zipCode.close();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // nothing was loaded
+            }
+        }
+        synchronized (retired) {
+            // columns replaced by reloads, whether or not queries still hold their versions
+            for (DatasetVersion version : retired) {
+                version.reclaim();
+            }
+            retired.clear();
+        }
+        for (ZipCode zipCode : current.get().getZipCodes().values()) {
+            zipCode.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package coviddatasystem.datamanagement;
+
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import coviddatasystem.datamanagement.DatasetLoader.Dataset;
+import coviddatasystem.logging.Logger;
+import coviddatasystem.tools.SyntheticDataGenerator;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.ShardedRegionStore;
+import coviddatasystem.util.ZipCode;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DatasetLoaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testReloadPublishesNewVersion() throws Exception {
+        Path population = Files.writeString(tempDir.resolve("population.csv"),
+                "\"zip_code\",\"population\"\n\"19103\",100\n\"19104\",200\n");
+
+        try (DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 3)) {
+            loader.loadPopulation(population.toString());
+            DatasetVersion before = loader.acquire(Dataset.POPULATION);
+
+            // reload drops 19104 and changes 19103, the acquired version is not changed
+            Files.writeString(population, "\"zip_code\",\"population\"\n\"19103\",150\n");
+            DatasetVersion after = loader.reloadPopulation(population.toString()).get();
+
+            assertEquals(200, before.getZipCodes().get(19104).getPopulation());
+            assertEquals(100, before.getZipCodes().get(19103).getPopulation());
+            assertEquals(150, after.getZipCodes().get(19103).getPopulation());
+            assertNull(after.getZipCodes().get(19104));
+            assertEquals(before.getGeneration() + 1, after.getGeneration());
+            assertEquals(after, loader.getCurrentVersion());
+            before.release();
+        }
+    }
+
+    @Test
+    void testReplacedColumnsClosedAfterRelease() throws Exception {
+        Path properties = Files.writeString(tempDir.resolve("properties.csv"),
+                "total_livable_area,market_value,zip_code\n1000.0,200000.0,19103\n");
+
+        try (DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 2)) {
+            loader.loadProperties(properties.toString(), ColumnStorage.OFF_HEAP);
+            DatasetVersion before = loader.acquire(Dataset.PROPERTIES);
+            DoubleColumn replaced = before.getZipCodes().get(19103).peekPropertiesMarketValueColumn();
+
+            loader.reloadProperties(properties.toString(), ColumnStorage.OFF_HEAP).get();
+
+            // still readable while a query holds the old version, closed once it is released
+            assertEquals(200000.0, replaced.get(0));
+            before.release();
+            assertTrue(before.isReleased());
+            assertThrows(IllegalStateException.class, () -> replaced.get(0));
+            assertEquals(200000.0, loader.getZipCodes().get(19103).peekPropertiesMarketValueColumn().get(0));
+        }
+    }
+
+    @Test
+    void testWaitingForOneDatasetDoesNotBlockAnother() throws Exception {
+        // properties are read from a named pipe, so their load only finishes once the test writes to it
+        Path properties = tempDir.resolve("properties.csv");
+        Assumptions.assumeTrue(new ProcessBuilder("mkfifo", properties.toString()).start().waitFor() == 0,
+                "named pipes are not supported");
+        Path population = writePopulation(10);
+
+        try (DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 2)) {
+            loader.loadProperties(properties.toString(), ColumnStorage.HEAP);
+            loader.loadPopulation(population.toString());
+            CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> loader.require(Dataset.PROPERTIES));
+            try {
+                Thread.sleep(100);
+                CompletableFuture.runAsync(() -> loader.require(Dataset.POPULATION)).get(10, TimeUnit.SECONDS);
+                assertFalse(waiting.isDone());
+            } finally {
+                Files.writeString(properties, "total_livable_area,market_value,zip_code\n1000.0,200000.0,19103\n");
+            }
+            waiting.get(10, TimeUnit.SECONDS);
+            assertEquals(1, loader.getZipCodes().get(19103).peekPropertiesMarketValueColumn().size());
+            assertEquals(10, loader.getZipCodes().get(10009).getPopulation());
+        }
+    }
+
+    @Test
+    void testSnapshotsHoldEveryRecordUpToABatch() throws Exception {
+        Path population = writePopulation(1000);
+        List<Map<Integer, ZipCode>> snapshots = new ArrayList<>();
+        List<IngestProgress> progress = new ArrayList<>();
+        ShardedRegionStore zipCodes = new ShardedRegionStore(3);
+
+        // interval 0: a snapshot after every batch of 100 records
+        new IngestPipeline("population", 4096, 4, 100, 4).setSnapshots(0, (snapshot, read) -> {
+            snapshots.add(snapshot);
+            progress.add(read);
+        }).ingest(population.toString(), PopulationCsvReader::new, zipCodes);
+
+        assertEquals(10, snapshots.size());
+        for (int i = 0; i < snapshots.size(); i++) {
+            // rows of the file in order, up to the end of a batch
+            Map<Integer, ZipCode> snapshot = snapshots.get(i);
+            assertEquals((i + 1) * 100, snapshot.size());
+            assertEquals((i + 1) * 100L, progress.get(i).getRows());
+            assertEquals(i * 100 + 1, snapshot.get(10000 + i * 100).getPopulation());
+            assertNull(snapshot.get(10000 + (i + 1) * 100));
+            assertTrue(progress.get(i).getFraction() > 0 && progress.get(i).getFraction() <= 1);
+        }
+        assertEquals(1000, zipCodes.size());
+    }
+
+    @Test
+    void testSlowSnapshotsStretchTheInterval() throws Exception {
+        Path population = writePopulation(200000);
+        List<long[]> snapshotTimes = new ArrayList<>();
+
+        // each snapshot costs at least 5 ms against an interval of 1 ms, so the next one starts at least 50 ms after it
+        new IngestPipeline("population", 4096, 4, 100, 4).setSnapshots(1, (snapshot, read) -> {
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotTimes.add(new long[]{start, System.nanoTime()});
+        }).ingest(population.toString(), PopulationCsvReader::new, new ShardedRegionStore(3));
+
+        assertFalse(snapshotTimes.isEmpty());
+        for (int i = 1; i < snapshotTimes.size(); i++) {
+            long[] previous = snapshotTimes.get(i - 1);
+            assertTrue(snapshotTimes.get(i)[0] - previous[1] >= 10 * (previous[1] - previous[0]), "snapshot " + i);
+        }
+    }
+
+    @Test
+    void testProgressiveLoadEndsWithCompleteVersion() throws Exception {
+        Path population = writePopulation(5000);
+
+        try (DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 3)) {
+            loader.setSnapshotInterval(1);
+            loader.loadPopulation(population.toString());
+
+            // partial or complete, but holds the dataset
+            DatasetVersion first = loader.acquire(Dataset.POPULATION);
+            assertTrue(first.contains(Dataset.POPULATION));
+            assertEquals(first.isPartial(), first.getProgress().containsKey(Dataset.POPULATION));
+            first.release();
+
+            loader.requireAll();
+            DatasetVersion complete = loader.acquire(Dataset.POPULATION);
+            assertFalse(complete.isPartial());
+            assertEquals(5000, complete.getZipCodes().size());
+            assertEquals(5000, complete.getZipCodes().get(14999).getPopulation());
+            complete.release();
+        }
+    }
+
+    @Test
+    void testDirtyGeneratedRowsAreSkipped() throws Exception {
+        // bad zip codes (too short, not numeric, quoted with a comma), timestamps and values are skipped by each reader,
+        // so every file holds exactly the generated zip codes 10000 to 10049
+        List<String> files = new SyntheticDataGenerator(50, 10, 5000, 42, 0.2, false).generate(tempDir.toString());
+        Set<Integer> generated = new TreeSet<>();
+        for (int zip = 10000; zip < 10050; zip++) {
+            generated.add(zip);
+        }
+
+        for (int file = 0; file < files.size(); file++) {
+            try (DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 3)) {
+                Dataset dataset;
+                if (file < 2) {
+                    dataset = Dataset.COVID;
+                    loader.loadCovid(files.get(file), (file == 0) ? "csv" : "json");
+                } else if (file == 2) {
+                    dataset = Dataset.POPULATION;
+                    loader.loadPopulation(files.get(file));
+                } else {
+                    dataset = Dataset.PROPERTIES;
+                    loader.loadProperties(files.get(file), ColumnStorage.HEAP);
+                }
+                DatasetVersion version = loader.acquire(dataset);
+                assertEquals(generated, new TreeSet<>(version.getZipCodes().keySet()), files.get(file));
+                version.release();
+            }
+        }
+    }
+
+    // population file of zip codes 10000, 10001, ... with populations 1, 2, ...
+    private Path writePopulation(int rows) throws Exception {
+        StringBuilder csv = new StringBuilder("\"zip_code\",\"population\"\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append('"').append(10000 + i).append("\",").append(i + 1).append('\n');
+        }
+        return Files.writeString(tempDir.resolve("population.csv"), csv.toString());
+    }
+}
@@ -0,0 +1,180 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.datamanagement.DatasetLoader.Dataset;
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.ShardedRegionStore;
+import coviddatasystem.util.ZipCode;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code DatasetVersion} is an immutable version of the zip code store: the zip codes of every dataset merged so far.
+ *
+ * A published version is never modified. Merging or reloading a dataset builds the next version off to the side
+ * (sharing the ZipCode objects the dataset does not touch, and copying the ones it does) and swaps it in atomically,
+ * so queries never lock and never see a half-merged dataset.
+ *
+ * Queries acquire the current version, read it, and release it when done. A version replaced by a newer one is
+ * retired; once it and every older version have been released by their last query, storage that only they reference
+ * (property columns replaced by a reload, which may be off heap) is closed by {@code DatasetLoader}.
+ *
+ * In progressive mode, a dataset still being read is published as partial snapshots, each replacing the one before
+ * like a reload; getProgress() tells which datasets of a version are partial and how much of their input they hold.
+ */
+public final class DatasetVersion {
+
+    private final long number;
+
+    // number of reloads this version includes, results of versions with the same generation are identical
+    private final long generation;
+
+    private final Map<Integer, ZipCode> zipCodes;
+
+    private final Set<Dataset> datasets;
+
+    // datasets merged from a partial snapshot, with the input the snapshot was built from (empty if none)
+    private final Map<Dataset, IngestProgress> progress;
+
+    // one reference held while the version is current, plus one per query using it
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    // called once the version has been retired and released by its last query (null for fixed versions)
+    private final Runnable onReleased;
+
+    // property columns replaced by the next version, closed once this version is reclaimed
+    private final List<DoubleColumn> replaced = new ArrayList<>();
+
+    // zip codes split into shards, each sorted by zip code (computed on first use)
+    private volatile List<ZipCode[]> regionPartitions;
+
+    DatasetVersion(long number, long generation, Map<Integer, ZipCode> zipCodes, Set<Dataset> datasets,
+                   Map<Dataset, IngestProgress> progress, Runnable onReleased) {
+        this.number = number;
+        this.generation = generation;
+        this.zipCodes = zipCodes;
+        this.datasets = Collections.unmodifiableSet(datasets);
+        this.progress = Collections.unmodifiableMap(progress);
+        this.onReleased = onReleased;
+    }
+
+    /**
+     * Wraps a zip code map that was fully loaded up front as a version that is never retired
+     * @param zipCodes map mapping zip code values to ZipCode objects, which must not be modified afterwards
+     * @return version 0 holding every dataset
+     */
+    public static DatasetVersion of(Map<Integer, ZipCode> zipCodes) {
+        return new DatasetVersion(0, 0, zipCodes, EnumSet.allOf(Dataset.class), new EnumMap<>(Dataset.class), null);
+    }
+
+    /**
+     * @return version number, increasing with every merge or reload
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /**
+     * @return number of reloads included in this version
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return zip codes of this version, which must not be modified
+     */
+    public Map<Integer, ZipCode> getZipCodes() {
+        return zipCodes;
+    }
+
+    /**
+     * @param dataset dataset to check
+     * @return true if the dataset has been merged into this version
+     */
+    public boolean contains(Dataset dataset) {
+        return datasets.contains(dataset);
+    }
+
+    /**
+     * @return partial datasets of this version, with how much of their input has been merged (empty if every dataset
+     *         it contains is complete)
+     */
+    public Map<Dataset, IngestProgress> getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return true if a dataset of this version is a partial snapshot, so results read from it are approximate
+     */
+    public boolean isPartial() {
+        return !progress.isEmpty();
+    }
+
+    /**
+     * @return zip codes split into the shards of a sharded store (or one partition for any other map), each sorted by
+     *         zip code
+     */
+    public List<ZipCode[]> getRegionPartitions() {
+        List<ZipCode[]> partitions = regionPartitions;
+        if (partitions == null) {
+            if (zipCodes instanceof ShardedRegionStore) {
+                partitions = ((ShardedRegionStore) zipCodes).getShardValues();
+            } else {
+                partitions = Collections.singletonList(zipCodes.values().toArray(new ZipCode[0]));
+            }
+            regionPartitions = partitions;
+        }
+        return partitions;
+    }
+
+    /**
+     * Adds a reference for a query using this version
+     * @return true if the version was acquired, false if it has already been reclaimed
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference taken by acquire()
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0 && onReleased != null) {
+            onReleased.run();
+        }
+    }
+
+    /**
+     * @return true if the version has been retired and released by every query
+     */
+    public boolean isReleased() {
+        return references.get() == 0;
+    }
+
+    // called when the next version is published, releases the reference held while this version was current
+    void retire(List<DoubleColumn> replacedColumns) {
+        synchronized (replaced) {
+            replaced.addAll(replacedColumns);
+        }
+        release();
+    }
+
+    // close columns replaced by the next version (older versions must have been reclaimed first)
+    void reclaim() {
+        synchronized (replaced) {
+            for (DoubleColumn column : replaced) {
+                column.close();
+            }
+            replaced.clear();
+        }
+    }
+}
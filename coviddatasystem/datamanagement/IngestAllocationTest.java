@@ -0,0 +1,119 @@
+package coviddatasystem.datamanagement;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import coviddatasystem.tools.SyntheticDataGenerator;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.ZipCode;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Ingests fixed synthetic datasets with each reader on the test thread and fails when the bytes allocated per row
+ * (reading, validating and merging, including what the merged zip codes retain) exceed the budgets below. A change
+ * that adds per-row garbage (another String[] per record, boxing, substrings) fails here before it reaches large
+ * inputs; raise a budget only when the extra allocation is intended.
+ */
+public class IngestAllocationTest {
+
+    // budgets in bytes per row, about 100 more than the allocation measured when they were set (noted after each
+    // budget): enough for run to run noise, less than one extra String[] or substring per row
+    private static final long COVID_CSV_BUDGET = 3400;       // 3300
+    private static final long COVID_JSON_BUDGET = 6200;      // 6100
+    private static final long POPULATION_CSV_BUDGET = 780;   // 673
+    private static final long PROPERTIES_CSV_BUDGET = 1070;  // 971
+
+    // 2000 zip codes with 10 snapshots each, 20000 property rows, no dirty rows
+    private static final int ZIPS = 2000;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testCovidCsvBytesPerRow() throws Exception {
+        String file = generate().get(0);
+        assertWithinBudget("covid csv", COVID_CSV_BUDGET, () -> csvBytesPerRow(new CovidCsvReader(file)));
+    }
+
+    @Test
+    void testCovidJsonBytesPerRow() throws Exception {
+        String file = generate().get(1);
+        assertWithinBudget("covid json", COVID_JSON_BUDGET, () -> {
+            CovidJsonReader reader = new CovidJsonReader(file);
+            long start = allocatedBytes();
+            List<String[]> records = reader.readCovidJson();
+            reader.covidParser(records);
+            return (allocatedBytes() - start) / records.size();
+        });
+    }
+
+    @Test
+    void testPopulationCsvBytesPerRow() throws Exception {
+        String file = generate().get(2);
+        assertWithinBudget("population csv", POPULATION_CSV_BUDGET,
+                () -> csvBytesPerRow(new PopulationCsvReader(file)));
+    }
+
+    @Test
+    void testPropertiesCsvBytesPerRow() throws Exception {
+        String file = generate().get(3);
+        assertWithinBudget("properties csv", PROPERTIES_CSV_BUDGET,
+                () -> csvBytesPerRow(new PropertiesCsvReader(file, ColumnStorage.HEAP)));
+    }
+
+    @FunctionalInterface
+    private interface Measurement {
+        long bytesPerRow() throws Exception;
+    }
+
+    // measure after one warm-up run, so the budget holds once ingest code is compiled, and keep the lowest of three
+    // runs (code the JIT has not finished optimizing only adds allocation)
+    private static void assertWithinBudget(String reader, long budget, Measurement measurement) throws Exception {
+        Assumptions.assumeTrue(allocationSupported(), "thread allocation measurement is not supported by this JVM");
+        measurement.bytesPerRow();
+        long bytesPerRow = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            bytesPerRow = Math.min(bytesPerRow, measurement.bytesPerRow());
+        }
+        assertTrue(bytesPerRow <= budget, reader + " allocated " + bytesPerRow + " bytes per row, budget is " + budget);
+    }
+
+    // read, validate and merge every row on this thread (the steps IngestPipeline splits across its stages)
+    private static <R extends CsvReader & RecordMerger> long csvBytesPerRow(R reader) throws IOException, CSVFormatException {
+        Map<Integer, ZipCode> zipCodes = new TreeMap<>();
+        long start = allocatedBytes();
+        reader.readHeader();
+        long rows = 0;
+        String[] record;
+        while ((record = reader.readRow()) != null) {
+            rows++;
+            record = reader.validateRecord(record);
+            if (record != null) {
+                reader.mergeRecord(record, zipCodes);
+            }
+        }
+        return (allocatedBytes() - start) / rows;
+    }
+
+    private List<String> generate() throws IOException {
+        return new SyntheticDataGenerator(ZIPS, 10, 10L * ZIPS, 42, 0.0, false).generate(tempDir.toString());
+    }
+
+    private static boolean allocationSupported() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .isThreadAllocatedMemoryEnabled();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,468 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.logging.IngestFileEvent;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.util.ShardedRegionStore;
+import coviddatasystem.util.ZipCode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * {@code IngestPipeline} loads a CSV file into the zip code map with three stages running concurrently:
+ *
+ * (1) read: an I/O thread reads raw character blocks from the file, decompressing ".gz" files
+ *     ({@code BlockPrefetchReader})
+ * (2) parse: a parser thread splits blocks into rows with {@code CsvReader.readRow()} and validates them
+ * (3) merge: the calling thread merges batches of valid records into {@code ZipCode} objects. When the target map
+ *     is a {@code ShardedRegionStore}, the calling thread instead routes each batch's records by shard, and every
+ *     shard is merged by its own worker, so shards are merged in parallel without locking.
+ *
+ * Stages are connected by bounded queues, so a slow stage applies backpressure to the stages before it instead of
+ * letting buffered data grow without limit. Records are merged in file order, so the resulting map is the same as
+ * reading the whole file and then calling the reader's parser method (for a sharded store, records of each shard, and so
+ * of each zip code, are still merged in file order). Per-stage throughput is available from
+ * getStageStats() and is recorded in {@code Metrics} under "ingest.&lt;name&gt;".
+ *
+ * With setSnapshots(), the merge stage also hands out a deep copy of the records merged so far at regular intervals,
+ * taken between two batches so it holds every record up to some row of the file and none after it. Copying costs time
+ * proportional to the data merged so far (and a sharded store's workers must catch up first), so the interval trades
+ * how fresh snapshots are against ingest throughput. Once a snapshot costs more than a tenth of the interval, the next
+ * one is put off until ten times its cost has passed, so snapshots never take more than about a tenth of the merge
+ * stage's time, however large the data merged so far grows.
+ */
+public class IngestPipeline {
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    public static final int DEFAULT_BATCH_QUEUE_CAPACITY = 16;
+
+    // marks the end of parsed records
+    private static final Batch END = new Batch(0);
+
+    // time between snapshots is at least this many times the cost of the last snapshot
+    private static final int SNAPSHOT_COST_FACTOR = 10;
+
+    /**
+     * Creates a CSV reader over the character stream fed by the read stage
+     */
+    @FunctionalInterface
+    public interface ReaderFactory<R extends CsvReader & RecordMerger> {
+        R open(CharacterReader reader) throws IOException;
+    }
+
+    /**
+     * Receives partial snapshots of the records merged while a file is ingested
+     */
+    @FunctionalInterface
+    public interface SnapshotListener {
+        /**
+         * Called on the merge stage, which waits until it returns
+         * @param zipCodes deep copy of the records merged so far (in a map of the same type as the target map), owned
+         *        by the listener, which must close() its zip codes if it does not keep them
+         * @param progress rows and characters of the input the copy was built from
+         */
+        void snapshot(Map<Integer, ZipCode> zipCodes, IngestProgress progress);
+    }
+
+    // batch of valid records, with the input read up to the end of the batch
+    private static final class Batch {
+        final List<String[]> records;
+
+        // rows and characters read by the parse stage when the batch was handed over, including rejected rows
+        long rows;
+        long chars;
+
+        Batch(int capacity) {
+            this.records = new ArrayList<>(capacity);
+        }
+    }
+
+    private final String name;
+    private final int blockSize;
+    private final int blockQueueCapacity;
+    private final int batchSize;
+    private final int batchQueueCapacity;
+
+    private final StageStats readStats = new StageStats("read");
+    private final StageStats parseStats = new StageStats("parse");
+    private final StageStats mergeStats = new StageStats("merge");
+
+    // failure on the parser thread, rethrown by the merge stage
+    private volatile Exception parseFailure;
+
+    // rows that failed validation (written by the parser thread, read once it has been joined)
+    private long rejects;
+
+    // zip codes kept by the parse stage, null to keep every record
+    private IntPredicate keyFilter;
+
+    // receives partial snapshots every snapshotIntervalNanos, null to take none
+    private SnapshotListener snapshotListener;
+    private long snapshotIntervalNanos;
+
+    // characters of the file being ingested, -1 if unknown (pipes and compressed files)
+    private long inputChars = -1;
+
+    private long snapshots;
+    private long snapshotNanos;
+
+    /**
+     * Creates pipeline with default block, batch and queue sizes
+     * @param name dataset name used in metrics, e.g. "covid"
+     */
+    public IngestPipeline(String name) {
+        this(name, BlockPrefetchReader.DEFAULT_BLOCK_SIZE, BlockPrefetchReader.DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_BATCH_SIZE, DEFAULT_BATCH_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param name dataset name used in metrics, e.g. "covid"
+     * @param blockSize characters per raw block read by the read stage
+     * @param blockQueueCapacity maximum blocks buffered between read and parse stages
+     * @param batchSize records per batch handed from parse to merge stage
+     * @param batchQueueCapacity maximum batches buffered between parse and merge stages
+     */
+    public IngestPipeline(String name, int blockSize, int blockQueueCapacity, int batchSize, int batchQueueCapacity) {
+        this.name = name;
+        this.blockSize = blockSize;
+        this.blockQueueCapacity = blockQueueCapacity;
+        this.batchSize = batchSize;
+        this.batchQueueCapacity = batchQueueCapacity;
+    }
+
+    /**
+     * Keeps only records of the given zip codes: other records are dropped by the parse stage, before they are
+     * batched or merged (e.g. a worker process loading its own partition of the zip codes)
+     * @param keyFilter tests the zip code of each valid record
+     * @return this pipeline
+     */
+    public IngestPipeline setKeyFilter(IntPredicate keyFilter) {
+        this.keyFilter = keyFilter;
+        return this;
+    }
+
+    /**
+     * Hands a deep copy of the records merged so far to a listener at regular intervals while a file is ingested (the
+     * complete map is still returned through ingest() as usual). The interval is stretched after snapshots that cost
+     * more than a tenth of it.
+     * @param intervalMillis milliseconds from the end of one snapshot to the next, 0 for a snapshot after every batch
+     *                       (whatever it costs)
+     * @param listener receives each snapshot on the merge stage
+     * @return this pipeline
+     */
+    public IngestPipeline setSnapshots(long intervalMillis, SnapshotListener listener) {
+        this.snapshotIntervalNanos = intervalMillis * 1000000;
+        this.snapshotListener = listener;
+        return this;
+    }
+
+    /**
+     * Runs all three stages over a CSV file and merges its valid records into zipCodes
+     * @param filename name of input CSV file
+     * @param factory creates the CSV reader (CovidCsvReader, PopulationCsvReader, ...) used by the parse stage
+     * @param zipCodes map to merge records into (only modified by the calling thread)
+     * @return the reader used by the parse stage (with fieldTitles populated)
+     * @throws IOException when the file could not be read
+     * @throws CSVFormatException when the CSV file is formatted incorrectly
+     */
+    public <R extends CsvReader & RecordMerger> R ingest(String filename, ReaderFactory<R> factory, Map<Integer, ZipCode> zipCodes)
+            throws IOException, CSVFormatException {
+        IngestFileEvent event = new IngestFileEvent();
+        event.begin();
+
+        // read stage also decompresses ".gz" files, so decompression runs in parallel with parsing
+        BlockPrefetchReader blocks = new BlockPrefetchReader(CharacterReader.openSource(filename), blockSize,
+                blockQueueCapacity, readStats, parseStats);
+        R csvReader = factory.open(new CharacterReader(blocks));
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(batchQueueCapacity);
+
+        // size of the input is only known for uncompressed regular files (one byte per character, close enough for
+        // progress through ASCII CSV files)
+        Path path = Paths.get(filename);
+        inputChars = (Files.isRegularFile(path) && !CharacterReader.isGzip(filename)) ? Files.size(path) : -1;
+
+        Thread parser = new Thread(() -> parseRecords(csvReader, batches), "ingest-parse");
+        parser.setDaemon(true);
+        parser.start();
+
+        try {
+            if (zipCodes instanceof ShardedRegionStore && ((ShardedRegionStore) zipCodes).getShardCount() > 1) {
+                mergeShardedRecords(csvReader, batches, (ShardedRegionStore) zipCodes);
+            } else {
+                mergeRecords(csvReader, batches, zipCodes);
+            }
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ingesting " + filename, e);
+        } finally {
+            parser.interrupt();
+            blocks.close();
+        }
+
+        // rethrow failures from the parser thread with their original type
+        if (parseFailure instanceof IOException) {
+            throw (IOException) parseFailure;
+        }
+        if (parseFailure instanceof CSVFormatException) {
+            throw (CSVFormatException) parseFailure;
+        }
+        if (parseFailure != null) {
+            throw new IOException("Parse stage failed for " + filename, parseFailure);
+        }
+
+        Metrics metrics = Metrics.getInstance();
+        readStats.record(metrics, "ingest." + name);
+        parseStats.record(metrics, "ingest." + name);
+        mergeStats.record(metrics, "ingest." + name);
+        if (snapshotListener != null) {
+            metrics.set("ingest." + name + ".snapshots", snapshots);
+            metrics.set("ingest." + name + ".snapshotMillis", snapshotNanos / 1000000);
+        }
+        event.commit(name, filename, parseStats.items, rejects);
+        return csvReader;
+    }
+
+    // body of the parser thread: read rows, keep valid records, and hand them over in batches
+    private <R extends CsvReader & RecordMerger> void parseRecords(R csvReader, BlockingQueue<Batch> batches) {
+        long begin = System.nanoTime();
+        try {
+            csvReader.readHeader();
+
+            Batch batch = new Batch(batchSize);
+            String[] record;
+            while ((record = csvReader.readRow()) != null) {
+                parseStats.items++;
+                for (String field : record) {
+                    parseStats.chars += field.length() + 1;
+                }
+                record = csvReader.validateRecord(record);
+                if (record == null) {
+                    rejects++;
+                } else if (keyFilter == null || keyFilter.test(csvReader.recordKey(record))) {
+                    batch.records.add(record);
+                }
+                if (batch.records.size() == batchSize) {
+                    putBatch(batches, batch);
+                    batch = new Batch(batchSize);
+                }
+            }
+            if (!batch.records.isEmpty()) {
+                putBatch(batches, batch);
+            }
+            putBatch(batches, END);
+        } catch (IOException | CSVFormatException | RuntimeException e) {
+            parseFailure = e;
+            try {
+                // merge stage keeps taking batches until END, so this only blocks until it catches up
+                batches.put(END);
+            } catch (InterruptedException interrupted) {
+                // merge stage stopped early
+            }
+        } catch (InterruptedException e) {
+            // merge stage stopped early
+        }
+        // blocked time covers waiting for input blocks (recorded by BlockPrefetchReader) and for batch queue space
+        parseStats.busyNanos = System.nanoTime() - begin - parseStats.blockedNanos;
+    }
+
+    // hand a batch to the merge stage, blocking while it is behind
+    private void putBatch(BlockingQueue<Batch> batches, Batch batch) throws InterruptedException {
+        batch.rows = parseStats.items;
+        batch.chars = parseStats.chars;
+        long put = System.nanoTime();
+        batches.put(batch);
+        parseStats.blockedNanos += System.nanoTime() - put;
+    }
+
+    // merge stage (calling thread): apply batches to the zip code map in order
+    private void mergeRecords(RecordMerger csvReader, BlockingQueue<Batch> batches,
+                              Map<Integer, ZipCode> zipCodes) throws InterruptedException {
+        long nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+        while (true) {
+            long take = System.nanoTime();
+            Batch batch = batches.take();
+            long start = System.nanoTime();
+            mergeStats.blockedNanos += start - take;
+
+            if (batch == END) {
+                return;
+            }
+            for (String[] record : batch.records) {
+                csvReader.mergeRecord(record, zipCodes);
+            }
+            mergeStats.items += batch.records.size();
+            if (snapshotListener != null && System.nanoTime() >= nextSnapshot) {
+                long snapshotStart = System.nanoTime();
+                snapshotListener.snapshot(snapshotOf(zipCodes), progressOf(batch));
+                snapshots++;
+                nextSnapshot = nextSnapshotAfter(snapshotStart);
+            }
+            mergeStats.busyNanos += System.nanoTime() - start;
+        }
+    }
+
+    // merge stage for a sharded store: split batches by shard and merge each shard's records on the shard's own
+    // worker; work for a shard is chained, so it runs in order and one shard is never merged by two threads at once
+    private void mergeShardedRecords(RecordMerger csvReader, BlockingQueue<Batch> batches,
+                                     ShardedRegionStore store) throws InterruptedException {
+        int shardCount = store.getShardCount();
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.min(shardCount, Runtime.getRuntime().availableProcessors()), runnable -> {
+                    Thread thread = new Thread(runnable, "ingest-merge");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        // bounds sub-batches waiting for workers, so a slow merge still applies backpressure to the parse stage
+        Semaphore pending = new Semaphore(batchQueueCapacity * shardCount);
+        AtomicLong workerNanos = new AtomicLong();
+        AtomicReference<RuntimeException> mergeFailure = new AtomicReference<>();
+
+        List<CompletableFuture<Void>> tails = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            tails.add(CompletableFuture.completedFuture(null));
+        }
+
+        long nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+        try {
+            while (true) {
+                long take = System.nanoTime();
+                Batch batch = batches.take();
+                mergeStats.blockedNanos += System.nanoTime() - take;
+
+                if (batch == END) {
+                    break;
+                }
+
+                // route records to shards, keeping file order within each shard
+                List<List<String[]>> routed = new ArrayList<>(shardCount);
+                for (int shard = 0; shard < shardCount; shard++) {
+                    routed.add(new ArrayList<>());
+                }
+                for (String[] record : batch.records) {
+                    routed.get(store.shardOf(csvReader.recordKey(record))).add(record);
+                }
+
+                for (int shard = 0; shard < shardCount; shard++) {
+                    List<String[]> records = routed.get(shard);
+                    if (records.isEmpty()) {
+                        continue;
+                    }
+                    long acquire = System.nanoTime();
+                    pending.acquire();
+                    mergeStats.blockedNanos += System.nanoTime() - acquire;
+
+                    Map<Integer, ZipCode> shardMap = store.getShard(shard);
+                    tails.set(shard, tails.get(shard).thenRunAsync(() -> {
+                        long start = System.nanoTime();
+                        try {
+                            // after a failure, remaining records are skipped (ingest() rethrows the failure)
+                            if (mergeFailure.get() == null) {
+                                for (String[] record : records) {
+                                    csvReader.mergeRecord(record, shardMap);
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            mergeFailure.compareAndSet(null, e);
+                        } finally {
+                            workerNanos.addAndGet(System.nanoTime() - start);
+                            pending.release();
+                        }
+                    }, workers));
+                }
+                mergeStats.items += batch.records.size();
+
+                if (snapshotListener != null && System.nanoTime() >= nextSnapshot) {
+                    // wait for the shards to catch up, so the snapshot holds every record up to this batch (the wait
+                    // leaves the workers idle, so it counts toward the cost of the snapshot)
+                    long wait = System.nanoTime();
+                    CompletableFuture.allOf(tails.toArray(CompletableFuture<?>[]::new)).join();
+                    mergeStats.blockedNanos += System.nanoTime() - wait;
+                    if (mergeFailure.get() == null) {
+                        snapshotListener.snapshot(snapshotOf(store), progressOf(batch));
+                        snapshots++;
+                    }
+                    nextSnapshot = nextSnapshotAfter(wait);
+                }
+            }
+
+            // wait for every shard to finish merging its records
+            long wait = System.nanoTime();
+            CompletableFuture.allOf(tails.toArray(CompletableFuture<?>[]::new)).join();
+            mergeStats.blockedNanos += System.nanoTime() - wait;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        // busy time is the total time spent merging on all workers
+        mergeStats.busyNanos += workerNanos.get();
+        if (mergeFailure.get() != null) {
+            throw mergeFailure.get();
+        }
+    }
+
+    // time of the next snapshot after one that began at start: one interval after it ended, or SNAPSHOT_COST_FACTOR
+    // times its cost if that is longer, so a snapshot that outgrew the interval does not slow every batch after it
+    private long nextSnapshotAfter(long start) {
+        long end = System.nanoTime();
+        long cost = end - start;
+        snapshotNanos += cost;
+        if (snapshotIntervalNanos == 0) {
+            return end;
+        }
+        return end + Math.max(snapshotIntervalNanos, cost * SNAPSHOT_COST_FACTOR);
+    }
+
+    // deep copy of the records merged so far, in a map of the same type
+    private static Map<Integer, ZipCode> snapshotOf(Map<Integer, ZipCode> zipCodes) {
+        if (zipCodes instanceof ShardedRegionStore) {
+            // shards are copied in parallel, each by one thread
+            ShardedRegionStore store = (ShardedRegionStore) zipCodes;
+            ShardedRegionStore copy = new ShardedRegionStore(store.getShardCount());
+            IntStream.range(0, store.getShardCount()).parallel().forEach(shard -> {
+                for (Map.Entry<Integer, ZipCode> entry : store.getShard(shard).entrySet()) {
+                    copy.getShard(shard).put(entry.getKey(), ZipCode.snapshotOf(entry.getValue()));
+                }
+            });
+            return copy;
+        }
+        Map<Integer, ZipCode> copy = new TreeMap<>();
+        for (Map.Entry<Integer, ZipCode> entry : zipCodes.entrySet()) {
+            copy.put(entry.getKey(), ZipCode.snapshotOf(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private IngestProgress progressOf(Batch batch) {
+        return new IngestProgress(batch.rows, batch.chars, inputChars);
+    }
+
+    /**
+     * @return stats of read, parse and merge stages (complete once ingest() returns)
+     */
+    public List<StageStats> getStageStats() {
+        return List.of(readStats, parseStats, mergeStats);
+    }
+
+    /**
+     * @return one line per stage describing its throughput and blocked time
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (StageStats stats : getStageStats()) {
+            report.append(name).append('.').append(stats).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+}
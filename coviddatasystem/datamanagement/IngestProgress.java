@@ -0,0 +1,60 @@
+package coviddatasystem.datamanagement;
+
+import java.util.Locale;
+
+/**
+ * {@code IngestProgress} tells how much of its input a partial snapshot of a dataset was built from, as published by
+ * an {@code IngestPipeline} while the input is still being read (see {@code DatasetLoader.setSnapshotInterval()}).
+ *
+ * The size of the input is only known for uncompressed regular files; for a pipe or a ".gz" file, progress is given in
+ * rows and characters read.
+ */
+public final class IngestProgress {
+
+    // rows read so far, valid or not
+    private final long rows;
+
+    // characters of the rows read so far
+    private final long chars;
+
+    // characters of the whole input, -1 if unknown
+    private final long totalChars;
+
+    /**
+     * @param rows rows read so far, valid or not
+     * @param chars characters of the rows read so far
+     * @param totalChars characters of the whole input, -1 if unknown
+     */
+    public IngestProgress(long rows, long chars, long totalChars) {
+        this.rows = rows;
+        this.chars = chars;
+        this.totalChars = totalChars;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getChars() {
+        return chars;
+    }
+
+    public long getTotalChars() {
+        return totalChars;
+    }
+
+    /**
+     * @return fraction of the input read (0 to 1), or -1 if the size of the input is unknown
+     */
+    public double getFraction() {
+        return (totalChars > 0) ? Math.min(1.0, (double) chars / totalChars) : -1;
+    }
+
+    @Override
+    public String toString() {
+        if (totalChars > 0) {
+            return String.format(Locale.ROOT, "%,d rows, %.0f%% of input", rows, getFraction() * 100);
+        }
+        return String.format(Locale.ROOT, "%,d rows, %,d characters", rows, chars);
+    }
+}
@@ -1,11 +1,12 @@
 package coviddatasystem.datamanagement;
 
+import coviddatasystem.logging.MergeEvent;
 import coviddatasystem.util.ZipCode;
 
 import java.io.IOException;
 import java.util.*;
 
-public class PopulationCsvReader extends CsvReader {
+public class PopulationCsvReader extends CsvReader implements RecordMerger {
     protected Map<Integer, Integer> populationMap = new HashMap<>();
 
 
@@ -23,6 +24,15 @@ public class PopulationCsvReader extends CsvReader {
         super(filename);
     }
 
+    /**
+     * Instantiates population CSV reader over an already opened char reader
+     *
+     * @param reader CharacterReader positioned at the start of the CSV header row
+     */
+    public PopulationCsvReader(CharacterReader reader) {
+        super(reader);
+    }
+
     /**
      * Reads entire population CSV file, recording field/column titles and storing all valid records in a list
      * @throws IOException when the underlying reader encountered an error
@@ -30,25 +40,51 @@ public class PopulationCsvReader extends CsvReader {
      */
     public void readPopulationCSV() throws IOException, CSVFormatException{
         // read in header row by calling readRow() to determine column of zipCode and population
-        this.fieldTitles = Arrays.asList(readRow());
-        zipCodeIndex = fieldTitles.indexOf("zip_code");
-        populationIndex = fieldTitles.indexOf("population");
-
+        readHeader();
 
         String[] record;
 
         //reading each row and check if zipcode is 5 digits and population is integer, add both fields as key pair in map
         while ((record = this.readRow()) != null) {
-            String zipCode = record[zipCodeIndex];
-            String population = record[populationIndex];
+            rowsRead++;
+            record = validateRecord(record);
             
-            if (record[zipCodeIndex].length() != 5 || !isDouble(population)) {
-                // if zip code isn't 5 digits, record is invalid and skip loop iteration
+            if (record == null) {
+                // if record is invalid, skip loop iteration
                 continue;
             }
             
-            this.populationMap.put(Integer.parseInt(zipCode), Integer.parseInt(population));
+            this.populationMap.put(Integer.parseInt(record[0]), Integer.parseInt(record[1]));
+        }
+    }
+
+    /**
+     * Reads header row and determines the column of zip code and population
+     * @throws IOException when the underlying reader encountered an error
+     * @throws CSVFormatException when the CSV file is formatted incorrectly
+     */
+    @Override
+    public void readHeader() throws IOException, CSVFormatException {
+        super.readHeader();
+        zipCodeIndex = fieldTitles.indexOf("zip_code");
+        populationIndex = fieldTitles.indexOf("population");
+    }
+
+    /**
+     * Checks that a record has a 5 digit zip code and a numeric population
+     * @param record fields of a row as returned by readRow()
+     * @return shrunk record {zip code, population}, or null if the record is invalid
+     */
+    @Override
+    public String[] validateRecord(String[] record) {
+        String zipCode = record[zipCodeIndex];
+        String population = record[populationIndex];
+        
+        if (zipCode.length() != 5 || !isInteger(zipCode) || !isDouble(population)) {
+            // if zip code isn't 5 digits, record is invalid
+            return null;
         }
+        return new String[]{zipCode, population};
     }
 
     /**
@@ -56,21 +92,44 @@ public class PopulationCsvReader extends CsvReader {
      * @param zipCodes zipCodes map mapping zip code values to existing zipCode objects parsed from covid file                     
      */
     public Map<Integer, ZipCode> populationParser(Map<Integer, ZipCode> zipCodes) {
+        MergeEvent event = new MergeEvent();
+        event.begin();
 
         // iterate through population map, update zipCode object's population or create new zipCode object
         for (Map.Entry<Integer, Integer> entry: populationMap.entrySet()) {
-            int zip = entry.getKey();
-            int population = entry.getValue();
-            
-            if (zipCodes.containsKey(zip)) {
-                ZipCode zipCodeObj = zipCodes.get(zip);
-                zipCodeObj.setPopulation(population);
-            }
-            else {
-                zipCodes.put(zip, new ZipCode(zip, population));
-            }
+            setPopulation(entry.getKey(), entry.getValue(), zipCodes);
         }
+        event.commit("populationParser", "population", populationMap.size(), zipCodes.size());
         return zipCodes;
     }
+
+    /**
+     * @return zip code of a valid record
+     */
+    @Override
+    public int recordKey(String[] record) {
+        return Integer.parseInt(record[0]);
+    }
+
+    /**
+     * Updates input zipCode map with the population of a single valid record
+     * @param record valid record {zip code, population}
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     */
+    @Override
+    public void mergeRecord(String[] record, Map<Integer, ZipCode> zipCodes) {
+        setPopulation(Integer.parseInt(record[0]), Integer.parseInt(record[1]), zipCodes);
+    }
+
+    // update zipCode object's population or create new zipCode object
+    private void setPopulation(int zip, int population, Map<Integer, ZipCode> zipCodes) {
+        if (zipCodes.containsKey(zip)) {
+            ZipCode zipCodeObj = zipCodes.get(zip);
+            zipCodeObj.setPopulation(population);
+        }
+        else {
+            zipCodes.put(zip, new ZipCode(zip, population));
+        }
+    }
     
 }
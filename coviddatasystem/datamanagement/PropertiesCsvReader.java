@@ -1,25 +1,54 @@
 package coviddatasystem.datamanagement;
 
+import coviddatasystem.logging.MergeEvent;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.ShardedRegionStore;
 import coviddatasystem.util.ZipCode;
 
 import java.io.IOException;
 import java.util.*;
 
-public class PropertiesCsvReader extends CsvReader {
+public class PropertiesCsvReader extends CsvReader implements RecordMerger {
 
     // Find the indices of "zip_code",  "total_livable_area" and "market_value" columns
     int zipCodeIndex;
     int totalLivableAreaIndex;
     int marketValueIndex;
 
+    // where market value and livable area columns of new ZipCode objects are stored
+    private final ColumnStorage storage;
+
     /**
-     * Instantiates char reader based on input CSV file
+     * Instantiates char reader based on input CSV file, storing property columns on the heap
      *
      * @param filename String representing name of input CSv file
      * @throws IOException when the underlying reader encountered an error
      */
     public PropertiesCsvReader(String filename) throws IOException {
+        this(filename, ColumnStorage.HEAP);
+    }
+
+    /**
+     * Instantiates char reader based on input CSV file
+     *
+     * @param filename String representing name of input CSv file
+     * @param storage heap or off-heap storage for market value and livable area columns
+     * @throws IOException when the underlying reader encountered an error
+     */
+    public PropertiesCsvReader(String filename, ColumnStorage storage) throws IOException {
         super(filename);
+        this.storage = storage;
+    }
+
+    /**
+     * Instantiates properties CSV reader over an already opened char reader
+     *
+     * @param reader CharacterReader positioned at the start of the CSV header row
+     * @param storage heap or off-heap storage for market value and livable area columns
+     */
+    public PropertiesCsvReader(CharacterReader reader, ColumnStorage storage) {
+        super(reader);
+        this.storage = storage;
     }
 
     /**
@@ -29,34 +58,56 @@ public class PropertiesCsvReader extends CsvReader {
      */
     public void readPropertiesCSV() throws IOException, CSVFormatException{
         // read in header row by calling readRow() to determine column of zipCode, total livable area and market value
-        this.fieldTitles = Arrays.asList(readRow());
-
-        zipCodeIndex = fieldTitles.indexOf("zip_code");
-        totalLivableAreaIndex = fieldTitles.indexOf("total_livable_area");
-        marketValueIndex = fieldTitles.indexOf("market_value");
+        readHeader();
 
         String[] record;
 
         //iterate over each line and check if first 5 characters of zipcode valid, retrieve only the 3 required fields
         //zipcode, livable area and market value for each record line, add shrink record to records list
         while ((record = this.readRow()) != null) {
+            rowsRead++;
+            String[] shrinkRecord = validateRecord(record);
 
-            String zipCode = record[zipCodeIndex];
-            String totalLivableArea = record[totalLivableAreaIndex];
-            String marketValue = record[marketValueIndex];
+            if (shrinkRecord != null) {
+                this.records.add(shrinkRecord);
+            }
+        }
+    }
 
-            String[] shrinkRecord = new String[3];
+    /**
+     * Reads header row and determines the column of zip code, total livable area and market value
+     * @throws IOException when the underlying reader encountered an error
+     * @throws CSVFormatException when the CSV file is formatted incorrectly
+     */
+    @Override
+    public void readHeader() throws IOException, CSVFormatException {
+        super.readHeader();
 
-            if (zipCode.length() < 5 || !isInteger(zipCode.substring(0,5))) {
-                continue;
-            }
-            
-            shrinkRecord[0] = zipCode.substring(0,5);
-            shrinkRecord[1] = totalLivableArea;
-            shrinkRecord[2] = marketValue;
+        zipCodeIndex = fieldTitles.indexOf("zip_code");
+        totalLivableAreaIndex = fieldTitles.indexOf("total_livable_area");
+        marketValueIndex = fieldTitles.indexOf("market_value");
+    }
 
-            this.records.add(shrinkRecord);
+    /**
+     * Checks that the first 5 characters of a record's zip code are numeric
+     * @param record fields of a row as returned by readRow()
+     * @return shrunk record {zip code, total livable area, market value}, or null if the record is invalid
+     */
+    @Override
+    public String[] validateRecord(String[] record) {
+        String zipCode = record[zipCodeIndex];
+        String totalLivableArea = record[totalLivableAreaIndex];
+        String marketValue = record[marketValueIndex];
+
+        if (zipCode.length() < 5 || !isInteger(zipCode.substring(0,5))) {
+            return null;
         }
+
+        String[] shrinkRecord = new String[3];
+        shrinkRecord[0] = zipCode.substring(0,5);
+        shrinkRecord[1] = totalLivableArea;
+        shrinkRecord[2] = marketValue;
+        return shrinkRecord;
     }
 
     /**
@@ -64,44 +115,81 @@ public class PropertiesCsvReader extends CsvReader {
      * @param zipCodes map containing existing zipCode objects parsed from covid and population files
      */
     public Map<Integer, ZipCode> propertiesParser(Map<Integer, ZipCode> zipCodes) {
-        
-        ZipCode zipCodeObj;
+        MergeEvent event = new MergeEvent();
+        event.begin();
         
         // Iterate over records and update the corresponding ZipCode objects or create new zipCode objects
         for (String[] record : records) {
-            int zipCode = Integer.parseInt(record[0]);
-            
-            if (zipCodes.containsKey(zipCode)) {
-                zipCodeObj = zipCodes.get(zipCode);
-            }
-            else {
-                //create two lists as constructor and add marketValue and livableArea to these 2 lists and create new zipCode object
-                ArrayList<Double> propertiesMarketValueList = new ArrayList<>();
-                ArrayList<Double> propertiesTotalLivableAreaList = new ArrayList<>();
-
-                // create new ZipCode object
-                zipCodeObj = new ZipCode(zipCode, propertiesMarketValueList, propertiesTotalLivableAreaList);
-                // add entry with new ZipCode object to the zipCodes map
-                zipCodes.put(zipCode, zipCodeObj);
-            }
+            mergeRecord(record, zipCodes);
+        }
+        buildIndexes(zipCodes);
+        event.commit("propertiesParser", "properties", records.size(), zipCodes.size());
+        return zipCodes;
+    }
 
-            try {
-                // Update the properties of the ZipCode object
-                double livableArea = Double.parseDouble(record[1]);
-                zipCodeObj.getPropertiesLivableAreaList().add(livableArea);
-            }
-            catch (NumberFormatException e) {
-                // catches exception when record[1] can't be parsed to double
+    /**
+     * Builds the value-range indexes of every zip code with properties data, once all records have been merged
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     */
+    public static void buildIndexes(Map<Integer, ZipCode> zipCodes) {
+        // shards of a sharded store are independent, so their zip codes are indexed in parallel
+        Collection<ZipCode[]> partitions = (zipCodes instanceof ShardedRegionStore)
+                ? ((ShardedRegionStore) zipCodes).getShardValues()
+                : Collections.singletonList(zipCodes.values().toArray(new ZipCode[0]));
+        partitions.parallelStream().forEach(regions -> {
+            for (ZipCode zipCode : regions) {
+                if (zipCode.hasProperties()) {
+                    zipCode.buildPropertyIndexes();
+                }
             }
+        });
+    }
 
-            try {
-                double marketValue = Double.parseDouble(record[2]);
-                zipCodeObj.getPropertiesMarketValueList().add(marketValue);
-            }
-            catch (NumberFormatException e) {
-                // catches exception when record[2] can't be parsed to double
-            }
+    /**
+     * @return zip code of a valid record
+     */
+    @Override
+    public int recordKey(String[] record) {
+        return Integer.parseInt(record[0]);
+    }
+
+    /**
+     * Adds the livable area and market value of a single valid record to its ZipCode object
+     * @param record valid record {zip code, total livable area, market value}
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     */
+    @Override
+    public void mergeRecord(String[] record, Map<Integer, ZipCode> zipCodes) {
+        ZipCode zipCodeObj;
+        int zipCode = Integer.parseInt(record[0]);
+        
+        if (zipCodes.containsKey(zipCode)) {
+            zipCodeObj = zipCodes.get(zipCode);
+        }
+        else {
+            // create new ZipCode object with empty market value and livable area columns
+            zipCodeObj = new ZipCode(zipCode, storage.newColumn(), storage.newColumn());
+            // add entry with new ZipCode object to the zipCodes map
+            zipCodes.put(zipCode, zipCodeObj);
+        }
+
+        // both columns get a value for every record, NaN when a field can't be parsed to double, so they stay row
+        // aligned; sketches (and every aggregate) skip NaN
+        double livableArea = parseValue(record[1]);
+        double marketValue = parseValue(record[2]);
+        zipCodeObj.getPropertiesLivableAreaColumn(storage).add(livableArea);
+        zipCodeObj.getLivableAreaSketch().add(livableArea);
+        zipCodeObj.getPropertiesMarketValueColumn(storage).add(marketValue);
+        zipCodeObj.getMarketValueSketch().add(marketValue);
+    }
+
+    // value of a numeric field, or NaN if it can't be parsed
+    private static double parseValue(String field) {
+        try {
+            return Double.parseDouble(field);
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
         }
-        return zipCodes;
     }
 }
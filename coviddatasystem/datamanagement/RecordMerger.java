@@ -0,0 +1,26 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.util.ZipCode;
+
+import java.util.Map;
+
+/**
+ * {@code RecordMerger} is implemented by CSV readers whose valid records can be merged into {@code ZipCode} objects
+ * one at a time, as {@code IngestPipeline} requires of the readers it runs.
+ */
+public interface RecordMerger {
+
+    /**
+     * Merges a single valid record (as returned by validateRecord()) into the zip code map
+     * @param record valid record
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     */
+    public void mergeRecord(String[] record, Map<Integer, ZipCode> zipCodes);
+
+    /**
+     * Returns the zip code a valid record is merged into, so the record can be routed to the shard that owns it
+     * @param record valid record
+     * @return zip code value of the record
+     */
+    public int recordKey(String[] record);
+}
@@ -0,0 +1,76 @@
+package coviddatasystem.datamanagement;
+
+import coviddatasystem.logging.Metrics;
+
+/**
+ * {@code StageStats} records how much work one stage of an {@code IngestPipeline} did and how long it spent working
+ * versus blocked on its neighbouring stages. The stage with the least blocked time is the bottleneck.
+ *
+ * Each instance is only updated by the thread running its stage, and is read after that thread has finished.
+ */
+public class StageStats {
+    private final String name;
+
+    // units processed (blocks for the read stage, records for parse and merge stages)
+    long items;
+
+    // characters processed
+    long chars;
+
+    // nanoseconds spent working
+    long busyNanos;
+
+    // nanoseconds spent waiting on a full output queue or an empty input queue
+    long blockedNanos;
+
+    StageStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getItems() {
+        return items;
+    }
+
+    public long getChars() {
+        return chars;
+    }
+
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    /**
+     * @return items processed per second of busy time (0 if the stage did no work)
+     */
+    public double getItemsPerSecond() {
+        return busyNanos == 0 ? 0 : items * 1e9 / busyNanos;
+    }
+
+    /**
+     * Records this stage's counters in the metrics registry under the given prefix
+     * @param metrics Singleton instance of Metrics
+     * @param prefix name prefix, e.g. "ingest.covid"
+     */
+    void record(Metrics metrics, String prefix) {
+        String stagePrefix = prefix + "." + name;
+        metrics.set(stagePrefix + ".items", items);
+        metrics.set(stagePrefix + ".chars", chars);
+        metrics.set(stagePrefix + ".busyMillis", busyNanos / 1000000);
+        metrics.set(stagePrefix + ".blockedMillis", blockedNanos / 1000000);
+        metrics.set(stagePrefix + ".itemsPerSecond", (long) getItemsPerSecond());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d items, %d chars, busy %d ms, blocked %d ms, %.0f items/s", name, items, chars,
+                busyNanos / 1000000, blockedNanos / 1000000, getItemsPerSecond());
+    }
+}
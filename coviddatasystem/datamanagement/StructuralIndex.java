@@ -0,0 +1,84 @@
+package coviddatasystem.datamanagement;
+
+/**
+ * {@code StructuralIndex} finds the structural characters of a block of CSV input (comma, double quote, carriage
+ * return and line feed) and records them in bitmasks, one bit per character: bit (i % 64) of word (i / 64) is set when
+ * character i is structural. {@code CsvReader} uses the masks to jump from one structural character to the next
+ * instead of testing every character, so the characters of a field are copied in one go.
+ *
+ * Blocks are indexed by a scalar loop by default. With {@code -Dcoviddatasystem.csv.vector=true}, when the
+ * {@code jdk.incubator.vector} module is available (run with {@code --add-modules jdk.incubator.vector}), the
+ * {@code vector} source root was compiled (see the README) and the platform has 256-bit vectors, they are scanned with
+ * SIMD compares from {@code VectorStructuralIndex} instead, 16 characters at a time. Both give the same masks. The SIMD
+ * kernel is about twice as fast once compiled, but on JDK 17 the Vector API runs boxed until then, which costs more
+ * (hundreds of milliseconds and megabytes of garbage) than it saves on inputs of a few million rows, so it is not the
+ * default as it is for {@code AggregationKernels}.
+ */
+public final class StructuralIndex {
+
+    // SIMD kernel, or null when it is not enabled or not available
+    private static final StructuralKernel VECTOR_KERNEL =
+            "true".equalsIgnoreCase(System.getProperty("coviddatasystem.csv.vector")) ? loadVectorKernel() : null;
+
+    static final char COMMA = ',';
+    static final char DOUBLE_QUOTE = '"';
+    static final char CARRIAGE_RETURN = '\r';
+    static final char LINE_FEED = '\n';
+
+    private StructuralIndex() {}
+
+    /**
+     * @return true if blocks are scanned with SIMD compares, false if using the scalar fallback
+     */
+    public static boolean isVectorized() {
+        return VECTOR_KERNEL != null;
+    }
+
+    /**
+     * Indexes the structural characters of a block
+     * @param chars block of input characters
+     * @param length number of characters of the block in chars
+     * @param structural receives the positions of every structural character (at least (length + 63) / 64 words)
+     * @param quotes receives the positions of double quotes only (same size as structural)
+     */
+    public static void index(char[] chars, int length, long[] structural, long[] quotes) {
+        int words = (length + 63) >>> 6;
+        for (int word = 0; word < words; word++) {
+            structural[word] = 0;
+            quotes[word] = 0;
+        }
+        if (VECTOR_KERNEL != null) {
+            VECTOR_KERNEL.index(chars, length, structural, quotes);
+        } else {
+            scalarIndex(chars, 0, length, structural, quotes);
+        }
+    }
+
+    // set the bits of structural characters from position from to to (bits must be clear)
+    static void scalarIndex(char[] chars, int from, int to, long[] structural, long[] quotes) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == COMMA || c == DOUBLE_QUOTE || c == CARRIAGE_RETURN || c == LINE_FEED) {
+                structural[i >>> 6] |= 1L << i;
+                if (c == DOUBLE_QUOTE) {
+                    quotes[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+    }
+
+    // VectorStructuralIndex is loaded by name, so this class compiles without the jdk.incubator.vector module; null if
+    // the module is not present, the vector source root was not compiled or the platform lacks 256-bit vectors
+    static StructuralKernel loadVectorKernel() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            StructuralKernel kernel = (StructuralKernel) Class.forName(
+                    "coviddatasystem.datamanagement.VectorStructuralIndex").getDeclaredConstructor().newInstance();
+            return kernel.isSupported() ? kernel : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
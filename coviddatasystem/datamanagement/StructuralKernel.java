@@ -0,0 +1,22 @@
+package coviddatasystem.datamanagement;
+
+/**
+ * Sets the bits of the structural characters of a block of CSV input, as described in {@code StructuralIndex}.
+ * {@code StructuralIndex} uses an implementation of this interface for its SIMD path (see
+ * {@code VectorStructuralIndex}).
+ */
+interface StructuralKernel {
+
+    /**
+     * @return true if the kernel is faster than the scalar loop on this platform
+     */
+    boolean isSupported();
+
+    /**
+     * @param chars block of input characters
+     * @param length number of characters of the block in chars
+     * @param structural receives the positions of every structural character (bits must be clear)
+     * @param quotes receives the positions of double quotes only (bits must be clear)
+     */
+    void index(char[] chars, int length, long[] structural, long[] quotes);
+}
@@ -0,0 +1,356 @@
+package coviddatasystem.distributed;
+
+import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.processor.FootprintReport;
+import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.Query;
+import coviddatasystem.processor.QueryResult;
+import coviddatasystem.processor.TopKSelector;
+import coviddatasystem.processor.VaccinationMatrix;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * {@code Coordinator} runs the actions of {@code Processor} on worker processes started on this host, each holding one
+ * partition of the zip codes (see {@code Worker}), so memory and load time are split across processes.
+ *
+ * Actions over every zip code are sent to all workers in parallel, and their partial results are merged: populations
+ * are added up, per-zip maps are combined, top-k rankings are merged with a {@code TopKSelector}, and query results
+ * are merged from the sum, count, min and max of each group. Actions for a single zip code are sent only to the
+ * worker owning it. Results are the same as those of a single {@code Processor} over all zip codes.
+ *
+ * Workers memoize their own results, so the coordinator keeps no datasets and no memos. Processor helpers that read a
+ * local zip code map (e.g. getZipCodePopulation()) see no zip codes.
+ */
+public class Coordinator extends Processor implements AutoCloseable {
+
+    private final List<WorkerConnection> workers = new ArrayList<>();
+
+    // sends requests to all workers at once, one thread per worker
+    private final ExecutorService executor;
+
+    /**
+     * Starts worker processes, each loading its partition of the input files, and connects to them
+     * @param workerCount number of worker processes
+     * @param inputArgs runtime arguments passed on to every worker (covid, population, properties, storage, shards)
+     * @param logger Singleton instance of logger
+     * @throws IOException when a worker could not be started
+     */
+    public Coordinator(int workerCount, List<String> inputArgs, Logger logger) throws IOException {
+        super(new TreeMap<>(), logger);
+        this.executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            // start every worker before connecting to any, so they load their partitions in parallel
+            SecureRandom random = new SecureRandom();
+            for (int partition = 0; partition < workerCount; partition++) {
+                List<String> command = workerCommand(partition, workerCount, inputArgs);
+                workers.add(new WorkerConnection(command, partition, Long.toHexString(random.nextLong())));
+            }
+            for (WorkerConnection worker : workers) {
+                worker.connect();
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        Metrics.getInstance().set("distributed.workers", workerCount);
+    }
+
+    // same java binary, JVM options and class path as this process (except debugging agents, which would collide)
+    private static List<String> workerCommand(int partition, int partitions, List<String> inputArgs) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!option.startsWith("-agentlib") && !option.startsWith("-javaagent") && !option.startsWith("-Xrunjdwp")) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Worker.class.getName());
+        command.add("--partition=" + partition);
+        command.add("--partitions=" + partitions);
+        command.addAll(inputArgs);
+        return command;
+    }
+
+    // send a request to every worker in parallel, returning the responses in partition order
+    private List<List<String>> broadcast(String request) {
+        List<Future<List<String>>> futures = new ArrayList<>(workers.size());
+        for (WorkerConnection worker : workers) {
+            futures.add(executor.submit(() -> worker.request(request)));
+        }
+        List<List<String>> responses = new ArrayList<>(workers.size());
+        for (Future<List<String>> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for workers", e);
+            } catch (ExecutionException e) {
+                // rethrow the worker's failure (an IllegalStateException) as is
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        return responses;
+    }
+
+    // send a request for a single zip code to the worker owning it
+    private String sendToOwner(String inputZip, String request) {
+        int owner = Worker.partitionOf(Integer.parseInt(inputZip), workers.size());
+        return workers.get(owner).request(request).get(0);
+    }
+
+    // send each worker owning any of the zip codes one request for its own zip codes, in parallel; returns the
+    // response line of every zip code, in the order of zips
+    private String[] scatter(int[] zips, Function<String, String> request) {
+        int[][] owned = new int[workers.size()][];
+        int[] counts = new int[workers.size()];
+        int[] owners = new int[zips.length];
+        for (int i = 0; i < zips.length; i++) {
+            owners[i] = Worker.partitionOf(zips[i], workers.size());
+            counts[owners[i]]++;
+        }
+        for (int partition = 0; partition < owned.length; partition++) {
+            owned[partition] = new int[counts[partition]];
+            counts[partition] = 0;
+        }
+        // indexes into zips of each worker's zip codes
+        for (int i = 0; i < zips.length; i++) {
+            owned[owners[i]][counts[owners[i]]++] = i;
+        }
+
+        List<Future<List<String>>> futures = new ArrayList<>(workers.size());
+        for (int partition = 0; partition < owned.length; partition++) {
+            if (owned[partition].length == 0) {
+                futures.add(null);
+                continue;
+            }
+            int[] workerZips = Arrays.stream(owned[partition]).map(i -> zips[i]).toArray();
+            WorkerConnection worker = workers.get(partition);
+            futures.add(executor.submit(() -> worker.request(request.apply(Worker.encodeZips(workerZips)))));
+        }
+
+        String[] lines = new String[zips.length];
+        for (int partition = 0; partition < owned.length; partition++) {
+            if (futures.get(partition) == null) {
+                continue;
+            }
+            List<String> response;
+            try {
+                response = futures.get(partition).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for workers", e);
+            } catch (ExecutionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+            for (int j = 0; j < owned[partition].length; j++) {
+                lines[owned[partition][j]] = response.get(j);
+            }
+        }
+        return lines;
+    }
+
+    // bulk variant of action 4, 5 or 6
+    private int[] bulk(int[] zips, int action) {
+        String[] lines = scatter(zips, zipList -> Worker.BULK + " " + action + " " + zipList);
+        int[] results = new int[zips.length];
+        for (int i = 0; i < zips.length; i++) {
+            results[i] = Integer.parseInt(lines[i]);
+        }
+        return results;
+    }
+
+    // combine "<zip> <value>" responses of workers (zip codes of different workers never collide)
+    private TreeMap<Integer, Double> mergeMaps(List<List<String>> responses) {
+        TreeMap<Integer, Double> merged = new TreeMap<>();
+        for (List<String> lines : responses) {
+            for (String line : lines) {
+                int space = line.indexOf(' ');
+                merged.put(Integer.parseInt(line.substring(0, space)), Double.parseDouble(line.substring(space + 1)));
+            }
+        }
+        return merged;
+    }
+
+    // select the best k of the workers' own top k
+    private LinkedHashMap<Integer, Double> mergeRankings(List<List<String>> responses, int k, boolean highest) {
+        TopKSelector selector = new TopKSelector(k, highest);
+        for (Map.Entry<Integer, Double> entry : mergeMaps(responses).entrySet()) {
+            selector.offer(entry.getKey(), entry.getValue());
+        }
+        return selector.toRankedMap();
+    }
+
+    //action 2
+    @Override
+    public Integer getTotalPopulation() {
+        int totalPopulation = 0;
+        for (List<String> lines : broadcast(Worker.POPULATION)) {
+            totalPopulation += Integer.parseInt(lines.get(0));
+        }
+        return totalPopulation;
+    }
+
+    //action 3
+    @Override
+    public TreeMap<Integer, Double> getVaccinationsPerCapita(String date, Boolean partialOrTotal) {
+        return mergeMaps(broadcast(Worker.VACS + " " + date + " " + partialOrTotal));
+    }
+
+    //action 13
+    @Override
+    public TreeMap<Integer, Double> getWeeklyVaccinationsPerCapita(String week, Boolean partialOrTotal) {
+        return mergeMaps(broadcast(Worker.WEEKLY_VACS + " " + week + " " + partialOrTotal));
+    }
+
+    //bulk variants of actions 4, 5 and 6
+    @Override
+    public int[] getAllZipCodes() {
+        // partitions are disjoint, so the merged zip codes only need sorting
+        return broadcast(Worker.ZIP_CODES).stream().flatMap(List::stream).mapToInt(Integer::parseInt).sorted()
+                .toArray();
+    }
+
+    @Override
+    public int[] getAverageMarketValues(int[] zips) {
+        return bulk(zips, 4);
+    }
+
+    @Override
+    public int[] getAverageLivableAreas(int[] zips) {
+        return bulk(zips, 5);
+    }
+
+    @Override
+    public int[] getMarketValuesPerCapita(int[] zips) {
+        return bulk(zips, 6);
+    }
+
+    //date range variant of action 3 - dates are validated here, rows are computed by the workers owning the zip codes
+    @Override
+    public VaccinationMatrix getVaccinationsPerCapita(int[] zips, String fromDate, String toDate,
+                                                      boolean partialOrTotal) {
+        String[] dates = VaccinationMatrix.datesBetween(fromDate, toDate);
+        String[] lines = scatter(zips, zipList -> Worker.VACS_RANGE + " " + fromDate + " " + toDate + " "
+                + partialOrTotal + " " + zipList);
+        double[][] values = new double[zips.length][];
+        for (int i = 0; i < zips.length; i++) {
+            values[i] = Arrays.stream(lines[i].split(" ")).mapToDouble(Double::parseDouble).toArray();
+        }
+        return new VaccinationMatrix(zips, dates, values);
+    }
+
+    //action 4
+    @Override
+    public Integer getAverageMarketValue(String inputZip) {
+        return Integer.valueOf(sendToOwner(inputZip, Worker.AVERAGE + " " + inputZip + " 4"));
+    }
+
+    //action 5
+    @Override
+    public Integer getAverageLivableArea(String inputZip) {
+        return Integer.valueOf(sendToOwner(inputZip, Worker.AVERAGE + " " + inputZip + " 5"));
+    }
+
+    //action 6
+    @Override
+    public Integer getMarketValuePerCapita(String inputZip) {
+        return Integer.valueOf(sendToOwner(inputZip, Worker.VALUE_PER_CAPITA + " " + inputZip));
+    }
+
+    //action 7
+    @Override
+    public Map<Integer, Double> getUnvaccinatedPersonsPerTotalLiveableArea() {
+        return mergeMaps(broadcast(Worker.UNVACCINATED));
+    }
+
+    //action 8, 9 and medians
+    @Override
+    public Integer getPercentile(String inputZip, Double percentile, Integer actionNumber) {
+        return Integer.valueOf(sendToOwner(inputZip,
+                Worker.PERCENTILE + " " + inputZip + " " + percentile + " " + actionNumber));
+    }
+
+    //action 11
+    @Override
+    public LinkedHashMap<Integer, Double> getTopVaccinationsPerCapita(String date, Boolean partialOrTotal, int k,
+                                                                     boolean highest) {
+        return mergeRankings(broadcast(Worker.TOP_VACS + " " + date + " " + partialOrTotal + " " + k + " " + highest),
+                k, highest);
+    }
+
+    //action 12
+    @Override
+    public LinkedHashMap<Integer, Double> getTopMarketValuePerCapita(int k, boolean highest) {
+        return mergeRankings(broadcast(Worker.TOP_VALUE + " " + k + " " + highest), k, highest);
+    }
+
+    //action 14 - queries are compiled (and validated) here, then evaluated by every worker over its zip codes
+    @Override
+    public QueryResult runQuery(Query query) {
+        QueryResult merged = null;
+        for (List<String> lines : broadcast(Worker.QUERY + " " + query.getText())) {
+            String[] header = lines.get(0).split(" ");
+            TreeMap<String, double[]> partialRows = new TreeMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ");
+                double[] partials = new double[fields.length - 1];
+                for (int i = 0; i < partials.length; i++) {
+                    partials[i] = Double.parseDouble(fields[i + 1]);
+                }
+                partialRows.put(fields[0], partials);
+            }
+            QueryResult result = new QueryResult(header[0], Arrays.asList(header).subList(1, header.length),
+                    partialRows);
+            merged = (merged == null) ? result : merged.merge(result);
+        }
+        return merged;
+    }
+
+    //action 10 - footprint of every worker's zip codes and caches (each worker's map and caches are counted)
+    @Override
+    public FootprintReport getFootprintReport() {
+        List<FootprintReport> reports = new ArrayList<>();
+        for (List<String> lines : broadcast(Worker.FOOTPRINT)) {
+            Map<String, Long> structureBytes = new LinkedHashMap<>();
+            Map<Integer, Long> zipCodeBytes = new TreeMap<>();
+            for (String line : lines) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals("S")) {
+                    structureBytes.put(fields[1], Long.parseLong(fields[2]));
+                } else {
+                    zipCodeBytes.put(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+                }
+            }
+            reports.add(FootprintReport.of(structureBytes, zipCodeBytes));
+        }
+        FootprintReport report = FootprintReport.merge(reports);
+        report.record(Metrics.getInstance());
+        return report;
+    }
+
+    /**
+     * Stops every worker process
+     */
+    @Override
+    public void close() {
+        for (WorkerConnection worker : workers) {
+            worker.close();
+        }
+        executor.shutdownNow();
+    }
+}
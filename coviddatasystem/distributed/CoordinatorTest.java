@@ -0,0 +1,71 @@
+package coviddatasystem.distributed;
+
+import java.nio.file.*;
+import java.util.List;
+
+import coviddatasystem.datamanagement.DatasetLoader;
+import coviddatasystem.logging.Logger;
+import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.Query;
+import coviddatasystem.util.ColumnStorage;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CoordinatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPartitionsInRange() {
+        int[] counts = new int[3];
+        for (int zip = 19100; zip < 19200; zip++) {
+            counts[Worker.partitionOf(zip, 3)]++;
+        }
+        // every partition gets a share of nearby zip codes
+        for (int count : counts) {
+            assertTrue(count > 10);
+        }
+        assertEquals(0, Worker.partitionOf(19103, 1));
+    }
+
+    @Test
+    void testMergedResultsMatchSingleProcess() throws Exception {
+        StringBuilder population = new StringBuilder("\"zip_code\",\"population\"\n");
+        StringBuilder properties = new StringBuilder("total_livable_area,market_value,zip_code\n");
+        for (int zip = 19101; zip <= 19120; zip++) {
+            population.append('"').append(zip).append("\",").append(zip - 19000).append('\n');
+            properties.append(zip % 7 * 100).append(',').append(zip * 3).append(',').append(zip).append('\n');
+            properties.append(zip % 5 * 100).append(',').append(zip * 2).append(',').append(zip).append('\n');
+        }
+        Path populationFile = Files.writeString(tempDir.resolve("population.csv"), population);
+        Path propertiesFile = Files.writeString(tempDir.resolve("properties.csv"), properties);
+
+        DatasetLoader loader = new DatasetLoader(Logger.getInstance(), 2);
+        loader.loadPopulation(populationFile.toString());
+        loader.loadProperties(propertiesFile.toString(), ColumnStorage.HEAP);
+        Processor expected = new Processor(loader, Logger.getInstance());
+
+        List<String> inputArgs = List.of("--population=" + populationFile, "--properties=" + propertiesFile,
+                "--shards=2");
+        try (loader; Coordinator coordinator = new Coordinator(3, inputArgs, Logger.getInstance())) {
+            assertEquals(expected.getTotalPopulation(), coordinator.getTotalPopulation());
+            assertEquals(expected.getAverageMarketValue("19107"), coordinator.getAverageMarketValue("19107"));
+            assertEquals(expected.getMarketValuePerCapita("19113"), coordinator.getMarketValuePerCapita("19113"));
+            assertEquals(expected.getTopMarketValuePerCapita(4, false), coordinator.getTopMarketValuePerCapita(4, false));
+
+            int[] zips = {19120, 19101, 19199, 19113, 19107};
+            assertArrayEquals(expected.getAverageLivableAreas(zips), coordinator.getAverageLivableAreas(zips));
+            assertArrayEquals(expected.getMarketValuesPerCapita(zips), coordinator.getMarketValuesPerCapita(zips));
+            assertArrayEquals(expected.getAllZipCodes(), coordinator.getAllZipCodes());
+
+            Query query = Query.compile("sum(market_value), avg(livable_area), max(population), count(market_value)");
+            assertArrayEquals(expected.runQuery(query).getRows().get("all"),
+                    coordinator.runQuery(query).getRows().get("all"));
+            Query byZip = Query.compile("min(livable_area) where livable_area > 0 group by zip");
+            assertEquals(expected.runQuery(byZip).getRows().keySet(), coordinator.runQuery(byZip).getRows().keySet());
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package coviddatasystem.distributed;
+
+import coviddatasystem.datamanagement.CovidMultiFileLoader;
+import coviddatasystem.datamanagement.DatasetLoader;
+import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.processor.FootprintReport;
+import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.QueryParseException;
+import coviddatasystem.processor.QueryResult;
+import coviddatasystem.processor.VaccinationMatrix;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.ShardedRegionStore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * {@code Worker} is the main class of a worker process in distributed mode ("--workers=N"). A worker loads only its
+ * partition of the zip codes from the input files, and answers requests of the {@code Coordinator} that started it
+ * with results over its own zip codes, which the coordinator merges.
+ *
+ * Protocol (UTF-8 lines): the coordinator writes a random token to the worker's standard input, and the worker prints
+ * "LISTENING &lt;port&gt;" on standard output once it listens on a loopback port. The coordinator connects and sends the
+ * token, then sends one request per line ("&lt;command&gt; &lt;arguments&gt;") and reads one response per request:
+ * "OK &lt;n&gt;" followed by n lines, or "ERROR &lt;exception class&gt; &lt;message&gt;". The worker exits once the
+ * coordinator closes the connection.
+ */
+public final class Worker {
+
+    // requests, each answered over the worker's own zip codes
+    static final String POPULATION = "population";
+    static final String VACS = "vacs";
+    static final String WEEKLY_VACS = "weeklyvacs";
+    static final String AVERAGE = "average";
+    static final String VALUE_PER_CAPITA = "valuepercapita";
+    static final String UNVACCINATED = "unvaccinated";
+    static final String PERCENTILE = "percentile";
+    static final String TOP_VACS = "topvacs";
+    static final String TOP_VALUE = "topvalue";
+    static final String QUERY = "query";
+    static final String FOOTPRINT = "footprint";
+    static final String ZIP_CODES = "zipcodes";
+    static final String BULK = "bulk";
+    static final String VACS_RANGE = "vacsrange";
+
+    static final String LISTENING = "LISTENING ";
+    static final String OK = "OK ";
+    static final String ERROR = "ERROR ";
+
+    // a worker whose coordinator never connects (e.g. it exited while starting workers) gives up after this long
+    private static final int ACCEPT_TIMEOUT_MILLIS = 60_000;
+
+    private final Processor processor;
+
+    Worker(Processor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Returns the partition owning a zip code. Zip codes are mixed with a different hash than the shards of a
+     * {@code ShardedRegionStore}, so every worker's zip codes still spread over all of its shards.
+     * @param zip zip code value
+     * @param partitions number of partitions
+     * @return partition index, from 0 to partitions - 1
+     */
+    public static int partitionOf(int zip, int partitions) {
+        int hash = zip * 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        // multiply-shift maps the high bits of the hash to [0, partitions)
+        return (int) (((hash & 0xFFFFFFFFL) * partitions) >>> 32);
+    }
+
+    /**
+     * Starts a worker process
+     * @param args "--partition=" and "--partitions=", plus the input arguments of Main (covid, population, properties,
+     *             storage, shards) and the coordinator's log and metrics files, already validated by the coordinator
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        int partition = Integer.parseInt(options.get("partition"));
+        int partitions = Integer.parseInt(options.get("partitions"));
+
+        // log and metrics files of the coordinator get a suffix per worker, e.g. "log.txt.worker0"
+        Logger logger = Logger.getInstance();
+        if (options.containsKey("log")) {
+            logger.setOutput(options.get("log") + ".worker" + partition);
+        }
+        if (options.containsKey("metrics")) {
+            Metrics.getInstance().setOutput(options.get("metrics") + ".worker" + partition);
+        }
+        int shards = options.containsKey("shards") ? Integer.parseInt(options.get("shards"))
+                : ShardedRegionStore.DEFAULT_SHARDS;
+        ColumnStorage storage = options.containsKey("storage") ? ColumnStorage.fromArgument(options.get("storage"))
+                : ColumnStorage.HEAP;
+
+        // start loading this partition before listening, so every worker loads while the coordinator connects
+        DatasetLoader loader = new DatasetLoader(logger, shards);
+        loader.setZipFilter(zip -> partitionOf(zip, partitions) == partition);
+        String covid = options.get("covid");
+        if (covid != null && (new File(covid).isDirectory() || CovidMultiFileLoader.isGlob(covid))) {
+            loader.loadCovid(CovidMultiFileLoader.resolve(covid));
+        } else if (covid != null) {
+            loader.loadCovid(covid, covid.toLowerCase().replaceAll("\\.gz$", "").endsWith(".json") ? "json" : "csv");
+        }
+        if (options.containsKey("population")) {
+            loader.loadPopulation(options.get("population"));
+        }
+        if (options.containsKey("properties")) {
+            loader.loadProperties(options.get("properties"), storage);
+        }
+
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String token = input.readLine();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            System.out.println(LISTENING + server.getLocalPort());
+            System.out.flush();
+
+            try (Socket socket = server.accept()) {
+                new Worker(new Processor(loader, logger)).serve(socket, token);
+            }
+        } finally {
+            loader.close();
+            Metrics.getInstance().write();
+        }
+    }
+
+    // answer requests in order until the coordinator closes the connection
+    void serve(Socket socket, String token) throws IOException {
+        socket.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                StandardCharsets.UTF_8));
+
+        // only the coordinator that started this worker knows the token
+        if (token == null || !token.equals(in.readLine())) {
+            return;
+        }
+        String request;
+        while ((request = in.readLine()) != null) {
+            List<String> lines;
+            try {
+                lines = handle(request);
+            } catch (RuntimeException e) {
+                // report the original failure (e.g. of loading a dataset) so the coordinator can rethrow it
+                Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                String type = (cause instanceof IOException) ? "IOException" : cause.getClass().getSimpleName();
+                String message = String.valueOf(e.getMessage()).replaceAll("[\r\n]+", " ");
+                out.write(ERROR + type + " " + message);
+                out.newLine();
+                out.flush();
+                continue;
+            }
+            out.write(OK + lines.size());
+            out.newLine();
+            for (String line : lines) {
+                out.write(line);
+                out.newLine();
+            }
+            out.flush();
+        }
+    }
+
+    // run one request against this worker's processor, returning the lines of its response
+    List<String> handle(String request) {
+        String[] parts = request.split(" ", 2);
+        String arguments = (parts.length > 1) ? parts[1] : "";
+        String[] a = arguments.split(" ");
+
+        switch (parts[0]) {
+            case POPULATION:
+                return List.of(String.valueOf(processor.getTotalPopulation()));
+            case VACS:
+                return encode(processor.getVaccinationsPerCapita(a[0], Boolean.parseBoolean(a[1])));
+            case WEEKLY_VACS:
+                return encode(processor.getWeeklyVaccinationsPerCapita(a[0], Boolean.parseBoolean(a[1])));
+            case AVERAGE:
+                return List.of(String.valueOf(a[1].equals("4") ? processor.getAverageMarketValue(a[0])
+                        : processor.getAverageLivableArea(a[0])));
+            case VALUE_PER_CAPITA:
+                return List.of(String.valueOf(processor.getMarketValuePerCapita(a[0])));
+            case UNVACCINATED:
+                return encode(processor.getUnvaccinatedPersonsPerTotalLiveableArea());
+            case PERCENTILE:
+                return List.of(String.valueOf(processor.getPercentile(a[0], Double.parseDouble(a[1]),
+                        Integer.parseInt(a[2]))));
+            case TOP_VACS:
+                return encode(processor.getTopVaccinationsPerCapita(a[0], Boolean.parseBoolean(a[1]),
+                        Integer.parseInt(a[2]), Boolean.parseBoolean(a[3])));
+            case TOP_VALUE:
+                return encode(processor.getTopMarketValuePerCapita(Integer.parseInt(a[0]),
+                        Boolean.parseBoolean(a[1])));
+            case QUERY:
+                return encode(runQuery(arguments));
+            case FOOTPRINT:
+                return encode(processor.getFootprintReport());
+            case ZIP_CODES:
+                return encode(processor.getAllZipCodes());
+            case BULK:
+                return encode(bulk(Integer.parseInt(a[0]), decodeZips(a[1])));
+            case VACS_RANGE:
+                return encode(processor.getVaccinationsPerCapita(decodeZips(a[3]), a[0], a[1],
+                        Boolean.parseBoolean(a[2])));
+            default:
+                throw new IllegalArgumentException("Unknown request: " + parts[0]);
+        }
+    }
+
+    // bulk variant of action 4, 5 or 6
+    private int[] bulk(int action, int[] zips) {
+        switch (action) {
+            case 4:
+                return processor.getAverageMarketValues(zips);
+            case 5:
+                return processor.getAverageLivableAreas(zips);
+            default:
+                return processor.getMarketValuesPerCapita(zips);
+        }
+    }
+
+    // zip codes of bulk requests are sent as "<zip>,<zip>,..."
+    static String encodeZips(int[] zips) {
+        StringBuilder text = new StringBuilder();
+        for (int zip : zips) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(zip);
+        }
+        return text.toString();
+    }
+
+    private static int[] decodeZips(String text) {
+        return Arrays.stream(text.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private QueryResult runQuery(String text) {
+        try {
+            return processor.runQuery(processor.compileQuery(text));
+        } catch (QueryParseException e) {
+            // the coordinator only sends queries it compiled itself
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    // one "<zip> <value>" line per entry, in map order (doubles are written so they parse back exactly)
+    private static List<String> encode(Map<Integer, Double> results) {
+        List<String> lines = new ArrayList<>(results.size());
+        for (Map.Entry<Integer, Double> entry : results.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+        return lines;
+    }
+
+    // one value per line
+    private static List<String> encode(int[] values) {
+        List<String> lines = new ArrayList<>(values.length);
+        for (int value : values) {
+            lines.add(String.valueOf(value));
+        }
+        return lines;
+    }
+
+    // one "<value> <value>..." line per row of the matrix (NaN rows are written as "NaN")
+    private static List<String> encode(VaccinationMatrix matrix) {
+        List<String> lines = new ArrayList<>(matrix.getValues().length);
+        for (double[] row : matrix.getValues()) {
+            StringBuilder line = new StringBuilder();
+            for (double value : row) {
+                if (line.length() > 0) {
+                    line.append(' ');
+                }
+                line.append(value);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // "<group by> <column>..." then one "<group> <partial>..." line per group
+    private static List<String> encode(QueryResult result) {
+        List<String> lines = new ArrayList<>();
+        lines.add(result.getGroupBy() + " " + String.join(" ", result.getColumns()));
+        for (Map.Entry<String, double[]> row : result.getPartialRows().entrySet()) {
+            StringBuilder line = new StringBuilder(row.getKey());
+            for (double partial : row.getValue()) {
+                line.append(' ').append(partial);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // "S <structure> <bytes>" per structure, then "Z <zip> <bytes>" per zip code
+    private static List<String> encode(FootprintReport report) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : report.getStructureBytes().entrySet()) {
+            lines.add("S " + entry.getKey() + " " + entry.getValue());
+        }
+        for (Map.Entry<Integer, Long> entry : report.getZipCodeBytes().entrySet()) {
+            lines.add("Z " + entry.getKey() + " " + entry.getValue());
+        }
+        return lines;
+    }
+}
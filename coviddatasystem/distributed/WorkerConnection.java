@@ -0,0 +1,137 @@
+package coviddatasystem.distributed;
+
+import coviddatasystem.datamanagement.CSVFormatException;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code WorkerConnection} is the coordinator's side of one worker process: it starts the process, connects to it
+ * once it listens, and sends it requests (see {@code Worker} for the protocol). Requests on one connection run one
+ * at a time.
+ */
+final class WorkerConnection implements AutoCloseable {
+
+    private final int partition;
+
+    private final Process process;
+
+    private final String token;
+
+    private Socket socket;
+    private BufferedReader in;
+    private BufferedWriter out;
+
+    /**
+     * Starts a worker process, which begins loading its partition right away
+     * @param command command line of the worker process
+     * @param partition partition loaded by the worker
+     * @param token random token the worker expects from the coordinator
+     * @throws IOException when the process could not be started
+     */
+    WorkerConnection(List<String> command, int partition, String token) throws IOException {
+        this.partition = partition;
+        this.token = token;
+        this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        try (Writer stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+            stdin.write(token + "\n");
+        }
+    }
+
+    /**
+     * Waits until the worker listens and connects to it
+     * @throws IOException when the worker exited or could not be reached
+     */
+    void connect() throws IOException {
+        BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8));
+        String line = stdout.readLine();
+        if (line == null || !line.startsWith(Worker.LISTENING)) {
+            throw new IOException("Worker " + partition + " exited before it started listening");
+        }
+        int port = Integer.parseInt(line.substring(Worker.LISTENING.length()).trim());
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        out.write(token);
+        out.newLine();
+        out.flush();
+    }
+
+    /**
+     * Sends a request and waits for its response
+     * @param request "&lt;command&gt; &lt;arguments&gt;"
+     * @return lines of the response
+     * @throws IllegalStateException when the worker failed the request (with the worker's failure as cause) or the
+     *         connection to the worker was lost
+     */
+    synchronized List<String> request(String request) {
+        try {
+            out.write(request);
+            out.newLine();
+            out.flush();
+
+            String status = in.readLine();
+            if (status == null) {
+                throw new EOFException("Worker " + partition + " closed the connection");
+            }
+            if (status.startsWith(Worker.ERROR)) {
+                String[] error = status.substring(Worker.ERROR.length()).split(" ", 2);
+                String message = "Worker " + partition + ": " + ((error.length > 1) ? error[1] : error[0]);
+                throw new IllegalStateException(message, failure(error[0], message));
+            }
+            int count = Integer.parseInt(status.substring(Worker.OK.length()));
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                lines.add(in.readLine());
+            }
+            return lines;
+        } catch (IOException e) {
+            throw new IllegalStateException("Lost connection to worker " + partition, e);
+        }
+    }
+
+    // exception standing in for a worker's failure, of the type Main reports to the user (the worker's stack trace is
+    // not sent)
+    private static Exception failure(String type, String message) {
+        if (type.equals(CSVFormatException.class.getSimpleName())) {
+            return new CSVFormatException();
+        }
+        if (type.equals(ParseException.class.getSimpleName())) {
+            return new ParseException(ParseException.ERROR_UNEXPECTED_EXCEPTION, message);
+        }
+        if (type.equals(IOException.class.getSimpleName())) {
+            return new IOException(message);
+        }
+        return new RuntimeException(message);
+    }
+
+    /**
+     * Closes the connection, so the worker exits, and waits for the worker process to end
+     */
+    @Override
+    public void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (IOException e) {
+            process.destroyForcibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package coviddatasystem.logging;
+
+import jdk.jfr.*;
+
+import java.io.File;
+
+/**
+ * {@code IngestFileEvent} is a Java Flight Recorder event covering one input file, from opening it until its valid
+ * records have been merged into zip codes.
+ *
+ * Like every event of this program, it costs next to nothing when no recording is running: fields are only filled in
+ * and the event only committed when a recording has enabled it.
+ */
+@Name("coviddatasystem.IngestFile")
+@Label("Ingest File")
+@Category({"COVID Data System", "Ingest"})
+@Description("An input file read, parsed and merged into zip codes")
+public class IngestFileEvent extends Event {
+
+    @Label("Dataset")
+    @Description("covid, population or properties")
+    public String dataset;
+
+    @Label("File")
+    public String file;
+
+    @Label("Rows")
+    @Description("Rows read, including rejected rows")
+    public long rows;
+
+    @Label("Rejected Rows")
+    @Description("Rows that failed validation")
+    public long rejects;
+
+    @Label("File Size")
+    @Description("Size of the file on disk (compressed size of '.gz' files)")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * Commits the event if a recording has enabled it
+     * @param dataset "covid", "population" or "properties"
+     * @param file name of the input file
+     * @param rows rows read, including rejected rows
+     * @param rejects rows that failed validation
+     */
+    public void commit(String dataset, String file, long rows, long rejects) {
+        if (shouldCommit()) {
+            this.dataset = dataset;
+            this.file = file;
+            this.rows = rows;
+            this.rejects = rejects;
+            this.bytes = new File(file).length();
+            commit();
+        }
+    }
+}
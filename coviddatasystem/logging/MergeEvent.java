@@ -0,0 +1,47 @@
+package coviddatasystem.logging;
+
+import jdk.jfr.*;
+
+/**
+ * {@code MergeEvent} is a Java Flight Recorder event covering one merge step: parsed records merged into zip codes
+ * (e.g. populationParser(), propertiesParser()), per-file covid maps merged together, or a dataset merged into a new
+ * version of the zip code store.
+ */
+@Name("coviddatasystem.Merge")
+@Label("Merge")
+@Category({"COVID Data System", "Ingest"})
+@Description("Records or zip codes of a dataset merged into zip codes")
+public class MergeEvent extends Event {
+
+    @Label("Step")
+    @Description("Merge step, e.g. populationParser or publish")
+    public String step;
+
+    @Label("Dataset")
+    public String dataset;
+
+    @Label("Records")
+    @Description("Records or zip codes merged")
+    public long records;
+
+    @Label("Zip Codes")
+    @Description("Zip codes in the result")
+    public int zipCodes;
+
+    /**
+     * Commits the event if a recording has enabled it
+     * @param step merge step, e.g. "populationParser"
+     * @param dataset "covid", "population" or "properties"
+     * @param records records or zip codes merged
+     * @param zipCodes zip codes in the result
+     */
+    public void commit(String step, String dataset, long records, int zipCodes) {
+        if (shouldCommit()) {
+            this.step = step;
+            this.dataset = dataset;
+            this.records = records;
+            this.zipCodes = zipCodes;
+            commit();
+        }
+    }
+}
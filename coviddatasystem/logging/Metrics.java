@@ -0,0 +1,104 @@
+package coviddatasystem.logging;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code Metrics} is a registry of named numeric measurements (row counts, bytes, durations, ...) recorded while the
+ * program runs. Like {@code Logger}, it is a Singleton that any tier can record into.
+ *
+ * Metric names are dot-separated, e.g. "ingest.covid.parse.items". Recording is thread-safe.
+ */
+public class Metrics {
+
+    private String fileOut;
+
+    private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+    private static final Metrics metricsInstance = new Metrics();
+
+    // private constructor
+    private Metrics() {}
+
+    // getters
+    public String getFileOut() {
+        return this.fileOut;
+    }
+
+    /**
+     * Returns Singleton instance of Metrics class
+     * @return metricsInstance
+     */
+    public static Metrics getInstance() {return metricsInstance;}
+
+    /**
+     * Method to set/change output file the metrics report is written to by write()
+     * @param fileName string representing name of file
+     */
+    public void setOutput(String fileName) {
+        this.fileOut = fileName;
+    }
+
+    /**
+     * Sets a metric to a value, replacing any previous value
+     */
+    public void set(String name, long value) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * Adds delta to a metric (metrics that were never set start at 0)
+     */
+    public void add(String name, long delta) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * @return current value of a metric, or 0 if it was never recorded
+     */
+    public long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * @return copy of all metrics, sorted by name
+     */
+    public TreeMap<String, Long> snapshot() {
+        TreeMap<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return all metrics as "name value" lines, sorted by name
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Appends a timestamped report of all metrics to the output file, if one has been set
+     * @throws IOException error creating, opening, or closing file
+     */
+    public void write() throws IOException {
+        if (fileOut == null) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileOut, true))) {
+            out.println(System.currentTimeMillis() + " metrics");
+            out.print(report());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package coviddatasystem.logging;
+
+import jdk.jfr.*;
+
+/**
+ * {@code ProcessorCallEvent} is a Java Flight Recorder event covering one call of a {@code Processor} action, including
+ * any wait for the datasets it needs.
+ */
+@Name("coviddatasystem.ProcessorCall")
+@Label("Processor Call")
+@Category({"COVID Data System", "Processor"})
+@Description("One Processor action, with its parameters and whether a cached result was used")
+public class ProcessorCallEvent extends Event {
+
+    @Label("Action")
+    @Description("Menu action number")
+    public int action;
+
+    @Label("Zip Code")
+    public String zipCode;
+
+    @Label("Date")
+    @Description("Date (YYYY-MM-DD) or ISO week (YYYY-Www)")
+    public String date;
+
+    @Label("Cache Hit")
+    @Description("Result was memoized or read from the on-disk cache")
+    public boolean cacheHit;
+
+    /**
+     * Commits the event if a recording has enabled it
+     * @param action menu action number
+     * @param zipCode zip code parameter, null if the action has none
+     * @param date date or week parameter, null if the action has none
+     * @param cacheHit true if a memoized or cached result was returned
+     */
+    public void commit(int action, String zipCode, String date, boolean cacheHit) {
+        if (shouldCommit()) {
+            this.action = action;
+            this.zipCode = zipCode;
+            this.date = date;
+            this.cacheHit = cacheHit;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package coviddatasystem.processor;
+
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.HeapDoubleColumn;
+import coviddatasystem.util.OffHeapDoubleColumn;
+
+/**
+ * {@code AggregationKernels} computes sum, count, min and max over primitive double columns. NaN values (unparseable
+ * property values, kept so the property columns stay row aligned) are skipped by every kernel.
+ *
+ * When the {@code jdk.incubator.vector} module is available (run with {@code --add-modules jdk.incubator.vector})
+ * and the {@code vector} source root was compiled (see the README), heap and off-heap columns are processed with SIMD
+ * kernels from {@code VectorKernels}; otherwise, or when the system property {@code coviddatasystem.vector=false} is
+ * set, the scalar loops in this class are used.
+ *
+ * Tolerance: count, min and max are exact. Vector sums add values in a different order than the scalar loop, so
+ * the two can differ by at most n * 2^-53 * (|x1| + ... + |xn|) for n values (the standard bound for reordered
+ * floating point summation). For the integer results of actions 4, 6 and 7 this can only change the answer when
+ * the exact value lies within that distance of a whole number.
+ */
+public final class AggregationKernels {
+
+    // SIMD kernels, or null when they are disabled or not available
+    private static final DoubleKernels VECTOR_KERNELS = loadVectorKernels();
+
+    private AggregationKernels() {}
+
+    /**
+     * @return true if SIMD kernels are used, false if using the scalar fallback
+     */
+    public static boolean isVectorized() {
+        return VECTOR_KERNELS != null;
+    }
+
+    /**
+     * @param column values to add
+     * @return sum of the values in the column that are not NaN, or 0 if there are none
+     */
+    public static double sum(DoubleColumn column) {
+        if (VECTOR_KERNELS != null) {
+            if (column instanceof HeapDoubleColumn) {
+                return VECTOR_KERNELS.sum(((HeapDoubleColumn) column).array(), column.size());
+            }
+            if (column instanceof OffHeapDoubleColumn) {
+                return VECTOR_KERNELS.sum(((OffHeapDoubleColumn) column).asByteBuffer(), column.size());
+            }
+        }
+        return scalarSum(column);
+    }
+
+    /**
+     * @param column values to count
+     * @return number of values in the column that are not NaN
+     */
+    public static int count(DoubleColumn column) {
+        if (VECTOR_KERNELS != null) {
+            if (column instanceof HeapDoubleColumn) {
+                return VECTOR_KERNELS.count(((HeapDoubleColumn) column).array(), column.size());
+            }
+            if (column instanceof OffHeapDoubleColumn) {
+                return VECTOR_KERNELS.count(((OffHeapDoubleColumn) column).asByteBuffer(), column.size());
+            }
+        }
+        return scalarCount(column);
+    }
+
+    /**
+     * @param column values to compare
+     * @return smallest value in the column that is not NaN, or NaN if there is none
+     */
+    public static double min(DoubleColumn column) {
+        double min;
+        if (VECTOR_KERNELS != null && column instanceof HeapDoubleColumn) {
+            min = VECTOR_KERNELS.min(((HeapDoubleColumn) column).array(), column.size());
+        } else if (VECTOR_KERNELS != null && column instanceof OffHeapDoubleColumn) {
+            min = VECTOR_KERNELS.min(((OffHeapDoubleColumn) column).asByteBuffer(), column.size());
+        } else {
+            min = scalarMin(column);
+        }
+        // the kernels start from positive infinity, which is only left when no value is smaller
+        return (min == Double.POSITIVE_INFINITY && count(column) == 0) ? Double.NaN : min;
+    }
+
+    /**
+     * @param column values to compare
+     * @return largest value in the column that is not NaN, or NaN if there is none
+     */
+    public static double max(DoubleColumn column) {
+        double max;
+        if (VECTOR_KERNELS != null && column instanceof HeapDoubleColumn) {
+            max = VECTOR_KERNELS.max(((HeapDoubleColumn) column).array(), column.size());
+        } else if (VECTOR_KERNELS != null && column instanceof OffHeapDoubleColumn) {
+            max = VECTOR_KERNELS.max(((OffHeapDoubleColumn) column).asByteBuffer(), column.size());
+        } else {
+            max = scalarMax(column);
+        }
+        return (max == Double.NEGATIVE_INFINITY && count(column) == 0) ? Double.NaN : max;
+    }
+
+    // VectorKernels is loaded by name, so this class compiles without the jdk.incubator.vector module
+    private static DoubleKernels loadVectorKernels() {
+        if ("false".equalsIgnoreCase(System.getProperty("coviddatasystem.vector"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (DoubleKernels) Class.forName("coviddatasystem.processor.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // vector source root not compiled
+            return null;
+        }
+    }
+
+    // SCALAR FALLBACKS (also used as the reference results for the vector kernels)
+
+    static double scalarSum(DoubleColumn column) {
+        double total = 0;
+        for (int i = 0; i < column.size(); i++) {
+            double value = column.get(i);
+            if (!Double.isNaN(value)) {
+                total += value;
+            }
+        }
+        return total;
+    }
+
+    static int scalarCount(DoubleColumn column) {
+        int count = 0;
+        for (int i = 0; i < column.size(); i++) {
+            if (!Double.isNaN(column.get(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static double scalarMin(DoubleColumn column) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < column.size(); i++) {
+            // NaN compares false, so it never replaces the minimum
+            double value = column.get(i);
+            if (value < min) {
+                min = value;
+            }
+        }
+        return min;
+    }
+
+    static double scalarMax(DoubleColumn column) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < column.size(); i++) {
+            double value = column.get(i);
+            if (value > max) {
+                max = value;
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,85 @@
+package coviddatasystem.processor;
+
+import java.util.Random;
+
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.HeapDoubleColumn;
+import coviddatasystem.util.OffHeapDoubleColumn;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class AggregationKernelsTest {
+    private static HeapDoubleColumn heapColumn = new HeapDoubleColumn();
+    private static OffHeapDoubleColumn offHeapColumn = new OffHeapDoubleColumn();
+    
+    @BeforeAll
+    static void setUpBeforeClass() {
+        // fill both columns with the same market-value-like data (odd size so vector tails are exercised)
+        Random random = new Random(7);
+        for (int i = 0; i < 100003; i++) {
+            double value = random.nextDouble() * 1000000;
+            heapColumn.add(value);
+            offHeapColumn.add(value);
+        }
+    }
+    
+    @AfterAll
+    static void tearDownAfterClass() {
+        heapColumn.close();
+        offHeapColumn.close();
+    }
+    
+    @Test
+    void testSumMatchesScalarWithinTolerance() {
+        double expected = AggregationKernels.scalarSum(heapColumn);
+        
+        // documented bound for reordered summation: n * 2^-53 * sum of |x|
+        double tolerance = heapColumn.size() * Math.ulp(1.0) / 2 * expected;
+        assertEquals(expected, AggregationKernels.sum(heapColumn), tolerance);
+        assertEquals(expected, AggregationKernels.sum(offHeapColumn), tolerance);
+    }
+    
+    @Test
+    void testCountMinMaxAreExact() {
+        for (DoubleColumn column : new DoubleColumn[]{heapColumn, offHeapColumn}) {
+            assertEquals(AggregationKernels.scalarCount(column), AggregationKernels.count(column));
+            assertEquals(AggregationKernels.scalarMin(column), AggregationKernels.min(column));
+            assertEquals(AggregationKernels.scalarMax(column), AggregationKernels.max(column));
+        }
+    }
+    
+    @Test
+    void testNaNValuesAreSkipped() {
+        // unparseable property values are stored as NaN, in vector lanes and in the tail
+        HeapDoubleColumn heap = new HeapDoubleColumn();
+        OffHeapDoubleColumn offHeap = new OffHeapDoubleColumn();
+        for (int i = 0; i < 1001; i++) {
+            double value = (i % 3 == 0) ? Double.NaN : i;
+            heap.add(value);
+            offHeap.add(value);
+        }
+        for (DoubleColumn column : new DoubleColumn[]{heap, offHeap}) {
+            assertEquals(667, AggregationKernels.count(column));
+            assertEquals(333667.0, AggregationKernels.sum(column));
+            assertEquals(1.0, AggregationKernels.min(column));
+            assertEquals(1000.0, AggregationKernels.max(column));
+        }
+        offHeap.close();
+
+        HeapDoubleColumn allNaN = new HeapDoubleColumn();
+        allNaN.add(Double.NaN);
+        assertEquals(0.0, AggregationKernels.sum(allNaN));
+        assertTrue(Double.isNaN(AggregationKernels.min(allNaN)));
+        assertTrue(Double.isNaN(AggregationKernels.max(allNaN)));
+    }
+
+    @Test
+    void testEmptyColumn() {
+        HeapDoubleColumn empty = new HeapDoubleColumn();
+        
+        assertEquals(0.0, AggregationKernels.sum(empty));
+        assertEquals(0, AggregationKernels.count(empty));
+        assertTrue(Double.isNaN(AggregationKernels.min(empty)));
+    }
+}
@@ -0,0 +1,27 @@
+package coviddatasystem.processor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sum, count, min and max over the first size values of a primitive double array or of a native-order byte buffer,
+ * skipping NaN values. Min and max start from positive and negative infinity, which they return when every value is NaN.
+ * {@code AggregationKernels} uses an implementation of this interface for its SIMD path (see {@code VectorKernels}).
+ */
+interface DoubleKernels {
+
+    double sum(double[] values, int size);
+
+    double sum(ByteBuffer buffer, int size);
+
+    int count(double[] values, int size);
+
+    int count(ByteBuffer buffer, int size);
+
+    double min(double[] values, int size);
+
+    double min(ByteBuffer buffer, int size);
+
+    double max(double[] values, int size);
+
+    double max(ByteBuffer buffer, int size);
+}
@@ -0,0 +1,281 @@
+package coviddatasystem.processor;
+
+import java.util.*;
+
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.QuantileSketch;
+import coviddatasystem.util.ValueRangeIndex;
+import coviddatasystem.util.ZipCode;
+
+/**
+ * {@code FootprintReport} estimates how many bytes the loaded {@code ZipCode} model retains, per zip code and per
+ * structure (covid entries, timestamps, daily and weekly rollups, property columns and their value-range indexes,
+ * quantile sketches and {@code Processor} caches).
+ *
+ * Sizes are computed from element counts and array capacities using the object layout of a 64-bit HotSpot JVM with
+ * compressed references (12-byte object headers, 4-byte references, 8-byte alignment), so a report costs one pass
+ * over the zip codes and never walks individual covid entries or property values. Values are estimates: shared
+ * objects (e.g. cached small {@code Integer}s) are counted once per reference.
+ */
+public class FootprintReport {
+
+    // structures reported, in report order
+    public static final String ZIP_CODE_OBJECTS = "zipCodeObjects";
+    public static final String COVID_ENTRIES = "covidEntries";
+    public static final String TIMESTAMPS = "timestamps";
+    public static final String COVID_ROLLUPS = "covidRollups";
+    public static final String PROPERTY_COLUMNS_HEAP = "propertyColumnsHeap";
+    public static final String PROPERTY_COLUMNS_OFF_HEAP = "propertyColumnsOffHeap";
+    public static final String PROPERTY_INDEXES_HEAP = "propertyIndexesHeap";
+    public static final String PROPERTY_INDEXES_OFF_HEAP = "propertyIndexesOffHeap";
+    public static final String QUANTILE_SKETCHES = "quantileSketches";
+    public static final String ZIP_CODE_MAP = "zipCodeMap";
+    public static final String PROCESSOR_CACHES = "processorCaches";
+
+    // object layout (64-bit JVM, compressed references)
+    static final int HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+    static final int BOXED = 16;
+    static final int TREE_MAP = 48;
+    static final int TREE_MAP_ENTRY = 40;
+    static final int HASH_MAP = 48;
+    static final int HASH_MAP_NODE = 32;
+    static final int STRING = 24;
+
+    // length of a covid timestamp "YYYY-MM-DD hh:mm:ss" (stored as a Latin-1 String)
+    static final int TIMESTAMP_LENGTH = 19;
+
+    // length of rollup keys "YYYY-MM-DD" and "YYYY-Www"
+    static final int DATE_LENGTH = 10;
+    static final int WEEK_LENGTH = 8;
+
+    // number of covid metrics per timestamp entry
+    static final int COVID_METRICS = 7;
+
+    private final Map<String, Long> structureBytes = new LinkedHashMap<>();
+
+    private final TreeMap<Integer, Long> zipCodeBytes = new TreeMap<>();
+
+    private FootprintReport() {
+        for (String structure : new String[]{ZIP_CODE_OBJECTS, COVID_ENTRIES, TIMESTAMPS, COVID_ROLLUPS,
+                PROPERTY_COLUMNS_HEAP, PROPERTY_COLUMNS_OFF_HEAP, PROPERTY_INDEXES_HEAP, PROPERTY_INDEXES_OFF_HEAP,
+                QUANTILE_SKETCHES, ZIP_CODE_MAP,
+                PROCESSOR_CACHES}) {
+            structureBytes.put(structure, 0L);
+        }
+    }
+
+    /**
+     * Estimates footprint of a zip code map and the result caches of a processor
+     * @param zipCodes map mapping zip code values to ZipCode objects
+     * @param processorCaches result caches held by Processor (maps of maps are counted recursively)
+     * @return report of estimated retained bytes
+     */
+    public static FootprintReport estimate(Map<Integer, ZipCode> zipCodes, Collection<?> processorCaches) {
+        FootprintReport report = new FootprintReport();
+
+        // map holding the zip codes (assumed TreeMap) with boxed Integer keys
+        report.add(ZIP_CODE_MAP, TREE_MAP + (long) zipCodes.size() * (TREE_MAP_ENTRY + BOXED));
+
+        for (Map.Entry<Integer, ZipCode> entry : zipCodes.entrySet()) {
+            report.addZipCode(entry.getKey(), entry.getValue());
+        }
+
+        long cacheBytes = 0;
+        for (Object cache : processorCaches) {
+            cacheBytes += cacheBytes(cache);
+        }
+        report.add(PROCESSOR_CACHES, cacheBytes);
+        return report;
+    }
+
+    /**
+     * Rebuilds a report from its totals, e.g. a report estimated by a worker process
+     * @param structureBytes estimated bytes of each structure
+     * @param zipCodeBytes estimated bytes retained by each zip code
+     * @return report with the given totals
+     */
+    public static FootprintReport of(Map<String, Long> structureBytes, Map<Integer, Long> zipCodeBytes) {
+        FootprintReport report = new FootprintReport();
+        for (Map.Entry<String, Long> entry : structureBytes.entrySet()) {
+            report.add(entry.getKey(), entry.getValue());
+        }
+        report.zipCodeBytes.putAll(zipCodeBytes);
+        return report;
+    }
+
+    /**
+     * Adds up reports over disjoint zip codes (e.g. one per worker process), structure by structure
+     * @param reports reports to add up
+     * @return combined report
+     */
+    public static FootprintReport merge(List<FootprintReport> reports) {
+        FootprintReport merged = new FootprintReport();
+        for (FootprintReport report : reports) {
+            for (Map.Entry<String, Long> entry : report.structureBytes.entrySet()) {
+                merged.add(entry.getKey(), entry.getValue());
+            }
+            merged.zipCodeBytes.putAll(report.zipCodeBytes);
+        }
+        return merged;
+    }
+
+    // add estimates for a single ZipCode object and everything it references
+    private void addZipCode(Integer zip, ZipCode zipCode) {
+        long total = 0;
+
+        // ZipCode object (10 references) with boxed zip code, population and total properties
+        total += add(ZIP_CODE_OBJECTS, align(HEADER + 10 * REFERENCE) + 3 * BOXED);
+
+        // covidDataAsOfTime: one TreeMap entry per timestamp, each holding a Double[7] of boxed Doubles
+        long entries = zipCode.getCovidDataAsOfTime().size();
+        long covidEntry = TREE_MAP_ENTRY + align(ARRAY_HEADER + COVID_METRICS * REFERENCE) + COVID_METRICS * BOXED;
+        total += add(COVID_ENTRIES, TREE_MAP + entries * covidEntry);
+
+        // one String key per timestamp entry
+        total += add(TIMESTAMPS, entries * (STRING + align(ARRAY_HEADER + TIMESTAMP_LENGTH)));
+
+        // daily and weekly rollups: TreeMap entries with date or week String keys, sharing the snapshot arrays
+        long days = zipCode.getDailyCovidData().size();
+        long weeks = zipCode.getWeeklyCovidData().size();
+        total += add(COVID_ROLLUPS, 2 * TREE_MAP + days * (TREE_MAP_ENTRY + STRING + align(ARRAY_HEADER + DATE_LENGTH))
+                + weeks * (TREE_MAP_ENTRY + STRING + align(ARRAY_HEADER + WEEK_LENGTH)));
+
+        // property columns (column object on heap, values on or off heap)
+        for (DoubleColumn column : new DoubleColumn[]{zipCode.peekPropertiesMarketValueColumn(),
+                zipCode.peekPropertiesLivableAreaColumn()}) {
+            if (column == null) {
+                continue;
+            }
+            long values = (long) column.capacity() * Double.BYTES;
+            if (column.isOffHeap()) {
+                // column object plus its ByteBuffer object on heap, values in native memory
+                total += add(PROPERTY_COLUMNS_HEAP, align(HEADER + 2 * REFERENCE) + 64);
+                add(PROPERTY_COLUMNS_OFF_HEAP, values);
+            } else {
+                total += add(PROPERTY_COLUMNS_HEAP, align(HEADER + REFERENCE + 4) + align(ARRAY_HEADER + values));
+            }
+        }
+
+        // value-range indexes: index object and its sorted values and prefix sums columns (on or off heap)
+        for (ValueRangeIndex index : new ValueRangeIndex[]{zipCode.peekMarketValueIndex(),
+                zipCode.peekLivableAreaIndex()}) {
+            if (index == null) {
+                continue;
+            }
+            total += add(PROPERTY_INDEXES_HEAP, align(HEADER + 2 * REFERENCE));
+            for (DoubleColumn column : index.getColumns()) {
+                long values = (long) column.capacity() * Double.BYTES;
+                if (column.isOffHeap()) {
+                    total += add(PROPERTY_INDEXES_HEAP, align(HEADER + 2 * REFERENCE) + 64);
+                    add(PROPERTY_INDEXES_OFF_HEAP, values);
+                } else {
+                    total += add(PROPERTY_INDEXES_HEAP, align(HEADER + REFERENCE + 4) + align(ARRAY_HEADER + values));
+                }
+            }
+        }
+
+        // quantile sketches: sketch object, level arrays and bookkeeping arrays
+        for (QuantileSketch sketch : new QuantileSketch[]{zipCode.peekMarketValueSketch(),
+                zipCode.peekLivableAreaSketch()}) {
+            if (sketch == null) {
+                continue;
+            }
+            int levels = sketch.getNumLevels();
+            long bytes = align(HEADER + 48) + align(ARRAY_HEADER + (long) levels * REFERENCE)
+                    + align(ARRAY_HEADER + (long) levels * Integer.BYTES)
+                    + levels * ARRAY_HEADER + (long) sketch.getAllocatedItems() * Double.BYTES;
+            total += add(QUANTILE_SKETCHES, bytes);
+        }
+
+        zipCodeBytes.put(zip, total);
+    }
+
+    // estimated bytes of a cache: a map (of boxed keys/values, or nested maps) or a boxed value
+    private static long cacheBytes(Object cache) {
+        if (cache == null) {
+            return 0;
+        }
+        if (cache instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) cache;
+            boolean tree = cache instanceof TreeMap;
+            long bytes = tree ? TREE_MAP : HASH_MAP + align(ARRAY_HEADER + (long) tableSize(map.size()) * REFERENCE);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                bytes += (tree ? TREE_MAP_ENTRY : HASH_MAP_NODE) + cacheBytes(entry.getKey())
+                        + cacheBytes(entry.getValue());
+            }
+            return bytes;
+        }
+        if (cache instanceof String) {
+            return STRING + align(ARRAY_HEADER + ((String) cache).length());
+        }
+        return BOXED;
+    }
+
+    // HashMap table length for a given size with default load factor
+    private static int tableSize(int size) {
+        int table = 16;
+        while (table * 0.75 < size) {
+            table *= 2;
+        }
+        return table;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private long add(String structure, long bytes) {
+        structureBytes.merge(structure, bytes, Long::sum);
+        return bytes;
+    }
+
+    /**
+     * @return estimated bytes of each structure, in report order
+     */
+    public Map<String, Long> getStructureBytes() {
+        return Collections.unmodifiableMap(structureBytes);
+    }
+
+    /**
+     * @return estimated bytes retained by each zip code (ZipCode object and everything it references)
+     */
+    public TreeMap<Integer, Long> getZipCodeBytes() {
+        return zipCodeBytes;
+    }
+
+    /**
+     * @return estimated Java heap bytes of all structures (excluding off-heap property and index values)
+     */
+    public long getTotalHeapBytes() {
+        long total = 0;
+        for (Map.Entry<String, Long> entry : structureBytes.entrySet()) {
+            if (!entry.getKey().equals(PROPERTY_COLUMNS_OFF_HEAP) && !entry.getKey().equals(PROPERTY_INDEXES_OFF_HEAP)) {
+                total += entry.getValue();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return estimated native memory bytes of off-heap property columns and their indexes
+     */
+    public long getTotalOffHeapBytes() {
+        return structureBytes.get(PROPERTY_COLUMNS_OFF_HEAP) + structureBytes.get(PROPERTY_INDEXES_OFF_HEAP);
+    }
+
+    /**
+     * Records structure totals in the metrics registry as "footprint.&lt;structure&gt;.bytes"
+     * @param metrics Singleton instance of Metrics
+     */
+    public void record(Metrics metrics) {
+        for (Map.Entry<String, Long> entry : structureBytes.entrySet()) {
+            metrics.set("footprint." + entry.getKey() + ".bytes", entry.getValue());
+        }
+        metrics.set("footprint.totalHeap.bytes", getTotalHeapBytes());
+        metrics.set("footprint.totalOffHeap.bytes", getTotalOffHeapBytes());
+        metrics.set("footprint.zipCodes", zipCodeBytes.size());
+    }
+}
@@ -1,24 +1,46 @@
 package coviddatasystem.processor;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
+import coviddatasystem.datamanagement.DatasetLoader;
+import coviddatasystem.datamanagement.DatasetLoader.Dataset;
+import coviddatasystem.datamanagement.DatasetVersion;
+import coviddatasystem.datamanagement.IngestProgress;
 import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.logging.ProcessorCallEvent;
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.HeapDoubleColumn;
+import coviddatasystem.util.QuantileSketch;
 import coviddatasystem.util.ZipCode;
 
 public class Processor {
-    private Map<Integer, ZipCode> zipCodes;
-
     private Logger logger;
     
-    // record calculated results in instance vars to avoid repeated calculations (memoization)
-    private Integer totalPopulation;
-    private TreeMap<Integer, Double> partialVacsPerCapita = new TreeMap<>();
-    private TreeMap<Integer, Double> fullVacsPerCapita = new TreeMap<>();
-
-    private Map<Integer, Integer> averageMarketValueMap = new HashMap<>();
-    private Map<Integer, Integer> averageLivableAreaMap = new HashMap<>();
-    private Map<Integer, Integer> marketValuePerCapitaMap = new HashMap<>();
-    private Map<Integer, Integer> livableAreaPerCapitaMap = new HashMap<>();
+    // record calculated results to avoid repeated calculations (memoization), for the current generation of the
+    // datasets: a reload starts a new generation with empty memos
+    private final AtomicReference<Memos> memos = new AtomicReference<>(new Memos(0));
+
+    // compiled queries by query text, so a query is parsed and planned once however often it is run
+    private Map<String, Query> compiledQueries = new ConcurrentHashMap<>();
+
+    // optional on-disk cache shared by processes run over the same input files (null if not used)
+    private QueryCache queryCache;
+
+    // loads datasets in the background, null if zipCodes was fully loaded before constructing the processor
+    private DatasetLoader loader;
+
+    // version wrapping a zip code map fully loaded before constructing the processor, null if loader is used
+    private DatasetVersion fixedVersion;
+
+    // partial datasets read by each thread's actions since its last takeProgress() (progressive loading only)
+    private final ThreadLocal<Map<Dataset, IngestProgress>> progress =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Dataset.class));
     
 
     /**
@@ -27,27 +49,120 @@ public class Processor {
      * @param logger Singleton instance of logger
      */
     public Processor(Map<Integer, ZipCode> zipCodes, Logger logger) {
-        this.zipCodes = zipCodes;
+        this.fixedVersion = DatasetVersion.of(zipCodes);
+        this.logger = logger;
+    }
+
+    /**
+     * Constructs Processor object over datasets that are still loading in the background. Each action waits only for
+     * the datasets it needs, the first time it needs them.
+     * @param loader loader of covid, population and properties datasets
+     * @param logger Singleton instance of logger
+     */
+    public Processor(DatasetLoader loader, Logger logger) {
+        this.loader = loader;
         this.logger = logger;
     }
+
+    // wait for datasets needed by an action to be loaded and merged, and acquire the version holding them
+    // (callers release it once done, reloads published meanwhile do not change it)
+    private DatasetVersion acquire(Dataset... datasets) {
+        if (loader != null) {
+            DatasetVersion version = loader.acquire(datasets);
+            if (version.isPartial()) {
+                for (Dataset dataset : datasets) {
+                    IngestProgress datasetProgress = version.getProgress().get(dataset);
+                    if (datasetProgress != null) {
+                        progress.get().put(dataset, datasetProgress);
+                    }
+                }
+            }
+            return version;
+        }
+        fixedVersion.acquire();
+        return fixedVersion;
+    }
+
+    // current version without acquiring it, to look up memos before waiting for any dataset
+    private DatasetVersion currentVersion() {
+        return (loader != null) ? loader.getCurrentVersion() : fixedVersion;
+    }
+
+    // memos of a version's generation; results of an older generation (an action that started before a reload) or of
+    // a version holding partial datasets are computed into memos that are not kept
+    private Memos memosOf(DatasetVersion version) {
+        if (version.isPartial()) {
+            return new Memos(version.getGeneration());
+        }
+        while (true) {
+            Memos current = memos.get();
+            if (current.generation == version.getGeneration()) {
+                return current;
+            }
+            if (current.generation > version.getGeneration()) {
+                return new Memos(version.getGeneration());
+            }
+            Memos next = new Memos(version.getGeneration());
+            if (memos.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // on-disk cache holds results of the input files as first loaded, so it is not used once a dataset is reloaded
+    // (or while a dataset is partial)
+    private QueryCache queryCacheOf(DatasetVersion version) {
+        return (version.getGeneration() == 0 && !version.isPartial()) ? queryCache : null;
+    }
+
+    /**
+     * Returns and clears the partial datasets read by the actions the calling thread ran since its last call, so
+     * results computed while datasets are still loading progressively can be marked as approximate
+     * @return how much input each partial dataset held when it was last read, empty if every result was exact
+     */
+    public Map<Dataset, IngestProgress> takeProgress() {
+        Map<Dataset, IngestProgress> taken = progress.get();
+        progress.remove();
+        return taken;
+    }
+
+    /**
+     * Sets on-disk cache used to persist results of heavy actions (3 and 7) across processes
+     * @param queryCache cache keyed by fingerprint of the input files this processor was loaded from
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
     
     //action 2 - calculate total population of all valid zip codes
     public Integer getTotalPopulation() {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
         // if totalPopulation hasn't been calculated (this.totalPopulation == null), perform calculation and update
         // instance var
-        if (this.totalPopulation == null) {
-            Integer popSum = 0;
-   
-            // iterate over map to update sum
-            for (Map.Entry<Integer, ZipCode> entry : zipCodes.entrySet()) {
-                // retrieve ZipCode object associated with each zip code and its population, then update popSum
-                popSum += entry.getValue().getPopulation();
-            }
+        Integer totalPopulation = memosOf(currentVersion()).totalPopulation;
+        boolean cacheHit = totalPopulation != null;
+        if (!cacheHit) {
+            DatasetVersion version = acquire(Dataset.POPULATION);
+            try {
+                // sum populations of each shard in parallel, then add up shard sums
+                Integer popSum = version.getRegionPartitions().parallelStream().mapToInt(regions -> {
+                    int shardSum = 0;
+                    for (ZipCode zipCode : regions) {
+                        shardSum += zipCode.getPopulation();
+                    }
+                    return shardSum;
+                }).sum();
 
-            this.totalPopulation = popSum;
+                totalPopulation = popSum;
+                memosOf(version).totalPopulation = totalPopulation;
+            } finally {
+                version.release();
+            }
         }
+        event.commit(2, null, null, cacheHit);
         // return value of instance var
-        return this.totalPopulation;
+        return totalPopulation;
     }
     
     //action 3
@@ -58,137 +173,205 @@ public class Processor {
      * @return treeMap mapping zip codes to partial or total vaccinations
      */
     public TreeMap<Integer, Double> getVaccinationsPerCapita(String date, Boolean partialOrTotal) {
+        return getVaccinationsPerCapita(3, date, partialOrTotal, ZipCode::getDailyCovidData);
+    }
+
+    //action 13
+    /**
+     * Retrieves either partial or total vaccinations per capita for each valid zip code as of the end of an ISO week
+     * @param week String representing ISO week (YYYY-Www)
+     * @param partialOrTotal boolean is true if wanting to show partial vacs, false if wanting to show total vacs
+     * @return treeMap mapping zip codes to partial or total vaccinations
+     */
+    public TreeMap<Integer, Double> getWeeklyVaccinationsPerCapita(String week, Boolean partialOrTotal) {
+        return getVaccinationsPerCapita(13, week, partialOrTotal, ZipCode::getWeeklyCovidData);
+    }
+
+    // vacs per capita of every zip code for a day or week, read from the matching rollup of each zip code
+    private TreeMap<Integer, Double> getVaccinationsPerCapita(int action, String period, Boolean partialOrTotal,
+                                                              Function<ZipCode, NavigableMap<String, Double[]>> rollup) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        // results are memoized per period (dates and weeks never collide), separately for partial and full vacs
+        DatasetVersion current = currentVersion();
+        Memos memos = memosOf(current);
         
-        if ((!partialOrTotal) && !partialVacsPerCapita.isEmpty()) {
-            // if partial vacs has already been determined before, return map (memoization)
-            return this.partialVacsPerCapita;
-        }
-        
-        if ((!partialOrTotal) && !fullVacsPerCapita.isEmpty()) {
-            // if partial vacs has already been determined before, return map (memoization)
-            return this.fullVacsPerCapita;
+        TreeMap<Integer, Double> vacsPerCapita = memos.vacsPerCapita(partialOrTotal).get(period);
+        if (vacsPerCapita != null) {
+            // if vacs for this period have already been determined before, return map (memoization)
+            event.commit(action, null, period, true);
+            return vacsPerCapita;
         }
         
+        // check on-disk cache of previous processes before computing
+        String cacheKey = "action3-" + period + (partialOrTotal ? "-partial" : "-full");
+        QueryCache cache = queryCacheOf(current);
+        vacsPerCapita = (cache != null) ? cache.getMap(cacheKey) : null;
+        boolean cacheHit = vacsPerCapita != null;
         
-        // iterate through map of valid zip codes
-        for (Map.Entry<Integer, ZipCode> entry : zipCodes.entrySet()) {
-            // retrieve zipCode object
-            ZipCode zipCodeObj = entry.getValue();
-            
-            // retrieve map mapping timestamps to covid data for zip code
-            Map<String, Double[]> covidDataAtTime = zipCodeObj.getCovidDataAsOfTime();
-            
-            // if total pop for zip code is 0 or unknown, ignore it and skip to next iteration
-            if (zipCodeObj.getPopulation() == 0) {
-                continue;
-            }
-            
-            // store matching timestamp entry
-            Map.Entry<String, Double[]> matchingEntry = null;
-            
-            // iterate through timestamp records for the zip code
-            for (Map.Entry<String, Double[]> timeStampEntry : covidDataAtTime.entrySet()) {
-                
-                // retrieve only date portion of entry's timestamp (YYYY-MM-DD)
-                String entryTimeStamp = timeStampEntry.getKey().substring(0, 10);
+        if (!cacheHit) {
+            DatasetVersion version = acquire(Dataset.COVID, Dataset.POPULATION);
+            try {
+                // evaluate all zip codes in parallel
+                vacsPerCapita = evaluateAllRegions(version, zipCode ->
+                        calculateVaccinationsPerCapita(zipCode, period, partialOrTotal, rollup));
                 
-                if (entryTimeStamp.equals(date)) {
-                    // if entry's date matches input date, record as matchingEntry
-                    matchingEntry = timeStampEntry;
-                    break;
-                }
-            }
-            
-            if (partialOrTotal) {
-                // if matching entry not found after iteration, total partial vacs should be set to 0
-                if (matchingEntry == null) {
-                    this.partialVacsPerCapita.put(zipCodeObj.getZipCode(), 0.0000);
-                    // continue to next iteration of zip code for loop
-                    continue;
+                memos = memosOf(version);
+                cache = queryCacheOf(version);
+                if (cache != null) {
+                    cache.putMap(cacheKey, vacsPerCapita);
                 }
-                // otherwise, calculate partial vacs per capita
-                Double partialVacsPerCapita = matchingEntry.getValue()[0] / zipCodeObj.getPopulation();
-                this.partialVacsPerCapita.put(zipCodeObj.getZipCode(), partialVacsPerCapita);
-            } else {
-                // if matching entry is not updated after iteration, total full vacs should be set to 0
-                if (matchingEntry == null) {
-                    this.fullVacsPerCapita.put(zipCodeObj.getZipCode(), 0.0000);
-                    // continue to next iteration of zip code for loop
-                    continue;
-                }
-                // otherwise, calculate full vacs per capita
-                Double totalVacsPerCapita = matchingEntry.getValue()[1] / zipCodeObj.getPopulation();
-                this.fullVacsPerCapita.put(zipCodeObj.getZipCode(), totalVacsPerCapita);
+            } finally {
+                version.release();
             }
         }
-       
-        // after checking all zip codes, return updated vacs per capita values
-        if (partialOrTotal) {
-            return this.partialVacsPerCapita;
-        } else {
-            return this.fullVacsPerCapita;
+        
+        memos.vacsPerCapita(partialOrTotal).put(period, vacsPerCapita);
+        event.commit(action, null, period, cacheHit);
+        return vacsPerCapita;
+    }
+    
+    //helper method for action 3 and 13, calculates partial or total vacs per capita of one zip code (null if skipped)
+    private Double calculateVaccinationsPerCapita(ZipCode zipCodeObj, String period, Boolean partialOrTotal,
+                                                  Function<ZipCode, NavigableMap<String, Double[]>> rollup) {
+        // if total pop for zip code is 0 or unknown, ignore it
+        if (zipCodeObj.getPopulation() == 0) {
+            return null;
+        }
+        
+        // last snapshot of the day or week, looked up in the rollup instead of scanning every timestamp
+        Double[] snapshot = rollup.apply(zipCodeObj).get(period);
+        
+        // if there is no snapshot for the period, vacs per capita should be set to 0
+        if (snapshot == null) {
+            return 0.0000;
+        }
+        
+        // otherwise, calculate partial (index 0) or full (index 1) vacs per capita
+        int vacsIndex = partialOrTotal ? 0 : 1;
+        return snapshot[vacsIndex] / zipCodeObj.getPopulation();
+    }
+    
+    /**
+     * Evaluates a per-zip calculation for every zip code on the fork-join pool and merges per-task results. Each shard
+     * of a sharded store is evaluated by its own task (which splits further), and shard results are merged.
+     * @param version acquired version to evaluate
+     * @param calculation returns result for a zip code, or null to leave the zip code out
+     * @return map sorted by zip code, identical to the result of a serial loop
+     */
+    private TreeMap<Integer, Double> evaluateAllRegions(DatasetVersion version, Function<ZipCode, Double> calculation) {
+        List<ZipCode[]> partitions = version.getRegionPartitions();
+        if (partitions.size() == 1) {
+            ZipCode[] regions = partitions.get(0);
+            return ForkJoinPool.commonPool().invoke(new RegionTask(regions, 0, regions.length, calculation));
+        }
+
+        // fan out one task per shard, then merge shard results (keys of different shards never collide)
+        List<RegionTask> tasks = new ArrayList<>(partitions.size());
+        for (ZipCode[] regions : partitions) {
+            RegionTask task = new RegionTask(regions, 0, regions.length, calculation);
+            ForkJoinPool.commonPool().execute(task);
+            tasks.add(task);
+        }
+        TreeMap<Integer, Double> merged = new TreeMap<>();
+        for (RegionTask task : tasks) {
+            merged.putAll(task.join());
         }
+        return merged;
+    }
+
+    /**
+     * Ranks zip codes by a per-zip calculation, selecting the best k of each shard in parallel and merging the
+     * per-shard selections
+     * @param version acquired version to rank
+     * @param calculation returns value for a zip code, or null to leave the zip code out
+     * @param k number of zip codes to return
+     * @param highest true for the highest values, false for the lowest
+     * @return map mapping zip codes to values, in rank order
+     */
+    private LinkedHashMap<Integer, Double> rankAllRegions(DatasetVersion version, Function<ZipCode, Double> calculation,
+                                                          int k, boolean highest) {
+        TopKSelector selector = version.getRegionPartitions().parallelStream().map(regions -> {
+            TopKSelector shardSelector = new TopKSelector(k, highest);
+            for (ZipCode zipCode : regions) {
+                Double value = calculation.apply(zipCode);
+                if (value != null) {
+                    shardSelector.offer(zipCode.getZipCode(), value);
+                }
+            }
+            return shardSelector;
+        }).reduce((first, second) -> {
+            first.merge(second);
+            return first;
+        }).orElse(new TopKSelector(k, highest));
+        return selector.toRankedMap();
     }
 
     //helper method to calculate averages for action 4 and 5 (implements Strategy design pattern)
-    public Integer calculateAverageMethod (ArrayList<Double> doublesList) {
-        if (doublesList.isEmpty()) {
+    public Integer calculateAverageMethod (DoubleColumn doublesColumn) {
+        // unparseable values are stored as NaN, so only the other values are counted
+        int count = AggregationKernels.count(doublesColumn);
+        if (count == 0) {
             return 0;
         }
-        int count = 0;
-        double total = 0;
-        for (Double value: doublesList) {
-            count++;
-            total += value;
-        }
+        // sum values in place (no copy) with SIMD kernels, whether column is stored on or off heap
+        double total = AggregationKernels.sum(doublesColumn);
         return (int) total/count;
     }
 
-    //helper method to retrieve doubles list for calculating average
-    public ArrayList<Double> getDoublesList(String inputZip, Integer actionNumber) {
+    //helper method to retrieve doubles column for calculating average (a reload may close the column once replaced,
+    //so only read it while holding the version)
+    private DoubleColumn getDoublesColumn(DatasetVersion version, String inputZip, Integer actionNumber) {
             // parse input zipCode to integer
             Integer inputZipNum = Integer.parseInt(inputZip);
             
             // retrieve ZipCode object from zipCodes map
-            ZipCode zipCode = zipCodes.get(inputZipNum);
+            ZipCode zipCode = version.getZipCodes().get(inputZipNum);
             
             if (zipCode != null) {
-                // if zipCode exists in map, retrieve specified list
+                // if zipCode exists in map, retrieve specified column
                 if (actionNumber == 4 || actionNumber == 6) {
-                    return zipCode.getPropertiesMarketValueList();
+                    return zipCode.getPropertiesMarketValueColumn();
                 }
                 if (actionNumber == 5 || actionNumber == 7) {
-                    return zipCode.getPropertiesLivableAreaList();
+                    return zipCode.getPropertiesLivableAreaColumn();
                 }
 
             }
-        // otherwise, return empty list     
-        return new ArrayList<>();
+        // otherwise, return empty column
+        return new HeapDoubleColumn();
     }
 
     //action 6 and 7
-    public Integer calculateTotalValuePerCapita(ArrayList<Double> doublesList, Integer population) {
+    public Integer calculateTotalValuePerCapita(DoubleColumn doublesColumn, Integer population) {
 
-        //check if list is empty or population is 0, return 0
-        if (doublesList.isEmpty() || population == 0) {
+        //check if column is empty or population is 0, return 0
+        if (doublesColumn.isEmpty() || population == 0) {
             return 0;
         }
 
-        //loop over doubles list and calculate total value per capita
-        double totalValue = 0;
-        for (Double value: doublesList) {
-            totalValue += value;
-        }
+        //sum doubles column and calculate total value per capita
+        double totalValue = AggregationKernels.sum(doublesColumn);
         return (int) (totalValue/population);
     }
     
     //retrieve population from given inputZip
     public Integer getZipCodePopulation(String inputZip) {
+        DatasetVersion version = acquire(Dataset.POPULATION);
+        try {
+            return getZipCodePopulation(version, inputZip);
+        } finally {
+            version.release();
+        }
+    }
+
+    private Integer getZipCodePopulation(DatasetVersion version, String inputZip) {
         // parse inputZip to integer
         Integer inputZipNum = Integer.parseInt(inputZip);
         
-        if (zipCodes.containsKey(inputZipNum)) {
-            return zipCodes.get(inputZipNum).getPopulation();
+        ZipCode zipCode = version.getZipCodes().get(inputZipNum);
+        if (zipCode != null) {
+            return zipCode.getPopulation();
         } else {
             return 0;
         }
@@ -196,60 +379,219 @@ public class Processor {
 
     /**
      * Retrieve Map of zipCode and its ZipCode Object
-     * @return
+     * @return zip codes of the current dataset version (not changed by later merges or reloads)
      */
     public Map<Integer, ZipCode> getZipCodes() {
-        return zipCodes;
+        return currentVersion().getZipCodes();
     }
 
     //helper method for getting average value
     public Integer getAverage(String inputZip, Map<Integer, Integer> averageMap, Integer actionNumber) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
 
         //parse input string to integer, check if map already contains input zip as key, retrieve value
         int zip = Integer.parseInt(inputZip);
-        if (averageMap.containsKey(zip)) {
-            return averageMap.get(zip);
+        Integer average = averageMap.get(zip);
+        if (average != null) {
+            event.commit(actionNumber, inputZip, null, true);
+            return average;
         } else {
             //otherwise, calculate average and put key: zip value: average pair in map
-            ArrayList<Double> list = this.getDoublesList(inputZip, actionNumber);
-            int result = this.calculateAverageMethod(list);
-            averageMap.put(zip, result);
-            return result;
+            DatasetVersion version = acquire(Dataset.PROPERTIES);
+            try {
+                DoubleColumn column = this.getDoublesColumn(version, inputZip, actionNumber);
+                int result = this.calculateAverageMethod(column);
+                // the map belongs to the memos of the version current before acquiring, which may be older
+                if (!version.isPartial()) {
+                    averageMap.put(zip, result);
+                }
+                event.commit(actionNumber, inputZip, null, false);
+                return result;
+            } finally {
+                version.release();
+            }
         }
     }
 
     //action 4 get AverageMarketValue method
     public Integer getAverageMarketValue(String inputZip) {
-        return getAverage(inputZip, averageMarketValueMap, 4);
+        return getAverage(inputZip, memosOf(currentVersion()).averageMarketValueMap, 4);
     }
 
     //action 5 get AverageLivableArea method
     public Integer getAverageLivableArea(String inputZip) {
-        return getAverage(inputZip, averageLivableAreaMap, 5);
+        return getAverage(inputZip, memosOf(currentVersion()).averageLivableAreaMap, 5);
     }
 
     //helper method for getting total value per capita
     public Integer getTotalValuePerCapita(String inputZip, Map<Integer, Integer> valuePerCapitaMap, Integer actionNumber) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
 
         //parse input string to integer, check if map already contains input zip as key, retrieve value
         int zip = Integer.parseInt(inputZip);
-        if (valuePerCapitaMap.containsKey(zip)) {
-            return valuePerCapitaMap.get(zip);
+        Integer valuePerCapita = valuePerCapitaMap.get(zip);
+        if (valuePerCapita != null) {
+            event.commit(actionNumber, inputZip, null, true);
+            return valuePerCapita;
         }
 
         // otherwise, calculate total value per capita and put key: zip value: average pair in map
         else {
-            ArrayList<Double> list = this.getDoublesList(inputZip, actionNumber);
-            Integer population = this.getZipCodePopulation(inputZip);
-            int result = this.calculateTotalValuePerCapita(list, population);
-            valuePerCapitaMap.put(zip, result);
-            return result;
+            DatasetVersion version = acquire(Dataset.POPULATION, Dataset.PROPERTIES);
+            try {
+                DoubleColumn column = this.getDoublesColumn(version, inputZip, actionNumber);
+                Integer population = this.getZipCodePopulation(version, inputZip);
+                int result = this.calculateTotalValuePerCapita(column, population);
+                if (!version.isPartial()) {
+                    valuePerCapitaMap.put(zip, result);
+                }
+                event.commit(actionNumber, inputZip, null, false);
+                return result;
+            } finally {
+                version.release();
+            }
         }
     }
 
     //action 6 get MarketValuePerCapita method
     public Integer getMarketValuePerCapita(String inputZip) {
-        return getTotalValuePerCapita(inputZip, marketValuePerCapitaMap, 6);
+        return getTotalValuePerCapita(inputZip, memosOf(currentVersion()).marketValuePerCapitaMap, 6);
+    }
+
+    //bulk variants of actions 4, 5 and 6 for many zip codes at once
+    /**
+     * Retrieves every zip code of the datasets, e.g. to pass to the bulk methods below
+     * @return zip code values in ascending order
+     */
+    public int[] getAllZipCodes() {
+        DatasetVersion version = acquire(Dataset.values());
+        try {
+            return version.getZipCodes().keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        } finally {
+            version.release();
+        }
+    }
+
+    /**
+     * Calculates average market value (action 4) of many zip codes in one pass over a single dataset version, without
+     * parsing, memoizing or boxing per zip code
+     * @param zips zip code values
+     * @return average of each zip code, in the order of zips (0 for zip codes without properties, as action 4)
+     */
+    public int[] getAverageMarketValues(int[] zips) {
+        return evaluateZipCodes(zips, 4, zipCode -> average(zipCode.peekPropertiesMarketValueColumn()),
+                Dataset.PROPERTIES);
+    }
+
+    /**
+     * Calculates average livable area (action 5) of many zip codes in one pass over a single dataset version
+     * @param zips zip code values
+     * @return average of each zip code, in the order of zips (0 for zip codes without properties, as action 5)
+     */
+    public int[] getAverageLivableAreas(int[] zips) {
+        return evaluateZipCodes(zips, 5, zipCode -> average(zipCode.peekPropertiesLivableAreaColumn()),
+                Dataset.PROPERTIES);
+    }
+
+    /**
+     * Calculates total market value per capita (action 6) of many zip codes in one pass over a single dataset version
+     * @param zips zip code values
+     * @return market value per capita of each zip code, in the order of zips (0 as action 6 for zip codes without
+     *         properties or population)
+     */
+    public int[] getMarketValuesPerCapita(int[] zips) {
+        return evaluateZipCodes(zips, 6, zipCode -> {
+            DoubleColumn marketValues = zipCode.peekPropertiesMarketValueColumn();
+            int population = zipCode.getPopulation();
+            if (marketValues == null || marketValues.isEmpty() || population == 0) {
+                return 0;
+            }
+            return (int) (AggregationKernels.sum(marketValues) / population);
+        }, Dataset.POPULATION, Dataset.PROPERTIES);
+    }
+
+    // same result as calculateAverageMethod(), for a column that may be missing
+    private static int average(DoubleColumn column) {
+        int count = (column != null) ? AggregationKernels.count(column) : 0;
+        if (count == 0) {
+            return 0;
+        }
+        return (int) AggregationKernels.sum(column) / count;
+    }
+
+    // evaluate a calculation for each zip code of one version (0 for unknown zip codes)
+    private int[] evaluateZipCodes(int[] zips, int action, ToIntFunction<ZipCode> calculation, Dataset... datasets) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        int[] results = new int[zips.length];
+        DatasetVersion version = acquire(datasets);
+        try {
+            Map<Integer, ZipCode> zipCodes = version.getZipCodes();
+            for (int i = 0; i < zips.length; i++) {
+                ZipCode zipCode = zipCodes.get(zips[i]);
+                results[i] = (zipCode != null) ? calculation.applyAsInt(zipCode) : 0;
+            }
+        } finally {
+            version.release();
+            event.commit(action, null, null, false);
+        }
+        return results;
+    }
+
+    //date range variant of action 3
+    /**
+     * Calculates partial or total vaccinations per capita of many zip codes for every day of a date range, walking each
+     * zip code's daily rollup once over the range instead of looking up every date
+     * @param zips zip code values, one row each
+     * @param fromDate first date of the range (YYYY-MM-DD)
+     * @param toDate last date of the range (YYYY-MM-DD), inclusive
+     * @param partialOrTotal true for partial vacs, false for total vacs
+     * @return matrix of vacs per capita, with the values of action 3 for each zip code and date
+     * @throws java.time.format.DateTimeParseException when a date is not a valid date
+     * @throws IllegalArgumentException when toDate is before fromDate
+     */
+    public VaccinationMatrix getVaccinationsPerCapita(int[] zips, String fromDate, String toDate,
+                                                      boolean partialOrTotal) {
+        String[] dates = VaccinationMatrix.datesBetween(fromDate, toDate);
+
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        int vacsIndex = partialOrTotal ? 0 : 1;
+        double[][] values = new double[zips.length][];
+        DatasetVersion version = acquire(Dataset.COVID, Dataset.POPULATION);
+        try {
+            Map<Integer, ZipCode> zipCodes = version.getZipCodes();
+            for (int i = 0; i < zips.length; i++) {
+                double[] row = new double[dates.length];
+                values[i] = row;
+                ZipCode zipCode = zipCodes.get(zips[i]);
+                if (zipCode == null || zipCode.getPopulation() == 0) {
+                    // left out of action 3
+                    Arrays.fill(row, Double.NaN);
+                    continue;
+                }
+                double population = zipCode.getPopulation();
+
+                // rollup keys and dates are both in ascending order, so one merge-like pass fills the row (days
+                // without a snapshot stay 0, as in action 3)
+                int column = 0;
+                for (Map.Entry<String, Double[]> day : zipCode.getDailyCovidData()
+                        .subMap(dates[0], true, dates[dates.length - 1], true).entrySet()) {
+                    while (dates[column].compareTo(day.getKey()) < 0) {
+                        column++;
+                    }
+                    if (dates[column].equals(day.getKey())) {
+                        row[column] = day.getValue()[vacsIndex] / population;
+                    }
+                }
+            }
+        } finally {
+            version.release();
+            event.commit(3, null, fromDate, false);
+        }
+        return new VaccinationMatrix(zips, dates, values);
     }
 
     // action 7 get UnvaccinatedPersonsPerTotalLiveableArea (custom feature)
@@ -260,61 +602,299 @@ public class Processor {
      * @return map mapping zip code values to doubles representing # of unvaccinated persons per 100 sq ft
      */
     public Map<Integer, Double> getUnvaccinatedPersonsPerTotalLiveableArea() {
-        // initialize map to return
-        Map<Integer, Double> resultMap = new TreeMap<>();
-
-        for (Map.Entry<Integer, ZipCode> entry : zipCodes.entrySet()) {
-            ZipCode zipCode = entry.getValue();
-            
-            TreeMap<String, Double[]> covidData = zipCode.getCovidDataAsOfTime();
-
-            // get most recent vaccination data from last entry in covidData
-            Map.Entry<String, Double[]> mostRecentEntry = covidData.lastEntry();
-            
-            // retrieve total population of zip code
-            Integer population = zipCode.getPopulation();
-            
-            if (mostRecentEntry == null) {
-                // if no covid data associated with a timestamp, continue to next zip code
-                continue;
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        DatasetVersion current = currentVersion();
+        Memos memos = memosOf(current);
+        
+        Map<Integer, Double> resultMap = memos.unvaccinatedPerLivableArea;
+        if (resultMap != null) {
+            // if already determined before, return map (memoization)
+            event.commit(7, null, null, true);
+            return resultMap;
+        }
+        
+        // check on-disk cache of previous processes before computing
+        QueryCache cache = queryCacheOf(current);
+        resultMap = (cache != null) ? cache.getMap("action7") : null;
+        boolean cacheHit = resultMap != null;
+        
+        if (!cacheHit) {
+            DatasetVersion version = acquire(Dataset.COVID, Dataset.POPULATION, Dataset.PROPERTIES);
+            try {
+                // evaluate all zip codes in parallel
+                resultMap = evaluateAllRegions(version, this::calculateUnvaccinatedPersonsPerTotalLiveableArea);
+                
+                memos = memosOf(version);
+                cache = queryCacheOf(version);
+                if (cache != null) {
+                    cache.putMap("action7", resultMap);
+                }
+            } finally {
+                version.release();
             }
-            
-            Double[] entryCovidData = mostRecentEntry.getValue();
+        }
+        
+        memos.unvaccinatedPerLivableArea = resultMap;
+        event.commit(7, null, null, cacheHit);
+        return resultMap;
+    }
+    
+    //helper method for action 7, calculates unvaccinated persons per 100 sq ft of one zip code (null if skipped)
+    private Double calculateUnvaccinatedPersonsPerTotalLiveableArea(ZipCode zipCode) {
+        TreeMap<String, Double[]> covidData = zipCode.getCovidDataAsOfTime();
 
-            Double partialVacs = entryCovidData[0];
-            Double fullVacs = entryCovidData[1];
+        // get most recent vaccination data from last entry in covidData
+        Map.Entry<String, Double[]> mostRecentEntry = covidData.lastEntry();
+        
+        // retrieve total population of zip code
+        Integer population = zipCode.getPopulation();
+        
+        if (mostRecentEntry == null) {
+            // if no covid data associated with a timestamp, skip zip code
+            return null;
+        }
+        
+        Double[] entryCovidData = mostRecentEntry.getValue();
 
-            // determine total number of people who are vaccinated
-            Double totalVacs = partialVacs + fullVacs;
+        Double partialVacs = entryCovidData[0];
+        Double fullVacs = entryCovidData[1];
 
-            // retrieve list of property livable areas in zip code
-            ArrayList<Double> livableAreas = zipCode.getPropertiesLivableAreaList();
+        // determine total number of people who are vaccinated
+        Double totalVacs = partialVacs + fullVacs;
 
-            // initialize double to record total livable area
-            double totalLivableArea = 0.0;
+        // retrieve column of property livable areas in zip code
+        DoubleColumn livableAreas = zipCode.getPropertiesLivableAreaColumn();
 
-            for (Double livableArea : livableAreas) {
-                totalLivableArea += livableArea;
+        // record total livable area
+        double totalLivableArea = AggregationKernels.sum(livableAreas);
+        
+        if (totalLivableArea <= 0.0) {
+            // if total livable area is less than or equal to 0, skip zip code
+            return null;
+        }
+        
+        // perform calculations
+        Double result = ((population - totalVacs) / totalLivableArea) * 100;
+        
+        // ignore negative results (from wonky populations)
+        if (result <= 0.0) {
+            return null;
+        }
+        
+        return result;
+    }
+
+    //action 11 - rank zip codes by partial or full vacs per capita on a date
+    /**
+     * Selects the k zip codes with the highest or lowest partial or full vaccinations per capita on a date, in one pass
+     * over zip codes with a bounded heap. Like action 3, zip codes with no vaccinations on the date are left out.
+     * @param date String representing timestamp
+     * @param partialOrTotal boolean is true for partial vacs, false for total vacs
+     * @param k number of zip codes to return
+     * @param highest true for the highest values, false for the lowest
+     * @return map mapping zip codes to vacs per capita, in rank order
+     */
+    public LinkedHashMap<Integer, Double> getTopVaccinationsPerCapita(String date, Boolean partialOrTotal, int k,
+                                                                     boolean highest) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        TopKSelector selector = new TopKSelector(k, highest);
+        
+        // if action 3 already computed this date, rank its memoized results instead of recalculating
+        TreeMap<Integer, Double> memoized = memosOf(currentVersion()).vacsPerCapita(partialOrTotal).get(date);
+        if (memoized != null) {
+            for (Map.Entry<Integer, Double> entry : memoized.entrySet()) {
+                if (entry.getValue() != 0.0) {
+                    selector.offer(entry.getKey(), entry.getValue());
+                }
             }
-            
-            if (totalLivableArea <= 0.0) {
-                // if total livable area is less than or equal to 0, continue to next zip code
-                continue;
+            event.commit(11, null, date, true);
+            return selector.toRankedMap();
+        }
+        
+        DatasetVersion version = acquire(Dataset.COVID, Dataset.POPULATION);
+        try {
+            return rankAllRegions(version, zipCode -> {
+                Double result = calculateVaccinationsPerCapita(zipCode, date, partialOrTotal,
+                        ZipCode::getDailyCovidData);
+                return (result != null && result != 0.0) ? result : null;
+            }, k, highest);
+        } finally {
+            version.release();
+            event.commit(11, null, date, false);
+        }
+    }
+
+    //action 12 - rank zip codes by total market value of properties per capita
+    /**
+     * Selects the k zip codes with the highest or lowest total market value per capita, in one pass over zip codes with
+     * a bounded heap. Zip codes with no properties or no population are left out.
+     * @param k number of zip codes to return
+     * @param highest true for the highest values, false for the lowest
+     * @return map mapping zip codes to market value per capita, in rank order
+     */
+    public LinkedHashMap<Integer, Double> getTopMarketValuePerCapita(int k, boolean highest) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        DatasetVersion version = acquire(Dataset.POPULATION, Dataset.PROPERTIES);
+        try {
+            return rankAllRegions(version, zipCode -> {
+                DoubleColumn marketValues = zipCode.peekPropertiesMarketValueColumn();
+                int population = zipCode.getPopulation();
+                if (marketValues == null || AggregationKernels.count(marketValues) == 0 || population == 0) {
+                    return null;
+                }
+                return AggregationKernels.sum(marketValues) / population;
+            }, k, highest);
+        } finally {
+            version.release();
+            event.commit(12, null, null, false);
+        }
+    }
+
+    //helper method to read a percentile from a zip code's quantile sketch for action 8 and 9
+    public Integer getPercentile(String inputZip, Double percentile, Integer actionNumber) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        DatasetVersion version = acquire(Dataset.PROPERTIES);
+        try {
+            // parse input zipCode to integer and retrieve ZipCode object from zipCodes map
+            ZipCode zipCode = version.getZipCodes().get(Integer.parseInt(inputZip));
+
+            if (zipCode == null) {
+                return 0;
             }
-            
-            // perform calculations
-            Double result = ((population - totalVacs) / totalLivableArea) * 100;
-            
-            // ignore negative results (from wonky populations)
-            if (result <= 0.0) {
-                continue;
+
+            // peek rather than get, so a query never allocates a sketch (published versions are never modified)
+            QuantileSketch sketch = (actionNumber == 8) ? zipCode.peekMarketValueSketch()
+                    : zipCode.peekLivableAreaSketch();
+
+            // if zip code has no properties data, return 0 (same as averages)
+            if (sketch == null || sketch.isEmpty()) {
+                return 0;
             }
-            
-            // put entry into resultMap
-            resultMap.put(entry.getKey(), result);
+            return (int) sketch.getQuantile(percentile / 100);
+        } finally {
+            version.release();
+            event.commit(actionNumber, inputZip, null, false);
         }
-        
-        return resultMap;
     }
-    
+
+    //action 8 get MarketValuePercentile method (approximate, from quantile sketch)
+    public Integer getMarketValuePercentile(String inputZip, Double percentile) {
+        return getPercentile(inputZip, percentile, 8);
+    }
+
+    //action 9 get LivableAreaPercentile method (approximate, from quantile sketch)
+    public Integer getLivableAreaPercentile(String inputZip, Double percentile) {
+        return getPercentile(inputZip, percentile, 9);
+    }
+
+    //median market value (50th percentile) for a zip code
+    public Integer getMedianMarketValue(String inputZip) {
+        return getMarketValuePercentile(inputZip, 50.0);
+    }
+
+    //median livable area (50th percentile) for a zip code
+    public Integer getMedianLivableArea(String inputZip) {
+        return getLivableAreaPercentile(inputZip, 50.0);
+    }
+
+    //action 14 - ad-hoc aggregate queries
+    /**
+     * Compiles a query, or returns the plan compiled earlier for the same query text
+     * @param text query text (see {@code Query} for the query language)
+     * @return compiled query
+     * @throws QueryParseException when the query is not valid
+     */
+    public Query compileQuery(String text) throws QueryParseException {
+        Query query = compiledQueries.get(text.trim());
+        if (query == null) {
+            query = Query.compile(text);
+            compiledQueries.put(query.getText(), query);
+        }
+        return query;
+    }
+
+    /**
+     * Runs a compiled query over all zip codes, one parallel task per shard
+     * @param query compiled query
+     * @return one row per group of the query, sorted by group key
+     */
+    public QueryResult runQuery(Query query) {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        List<Dataset> datasets = new ArrayList<>();
+        if (query.readsCovid()) {
+            datasets.add(Dataset.COVID);
+        }
+        if (query.readsPopulation()) {
+            datasets.add(Dataset.POPULATION);
+        }
+        if (query.readsProperties()) {
+            datasets.add(Dataset.PROPERTIES);
+        }
+        DatasetVersion version = acquire(datasets.toArray(new Dataset[0]));
+        try {
+            return query.evaluate(version.getRegionPartitions());
+        } finally {
+            version.release();
+            event.commit(14, null, null, false);
+        }
+    }
+
+    /**
+     * Estimates retained bytes of the loaded zip code model and this processor's result caches, and records the
+     * totals in the metrics registry
+     * @return footprint report per structure and per zip code
+     */
+    public FootprintReport getFootprintReport() {
+        ProcessorCallEvent event = new ProcessorCallEvent();
+        event.begin();
+        // report covers the whole model, so wait for every provided dataset
+        DatasetVersion version = acquire(Dataset.values());
+        try {
+            FootprintReport report = FootprintReport.estimate(version.getZipCodes(), memosOf(version).caches());
+            report.record(Metrics.getInstance());
+            return report;
+        } finally {
+            version.release();
+            event.commit(10, null, null, false);
+        }
+    }
+
+    // memoized results of one generation of the datasets
+    // actions may be called from many threads at once: memos are concurrent maps or volatile fields, and a result
+    // computed by two threads at the same time is computed twice but is identical, so either copy can be kept
+    private static final class Memos {
+        private final long generation;
+
+        private volatile Integer totalPopulation;
+        private final Map<String, TreeMap<Integer, Double>> partialVacsPerCapita = new ConcurrentHashMap<>();
+        private final Map<String, TreeMap<Integer, Double>> fullVacsPerCapita = new ConcurrentHashMap<>();
+
+        private final Map<Integer, Integer> averageMarketValueMap = new ConcurrentHashMap<>();
+        private final Map<Integer, Integer> averageLivableAreaMap = new ConcurrentHashMap<>();
+        private final Map<Integer, Integer> marketValuePerCapitaMap = new ConcurrentHashMap<>();
+        private final Map<Integer, Integer> livableAreaPerCapitaMap = new ConcurrentHashMap<>();
+        private volatile Map<Integer, Double> unvaccinatedPerLivableArea;
+
+        Memos(long generation) {
+            this.generation = generation;
+        }
+
+        // action 3 and 13 results by period, separately for partial and full vacs
+        Map<String, TreeMap<Integer, Double>> vacsPerCapita(boolean partialOrTotal) {
+            return partialOrTotal ? partialVacsPerCapita : fullVacsPerCapita;
+        }
+
+        // result caches, as counted by FootprintReport
+        List<Object> caches() {
+            return Arrays.asList(totalPopulation, partialVacsPerCapita, fullVacsPerCapita, averageMarketValueMap,
+                    averageLivableAreaMap, marketValuePerCapitaMap, livableAreaPerCapitaMap,
+                    unvaccinatedPerLivableArea);
+        }
+    }
+
 }
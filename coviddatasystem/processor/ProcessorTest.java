@@ -69,6 +69,64 @@ public class ProcessorTest {
         
     }
     
+    @Test
+    void testVaccinationsPerCapitaMemoizedPerDate() {
+        // each date gets its own result, even after another date has been memoized
+        TreeMap<Integer, Double> earlyVacs = processor.getVaccinationsPerCapita("2021-03-25", false);
+        TreeMap<Integer, Double> laterVacs = processor.getVaccinationsPerCapita("2022-07-18", false);
+        
+        assertNotSame(earlyVacs, laterVacs);
+        assertTrue(laterVacs.get(19104) > earlyVacs.get(19104));
+        
+        // parallel evaluation keeps output sorted by zip code
+        assertEquals(new ArrayList<>(new TreeMap<>(laterVacs).keySet()), new ArrayList<>(laterVacs.keySet()));
+    }
+    
+    @Test
+    void testBulkResultsMatchSingleZipActions() {
+        // every zip code plus one that is not in any file
+        int[] zips = Arrays.copyOf(processor.getAllZipCodes(), processor.getAllZipCodes().length + 1);
+        zips[zips.length - 1] = 19999;
+        
+        int[] averageMarketValues = processor.getAverageMarketValues(zips);
+        int[] averageLivableAreas = processor.getAverageLivableAreas(zips);
+        int[] marketValuesPerCapita = processor.getMarketValuesPerCapita(zips);
+        for (int i = 0; i < zips.length; i++) {
+            String zip = String.valueOf(zips[i]);
+            assertEquals(processor.getAverageMarketValue(zip), averageMarketValues[i]);
+            assertEquals(processor.getAverageLivableArea(zip), averageLivableAreas[i]);
+            assertEquals(processor.getMarketValuePerCapita(zip), marketValuesPerCapita[i]);
+        }
+    }
+    
+    @Test
+    void testVaccinationMatrixMatchesAction3() {
+        int[] zips = {19104, 19108, 19100, 19999};
+        VaccinationMatrix matrix = processor.getVaccinationsPerCapita(zips, "2021-05-26", "2021-06-04", true);
+        assertEquals(10, matrix.getDates().length);
+        
+        for (int column = 0; column < matrix.getDates().length; column++) {
+            TreeMap<Integer, Double> vacs = processor.getVaccinationsPerCapita(matrix.getDates()[column], true);
+            for (int row = 0; row < zips.length; row++) {
+                Double expected = vacs.get(zips[row]);
+                // zip codes left out of action 3 are NaN
+                assertEquals((expected != null) ? expected : Double.NaN, matrix.get(row, column));
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> processor.getVaccinationsPerCapita(zips, "2021-06-04", "2021-05-26", true));
+    }
+    
+    @Test
+    void testTopKLargerThanNumberOfZipCodes() {
+        // any positive K is valid, and one larger than the number of zip codes ranks all of them
+        LinkedHashMap<Integer, Double> all = processor.getTopMarketValuePerCapita(Integer.MAX_VALUE, true);
+        
+        assertFalse(all.isEmpty());
+        assertEquals(new ArrayList<>(processor.getTopMarketValuePerCapita(zipCodes.size(), true).entrySet()),
+                new ArrayList<>(all.entrySet()));
+    }
+    
     @Test
     void testUnvaccinatedPersonsPerTotalLiveableArea() {
         Map<Integer, Double> results = processor.getUnvaccinatedPersonsPerTotalLiveableArea();
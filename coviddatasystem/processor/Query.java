@@ -0,0 +1,723 @@
+package coviddatasystem.processor;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import coviddatasystem.util.DoubleColumn;
+import coviddatasystem.util.ValueRangeIndex;
+import coviddatasystem.util.ZipCode;
+
+/**
+ * {@code Query} is an ad-hoc aggregate query over the loaded zip codes, written in a small query language and compiled
+ * once into an evaluation plan.
+ *
+ * <pre>
+ * query     := aggregate {"," aggregate} ["where" condition {"and" condition}] ["group" "by" ("zip" | "date")]
+ * aggregate := ("sum" | "avg" | "min" | "max" | "count") "(" field ")"
+ * condition := key ("=" | "&lt;" | "&lt;=" | "&gt;" | "&gt;=") value | key "between" value "and" value
+ * key       := "zip" | "date" | field
+ * field     := partial_vacs | full_vacs | neg_tests | pos_tests | deaths | hospitalized | boosted
+ *            | population | market_value | livable_area
+ * </pre>
+ *
+ * e.g. {@code sum(full_vacs), max(deaths) where zip between 19102 and 19154 and date >= 2022-01-01 group by date}
+ *
+ * Covid fields are read from the daily rollup of each zip code (the last snapshot of each day), population is one
+ * value per zip code (unknown populations of 0 are skipped) and property fields are read from the property columns.
+ * Zip and population conditions select zip codes and apply to every aggregate. Date and covid conditions select covid
+ * snapshots, so they can only be used with covid aggregates. Property conditions select property rows, so they can
+ * only be used with property aggregates; market value and livable area columns are row aligned, so a condition on one
+ * of them also selects the rows aggregated for the other (e.g. {@code avg(livable_area) where market_value > 1000000}).
+ *
+ * Compiling resolves field names to snapshot indexes and column ids, and every condition to inclusive primitive
+ * bounds, so evaluating a query is a loop over each shard that compares primitives and updates primitive accumulators
+ * (unfiltered property columns are aggregated with {@code AggregationKernels}, and a range condition on a single
+ * property field is answered by that column's {@code ValueRangeIndex}: O(log n) per zip code for aggregates of the same
+ * field, plus the selected rows for aggregates of the other). Shards are evaluated in parallel and their groups merged.
+ */
+public final class Query {
+
+    // aggregate functions
+    private static final int SUM = 0;
+    private static final int AVG = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int COUNT = 4;
+
+    private static final List<String> FUNCTIONS = Arrays.asList("sum", "avg", "min", "max", "count");
+
+    // fields: covid metrics (by index in a covid snapshot), then population and the two property columns
+    private static final List<String> FIELDS = Arrays.asList("partial_vacs", "full_vacs", "neg_tests", "pos_tests",
+            "deaths", "hospitalized", "boosted", "population", "market_value", "livable_area");
+
+    private static final int COVID_METRICS = 7;
+    private static final int POPULATION = 7;
+    private static final int MARKET_VALUE = 8;
+    private static final int LIVABLE_AREA = 9;
+
+    // key of the single row of a query without group by
+    private static final String ALL = "all";
+
+    private final String text;
+
+    // "all", "zip" or "date"
+    private String groupBy = ALL;
+
+    // aggregates in column order, and the indexes of the aggregates reading each kind of row
+    private final List<String> columns = new ArrayList<>();
+    private int[] functions;
+    private int[] fields;
+    private int[] populationAggregates;
+    private int[] covidAggregates;
+    private int[] marketValueAggregates;
+    private int[] livableAreaAggregates;
+
+    // inclusive bounds of every condition, intersected per key (unbounded by default)
+    private int zipLo = Integer.MIN_VALUE;
+    private int zipHi = Integer.MAX_VALUE;
+    private long dateLo = Long.MIN_VALUE;
+    private long dateHi = Long.MAX_VALUE;
+    private final double[] fieldLo = new double[FIELDS.size()];
+    private final double[] fieldHi = new double[FIELDS.size()];
+    private final boolean[] fieldFiltered = new boolean[FIELDS.size()];
+
+    // compiled plan: date range as rollup keys (null if unbounded), covid conditions as parallel primitive arrays
+    private boolean empty;
+    private String dateFrom;
+    private String dateTo;
+    private int[] covidFilterMetrics;
+    private double[] covidFilterLo;
+    private double[] covidFilterHi;
+
+    private Query(String text) {
+        this.text = text;
+        Arrays.fill(fieldLo, Double.NEGATIVE_INFINITY);
+        Arrays.fill(fieldHi, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Parses and compiles a query
+     * @param text query text (keywords and field names are not case sensitive)
+     * @return compiled query, which can be evaluated any number of times
+     * @throws QueryParseException when the query is not valid
+     */
+    public static Query compile(String text) throws QueryParseException {
+        Query query = new Query(text.trim());
+        new Parser(query).parse();
+        query.plan();
+        return query;
+    }
+
+    /**
+     * @return query text as compiled
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the query reads covid data
+     */
+    public boolean readsCovid() {
+        return covidAggregates.length > 0;
+    }
+
+    /**
+     * @return true if the query reads population data (including population conditions)
+     */
+    public boolean readsPopulation() {
+        return populationAggregates.length > 0 || fieldFiltered[POPULATION];
+    }
+
+    /**
+     * @return true if the query reads properties data
+     */
+    public boolean readsProperties() {
+        return marketValueAggregates.length > 0 || livableAreaAggregates.length > 0;
+    }
+
+    // resolve parsed aggregates and conditions into the arrays read by evaluate()
+    private void plan() {
+        populationAggregates = aggregatesOf(POPULATION, POPULATION);
+        covidAggregates = aggregatesOf(0, COVID_METRICS - 1);
+        marketValueAggregates = aggregatesOf(MARKET_VALUE, MARKET_VALUE);
+        livableAreaAggregates = aggregatesOf(LIVABLE_AREA, LIVABLE_AREA);
+
+        empty = zipLo > zipHi || dateLo > dateHi;
+        for (int field = 0; field < FIELDS.size(); field++) {
+            empty |= fieldLo[field] > fieldHi[field];
+        }
+
+        // dates are validated while parsing, so only the unbounded sides fall outside LocalDate's range
+        dateFrom = (dateLo == Long.MIN_VALUE) ? null : LocalDate.ofEpochDay(dateLo).toString();
+        dateTo = (dateHi == Long.MAX_VALUE) ? null : LocalDate.ofEpochDay(dateHi).toString();
+
+        int filters = 0;
+        for (int metric = 0; metric < COVID_METRICS; metric++) {
+            filters += fieldFiltered[metric] ? 1 : 0;
+        }
+        covidFilterMetrics = new int[filters];
+        covidFilterLo = new double[filters];
+        covidFilterHi = new double[filters];
+        int filter = 0;
+        for (int metric = 0; metric < COVID_METRICS; metric++) {
+            if (fieldFiltered[metric]) {
+                covidFilterMetrics[filter] = metric;
+                covidFilterLo[filter] = fieldLo[metric];
+                covidFilterHi[filter] = fieldHi[metric];
+                filter++;
+            }
+        }
+    }
+
+    // indexes of aggregates over fields in [from, to]
+    private int[] aggregatesOf(int from, int to) {
+        int[] aggregates = new int[fields.length];
+        int n = 0;
+        for (int a = 0; a < fields.length; a++) {
+            if (fields[a] >= from && fields[a] <= to) {
+                aggregates[n++] = a;
+            }
+        }
+        return Arrays.copyOf(aggregates, n);
+    }
+
+    /**
+     * Evaluates the query over zip codes split into partitions (e.g. the shards of a {@code ShardedRegionStore}),
+     * one partition per parallel task
+     * @param partitions zip codes, each partition holding distinct zip codes
+     * @return one row per group, sorted by group key
+     */
+    QueryResult evaluate(List<ZipCode[]> partitions) {
+        Groups groups = new Groups(functions.length);
+        if (!empty) {
+            groups = partitions.parallelStream().map(this::evaluate).reduce(Groups::merge).orElse(groups);
+        }
+        if (groupBy.equals(ALL)) {
+            // a query without group by always returns its single row
+            groups.get(ALL);
+        }
+
+        TreeMap<String, double[]> rows = new TreeMap<>();
+        for (Map.Entry<String, Accumulator> group : groups.entrySet()) {
+            rows.put(group.getKey(), group.getValue().partials());
+        }
+        return new QueryResult(groupBy, new ArrayList<>(columns), rows);
+    }
+
+    // evaluate the query over one partition
+    private Groups evaluate(ZipCode[] regions) {
+        Groups groups = new Groups(functions.length);
+        boolean byZip = groupBy.equals("zip");
+        boolean populationFiltered = fieldFiltered[POPULATION];
+        double populationLo = fieldLo[POPULATION];
+        double populationHi = fieldHi[POPULATION];
+
+        for (ZipCode zipCode : regions) {
+            int zip = zipCode.getZipCode();
+            if (zip < zipLo || zip > zipHi) {
+                continue;
+            }
+            int population = zipCode.getPopulation();
+            if (populationFiltered && (population == 0 || population < populationLo || population > populationHi)) {
+                continue;
+            }
+            String zipKey = byZip ? String.format("%05d", zip) : ALL;
+
+            if (populationAggregates.length > 0 && population != 0) {
+                Accumulator accumulator = groups.get(zipKey);
+                for (int a : populationAggregates) {
+                    accumulator.add(a, population);
+                }
+            }
+            if (covidAggregates.length > 0) {
+                addCovidRows(zipCode, zipKey, groups);
+            }
+            if (readsProperties()) {
+                addPropertyRows(zipCode, zipKey, groups);
+            }
+        }
+        return groups;
+    }
+
+    // aggregate the daily snapshots of a zip code in the date range that pass every covid condition
+    private void addCovidRows(ZipCode zipCode, String zipKey, Groups groups) {
+        NavigableMap<String, Double[]> days = zipCode.getDailyCovidData();
+        if (dateFrom != null && dateTo != null) {
+            days = days.subMap(dateFrom, true, dateTo, true);
+        } else if (dateFrom != null) {
+            days = days.tailMap(dateFrom, true);
+        } else if (dateTo != null) {
+            days = days.headMap(dateTo, true);
+        }
+        boolean byDate = groupBy.equals("date");
+
+        for (Map.Entry<String, Double[]> day : days.entrySet()) {
+            Double[] snapshot = day.getValue();
+            boolean matches = true;
+            for (int filter = 0; filter < covidFilterMetrics.length && matches; filter++) {
+                double value = snapshot[covidFilterMetrics[filter]];
+                matches = value >= covidFilterLo[filter] && value <= covidFilterHi[filter];
+            }
+            if (!matches) {
+                continue;
+            }
+            Accumulator accumulator = groups.get(byDate ? day.getKey() : zipKey);
+            for (int a : covidAggregates) {
+                accumulator.add(a, snapshot[fields[a]]);
+            }
+        }
+    }
+
+    // aggregate the property rows of a zip code that pass every property condition: a condition on a single field is
+    // answered by the field's value-range index if it has one, otherwise the rows are selected in one pass
+    private void addPropertyRows(ZipCode zipCode, String zipKey, Groups groups) {
+        DoubleColumn marketValues = zipCode.peekPropertiesMarketValueColumn();
+        DoubleColumn livableAreas = zipCode.peekPropertiesLivableAreaColumn();
+        if (marketValues == null || livableAreas == null) {
+            return;
+        }
+        boolean marketValueFiltered = fieldFiltered[MARKET_VALUE];
+        boolean livableAreaFiltered = fieldFiltered[LIVABLE_AREA];
+        ValueRangeIndex marketValueIndex = zipCode.peekMarketValueIndex();
+        ValueRangeIndex livableAreaIndex = zipCode.peekLivableAreaIndex();
+
+        if (!marketValueFiltered && !livableAreaFiltered) {
+            addColumn(marketValues, marketValueAggregates, zipKey, groups);
+            addColumn(livableAreas, livableAreaAggregates, zipKey, groups);
+        } else if (!livableAreaFiltered && marketValueIndex != null) {
+            addIndexedRows(marketValueIndex, MARKET_VALUE, marketValueAggregates, livableAreas, livableAreaAggregates,
+                    zipKey, groups);
+        } else if (!marketValueFiltered && livableAreaIndex != null) {
+            addIndexedRows(livableAreaIndex, LIVABLE_AREA, livableAreaAggregates, marketValues, marketValueAggregates,
+                    zipKey, groups);
+        } else {
+            addScannedRows(marketValues, livableAreas, zipKey, groups);
+        }
+    }
+
+    // aggregate an unfiltered property column with the SIMD kernels, one kernel per statistic needed
+    private void addColumn(DoubleColumn column, int[] aggregates, String zipKey, Groups groups) {
+        if (aggregates.length == 0) {
+            return;
+        }
+        boolean needSum = false;
+        boolean needMin = false;
+        boolean needMax = false;
+        for (int a : aggregates) {
+            needSum |= functions[a] == SUM || functions[a] == AVG;
+            needMin |= functions[a] == MIN;
+            needMax |= functions[a] == MAX;
+        }
+        // NaN values (unparseable properties) are not counted
+        long count = AggregationKernels.count(column);
+        if (count > 0) {
+            double sum = needSum ? AggregationKernels.sum(column) : 0;
+            double min = needMin ? AggregationKernels.min(column) : Double.POSITIVE_INFINITY;
+            double max = needMax ? AggregationKernels.max(column) : Double.NEGATIVE_INFINITY;
+            Accumulator accumulator = groups.get(zipKey);
+            for (int a : aggregates) {
+                accumulator.addAll(a, sum, count, min, max);
+            }
+        }
+    }
+
+    // aggregate the rows selected by a range condition on the indexed field: two binary searches and prefix sums for
+    // aggregates of that field, and a read of each selected row for aggregates of the other field
+    private void addIndexedRows(ValueRangeIndex index, int field, int[] aggregates, DoubleColumn other,
+                                int[] otherAggregates, String zipKey, Groups groups) {
+        double lo = fieldLo[field];
+        double hi = fieldHi[field];
+        int count = index.count(lo, hi);
+        if (count == 0) {
+            return;
+        }
+        if (aggregates.length > 0) {
+            double sum = index.sum(lo, hi);
+            double min = index.min(lo, hi);
+            double max = index.max(lo, hi);
+            Accumulator accumulator = groups.get(zipKey);
+            for (int a : aggregates) {
+                accumulator.addAll(a, sum, count, min, max);
+            }
+        }
+        if (otherAggregates.length > 0) {
+            Statistics statistics = new Statistics();
+            for (int position = index.lowerBound(lo), to = index.upperBound(hi); position < to; position++) {
+                statistics.add(other.get(index.row(position)));
+            }
+            statistics.addTo(groups, zipKey, otherAggregates);
+        }
+    }
+
+    // aggregate the rows that pass every property condition in one pass over both columns
+    private void addScannedRows(DoubleColumn marketValues, DoubleColumn livableAreas, String zipKey, Groups groups) {
+        boolean marketValueFiltered = fieldFiltered[MARKET_VALUE];
+        boolean livableAreaFiltered = fieldFiltered[LIVABLE_AREA];
+        double marketValueLo = fieldLo[MARKET_VALUE];
+        double marketValueHi = fieldHi[MARKET_VALUE];
+        double livableAreaLo = fieldLo[LIVABLE_AREA];
+        double livableAreaHi = fieldHi[LIVABLE_AREA];
+        Statistics marketValueStatistics = new Statistics();
+        Statistics livableAreaStatistics = new Statistics();
+
+        for (int row = 0, rows = marketValues.size(); row < rows; row++) {
+            double marketValue = marketValues.get(row);
+            double livableArea = livableAreas.get(row);
+            // NaN fails every condition
+            if (marketValueFiltered && !(marketValue >= marketValueLo && marketValue <= marketValueHi)) {
+                continue;
+            }
+            if (livableAreaFiltered && !(livableArea >= livableAreaLo && livableArea <= livableAreaHi)) {
+                continue;
+            }
+            marketValueStatistics.add(marketValue);
+            livableAreaStatistics.add(livableArea);
+        }
+        marketValueStatistics.addTo(groups, zipKey, marketValueAggregates);
+        livableAreaStatistics.addTo(groups, zipKey, livableAreaAggregates);
+    }
+
+    // sum, count, min and max of the values of one field in the selected rows of a zip code, skipping NaN
+    private static final class Statistics {
+        private double sum;
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            if (!Double.isNaN(value)) {
+                sum += value;
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+
+        void addTo(Groups groups, String zipKey, int[] aggregates) {
+            if (count > 0 && aggregates.length > 0) {
+                Accumulator accumulator = groups.get(zipKey);
+                for (int a : aggregates) {
+                    accumulator.addAll(a, sum, count, min, max);
+                }
+            }
+        }
+    }
+
+    // groups of one evaluation, sorted by key and created the first time a row is added to them
+    private static final class Groups {
+        private final TreeMap<String, Accumulator> accumulators = new TreeMap<>();
+
+        private final int aggregates;
+
+        Groups(int aggregates) {
+            this.aggregates = aggregates;
+        }
+
+        Accumulator get(String key) {
+            Accumulator accumulator = accumulators.get(key);
+            if (accumulator == null) {
+                accumulator = new Accumulator(aggregates);
+                accumulators.put(key, accumulator);
+            }
+            return accumulator;
+        }
+
+        Set<Map.Entry<String, Accumulator>> entrySet() {
+            return accumulators.entrySet();
+        }
+
+        Groups merge(Groups other) {
+            for (Map.Entry<String, Accumulator> group : other.entrySet()) {
+                get(group.getKey()).merge(group.getValue());
+            }
+            return this;
+        }
+    }
+
+    // sum, count, min and max of each aggregate of a group, in primitive arrays
+    private static final class Accumulator {
+        private final double[] sums;
+        private final long[] counts;
+        private final double[] mins;
+        private final double[] maxs;
+
+        Accumulator(int aggregates) {
+            sums = new double[aggregates];
+            counts = new long[aggregates];
+            mins = new double[aggregates];
+            maxs = new double[aggregates];
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        }
+
+        void add(int a, double value) {
+            sums[a] += value;
+            counts[a]++;
+            mins[a] = Math.min(mins[a], value);
+            maxs[a] = Math.max(maxs[a], value);
+        }
+
+        void addAll(int a, double sum, long count, double min, double max) {
+            sums[a] += sum;
+            counts[a] += count;
+            mins[a] = Math.min(mins[a], min);
+            maxs[a] = Math.max(maxs[a], max);
+        }
+
+        void merge(Accumulator other) {
+            for (int a = 0; a < sums.length; a++) {
+                addAll(a, other.sums[a], other.counts[a], other.mins[a], other.maxs[a]);
+            }
+        }
+
+        // sum, count, min and max of each aggregate, as kept by QueryResult
+        double[] partials() {
+            double[] partials = new double[sums.length * QueryResult.PARTIALS];
+            for (int a = 0; a < sums.length; a++) {
+                partials[a * QueryResult.PARTIALS] = sums[a];
+                partials[a * QueryResult.PARTIALS + 1] = counts[a];
+                partials[a * QueryResult.PARTIALS + 2] = mins[a];
+                partials[a * QueryResult.PARTIALS + 3] = maxs[a];
+            }
+            return partials;
+        }
+    }
+
+    // recursive descent parser, fills in the aggregates and condition bounds of a query
+    private static final class Parser {
+
+        // dates, numbers, words and symbols, each after optional whitespace
+        private static final Pattern TOKEN =
+                Pattern.compile("\\s*(?:(\\d{4}-\\d{2}-\\d{2})|(-?\\d+(?:\\.\\d+)?)|([A-Za-z_]+)|(<=|>=|[(),=<>]))");
+
+        private static final int DATE = 1;
+        private static final int NUMBER = 2;
+        private static final int WORD = 3;
+        private static final int SYMBOL = 4;
+        private static final int END = 5;
+
+        private final Query query;
+
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Integer> kinds = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private int next = 0;
+
+        private final List<Integer> functions = new ArrayList<>();
+        private final List<Integer> fields = new ArrayList<>();
+
+        // first condition on covid rows (date or covid field) and on each property field, -1 if none
+        private int covidCondition = -1;
+        private final int[] propertyConditions = {-1, -1};
+
+        Parser(Query query) throws QueryParseException {
+            this.query = query;
+            String text = query.text;
+            Matcher matcher = TOKEN.matcher(text);
+            int position = 0;
+            while (!text.substring(position).trim().isEmpty()) {
+                matcher.region(position, text.length());
+                if (!matcher.lookingAt()) {
+                    while (Character.isWhitespace(text.charAt(position))) {
+                        position++;
+                    }
+                    throw new QueryParseException("Unexpected character '" + text.charAt(position) + "'", position);
+                }
+                for (int kind = DATE; kind <= SYMBOL; kind++) {
+                    if (matcher.group(kind) != null) {
+                        tokens.add(kind == WORD ? matcher.group(kind).toLowerCase() : matcher.group(kind));
+                        kinds.add(kind);
+                        positions.add(matcher.start(kind));
+                    }
+                }
+                position = matcher.end();
+            }
+            tokens.add("end of query");
+            kinds.add(END);
+            positions.add(text.length());
+        }
+
+        void parse() throws QueryParseException {
+            do {
+                parseAggregate();
+            } while (accept(","));
+
+            if (accept("where")) {
+                do {
+                    parseCondition();
+                } while (accept("and"));
+            }
+            if (accept("group")) {
+                expect("by");
+                int position = positions.get(next);
+                String key = word();
+                if (!key.equals("zip") && !key.equals("date")) {
+                    throw new QueryParseException("Expected 'zip' or 'date' after 'group by'", position);
+                }
+                query.groupBy = key;
+            }
+            if (kinds.get(next) != END) {
+                throw new QueryParseException("Unexpected '" + tokens.get(next) + "'", positions.get(next));
+            }
+
+            query.functions = functions.stream().mapToInt(Integer::intValue).toArray();
+            query.fields = fields.stream().mapToInt(Integer::intValue).toArray();
+            validate();
+        }
+
+        private void parseAggregate() throws QueryParseException {
+            int position = positions.get(next);
+            int function = FUNCTIONS.indexOf(tokens.get(next));
+            if (kinds.get(next) != WORD || function < 0) {
+                throw new QueryParseException("Expected an aggregate (sum, avg, min, max or count)", position);
+            }
+            next++;
+            expect("(");
+            int field = field();
+            expect(")");
+            functions.add(function);
+            fields.add(field);
+            query.columns.add(FUNCTIONS.get(function) + "(" + FIELDS.get(field) + ")");
+        }
+
+        private void parseCondition() throws QueryParseException {
+            int position = positions.get(next);
+            String key = tokens.get(next);
+            int field = -1;
+            if (key.equals("zip") || key.equals("date")) {
+                next++;
+            } else {
+                field = field();
+            }
+
+            String operator = tokens.get(next);
+            if (!Arrays.asList("=", "<", "<=", ">", ">=", "between").contains(operator)) {
+                throw new QueryParseException("Expected a comparison (=, <, <=, >, >= or between)", positions.get(next));
+            }
+            next++;
+            double lo;
+            double hi;
+            boolean discrete = field < 0 || field == POPULATION;
+            if (operator.equals("between")) {
+                lo = value(key);
+                expect("and");
+                hi = value(key);
+            } else {
+                double value = value(key);
+                lo = operator.equals("<") || operator.equals("<=") ? Double.NEGATIVE_INFINITY : value;
+                hi = operator.equals(">") || operator.equals(">=") ? Double.POSITIVE_INFINITY : value;
+                // strict comparisons become inclusive bounds on the next representable value
+                if (operator.equals(">")) {
+                    lo = discrete ? value + 1 : Math.nextUp(value);
+                } else if (operator.equals("<")) {
+                    hi = discrete ? value - 1 : Math.nextDown(value);
+                }
+            }
+
+            // narrowing casts saturate, so infinite bounds become the widest int or long bounds
+            if (key.equals("zip")) {
+                query.zipLo = Math.max(query.zipLo, (int) lo);
+                query.zipHi = Math.min(query.zipHi, (int) hi);
+                return;
+            }
+            if (key.equals("date")) {
+                query.dateLo = Math.max(query.dateLo, (long) lo);
+                query.dateHi = Math.min(query.dateHi, (long) hi);
+                covidCondition = (covidCondition < 0) ? position : covidCondition;
+                return;
+            }
+            query.fieldFiltered[field] = true;
+            query.fieldLo[field] = Math.max(query.fieldLo[field], lo);
+            query.fieldHi[field] = Math.min(query.fieldHi[field], hi);
+            if (field < COVID_METRICS) {
+                covidCondition = (covidCondition < 0) ? position : covidCondition;
+            } else if (field != POPULATION && propertyConditions[field - MARKET_VALUE] < 0) {
+                propertyConditions[field - MARKET_VALUE] = position;
+            }
+        }
+
+        // check that every condition applies to the rows of every aggregate
+        private void validate() throws QueryParseException {
+            for (int a = 0; a < fields.size(); a++) {
+                int field = fields.get(a);
+                String column = query.columns.get(a);
+                if (covidCondition >= 0 && field >= COVID_METRICS) {
+                    throw new QueryParseException("Date and covid conditions only apply to covid fields, not "
+                            + column, covidCondition);
+                }
+                for (int property = MARKET_VALUE; property <= LIVABLE_AREA; property++) {
+                    if (propertyConditions[property - MARKET_VALUE] >= 0 && field < MARKET_VALUE) {
+                        throw new QueryParseException("A condition on " + FIELDS.get(property)
+                                + " only applies to property fields, not " + column,
+                                propertyConditions[property - MARKET_VALUE]);
+                    }
+                }
+                if (query.groupBy.equals("date") && field >= COVID_METRICS) {
+                    throw new QueryParseException("Only covid fields can be grouped by date, not " + column, -1);
+                }
+            }
+        }
+
+        // value of a condition: a zip code, a date (as an epoch day) or a number
+        private double value(String key) throws QueryParseException {
+            int position = positions.get(next);
+            String token = tokens.get(next);
+            int kind = kinds.get(next);
+            if (key.equals("date")) {
+                if (kind != DATE) {
+                    throw new QueryParseException("Expected a date (YYYY-MM-DD)", position);
+                }
+                next++;
+                try {
+                    return LocalDate.parse(token).toEpochDay();
+                } catch (DateTimeParseException e) {
+                    throw new QueryParseException("Invalid date " + token, position);
+                }
+            }
+            if (kind != NUMBER) {
+                throw new QueryParseException("Expected a number", position);
+            }
+            if (key.equals("zip") && (token.contains(".") || token.length() > 9)) {
+                throw new QueryParseException("Invalid zip code " + token, position);
+            }
+            next++;
+            return Double.parseDouble(token);
+        }
+
+        private int field() throws QueryParseException {
+            int position = positions.get(next);
+            int field = FIELDS.indexOf(tokens.get(next));
+            if (kinds.get(next) != WORD || field < 0) {
+                throw new QueryParseException("Expected a field (" + String.join(", ", FIELDS) + ")", position);
+            }
+            next++;
+            return field;
+        }
+
+        private String word() throws QueryParseException {
+            if (kinds.get(next) != WORD) {
+                throw new QueryParseException("Unexpected '" + tokens.get(next) + "'", positions.get(next));
+            }
+            return tokens.get(next++);
+        }
+
+        private boolean accept(String token) {
+            if (kinds.get(next) != END && tokens.get(next).equals(token)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) throws QueryParseException {
+            if (!accept(token)) {
+                throw new QueryParseException("Expected '" + token + "' but found '" + tokens.get(next) + "'",
+                        positions.get(next));
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package coviddatasystem.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * {@code QueryCache} persists {@code Processor} results on disk so that a new process run over the same input files
+ * can answer repeated queries without recomputing them.
+ *
+ * Entries live in a subdirectory named after a fingerprint of the input files (path, size and last-modified time of
+ * each file). When any input changes, the fingerprint changes, so stale entries are never read, and subdirectories
+ * of other fingerprints are deleted when the cache is opened. Within a fingerprint, each query is stored in its own
+ * file named after its key (action number and parameters).
+ *
+ * The cache is best effort: I/O errors are treated as cache misses and never fail a query.
+ */
+public class QueryCache {
+
+    // number of hex characters of the SHA-256 digest used as fingerprint
+    private static final int FINGERPRINT_LENGTH = 16;
+
+    private final Path directory;
+
+    private final String fingerprint;
+
+    /**
+     * Opens (creating if needed) the cache for a set of input files and removes entries of other fingerprints
+     * @param cacheDirectory directory holding all cached results
+     * @param inputFiles names of all input files the cached results are derived from
+     * @throws IOException when the cache directory cannot be created or an input file cannot be read
+     */
+    public QueryCache(String cacheDirectory, List<String> inputFiles) throws IOException {
+        this.fingerprint = fingerprint(inputFiles);
+        Path root = Paths.get(cacheDirectory);
+        this.directory = root.resolve(fingerprint);
+        Files.createDirectories(directory);
+        removeStaleEntries(root);
+    }
+
+    /**
+     * @return fingerprint of the input files this cache serves
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param key query key, e.g. "action3-2022-07-18-partial"
+     * @return cached map of zip codes to results, or null on a cache miss
+     */
+    public TreeMap<Integer, Double> getMap(String key) {
+        List<String> lines = readEntry(key);
+        if (lines == null) {
+            return null;
+        }
+        TreeMap<Integer, Double> result = new TreeMap<>();
+        try {
+            for (String line : lines) {
+                int separator = line.indexOf(' ');
+                result.put(Integer.parseInt(line.substring(0, separator)),
+                        Double.parseDouble(line.substring(separator + 1)));
+            }
+        } catch (RuntimeException e) {
+            // corrupt entry, treat as cache miss
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Stores a map of zip codes to results (doubles are written so they read back exactly)
+     * @param key query key
+     * @param result map to store
+     */
+    public void putMap(String key, Map<Integer, Double> result) {
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<Integer, Double> entry : result.entrySet()) {
+            contents.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        writeEntry(key, contents.toString());
+    }
+
+    /**
+     * @param key query key
+     * @return cached integer result, or null on a cache miss
+     */
+    public Integer getInteger(String key) {
+        List<String> lines = readEntry(key);
+        if (lines == null || lines.size() != 1) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(lines.get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key query key
+     * @param result integer to store
+     */
+    public void putInteger(String key, Integer result) {
+        writeEntry(key, result + "\n");
+    }
+
+    private List<String> readEntry(String key) {
+        Path entry = directory.resolve(fileName(key));
+        try {
+            return Files.readAllLines(entry, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // missing or unreadable entry is a cache miss
+            return null;
+        }
+    }
+
+    private void writeEntry(String key, String contents) {
+        Path entry = directory.resolve(fileName(key));
+        try {
+            // write to a temporary file first so readers never see a partially written entry
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(contents);
+            }
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // cache is best effort, result is simply recomputed next time
+        }
+    }
+
+    // keys only contain action numbers, dates and words, but replace anything else to keep file names safe
+    private static String fileName(String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_") + ".txt";
+    }
+
+    // delete subdirectories of fingerprints other than the current one (results of changed input files)
+    private void removeStaleEntries(Path root) throws IOException {
+        try (Stream<Path> fingerprints = Files.list(root)) {
+            for (Path stale : (Iterable<Path>) fingerprints::iterator) {
+                if (Files.isDirectory(stale) && !stale.equals(directory)) {
+                    deleteDirectory(stale);
+                }
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path stale) {
+        try (Stream<Path> entries = Files.list(stale)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                Files.deleteIfExists(entry);
+            }
+            Files.deleteIfExists(stale);
+        } catch (IOException e) {
+            // another process may be using or removing it, stale fingerprints are never read anyway
+        }
+    }
+
+    /**
+     * Computes fingerprint of input files from their absolute path, size and last-modified time
+     * @param inputFiles names of input files, in a fixed order
+     * @return hex fingerprint
+     * @throws IOException when an input file cannot be read
+     */
+    static String fingerprint(List<String> inputFiles) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (String inputFile : inputFiles) {
+            Path path = Paths.get(inputFile).toAbsolutePath().normalize();
+            String description = path + "|" + Files.size(path) + "|" + Files.getLastModifiedTime(path).toMillis() + "\n";
+            digest.update(description.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.substring(0, FINGERPRINT_LENGTH);
+    }
+}
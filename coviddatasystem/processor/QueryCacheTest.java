@@ -0,0 +1,40 @@
+package coviddatasystem.processor;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class QueryCacheTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void testResultsPersistAcrossInstances() throws IOException {
+        Path input = Files.writeString(tempDir.resolve("input.csv"), "zip_code,population\n19104,100\n");
+        String cacheDir = tempDir.resolve("cache").toString();
+        
+        TreeMap<Integer, Double> result = new TreeMap<>();
+        result.put(19104, 0.1 + 0.2);
+        new QueryCache(cacheDir, List.of(input.toString())).putMap("action7", result);
+        
+        // a new cache over unchanged inputs (e.g. in a new process) reads the exact same values
+        assertEquals(result, new QueryCache(cacheDir, List.of(input.toString())).getMap("action7"));
+    }
+    
+    @Test
+    void testChangedInputInvalidatesEntries() throws IOException {
+        Path input = Files.writeString(tempDir.resolve("input.csv"), "zip_code,population\n19104,100\n");
+        String cacheDir = tempDir.resolve("cache").toString();
+        
+        new QueryCache(cacheDir, List.of(input.toString())).putInteger("action2", 100);
+        
+        // changing the input changes its size, so the old entry is not returned
+        Files.writeString(input, "zip_code,population\n19104,100\n19103,50\n");
+        assertNull(new QueryCache(cacheDir, List.of(input.toString())).getInteger("action2"));
+    }
+}
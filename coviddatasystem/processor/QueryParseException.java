@@ -0,0 +1,34 @@
+package coviddatasystem.processor;
+
+/**
+ * The class {@code QueryParseException} is a {@code Exception} to indicate a
+ * syntax or semantic error in the text of a {@code Query}.
+ *
+ * This exception contains the position in the query text where the error was
+ * found, to help point the user at the invalid part of the query.
+ */
+public class QueryParseException extends Exception {
+    private static final long serialVersionUID = 4127730961051L;
+    private final int position;
+
+    /**
+     * Constructs a new exception with the specified detail message.
+     *
+     * @param  message the detail message (which is saved for later retrieval
+     *         by the {@link #getMessage()} method).
+     * @param  position index of the character in the query text where the
+     *         error was found, or -1 if the error is not tied to a position.
+     */
+    public QueryParseException(String message, int position) {
+        super(position < 0 ? message : message + " at position " + (position + 1));
+        this.position = position;
+    }
+
+    /**
+     * @return index of the character in the query text where the error was
+     *         found, or -1 if the error is not tied to a position.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,139 @@
+package coviddatasystem.processor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@code QueryResult} holds the rows returned by a {@code Query}: one row per group (a zip code, a date, or a single
+ * "all" row when the query is not grouped), each with one value per aggregate of the query.
+ *
+ * Each row is computed from partial aggregates (the sum, count, minimum and maximum of every column), which are kept
+ * so that results of the same query over disjoint zip codes (e.g. in different worker processes) can be merged.
+ */
+public class QueryResult {
+
+    // values per column in a partial row: sum, count, min, max
+    public static final int PARTIALS = 4;
+
+    private final String groupBy;
+
+    private final List<String> columns;
+
+    private final TreeMap<String, double[]> partialRows;
+
+    private final TreeMap<String, double[]> rows = new TreeMap<>();
+
+    /**
+     * @param groupBy "zip", "date" or "all"
+     * @param columns aggregates of the query as written, e.g. "sum(full_vacs)"
+     * @param partialRows map mapping group keys to the sum, count, min and max of each column, in column order (the
+     *                    min and max over no values are positive and negative infinity)
+     */
+    public QueryResult(String groupBy, List<String> columns, TreeMap<String, double[]> partialRows) {
+        this.groupBy = groupBy;
+        this.columns = Collections.unmodifiableList(columns);
+        this.partialRows = partialRows;
+
+        for (Map.Entry<String, double[]> row : partialRows.entrySet()) {
+            double[] partials = row.getValue();
+            double[] values = new double[columns.size()];
+            for (int column = 0; column < values.length; column++) {
+                double sum = partials[column * PARTIALS];
+                double count = partials[column * PARTIALS + 1];
+                boolean none = count == 0;
+                switch (functionOf(column)) {
+                    case "sum":
+                        values[column] = sum;
+                        break;
+                    case "avg":
+                        values[column] = none ? Double.NaN : sum / count;
+                        break;
+                    case "min":
+                        values[column] = none ? Double.NaN : partials[column * PARTIALS + 2];
+                        break;
+                    case "max":
+                        values[column] = none ? Double.NaN : partials[column * PARTIALS + 3];
+                        break;
+                    default:
+                        values[column] = count;
+                        break;
+                }
+            }
+            rows.put(row.getKey(), values);
+        }
+    }
+
+    // aggregate function of a column, e.g. "sum"
+    private String functionOf(int column) {
+        String label = columns.get(column);
+        return label.substring(0, label.indexOf('('));
+    }
+
+    /**
+     * @return "zip", "date" or "all", naming the keys of the rows
+     */
+    public String getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * @return aggregates of the query as written, e.g. "sum(full_vacs)", in column order
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param column index of a column
+     * @return true if the column is a count (a whole number)
+     */
+    public boolean isCount(int column) {
+        return functionOf(column).equals("count");
+    }
+
+    /**
+     * Rows are keyed by zip code (5 digits, with leading zeros), date (YYYY-MM-DD) or "all", and sorted by key. An
+     * average, minimum or maximum over no values is NaN; a sum over no values is 0.
+     * @return map mapping group keys to aggregate values, in column order
+     */
+    public Map<String, double[]> getRows() {
+        return Collections.unmodifiableMap(rows);
+    }
+
+    /**
+     * @return map mapping group keys to the sum, count, min and max of each column, in column order
+     */
+    public Map<String, double[]> getPartialRows() {
+        return Collections.unmodifiableMap(partialRows);
+    }
+
+    /**
+     * Merges the result of the same query over other zip codes: groups found in both results are combined, others
+     * are kept as they are
+     * @param other result of the same query
+     * @return merged result (neither result is modified)
+     */
+    public QueryResult merge(QueryResult other) {
+        TreeMap<String, double[]> merged = new TreeMap<>();
+        for (Map.Entry<String, double[]> row : partialRows.entrySet()) {
+            merged.put(row.getKey(), row.getValue().clone());
+        }
+        for (Map.Entry<String, double[]> row : other.partialRows.entrySet()) {
+            double[] partials = merged.get(row.getKey());
+            if (partials == null) {
+                merged.put(row.getKey(), row.getValue().clone());
+                continue;
+            }
+            double[] otherPartials = row.getValue();
+            for (int i = 0; i < partials.length; i += PARTIALS) {
+                partials[i] += otherPartials[i];
+                partials[i + 1] += otherPartials[i + 1];
+                partials[i + 2] = Math.min(partials[i + 2], otherPartials[i + 2]);
+                partials[i + 3] = Math.max(partials[i + 3], otherPartials[i + 3]);
+            }
+        }
+        return new QueryResult(groupBy, columns, merged);
+    }
+}
@@ -0,0 +1,132 @@
+package coviddatasystem.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import coviddatasystem.util.HeapDoubleColumn;
+import coviddatasystem.util.ZipCode;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class QueryTest {
+
+    @Test
+    void testAggregatesAndGroups() throws QueryParseException {
+        List<ZipCode[]> partitions = partitions();
+
+        QueryResult total = Query.compile("sum(population), avg(population), count(population)").evaluate(partitions);
+        assertEquals("all", total.getGroupBy());
+        assertArrayEquals(new double[]{3000, 1500, 2}, total.getRows().get("all"));
+        assertTrue(total.isCount(2));
+
+        // last snapshot of each day, within the date range
+        QueryResult byDate = Query.compile("sum(full_vacs), max(deaths) where date >= 2022-07-02 group by date")
+                .evaluate(partitions);
+        assertEquals(List.of("2022-07-02", "2022-07-03"), new ArrayList<>(byDate.getRows().keySet()));
+        assertArrayEquals(new double[]{25, 4}, byDate.getRows().get("2022-07-02"));
+        assertArrayEquals(new double[]{30, 5}, byDate.getRows().get("2022-07-03"));
+
+        // zip codes with leading zeros keep them, zip codes without matching rows are left out
+        QueryResult byZip = Query.compile("min(market_value), count(market_value) where market_value > 100 group by zip")
+                .evaluate(partitions);
+        assertEquals(List.of("02134"), new ArrayList<>(byZip.getRows().keySet()));
+        assertArrayEquals(new double[]{150, 2}, byZip.getRows().get("02134"));
+    }
+
+    @Test
+    void testConditionsMatchSerialLoop() throws QueryParseException {
+        List<ZipCode[]> partitions = partitions();
+
+        QueryResult result = Query.compile("SUM(full_vacs) WHERE zip < 19104 AND full_vacs BETWEEN 10 AND 20")
+                .evaluate(partitions);
+        double expected = 0;
+        for (ZipCode[] regions : partitions) {
+            for (ZipCode zipCode : regions) {
+                for (Double[] snapshot : zipCode.getDailyCovidData().values()) {
+                    if (zipCode.getZipCode() < 19104 && snapshot[1] >= 10 && snapshot[1] <= 20) {
+                        expected += snapshot[1];
+                    }
+                }
+            }
+        }
+        assertEquals(expected, result.getRows().get("all")[0]);
+
+        // contradictory conditions select nothing: sums are 0, other aggregates NaN
+        Map<String, double[]> none = Query.compile("sum(deaths), avg(deaths) where zip = 1 and zip = 2")
+                .evaluate(partitions).getRows();
+        assertEquals(0.0, none.get("all")[0]);
+        assertTrue(Double.isNaN(none.get("all")[1]));
+    }
+
+    @Test
+    void testInvalidQueries() {
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(unknown)"));
+        assertThrows(QueryParseException.class, () -> Query.compile("median(deaths)"));
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(deaths) where date = 2022-02-30"));
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(deaths) group by week"));
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(deaths) where deaths > 1 ;"));
+
+        // conditions must apply to the rows of every aggregate
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(population) where deaths > 1"));
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(population) where market_value > 1"));
+        assertThrows(QueryParseException.class, () -> Query.compile("sum(market_value) group by date"));
+    }
+
+    @Test
+    void testConditionOnOneFieldSelectsRowsOfTheOther() throws QueryParseException {
+        // same rows with and without value-range indexes (index or scan)
+        for (boolean indexed : new boolean[]{false, true}) {
+            List<ZipCode[]> partitions = partitions();
+            if (indexed) {
+                partitions.get(0)[0].buildPropertyIndexes();
+            }
+
+            // rows with market values 150 and 250; the livable area of the second can't be parsed
+            QueryResult result = Query.compile("avg(livable_area), count(livable_area), max(market_value) "
+                    + "where market_value > 100").evaluate(partitions);
+            assertArrayEquals(new double[]{1200, 1, 250}, result.getRows().get("all"));
+
+            // the row with a market value that can't be parsed fails the condition, its livable area is selected
+            // by a condition on livable areas only
+            QueryResult byArea = Query.compile("sum(market_value), count(market_value), sum(livable_area) "
+                    + "where livable_area <= 1000").evaluate(partitions);
+            assertArrayEquals(new double[]{50, 1, 1900}, byArea.getRows().get("all"));
+
+            QueryResult both = Query.compile("count(market_value) where market_value < 200 and livable_area > 1000")
+                    .evaluate(partitions);
+            assertArrayEquals(new double[]{1}, both.getRows().get("all"));
+        }
+    }
+
+    // two shards: 02134 with properties (one unparseable value in each column), 19103 and 19104 with covid snapshots
+    // (two on 2022-07-02)
+    private static List<ZipCode[]> partitions() {
+        ZipCode boston = new ZipCode(2134, 1000);
+        HeapDoubleColumn marketValues = new HeapDoubleColumn();
+        HeapDoubleColumn livableAreas = new HeapDoubleColumn();
+        double[][] rows = {{50, 1000}, {150, 1200}, {250, Double.NaN}, {Double.NaN, 900}};
+        for (double[] row : rows) {
+            marketValues.add(row[0]);
+            livableAreas.add(row[1]);
+        }
+        boston.mergeProperties(new ZipCode(2134, marketValues, livableAreas));
+
+        ZipCode center = new ZipCode(19103, 2000);
+        center.putCovidData("2022-07-01 09:00:00", snapshot(10, 1));
+        center.putCovidData("2022-07-02 09:00:00", snapshot(12, 2));
+        center.putCovidData("2022-07-02 18:00:00", snapshot(15, 3));
+        center.putCovidData("2022-07-03 09:00:00", snapshot(20, 5));
+
+        ZipCode west = new ZipCode(19104, 0);
+        west.putCovidData("2022-07-02 09:00:00", snapshot(10, 4));
+        west.putCovidData("2022-07-03 09:00:00", snapshot(10, 1));
+
+        return List.of(new ZipCode[]{boston}, new ZipCode[]{center, west});
+    }
+
+    private static Double[] snapshot(double fullVacs, double deaths) {
+        return new Double[]{0.0, fullVacs, 0.0, 0.0, deaths, 0.0, 0.0};
+    }
+}
@@ -0,0 +1,67 @@
+package coviddatasystem.processor;
+
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+import coviddatasystem.util.ZipCode;
+
+/**
+ * {@code RegionTask} evaluates a per-zip calculation over a range of zip codes on the fork-join pool.
+ *
+ * The range is split in half until it is at most {@code THRESHOLD} zip codes, each leaf writes into its own partial
+ * map, and partial maps are merged on the way back up. Because the input array is sorted by zip code and the left
+ * half always covers smaller zip codes, the merged map is identical to the one a serial loop would build.
+ */
+class RegionTask extends RecursiveTask<TreeMap<Integer, Double>> {
+    private static final long serialVersionUID = 1L;
+
+    // number of zip codes below which a task is evaluated serially
+    static final int THRESHOLD = 64;
+
+    private final ZipCode[] regions;
+    private final int start;
+    private final int end;
+
+    // returns result for a zip code, or null if the zip code should be left out of the output
+    private final Function<ZipCode, Double> calculation;
+
+    /**
+     * @param regions ZipCode objects sorted by zip code
+     * @param start index of first zip code to evaluate (inclusive)
+     * @param end index of last zip code to evaluate (exclusive)
+     * @param calculation per-zip calculation, returning null to skip a zip code
+     */
+    RegionTask(ZipCode[] regions, int start, int end, Function<ZipCode, Double> calculation) {
+        this.regions = regions;
+        this.start = start;
+        this.end = end;
+        this.calculation = calculation;
+    }
+
+    @Override
+    protected TreeMap<Integer, Double> compute() {
+        if (end - start <= THRESHOLD) {
+            // small enough, evaluate zip codes serially into a partial result
+            TreeMap<Integer, Double> partial = new TreeMap<>();
+            for (int i = start; i < end; i++) {
+                Double result = calculation.apply(regions[i]);
+                if (result != null) {
+                    partial.put(regions[i].getZipCode(), result);
+                }
+            }
+            return partial;
+        }
+
+        // otherwise, split range in half, evaluating right half in this thread while left half is forked
+        int mid = (start + end) >>> 1;
+        RegionTask left = new RegionTask(regions, start, mid, calculation);
+        left.fork();
+        TreeMap<Integer, Double> right = new RegionTask(regions, mid, end, calculation).compute();
+        TreeMap<Integer, Double> merged = left.join();
+
+        // every key in right half is larger than keys in left half, so entries are appended in order
+        merged.putAll(right);
+        return merged;
+    }
+}
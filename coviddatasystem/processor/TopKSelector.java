@@ -0,0 +1,149 @@
+package coviddatasystem.processor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * {@code TopKSelector} keeps the k best (zip code, value) pairs offered to it, highest or lowest values first, in a
+ * bounded binary heap. Each offer is O(log k) and nothing but the k retained pairs is stored, so ranking n zip codes
+ * costs O(n log k) without building or sorting a map of all n results.
+ *
+ * Ties are broken by smaller zip code first, so the ranking is deterministic (and selectors over disjoint zip codes
+ * can be merged in any order). NaN values are ignored.
+ */
+public class TopKSelector {
+
+    private final int k;
+
+    // true to keep the highest values, false to keep the lowest
+    private final boolean highest;
+
+    // capacity of the heap arrays before any pair is offered (they grow up to k as pairs are retained)
+    private static final int INITIAL_CAPACITY = 16;
+
+    // heap of retained pairs (parallel primitive arrays), with the worst retained pair at index 0
+    private int[] zips;
+    private double[] values;
+    private int size = 0;
+
+    /**
+     * @param k number of pairs to keep
+     * @param highest true to keep the highest values, false to keep the lowest
+     */
+    public TopKSelector(int k, boolean highest) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1: " + k);
+        }
+        this.k = k;
+        this.highest = highest;
+        // k may be far more than the number of zip codes (e.g. "all of them"), so do not allocate k slots up front
+        this.zips = new int[Math.min(k, INITIAL_CAPACITY)];
+        this.values = new double[zips.length];
+    }
+
+    // true if pair a ranks before pair b
+    private boolean better(double valueA, int zipA, double valueB, int zipB) {
+        if (valueA != valueB) {
+            return highest ? valueA > valueB : valueA < valueB;
+        }
+        return zipA < zipB;
+    }
+
+    /**
+     * Offers a pair, keeping it if it is among the k best offered so far
+     */
+    public void offer(int zip, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (size < k) {
+            if (size == zips.length) {
+                int capacity = (int) Math.min(k, 2L * size);
+                zips = Arrays.copyOf(zips, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            zips[size] = zip;
+            values[size] = value;
+            siftUp(size++);
+        } else if (better(value, zip, values[0], zips[0])) {
+            // replace worst retained pair
+            zips[0] = zip;
+            values[0] = value;
+            siftDown(0);
+        }
+    }
+
+    // move pair at i towards the root while it is worse than its parent
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(values[parent], zips[parent], values[i], zips[i])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    // move pair at i away from the root while a child is worse than it
+    private void siftDown(int i) {
+        while (true) {
+            int worst = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                if (better(values[worst], zips[worst], values[child], zips[child])) {
+                    worst = child;
+                }
+            }
+            if (worst == i) {
+                return;
+            }
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int zip = zips[i];
+        zips[i] = zips[j];
+        zips[j] = zip;
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Offers every pair retained by another selector (with the same k and order), e.g. one built over another shard
+     * @param other selector to merge (not modified)
+     */
+    public void merge(TopKSelector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.zips[i], other.values[i]);
+        }
+    }
+
+    /**
+     * @return number of pairs retained (at most k)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return retained pairs mapping zip code to value, in rank order (best first)
+     */
+    public LinkedHashMap<Integer, Double> toRankedMap() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // only k pairs are sorted, never the full input
+        Arrays.sort(order, (a, b) -> better(values[a], zips[a], values[b], zips[b]) ? -1
+                : better(values[b], zips[b], values[a], zips[a]) ? 1 : 0);
+
+        LinkedHashMap<Integer, Double> ranked = new LinkedHashMap<>();
+        for (int i : order) {
+            ranked.put(zips[i], values[i]);
+        }
+        return ranked;
+    }
+}
@@ -0,0 +1,70 @@
+package coviddatasystem.processor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class TopKSelectorTest {
+    
+    @Test
+    void testMatchesFullSort() {
+        Random random = new Random(1);
+        TopKSelector highest = new TopKSelector(10, true);
+        TopKSelector lowest = new TopKSelector(10, false);
+        List<double[]> all = new ArrayList<>();
+        
+        for (int zip = 10000; zip < 15000; zip++) {
+            // few distinct values, so ties must be broken by zip code
+            double value = random.nextInt(500);
+            highest.offer(zip, value);
+            lowest.offer(zip, value);
+            all.add(new double[]{value, zip});
+        }
+        
+        all.sort(Comparator.<double[]>comparingDouble(pair -> -pair[0]).thenComparingDouble(pair -> pair[1]));
+        // ranked order matters, so compare entry lists rather than maps
+        assertEquals(expected(all.subList(0, 10)), new ArrayList<>(highest.toRankedMap().entrySet()));
+        
+        all.sort(Comparator.<double[]>comparingDouble(pair -> pair[0]).thenComparingDouble(pair -> pair[1]));
+        assertEquals(expected(all.subList(0, 10)), new ArrayList<>(lowest.toRankedMap().entrySet()));
+    }
+    
+    @Test
+    void testFewerPairsThanK() {
+        TopKSelector selector = new TopKSelector(5, true);
+        selector.offer(19104, 2.0);
+        selector.offer(19103, Double.NaN);
+        selector.offer(19102, 3.0);
+        
+        // NaN is ignored, remaining pairs are in rank order
+        assertEquals(2, selector.size());
+        assertEquals(List.of(19102, 19104), new ArrayList<>(selector.toRankedMap().keySet()));
+    }
+    
+    @Test
+    void testKFarAboveNumberOfPairs() {
+        // heap arrays grow with the pairs offered, not with k
+        TopKSelector selector = new TopKSelector(Integer.MAX_VALUE, false);
+        for (int zip = 10000; zip < 10100; zip++) {
+            selector.offer(zip, 10100 - zip);
+        }
+        
+        assertEquals(100, selector.size());
+        List<Integer> ranked = new ArrayList<>(selector.toRankedMap().keySet());
+        assertEquals(10099, ranked.get(0));
+        assertEquals(10000, ranked.get(99));
+    }
+    
+    private static List<Map.Entry<Integer, Double>> expected(List<double[]> pairs) {
+        List<Map.Entry<Integer, Double>> expected = new ArrayList<>();
+        for (double[] pair : pairs) {
+            expected.add(Map.entry((int) pair[1], pair[0]));
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,78 @@
+package coviddatasystem.processor;
+
+import java.time.LocalDate;
+
+/**
+ * {@code VaccinationMatrix} holds partial or full vaccinations per capita of many zip codes over a range of dates, as
+ * computed by {@code Processor.getVaccinationsPerCapita(int[], String, String, boolean)}: one row per zip code (in
+ * the order requested) and one column per calendar day of the range.
+ *
+ * A value is the same as action 3 returns for that zip code and date: 0 when the zip code has no snapshot on the day.
+ * Zip codes action 3 leaves out (unknown zip codes and zip codes without population) have rows of NaN.
+ */
+public class VaccinationMatrix {
+
+    private final int[] zipCodes;
+
+    private final String[] dates;
+
+    private final double[][] values;
+
+    /**
+     * @param zipCodes zip code of each row
+     * @param dates date (YYYY-MM-DD) of each column, in ascending order
+     * @param values one row of values per zip code, one value per date
+     */
+    public VaccinationMatrix(int[] zipCodes, String[] dates, double[][] values) {
+        this.zipCodes = zipCodes;
+        this.dates = dates;
+        this.values = values;
+    }
+
+    /**
+     * Lists the columns of a matrix over a date range
+     * @param fromDate first date (YYYY-MM-DD)
+     * @param toDate last date (YYYY-MM-DD), inclusive
+     * @return every calendar day from fromDate to toDate, in ascending order
+     * @throws java.time.format.DateTimeParseException when a date is not a valid date
+     * @throws IllegalArgumentException when toDate is before fromDate
+     */
+    public static String[] datesBetween(String fromDate, String toDate) {
+        LocalDate first = LocalDate.parse(fromDate);
+        LocalDate last = LocalDate.parse(toDate);
+        if (last.isBefore(first)) {
+            throw new IllegalArgumentException("Date range ends before it starts: " + fromDate + " to " + toDate);
+        }
+        return first.datesUntil(last.plusDays(1)).map(LocalDate::toString).toArray(String[]::new);
+    }
+
+    /**
+     * @return zip code of each row (not copied)
+     */
+    public int[] getZipCodes() {
+        return zipCodes;
+    }
+
+    /**
+     * @return date of each column (not copied)
+     */
+    public String[] getDates() {
+        return dates;
+    }
+
+    /**
+     * @return rows of values, values[row][column] (not copied)
+     */
+    public double[][] getValues() {
+        return values;
+    }
+
+    /**
+     * @param row row index, matching getZipCodes()
+     * @param column column index, matching getDates()
+     * @return vaccinations per capita of the zip code on the date
+     */
+    public double get(int row, int column) {
+        return values[row][column];
+    }
+}
@@ -0,0 +1,421 @@
+package coviddatasystem.tools;
+
+import coviddatasystem.datamanagement.CovidMultiFileLoader;
+import coviddatasystem.datamanagement.DatasetLoader;
+import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.processor.Processor;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.LatencyHistogram;
+import coviddatasystem.util.ShardedRegionStore;
+import coviddatasystem.util.ZipCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@code LoadTest} calls {@code Processor} actions 2-7 from many threads at once, against fully loaded datasets, for a
+ * fixed duration. It reports throughput and latency percentiles per action, which show lock contention and the effect
+ * of the memoization caches under concurrency (a single query at a time shows neither).
+ *
+ * Each thread picks actions at random from a weighted mix, with random zip codes (actions 4-6) and dates (action 3)
+ * drawn from the loaded data. The test is closed-loop: a thread issues its next call when the previous one returns.
+ * Calls made during the warmup period are not recorded.
+ *
+ * With "--reload=N", every provided dataset is reloaded from its files every N seconds while the test runs, so the
+ * latencies include queries running during reloads (on the previous dataset version) and recomputing memoized results
+ * after each reload.
+ *
+ * Usage (all arguments in the "--name=value" format used by Main):
+ *   java coviddatasystem.tools.LoadTest --covid=covid_data.csv --population=population.csv
+ *        --properties=properties.csv --threads=8 --duration=10 --warmup=2 --mix=2:1,3:1,4:1,5:1,6:1,7:1
+ *        --executor=platform --seed=42 --storage=heap --shards=4 --metrics=loadtest.txt
+ *
+ * "--executor=virtual" runs one virtual thread per worker, which requires Java 21 or later.
+ */
+public class LoadTest {
+
+    // actions that can be part of the mix
+    private static final int FIRST_ACTION = 2;
+    private static final int LAST_ACTION = 7;
+
+    private final Processor processor;
+
+    // inputs for actions that take a zip code or a date, drawn from the loaded data
+    private final String[] zips;
+    private final String[] dates;
+
+    // actions and their cumulative weights, e.g. {2, 3} and {1, 3} for the mix "2:1,3:2"
+    private final int[] mixActions;
+    private final int[] mixCumulativeWeights;
+
+    /**
+     * @param processor processor over fully loaded datasets
+     * @param mix weights of actions, e.g. "2:1,3:1,4:5" (actions 2 to 7)
+     * @throws IllegalArgumentException when the mix is invalid
+     */
+    public LoadTest(Processor processor, String mix) {
+        this.processor = processor;
+
+        TreeSet<String> distinctDates = new TreeSet<>();
+        List<String> zipList = new ArrayList<>();
+        for (Map.Entry<Integer, ZipCode> entry : processor.getZipCodes().entrySet()) {
+            zipList.add(String.format("%05d", entry.getKey()));
+            for (String timestamp : entry.getValue().getCovidDataAsOfTime().keySet()) {
+                distinctDates.add(timestamp.substring(0, 10));
+            }
+        }
+        this.zips = zipList.toArray(new String[0]);
+        this.dates = distinctDates.toArray(new String[0]);
+
+        String[] parts = mix.split(",");
+        this.mixActions = new int[parts.length];
+        this.mixCumulativeWeights = new int[parts.length];
+        int totalWeight = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] actionAndWeight = parts[i].split(":");
+            int action;
+            int weight;
+            try {
+                action = Integer.parseInt(actionAndWeight[0].trim());
+                weight = actionAndWeight.length > 1 ? Integer.parseInt(actionAndWeight[1].trim()) : 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Mix entries must be in the form action:weight: " + parts[i]);
+            }
+            if (action < FIRST_ACTION || action > LAST_ACTION || weight < 1) {
+                throw new IllegalArgumentException("Mix actions must be between " + FIRST_ACTION + " and " +
+                        LAST_ACTION + " with a positive weight: " + parts[i]);
+            }
+            if ((action >= 4 && action <= 6 && zips.length == 0) || (action == 3 && dates.length == 0)) {
+                throw new IllegalArgumentException("Action " + action + " has no input data to query");
+            }
+            totalWeight += weight;
+            mixActions[i] = action;
+            mixCumulativeWeights[i] = totalWeight;
+        }
+    }
+
+    /**
+     * Result of one worker thread: a latency histogram (nanoseconds) per action
+     */
+    private static class WorkerResult {
+        final LatencyHistogram[] histograms = new LatencyHistogram[LAST_ACTION + 1];
+
+        // combined hash of results, so calls cannot be optimized away
+        long sink;
+
+        WorkerResult() {
+            for (int action = FIRST_ACTION; action <= LAST_ACTION; action++) {
+                histograms[action] = new LatencyHistogram();
+            }
+        }
+    }
+
+    // calls one action with random inputs and returns a hash of its result
+    private int call(int action, SplittableRandom random) {
+        switch (action) {
+            case 2:
+                return processor.getTotalPopulation().hashCode();
+            case 3:
+                return processor.getVaccinationsPerCapita(dates[random.nextInt(dates.length)], random.nextBoolean())
+                        .size();
+            case 4:
+                return processor.getAverageMarketValue(zips[random.nextInt(zips.length)]).hashCode();
+            case 5:
+                return processor.getAverageLivableArea(zips[random.nextInt(zips.length)]).hashCode();
+            case 6:
+                return processor.getMarketValuePerCapita(zips[random.nextInt(zips.length)]).hashCode();
+            default:
+                return processor.getUnvaccinatedPersonsPerTotalLiveableArea().size();
+        }
+    }
+
+    private int pickAction(SplittableRandom random) {
+        int pick = random.nextInt(mixCumulativeWeights[mixCumulativeWeights.length - 1]);
+        for (int i = 0; i < mixCumulativeWeights.length; i++) {
+            if (pick < mixCumulativeWeights[i]) {
+                return mixActions[i];
+            }
+        }
+        return mixActions[mixActions.length - 1];
+    }
+
+    // runs actions until the deadline, recording latencies of calls started after warmupEnd
+    private WorkerResult work(SplittableRandom random, long warmupEnd, long deadline) {
+        WorkerResult result = new WorkerResult();
+        long now = System.nanoTime();
+        while (now < deadline) {
+            int action = pickAction(random);
+            long start = System.nanoTime();
+            result.sink += call(action, random);
+            now = System.nanoTime();
+            if (start >= warmupEnd) {
+                result.histograms[action].record(now - start);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the load test and merges latencies of all threads
+     * @param executor executor running one worker per thread, shut down when the test ends
+     * @param threads number of concurrent workers
+     * @param warmupSeconds seconds of calls that are not recorded
+     * @param durationSeconds seconds of recorded calls
+     * @param seed seed of the random action and input choices
+     * @return latency histogram per action (index 2 to 7), with unused entries null
+     * @throws InterruptedException when interrupted while waiting for the workers
+     * @throws ExecutionException when an action throws
+     */
+    public LatencyHistogram[] run(ExecutorService executor, int threads, double warmupSeconds, double durationSeconds,
+                                  long seed) throws InterruptedException, ExecutionException {
+        SplittableRandom seedRandom = new SplittableRandom(seed);
+        long warmupEnd = System.nanoTime() + (long) (warmupSeconds * 1e9);
+        long deadline = warmupEnd + (long) (durationSeconds * 1e9);
+
+        List<Future<WorkerResult>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                SplittableRandom random = seedRandom.split();
+                futures.add(executor.submit(() -> work(random, warmupEnd, deadline)));
+            }
+
+            LatencyHistogram[] merged = new LatencyHistogram[LAST_ACTION + 1];
+            for (Future<WorkerResult> future : futures) {
+                WorkerResult result = future.get();
+                for (int action = FIRST_ACTION; action <= LAST_ACTION; action++) {
+                    if (merged[action] == null) {
+                        merged[action] = new LatencyHistogram();
+                    }
+                    merged[action].merge(result.histograms[action]);
+                }
+            }
+            return merged;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints throughput and latency percentiles (microseconds) per action and overall, and records them in metrics
+     * as "loadtest.action{n}.{count|p50_ns|p99_ns|p999_ns|max_ns}"
+     */
+    public static void report(LatencyHistogram[] histograms, double durationSeconds, Metrics metrics) {
+        report(histograms, durationSeconds, metrics, "loadtest");
+    }
+
+    /**
+     * Prints throughput and latency percentiles (microseconds) per action and overall, and records them in metrics
+     * as "{metricsPrefix}.action{n}.{count|p50_ns|p99_ns|p999_ns|max_ns}"
+     * @param histograms latency histogram (nanoseconds) indexed by action number, with unused entries null
+     */
+    public static void report(LatencyHistogram[] histograms, double durationSeconds, Metrics metrics,
+                              String metricsPrefix) {
+        System.out.println(String.format("%-8s %10s %12s %10s %10s %10s %10s %10s", "action", "calls", "calls/s",
+                "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)"));
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (int action = 0; action < histograms.length; action++) {
+            LatencyHistogram histogram = histograms[action];
+            if (histogram == null || histogram.getCount() == 0) {
+                continue;
+            }
+            all.merge(histogram);
+            printRow(String.valueOf(action), histogram, durationSeconds);
+
+            String prefix = metricsPrefix + ".action" + action + ".";
+            metrics.set(prefix + "count", histogram.getCount());
+            metrics.set(prefix + "p50_ns", histogram.getValueAtPercentile(50.0));
+            metrics.set(prefix + "p99_ns", histogram.getValueAtPercentile(99.0));
+            metrics.set(prefix + "p999_ns", histogram.getValueAtPercentile(99.9));
+            metrics.set(prefix + "max_ns", histogram.getMax());
+        }
+        printRow("all", all, durationSeconds);
+    }
+
+    private static void printRow(String label, LatencyHistogram histogram, double durationSeconds) {
+        System.out.println(String.format(Locale.ROOT, "%-8s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f", label,
+                histogram.getCount(), histogram.getCount() / durationSeconds, histogram.getMean() / 1000,
+                histogram.getValueAtPercentile(50.0) / 1000.0, histogram.getValueAtPercentile(99.0) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    // executor with one virtual thread per task (Java 21+), looked up reflectively so this compiles on Java 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Virtual threads require Java 21 or later (running " +
+                    Runtime.version() + "), use --executor=platform");
+        }
+    }
+
+    /**
+     * Loads the given datasets, then runs the load test from "--name=value" arguments: covid, population,
+     * properties, storage, shards, threads, duration, warmup, mix, executor, seed, metrics, reload
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("covid", "");
+        options.put("population", "");
+        options.put("properties", "");
+        options.put("storage", "heap");
+        options.put("shards", String.valueOf(ShardedRegionStore.DEFAULT_SHARDS));
+        options.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        options.put("duration", "10");
+        options.put("warmup", "2");
+        options.put("mix", "2:1,3:1,4:1,5:1,6:1,7:1");
+        options.put("executor", "platform");
+        options.put("seed", "42");
+        options.put("metrics", "");
+        options.put("reload", "0");
+
+        Pattern validArg = Pattern.compile("^--(?<name>.+)=(?<value>.+)$");
+        for (String arg : args) {
+            Matcher matcher = validArg.matcher(arg);
+            if (!matcher.matches() || !options.containsKey(matcher.group("name"))) {
+                System.out.println("Error: " + arg + " is not a valid argument. Valid names are: " + options.keySet());
+                return;
+            }
+            options.put(matcher.group("name"), matcher.group("value"));
+        }
+
+        DatasetLoader loader = null;
+        ScheduledExecutorService reloader = null;
+        try {
+            loader = new DatasetLoader(Logger.getInstance(), Integer.parseInt(options.get("shards")));
+            int threads = Integer.parseInt(options.get("threads"));
+            double duration = Double.parseDouble(options.get("duration"));
+            double warmup = Double.parseDouble(options.get("warmup"));
+            long seed = Long.parseLong(options.get("seed"));
+            double reload = Double.parseDouble(options.get("reload"));
+            ColumnStorage storage = ColumnStorage.fromArgument(options.get("storage"));
+            if (threads < 1 || duration <= 0 || warmup < 0 || reload < 0 || storage == null) {
+                System.out.println("Error: threads and duration must be positive, warmup and reload must not be " +
+                        "negative and storage must be 'heap' or 'offheap'.");
+                return;
+            }
+
+            boolean virtual = options.get("executor").equalsIgnoreCase("virtual");
+            if (!virtual && !options.get("executor").equalsIgnoreCase("platform")) {
+                System.out.println("Error: executor must be 'platform' or 'virtual'.");
+                return;
+            }
+            // virtual thread executors hold no idle threads, so one can be created before loading
+            ExecutorService executor = virtual ? newVirtualThreadExecutor() : null;
+
+            String covid = options.get("covid");
+            List<String> covidFiles = null;
+            String covidExtension = null;
+            if (new File(covid).isDirectory() || CovidMultiFileLoader.isGlob(covid)) {
+                covidFiles = CovidMultiFileLoader.resolve(covid);
+                loader.loadCovid(covidFiles);
+            } else if (!covid.isEmpty()) {
+                Matcher covidFile = Pattern.compile(".*\\.(?<ext>json|csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE)
+                        .matcher(covid);
+                if (!covidFile.matches()) {
+                    System.out.println("Error: The covid file must have extension 'json' or 'csv'.");
+                    return;
+                }
+                covidExtension = covidFile.group("ext").toLowerCase();
+                loader.loadCovid(covid, covidExtension);
+            }
+            if (!options.get("population").isEmpty()) {
+                loader.loadPopulation(options.get("population"));
+            }
+            if (!options.get("properties").isEmpty()) {
+                loader.loadProperties(options.get("properties"), storage);
+            }
+
+            // load and merge every dataset up front, so loading is not part of the measured latencies
+            long loadStart = System.nanoTime();
+            loader.requireAll();
+            System.out.println(String.format(Locale.ROOT, "Loaded %d zip codes in %.1f s", loader.getZipCodes().size(),
+                    (System.nanoTime() - loadStart) / 1e9));
+
+            LoadTest loadTest = new LoadTest(new Processor(loader, Logger.getInstance()), options.get("mix"));
+            System.out.println("Running " + threads + " " + options.get("executor") + " threads for " + duration +
+                    " s (after " + warmup + " s warmup), mix " + options.get("mix"));
+
+            AtomicInteger reloads = new AtomicInteger();
+            if (reload > 0) {
+                DatasetLoader datasets = loader;
+                List<String> feed = covidFiles;
+                String extension = covidExtension;
+                reloader = Executors.newSingleThreadScheduledExecutor();
+                long delay = (long) (reload * 1000);
+                reloader.scheduleWithFixedDelay(() -> {
+                    try {
+                        reloadAll(datasets, options, feed, extension, storage);
+                        reloads.incrementAndGet();
+                    } catch (ExecutionException e) {
+                        System.out.println("An exception was thrown while reloading the datasets.");
+                        e.getCause().printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, delay, delay, TimeUnit.MILLISECONDS);
+            }
+
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threads);
+            }
+            LatencyHistogram[] histograms = loadTest.run(executor, threads, warmup, duration, seed);
+            Metrics metrics = Metrics.getInstance();
+            report(histograms, duration, metrics);
+            if (reload > 0) {
+                System.out.println("Reloaded datasets " + reloads.get() + " times during the test");
+                metrics.set("loadtest.reloads", reloads.get());
+            }
+
+            if (!options.get("metrics").isEmpty()) {
+                metrics.setOutput(options.get("metrics"));
+                metrics.write();
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: shards, threads, duration, warmup and seed must be numbers.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            System.out.println("An exception was thrown while loading the datasets.");
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            System.out.println("An exception was thrown by an action during the load test.");
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("An IOException was thrown.");
+            e.printStackTrace();
+        } finally {
+            if (reloader != null) {
+                reloader.shutdownNow();
+            }
+            if (loader != null) {
+                loader.close();
+            }
+        }
+    }
+
+    // reload every provided dataset from the same files and wait until each new version is published
+    private static void reloadAll(DatasetLoader loader, Map<String, String> options, List<String> covidFiles,
+                                  String covidExtension, ColumnStorage storage)
+            throws InterruptedException, ExecutionException {
+        if (covidFiles != null) {
+            loader.reloadCovid(covidFiles).get();
+        } else if (!options.get("covid").isEmpty()) {
+            loader.reloadCovid(options.get("covid"), covidExtension).get();
+        }
+        if (!options.get("population").isEmpty()) {
+            loader.reloadPopulation(options.get("population")).get();
+        }
+        if (!options.get("properties").isEmpty()) {
+            loader.reloadProperties(options.get("properties"), storage).get();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package coviddatasystem.tools;
+
+import coviddatasystem.datamanagement.CovidMultiFileLoader;
+import coviddatasystem.datamanagement.DatasetLoader;
+import coviddatasystem.logging.Logger;
+import coviddatasystem.logging.Metrics;
+import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.Query;
+import coviddatasystem.processor.QueryParseException;
+import coviddatasystem.util.ColumnStorage;
+import coviddatasystem.util.LatencyHistogram;
+import coviddatasystem.util.ShardedRegionStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@code SessionReplay} re-runs user sessions recorded by {@code Logger} ("--log=" of Main) against a loaded
+ * {@code Processor} and reports latency percentiles per action, so recorded user traffic becomes a repeatable
+ * benchmark.
+ *
+ * A log holds one "&lt;epoch millis&gt; &lt;event&gt;" line per event. A session starts with the line of runtime
+ * arguments, followed by every line the user entered (menu choices and the inputs each action prompts for) mixed with
+ * the names of input files as they were read, and ends with menu choice 0; a log appended to by several runs holds
+ * several sessions. Sessions are parsed the way {@code UserInterface} reads input: a line the pending prompt would not
+ * accept (an input the user corrected, or a file name) is skipped, and each action becomes one call, timed at its last
+ * input. The runtime arguments line lists file names only, so the datasets of a session are taken from this tool's
+ * arguments, and sessions should be replayed against the datasets they were recorded with.
+ *
+ * Timing ("--speed="): 1 keeps the recorded pauses between the calls of a session, N shortens them N times, and "max"
+ * issues each call as soon as the previous one returns. Every session runs on its own thread, starting at its recorded
+ * offset from the earliest session (scaled by the speed) with "--align=recorded", or all at once with
+ * "--align=together"; "--repeat=N" runs N copies of every session. In a timed replay a call's latency is measured from
+ * the time it was due, so a call held up by a slow earlier call of its session includes the wait its user would have
+ * seen.
+ *
+ * Usage (all arguments in the "--name=value" format used by Main, log files separated by commas):
+ *   java coviddatasystem.tools.SessionReplay --logs=log1.txt,log2.txt --covid=covid_data.csv
+ *        --population=population.csv --properties=properties.csv --speed=10 --repeat=4 --align=recorded
+ *        --storage=heap --shards=4 --metrics=replay.txt
+ */
+public class SessionReplay {
+
+    // highest menu action (see UserInterface)
+    private static final int MAX_ACTION = 14;
+
+    // "<epoch millis> <event>", as written by Logger
+    private static final Pattern LOG_LINE = Pattern.compile("^(?<millis>\\d+) (?<event>.*)$");
+
+    // inputs accepted by each prompt of UserInterface
+    private static final Predicate<String> ZIP = input -> input.matches("\\d{5}");
+    private static final Predicate<String> DATE = input -> input.matches("\\d{4}-\\d{2}-\\d{2}");
+    private static final Predicate<String> WEEK = input -> input.matches("\\d{4}-W(0[1-9]|[1-4]\\d|5[0-3])");
+    private static final Predicate<String> PARTIAL_OR_FULL = input -> input.equals("partial") || input.equals("full");
+    private static final Predicate<String> HIGHEST_OR_LOWEST = input -> input.equals("highest")
+            || input.equals("lowest");
+    private static final Predicate<String> PERCENTILE = input -> {
+        try {
+            double percentile = Double.parseDouble(input);
+            return percentile >= 0 && percentile <= 100;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    };
+    private static final Predicate<String> COUNT = input -> input.matches("\\d{1,9}") && Integer.parseInt(input) > 0;
+    private static final Predicate<String> QUERY = input -> {
+        try {
+            Query.compile(input);
+            return true;
+        } catch (QueryParseException e) {
+            return false;
+        }
+    };
+
+    /**
+     * One Processor call of a recorded session
+     */
+    static final class Call {
+        // milliseconds from the start of the session to the last input of the call
+        final long offsetMillis;
+
+        final int action;
+
+        // inputs in prompt order, as entered
+        final String[] inputs;
+
+        Call(long offsetMillis, int action, String[] inputs) {
+            this.offsetMillis = offsetMillis;
+            this.action = action;
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * Calls of one recorded session, in order
+     */
+    static final class Session {
+        // epoch millis of the runtime arguments line
+        final long startMillis;
+
+        final List<Call> calls = new ArrayList<>();
+
+        Session(long startMillis) {
+            this.startMillis = startMillis;
+        }
+    }
+
+    private final Processor processor;
+
+    /**
+     * @param processor processor over fully loaded datasets
+     */
+    public SessionReplay(Processor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Parses the sessions of one log file
+     * @param lines lines of the log
+     * @param hasCovidData true if covid data is replayed (as the "--covid" argument of Main)
+     * @param hasPopulationData true if population data is replayed
+     * @param hasPropertiesData true if properties data is replayed
+     * @return sessions in log order (a session cut off by the end of the log keeps its calls)
+     */
+    static List<Session> parse(List<String> lines, boolean hasCovidData, boolean hasPopulationData,
+                               boolean hasPropertiesData) {
+        List<Session> sessions = new ArrayList<>();
+        Session session = null;
+        Set<String> fileNames = new HashSet<>();
+
+        // action waiting for inputs, the inputs entered so far and the prompts of the action
+        int action = 0;
+        List<String> inputs = new ArrayList<>();
+        List<Predicate<String>> prompts = Collections.emptyList();
+
+        for (String line : lines) {
+            Matcher matcher = LOG_LINE.matcher(line);
+            if (!matcher.matches()) {
+                // not written by Logger (e.g. other output on the same stream)
+                continue;
+            }
+            long millis = Long.parseLong(matcher.group("millis"));
+            String event = matcher.group("event");
+
+            if (session == null) {
+                // runtime arguments: file names logged later in the session are skipped
+                session = new Session(millis);
+                sessions.add(session);
+                fileNames = new HashSet<>(Arrays.asList(event.trim().split(" ")));
+                continue;
+            }
+            if (fileNames.contains(event)) {
+                continue;
+            }
+
+            if (inputs.size() < prompts.size()) {
+                if (prompts.get(inputs.size()).test(event)) {
+                    inputs.add(event);
+                    if (inputs.size() == prompts.size()) {
+                        addCall(session, millis, action, inputs, hasCovidData, hasPopulationData, hasPropertiesData);
+                    }
+                }
+                continue;
+            }
+
+            if (!event.matches("\\d{1,2}") || Integer.parseInt(event) > MAX_ACTION) {
+                continue;
+            }
+            action = Integer.parseInt(event);
+            inputs = new ArrayList<>();
+            prompts = prompts(action, hasCovidData, hasPopulationData, hasPropertiesData);
+            if (action == 0) {
+                session = null;
+            } else if (prompts.isEmpty()) {
+                addCall(session, millis, action, inputs, hasCovidData, hasPopulationData, hasPropertiesData);
+            }
+        }
+        return sessions;
+    }
+
+    // prompts UserInterface shows for an action, none if the action is rejected for missing data
+    private static List<Predicate<String>> prompts(int action, boolean covid, boolean population, boolean properties) {
+        switch (action) {
+            case 3:
+                return (covid && population) ? List.of(PARTIAL_OR_FULL, DATE) : List.of();
+            case 4:
+            case 5:
+                return properties ? List.of(ZIP) : List.of();
+            case 6:
+                return (properties && population) ? List.of(ZIP) : List.of();
+            case 8:
+            case 9:
+                return properties ? List.of(ZIP, PERCENTILE) : List.of();
+            case 11:
+                return (covid && population) ? List.of(PARTIAL_OR_FULL, DATE, HIGHEST_OR_LOWEST, COUNT) : List.of();
+            case 12:
+                return (properties && population) ? List.of(HIGHEST_OR_LOWEST, COUNT) : List.of();
+            case 13:
+                return (covid && population) ? List.of(PARTIAL_OR_FULL, WEEK) : List.of();
+            case 14:
+                // the query is read before its datasets are checked
+                return List.of(QUERY);
+            default:
+                return List.of();
+        }
+    }
+
+    // add the call of a complete action, unless UserInterface rejects it for missing data
+    private static void addCall(Session session, long millis, int action, List<String> inputs, boolean covid,
+                                boolean population, boolean properties) {
+        boolean runs;
+        switch (action) {
+            case 2:
+                runs = population;
+                break;
+            case 3:
+            case 11:
+            case 13:
+                runs = covid && population;
+                break;
+            case 4:
+            case 5:
+            case 8:
+            case 9:
+                runs = properties;
+                break;
+            case 6:
+            case 12:
+                runs = properties && population;
+                break;
+            case 7:
+                runs = covid && population && properties;
+                break;
+            case 10:
+                runs = true;
+                break;
+            case 14:
+                Query query = compile(inputs.get(0));
+                runs = (!query.readsCovid() || covid) && (!query.readsPopulation() || population)
+                        && (!query.readsProperties() || properties);
+                break;
+            default:
+                // action 1 only shows the menu
+                runs = false;
+                break;
+        }
+        if (runs) {
+            session.calls.add(new Call(millis - session.startMillis, action, inputs.toArray(new String[0])));
+        }
+    }
+
+    private static Query compile(String text) {
+        try {
+            return Query.compile(text);
+        } catch (QueryParseException e) {
+            // only called for queries accepted by the query prompt
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    // runs one call and returns a hash of its result, so calls cannot be optimized away
+    private int call(Call call) {
+        String[] in = call.inputs;
+        switch (call.action) {
+            case 2:
+                return processor.getTotalPopulation().hashCode();
+            case 3:
+                return processor.getVaccinationsPerCapita(in[1], in[0].equals("partial")).size();
+            case 4:
+                return processor.getAverageMarketValue(in[0]).hashCode();
+            case 5:
+                return processor.getAverageLivableArea(in[0]).hashCode();
+            case 6:
+                return processor.getMarketValuePerCapita(in[0]).hashCode();
+            case 7:
+                return processor.getUnvaccinatedPersonsPerTotalLiveableArea().size();
+            case 8:
+                return processor.getMarketValuePercentile(in[0], Double.parseDouble(in[1])).hashCode();
+            case 9:
+                return processor.getLivableAreaPercentile(in[0], Double.parseDouble(in[1])).hashCode();
+            case 10:
+                return processor.getFootprintReport().getZipCodeBytes().size();
+            case 11:
+                return processor.getTopVaccinationsPerCapita(in[1], in[0].equals("partial"), Integer.parseInt(in[3]),
+                        in[2].equals("highest")).size();
+            case 12:
+                return processor.getTopMarketValuePerCapita(Integer.parseInt(in[1]), in[0].equals("highest")).size();
+            case 13:
+                return processor.getWeeklyVaccinationsPerCapita(in[1], in[0].equals("partial")).size();
+            default:
+                try {
+                    return processor.runQuery(processor.compileQuery(in[0])).getRows().size();
+                } catch (QueryParseException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
+        }
+    }
+
+    // replays one session from its start time, returning a latency histogram per action
+    private LatencyHistogram[] replay(Session session, long startNanos, double speed) {
+        LatencyHistogram[] histograms = new LatencyHistogram[MAX_ACTION + 1];
+        long sink = 0;
+        for (Call call : session.calls) {
+            long due;
+            if (Double.isInfinite(speed)) {
+                due = System.nanoTime();
+            } else {
+                due = startNanos + (long) (call.offsetMillis * 1e6 / speed);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            sink += call(call);
+            long end = System.nanoTime();
+            if (histograms[call.action] == null) {
+                histograms[call.action] = new LatencyHistogram();
+            }
+            histograms[call.action].record(end - due);
+        }
+        // keep the results live
+        if (sink == Long.MIN_VALUE) {
+            System.out.print("");
+        }
+        return histograms;
+    }
+
+    /**
+     * Replays sessions concurrently, one thread per session copy, and merges their latencies
+     * @param sessions parsed sessions
+     * @param speed factor shortening recorded pauses, or positive infinity to replay as fast as possible
+     * @param together true to start every session at once, false to keep their recorded offsets
+     * @param repeat number of copies of each session
+     * @return latency histogram (nanoseconds) per action, with unused entries null
+     * @throws InterruptedException when interrupted while waiting for the sessions
+     * @throws ExecutionException when an action throws
+     */
+    public LatencyHistogram[] run(List<Session> sessions, double speed, boolean together, int repeat)
+            throws InterruptedException, ExecutionException {
+        long earliest = sessions.stream().mapToLong(session -> session.startMillis).min().orElse(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, sessions.size() * repeat));
+        try {
+            long start = System.nanoTime();
+            List<Future<LatencyHistogram[]>> futures = new ArrayList<>();
+            for (Session session : sessions) {
+                long offsetNanos = together ? 0 : (long) ((session.startMillis - earliest) * 1e6 / speed);
+                for (int copy = 0; copy < repeat; copy++) {
+                    futures.add(executor.submit(() -> {
+                        // wait for the session's start before its first call
+                        for (long wait = start + offsetNanos - System.nanoTime(); wait > 0;
+                             wait = start + offsetNanos - System.nanoTime()) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        return replay(session, start + offsetNanos, speed);
+                    }));
+                }
+            }
+
+            LatencyHistogram[] merged = new LatencyHistogram[MAX_ACTION + 1];
+            for (Future<LatencyHistogram[]> future : futures) {
+                LatencyHistogram[] histograms = future.get();
+                for (int action = 0; action <= MAX_ACTION; action++) {
+                    if (histograms[action] != null) {
+                        if (merged[action] == null) {
+                            merged[action] = new LatencyHistogram();
+                        }
+                        merged[action].merge(histograms[action]);
+                    }
+                }
+            }
+            return merged;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the given datasets, then replays the sessions of the given logs from "--name=value" arguments: logs,
+     * covid, population, properties, storage, shards, speed, repeat, align, metrics
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("logs", "");
+        options.put("covid", "");
+        options.put("population", "");
+        options.put("properties", "");
+        options.put("storage", "heap");
+        options.put("shards", String.valueOf(ShardedRegionStore.DEFAULT_SHARDS));
+        options.put("speed", "1");
+        options.put("repeat", "1");
+        options.put("align", "recorded");
+        options.put("metrics", "");
+
+        Pattern validArg = Pattern.compile("^--(?<name>.+)=(?<value>.+)$");
+        for (String arg : args) {
+            Matcher matcher = validArg.matcher(arg);
+            if (!matcher.matches() || !options.containsKey(matcher.group("name"))) {
+                System.out.println("Error: " + arg + " is not a valid argument. Valid names are: " + options.keySet());
+                return;
+            }
+            options.put(matcher.group("name"), matcher.group("value"));
+        }
+
+        DatasetLoader loader = null;
+        try {
+            double speed = options.get("speed").equalsIgnoreCase("max") ? Double.POSITIVE_INFINITY
+                    : Double.parseDouble(options.get("speed"));
+            int repeat = Integer.parseInt(options.get("repeat"));
+            boolean together = options.get("align").equalsIgnoreCase("together");
+            ColumnStorage storage = ColumnStorage.fromArgument(options.get("storage"));
+            if (options.get("logs").isEmpty() || !(speed > 0) || repeat < 1 || storage == null
+                    || (!together && !options.get("align").equalsIgnoreCase("recorded"))) {
+                System.out.println("Error: logs are required, speed must be positive or 'max', repeat must be " +
+                        "positive, align must be 'recorded' or 'together' and storage must be 'heap' or 'offheap'.");
+                return;
+            }
+
+            String covid = options.get("covid");
+            boolean hasCovidData = !covid.isEmpty();
+            boolean hasPopulationData = !options.get("population").isEmpty();
+            boolean hasPropertiesData = !options.get("properties").isEmpty();
+
+            List<Session> sessions = new ArrayList<>();
+            for (String log : options.get("logs").split(",")) {
+                // Logger writes with the platform charset
+                sessions.addAll(parse(Files.readAllLines(Paths.get(log), Charset.defaultCharset()), hasCovidData,
+                        hasPopulationData, hasPropertiesData));
+            }
+            int calls = sessions.stream().mapToInt(session -> session.calls.size()).sum();
+            System.out.println("Parsed " + sessions.size() + " sessions with " + calls + " calls");
+
+            loader = new DatasetLoader(Logger.getInstance(), Integer.parseInt(options.get("shards")));
+            if (new File(covid).isDirectory() || CovidMultiFileLoader.isGlob(covid)) {
+                loader.loadCovid(CovidMultiFileLoader.resolve(covid));
+            } else if (hasCovidData) {
+                Matcher covidFile = Pattern.compile(".*\\.(?<ext>json|csv)(\\.gz)?$", Pattern.CASE_INSENSITIVE)
+                        .matcher(covid);
+                if (!covidFile.matches()) {
+                    System.out.println("Error: The covid file must have extension 'json' or 'csv'.");
+                    return;
+                }
+                loader.loadCovid(covid, covidFile.group("ext").toLowerCase());
+            }
+            if (hasPopulationData) {
+                loader.loadPopulation(options.get("population"));
+            }
+            if (hasPropertiesData) {
+                loader.loadProperties(options.get("properties"), storage);
+            }
+
+            // load and merge every dataset up front, so loading is not part of the replayed latencies
+            long loadStart = System.nanoTime();
+            loader.requireAll();
+            System.out.println(String.format(Locale.ROOT, "Loaded %d zip codes in %.1f s", loader.getZipCodes().size(),
+                    (System.nanoTime() - loadStart) / 1e9));
+
+            System.out.println("Replaying " + sessions.size() * repeat + " sessions at speed " + options.get("speed")
+                    + ", " + options.get("align") + " start times");
+            SessionReplay replay = new SessionReplay(new Processor(loader, Logger.getInstance()));
+            long start = System.nanoTime();
+            LatencyHistogram[] histograms = replay.run(sessions, speed, together, repeat);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Metrics metrics = Metrics.getInstance();
+            LoadTest.report(histograms, seconds, metrics, "replay");
+            System.out.println(String.format(Locale.ROOT, "Replayed in %.1f s", seconds));
+            metrics.set("replay.sessions", sessions.size() * repeat);
+
+            if (!options.get("metrics").isEmpty()) {
+                metrics.setOutput(options.get("metrics"));
+                metrics.write();
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: shards, speed and repeat must be numbers.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            System.out.println("An exception was thrown while loading the datasets.");
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            System.out.println("An exception was thrown by an action during the replay.");
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("An IOException was thrown.");
+            e.printStackTrace();
+        } finally {
+            if (loader != null) {
+                loader.close();
+            }
+        }
+    }
+}
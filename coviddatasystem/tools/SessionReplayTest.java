@@ -0,0 +1,63 @@
+package coviddatasystem.tools;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class SessionReplayTest {
+
+    @Test
+    void testParseSkipsFileNamesAndRejectedInputs() {
+        List<String> log = List.of(
+                "1000 covid.csv population.csv properties.csv log.txt",
+                "1100 3",
+                "1150 population.csv",
+                "1200 partly",
+                "1300 partial",
+                "1350 covid.csv",
+                "1400 2022-07-18",
+                "1500 4",
+                "1600 1910",
+                "1700 19104",
+                "1800 14",
+                "1900 count(market_value",
+                "2000 count(market_value)",
+                "2100 0",
+                "5000 covid.csv population.csv properties.csv log.txt",
+                "5100 7",
+                "5200 0");
+
+        List<SessionReplay.Session> sessions = SessionReplay.parse(log, true, true, true);
+        assertEquals(2, sessions.size());
+
+        List<SessionReplay.Call> calls = sessions.get(0).calls;
+        assertEquals(3, calls.size());
+        assertEquals(3, calls.get(0).action);
+        assertArrayEquals(new String[]{"partial", "2022-07-18"}, calls.get(0).inputs);
+        assertEquals(400, calls.get(0).offsetMillis);
+        assertArrayEquals(new String[]{"19104"}, calls.get(1).inputs);
+        assertEquals(14, calls.get(2).action);
+
+        assertEquals(5000, sessions.get(1).startMillis);
+        assertEquals(7, sessions.get(1).calls.get(0).action);
+        assertEquals(100, sessions.get(1).calls.get(0).offsetMillis);
+    }
+
+    @Test
+    void testParseSkipsActionsWithoutData() {
+        List<String> log = List.of(
+                "1000 population.csv log.txt",
+                "1100 4",
+                "1200 19104",
+                "1300 2",
+                "1400 14",
+                "1500 count(market_value)",
+                "1600 0");
+
+        // without properties, action 4 shows no prompt (19104 is not an action) and the query is rejected
+        List<SessionReplay.Call> calls = SessionReplay.parse(log, false, true, false).get(0).calls;
+        assertEquals(1, calls.size());
+        assertEquals(2, calls.get(0).action);
+    }
+}
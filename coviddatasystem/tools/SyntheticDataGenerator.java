@@ -0,0 +1,316 @@
+package coviddatasystem.tools;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@code SyntheticDataGenerator} writes covid (CSV and JSON), population and properties files with the same schema as
+ * the bundled datasets, at any scale, for measuring how ingest and {@code Processor} scale with data size.
+ *
+ * A fraction of rows is deliberately dirty, the same way real extracts are: zip codes that are too short or not
+ * numeric, malformed timestamps, empty fields, and quoted fields containing commas. Dirty rows are always well-formed
+ * CSV that every reader rejects, so they are skipped rather than failing a load or adding zip codes outside the
+ * generated range. Output is fully determined by the seed.
+ *
+ * Usage (all arguments optional, in the "--name=value" format used by Main):
+ *   java coviddatasystem.tools.SyntheticDataGenerator --out=synthetic --zips=500 --snapshots=365
+ *        --properties=5000000 --seed=42 --dirty=0.01 --gzip=false
+ */
+public class SyntheticDataGenerator {
+
+    // first timestamp of generated covid snapshots (one snapshot per day)
+    private static final LocalDateTime FIRST_SNAPSHOT = LocalDateTime.of(2021, 3, 25, 17, 20, 2);
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // first generated zip code, zip codes are consecutive 5 digit values
+    private static final int FIRST_ZIP = 10000;
+    private static final int MAX_ZIPS = 99999 - FIRST_ZIP + 1;
+
+    private final int zips;
+    private final int snapshots;
+    private final long properties;
+    private final long seed;
+    private final double dirtyFraction;
+    private final boolean gzip;
+
+    // per-zip population, generated once so covid and population files agree
+    private final int[] populations;
+
+    /**
+     * @param zips number of zip codes
+     * @param snapshots number of daily covid snapshots per zip code
+     * @param properties number of property rows
+     * @param seed random seed, the same seed always produces the same files
+     * @param dirtyFraction fraction of rows (0.0 to 1.0) that are dirty
+     * @param gzip true to write gzip-compressed files (".gz")
+     */
+    public SyntheticDataGenerator(int zips, int snapshots, long properties, long seed, double dirtyFraction,
+                                  boolean gzip) {
+        if (zips < 1 || zips > MAX_ZIPS) {
+            throw new IllegalArgumentException("Number of zip codes must be between 1 and " + MAX_ZIPS);
+        }
+        this.zips = zips;
+        this.snapshots = snapshots;
+        this.properties = properties;
+        this.seed = seed;
+        this.dirtyFraction = dirtyFraction;
+        this.gzip = gzip;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        this.populations = new int[zips];
+        for (int i = 0; i < zips; i++) {
+            populations[i] = 1000 + random.nextInt(60000);
+        }
+    }
+
+    /**
+     * Writes covid_data.csv, covid_data.json, population.csv and properties.csv (plus ".gz" if enabled)
+     * @param directory output directory, created if needed
+     * @return names of the written files
+     * @throws IOException when a file cannot be written
+     */
+    public List<String> generate(String directory) throws IOException {
+        Path out = Paths.get(directory);
+        Files.createDirectories(out);
+        String suffix = gzip ? ".gz" : "";
+
+        List<String> files = new ArrayList<>();
+        files.add(writeCovidCsv(out.resolve("covid_data.csv" + suffix)));
+        files.add(writeCovidJson(out.resolve("covid_data.json" + suffix)));
+        files.add(writePopulation(out.resolve("population.csv" + suffix)));
+        files.add(writeProperties(out.resolve("properties.csv" + suffix)));
+        return files;
+    }
+
+    private Writer open(Path path) throws IOException {
+        OutputStream stream = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        if (gzip) {
+            stream = new GZIPOutputStream(stream, 1 << 16);
+        }
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static String timestamp(int snapshot) {
+        return FIRST_SNAPSHOT.plusDays(snapshot).format(TIMESTAMP_FORMAT);
+    }
+
+    // cumulative covid metrics of a zip code at a snapshot, in covid file column order
+    // (NEG, POS, deaths, hospitalized, partially_vaccinated, fully_vaccinated, boosted)
+    private long[] covidMetrics(int zipIndex, int snapshot, SplittableRandom random) {
+        int population = populations[zipIndex];
+        double progress = (snapshot + 1.0) / Math.max(1, snapshots);
+        long positive = (long) (population * 0.25 * progress) + random.nextInt(50);
+        long negative = (long) (population * 2.0 * progress) + random.nextInt(500);
+        long deaths = positive / 100;
+        long hospitalized = positive / 20;
+        long fullVacs = (long) (population * 0.7 * progress);
+        long partialVacs = (long) (population * 0.15 * progress);
+        long boosted = snapshot > snapshots / 2 ? fullVacs / 2 : 0;
+        return new long[]{negative, positive, deaths, hospitalized, partialVacs, fullVacs, boosted};
+    }
+
+    private boolean dirty(SplittableRandom random) {
+        return random.nextDouble() < dirtyFraction;
+    }
+
+    // invalid zip code that every reader rejects (too short, not numeric, or a quoted comma after a short zip); a
+    // longer zip would not do, since the properties reader keeps the first five digits of a zip+4 code
+    private static String dirtyZip(SplittableRandom random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return "1910";
+            case 1:
+                return "ABCDE";
+            default:
+                return "\"1910, PA\"";
+        }
+    }
+
+    // malformed timestamp (wrong separators, missing time, or empty)
+    private static String dirtyTimestamp(int snapshot, SplittableRandom random) {
+        String valid = timestamp(snapshot);
+        switch (random.nextInt(3)) {
+            case 0:
+                return valid.replace('-', '/');
+            case 1:
+                return valid.substring(0, 10);
+            default:
+                return "";
+        }
+    }
+
+    private String writeCovidCsv(Path path) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        try (Writer out = open(path)) {
+            out.write("\"zip_code\",\"NEG\",\"POS\",\"deaths\",\"hospitalized\",\"partially_vaccinated\","
+                    + "\"fully_vaccinated\",\"boosted\",\"etl_timestamp\"\n");
+            for (int snapshot = 0; snapshot < snapshots; snapshot++) {
+                for (int zipIndex = 0; zipIndex < zips; zipIndex++) {
+                    String zip = String.valueOf(FIRST_ZIP + zipIndex);
+                    String time = "\"" + timestamp(snapshot) + "\"";
+                    if (dirty(random)) {
+                        if (random.nextBoolean()) {
+                            zip = dirtyZip(random);
+                        } else {
+                            time = "\"" + dirtyTimestamp(snapshot, random) + "\"";
+                        }
+                    }
+
+                    StringBuilder row = new StringBuilder(zip);
+                    for (long metric : covidMetrics(zipIndex, snapshot, random)) {
+                        row.append(',');
+                        // metrics that are not reported yet are empty fields, as in the real extract
+                        if (metric > 0 && !dirty(random)) {
+                            row.append(metric);
+                        }
+                    }
+                    row.append(',').append(time).append('\n');
+                    out.write(row.toString());
+                }
+            }
+        }
+        return path.toString();
+    }
+
+    private String writeCovidJson(Path path) throws IOException {
+        String[] metricNames = {"NEG", "POS", "deaths", "hospitalized", "partially_vaccinated", "fully_vaccinated",
+                "boosted"};
+        SplittableRandom random = new SplittableRandom(seed + 2);
+        try (Writer out = open(path)) {
+            out.write("[\n");
+            boolean first = true;
+            for (int snapshot = 0; snapshot < snapshots; snapshot++) {
+                for (int zipIndex = 0; zipIndex < zips; zipIndex++) {
+                    // the JSON reader requires zip_code and etl_timestamp keys, so dirty records have bad values only
+                    String zip = String.valueOf(FIRST_ZIP + zipIndex);
+                    String time = timestamp(snapshot);
+                    if (dirty(random)) {
+                        if (random.nextBoolean()) {
+                            zip = "\"" + dirtyZip(random).replace("\"", "") + "\"";
+                        } else {
+                            time = dirtyTimestamp(snapshot, random);
+                        }
+                    }
+
+                    StringBuilder record = new StringBuilder(first ? "  {" : ",\n  {");
+                    record.append("\"zip_code\": ").append(zip);
+                    long[] metrics = covidMetrics(zipIndex, snapshot, random);
+                    for (int i = 0; i < metrics.length; i++) {
+                        // unreported metrics are left out of the record
+                        if (metrics[i] > 0 && !dirty(random)) {
+                            record.append(", \"").append(metricNames[i]).append("\": ").append(metrics[i]);
+                        }
+                    }
+                    record.append(", \"etl_timestamp\": \"").append(time).append("\"}");
+                    out.write(record.toString());
+                    first = false;
+                }
+            }
+            out.write("\n]\n");
+        }
+        return path.toString();
+    }
+
+    private String writePopulation(Path path) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 3);
+        try (Writer out = open(path)) {
+            out.write("\"zip_code\",\"population\"\n");
+            for (int zipIndex = 0; zipIndex < zips; zipIndex++) {
+                if (dirty(random)) {
+                    // dirty row: bad zip code or non-numeric population, followed by the valid row
+                    if (random.nextBoolean()) {
+                        out.write(dirtyZip(random) + "," + populations[zipIndex] + "\n");
+                    } else {
+                        out.write("\"" + (FIRST_ZIP + zipIndex) + "\",\"N/A\"\n");
+                    }
+                }
+                out.write("\"" + (FIRST_ZIP + zipIndex) + "\"," + populations[zipIndex] + "\n");
+            }
+        }
+        return path.toString();
+    }
+
+    private String writeProperties(Path path) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 4);
+        try (Writer out = open(path)) {
+            out.write("total_livable_area,market_value,zip_code,location\n");
+            for (long i = 0; i < properties; i++) {
+                int zipIndex = random.nextInt(zips);
+                String livableArea = String.format(Locale.ROOT, "%.1f", 400 + random.nextDouble() * 3000);
+                // skewed market values: most parcels are modest, a few are very large
+                double marketValue = 50000 * Math.exp(random.nextGaussian() * 0.8 + 1);
+                String market = String.format(Locale.ROOT, "%.1f", marketValue);
+                // real extracts often carry zip+4 codes, readers keep the first 5 digits
+                String zip = random.nextInt(4) == 0 ? (FIRST_ZIP + zipIndex) + "" + (1000 + random.nextInt(9000))
+                        : String.valueOf(FIRST_ZIP + zipIndex);
+                String location = "\"" + (1 + random.nextInt(9999)) + " MAIN ST, UNIT " + random.nextInt(50) + "\"";
+
+                if (dirty(random)) {
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            zip = dirtyZip(random);
+                            break;
+                        case 1:
+                            livableArea = "";
+                            break;
+                        default:
+                            market = "";
+                            break;
+                    }
+                }
+                out.write(livableArea + "," + market + "," + zip + "," + location + "\n");
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Generates synthetic datasets from "--name=value" arguments: out, zips, snapshots, properties, seed, dirty, gzip
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        options.put("out", "synthetic");
+        options.put("zips", "50");
+        options.put("snapshots", "300");
+        options.put("properties", "50000");
+        options.put("seed", "42");
+        options.put("dirty", "0.01");
+        options.put("gzip", "false");
+
+        Pattern validArg = Pattern.compile("^--(?<name>.+)=(?<value>.+)$");
+        for (String arg : args) {
+            Matcher matcher = validArg.matcher(arg);
+            if (!matcher.matches() || !options.containsKey(matcher.group("name"))) {
+                System.out.println("Error: " + arg + " is not a valid argument. Valid names are: " + options.keySet());
+                return;
+            }
+            options.put(matcher.group("name"), matcher.group("value"));
+        }
+
+        try {
+            SyntheticDataGenerator generator = new SyntheticDataGenerator(Integer.parseInt(options.get("zips")),
+                    Integer.parseInt(options.get("snapshots")), Long.parseLong(options.get("properties")),
+                    Long.parseLong(options.get("seed")), Double.parseDouble(options.get("dirty")),
+                    Boolean.parseBoolean(options.get("gzip")));
+            for (String file : generator.generate(options.get("out"))) {
+                System.out.println(file + " " + Files.size(Paths.get(file)) + " bytes");
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: zips, snapshots, properties, seed and dirty must be numbers.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("An IOException was thrown.");
+            e.printStackTrace();
+        }
+    }
+}
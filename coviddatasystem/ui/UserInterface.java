@@ -1,14 +1,22 @@
 package coviddatasystem.ui;
 
+import coviddatasystem.datamanagement.DatasetLoader.Dataset;
+import coviddatasystem.datamanagement.IngestProgress;
 import coviddatasystem.logging.Logger;
+import coviddatasystem.processor.FootprintReport;
 import coviddatasystem.processor.Processor;
+import coviddatasystem.processor.Query;
+import coviddatasystem.processor.QueryParseException;
+import coviddatasystem.processor.QueryResult;
 import coviddatasystem.util.ZipCode;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.StringJoiner;
 import java.util.TreeMap;
 import java.util.ArrayList;
 
@@ -29,9 +37,19 @@ import java.util.ArrayList;
  * (6) Show total market value of properties, per capita, for a specified ZIP Code
  * (7) Show results of our custom feature that displays the number of unvaccinated persons per 100 square feet of
  * livable property area for all ZIP Codes
+ * (8) Show a percentile (e.g. 50 for the median) of market values for properties in a specified ZIP Code
+ * (9) Show a percentile (e.g. 50 for the median) of total livable areas for properties in a specified ZIP Code
+ * (10) Show estimated memory footprint of the loaded data, per structure and per ZIP Code
+ * (11) Show the K ZIP Codes with the highest or lowest vaccinations per capita for a specified date
+ * (12) Show the K ZIP Codes with the highest or lowest total market value of properties per capita
+ * (13) Show total vaccinations per capita for each ZIP Code as of the end of the specified ISO week
+ * (14) Run an aggregate query over the covid, population and property data (see {@code Query})
  */
 
 public class UserInterface {
+
+    // highest valid action number in the menu
+    private static final int MAX_ACTION = 14;
     
     private Processor processor;
     private Logger logger = Logger.getInstance();
@@ -56,6 +74,7 @@ public class UserInterface {
             displayMenu();
             input = getValidMenuChoice();
             handleInput(input, hasCovidData, hasPopulationData, hasPropertiesData);
+            showProgress();
         } 
         while (input != 0);
     }
@@ -108,6 +127,23 @@ public class UserInterface {
                 if (hasCovidData && hasPopulationData && hasPropertiesData) {
                     System.out.println("7");
                 }
+                if (hasPropertiesData) {
+                    System.out.println("8");
+                    System.out.println("9");
+                }
+                System.out.println("10");
+                if (hasCovidData && hasPopulationData) {
+                    System.out.println("11");
+                }
+                if (hasPropertiesData && hasPopulationData) {
+                    System.out.println("12");
+                }
+                if (hasCovidData && hasPopulationData) {
+                    System.out.println("13");
+                }
+                if (hasCovidData || hasPopulationData || hasPropertiesData) {
+                    System.out.println("14");
+                }
                 System.out.println("END OUTPUT");
                 break;
 
@@ -180,6 +216,70 @@ public class UserInterface {
                 showUnvaccinatedPersonsPerTotalLiveableArea();
                 break;
 
+            // Show a percentile of market values for properties in a specified ZIP Code
+            case 8:
+                if (!hasPropertiesData) {
+                    System.out.println("No properties data provided in the runtime arguments.");
+                    break;
+                }
+                showMarketValuePercentile();
+                break;
+
+            // Show a percentile of total livable areas for properties in a specified ZIP Code
+            case 9:
+                if (!hasPropertiesData) {
+                    System.out.println("No properties data provided in the runtime arguments.");
+                    break;
+                }
+                showLivableAreaPercentile();
+                break;
+
+            // Show estimated memory footprint of the loaded data
+            case 10:
+                showFootprint();
+                break;
+
+            // Show the K ZIP Codes with the highest or lowest vaccinations per capita for a specified date
+            case 11:
+                if (!hasCovidData || !hasPopulationData) {
+                    System.out.println("Insufficient data provided in the runtime arguments, requires both covid and " +
+                            "population data.");
+                    break;
+                }
+                showTopVaccinationsPerCapita();
+                break;
+
+            // Show the K ZIP Codes with the highest or lowest total market value of properties per capita
+            case 12:
+                if (!hasPropertiesData || !hasPopulationData) {
+                    System.out.println("Insufficient data provided in the runtime arguments, requires both properties " +
+                            "and population data.");
+                    break;
+                }
+                showTopMarketValuePerCapita();
+                break;
+
+            // Show total vaccinations per capita for each ZIP Code as of the end of the specified ISO week
+            case 13:
+                if (!hasCovidData || !hasPopulationData) {
+                    System.out.println("Insufficient data provided in the runtime arguments, requires both covid and " +
+                            "population data.");
+                    break;
+                }
+                showWeeklyVaccinationsPerCapita();
+                break;
+
+            // Run an aggregate query over the covid, population and property data
+            case 14:
+                Query query = getValidQuery();
+                if ((query.readsCovid() && !hasCovidData) || (query.readsPopulation() && !hasPopulationData)
+                        || (query.readsProperties() && !hasPropertiesData)) {
+                    System.out.println("Insufficient data provided in the runtime arguments for this query.");
+                    break;
+                }
+                showQueryResult(query);
+                break;
+
             default:
                 // System.out.print("BEGIN OUTPUT");
                 System.out.println("Invalid input. Please select a valid action number.");
@@ -200,6 +300,29 @@ public class UserInterface {
         System.out.println("(5) Show average total livable area for properties in a specified ZIP Code");
         System.out.println("(6) Show total market value of properties, per capita, for a specified ZIP Code");
         System.out.println("(7) Show number of unvaccinated persons per 100 square feet of livable property area for all ZIP Codes");
+        System.out.println("(8) Show a percentile of market values for properties in a specified ZIP Code");
+        System.out.println("(9) Show a percentile of total livable areas for properties in a specified ZIP Code");
+        System.out.println("(10) Show estimated memory footprint of the loaded data");
+        System.out.println("(11) Show the K ZIP Codes with the highest or lowest vaccinations per capita for a specified date");
+        System.out.println("(12) Show the K ZIP Codes with the highest or lowest total market value of properties per capita");
+        System.out.println("(13) Show total vaccinations per capita for each ZIP Code for the specified week");
+        System.out.println("(14) Run an aggregate query over the covid, population and property data");
+    }
+
+    /**
+     * Marks the output of an action as approximate if it read datasets that are still loading (progressive mode),
+     * with how much of each dataset's input had been processed.
+     */
+    private void showProgress() {
+        Map<Dataset, IngestProgress> progress = processor.takeProgress();
+        if (progress.isEmpty()) {
+            return;
+        }
+        StringJoiner datasets = new StringJoiner("; ");
+        for (Entry<Dataset, IngestProgress> entry : progress.entrySet()) {
+            datasets.add(entry.getKey().name().toLowerCase() + " data " + entry.getValue());
+        }
+        System.out.println("Approximate result, datasets still loading: " + datasets);
     }
 
     /**
@@ -230,12 +353,52 @@ public class UserInterface {
             
             if (value != 0.0) {
                 // only print out values when value is not 0
-                System.out.println(key + " " + String.format("%.4f", value));
+                System.out.println(formatZip(key) + " " + String.format("%.4f", value));
+            }
+        }
+        System.out.println("END OUTPUT");
+    }
+
+    /**
+     * Shows the total vaccinations per capita for each ZIP Code as of the end of a specified ISO week
+     */
+    private void showWeeklyVaccinationsPerCapita() {
+        Boolean partialOrTotal = getPartialOrTotal();
+        String week = getValidWeek();
+
+        TreeMap<Integer, Double> vacsPerCapita = processor.getWeeklyVaccinationsPerCapita(week, partialOrTotal);
+
+        System.out.println("\nBEGIN OUTPUT");
+        for (Entry<Integer, Double> entry : vacsPerCapita.entrySet()) {
+            // same as action 3, only print out values when value is not 0
+            if (entry.getValue() != 0.0) {
+                System.out.println(formatZip(entry.getKey()) + " " + String.format("%.4f", entry.getValue()));
             }
         }
         System.out.println("END OUTPUT");
     }
 
+    /**
+     * Shows the rows of an aggregate query: a header with the group key and aggregates, then one line per group
+     */
+    private void showQueryResult(Query query) {
+        QueryResult result = processor.runQuery(query);
+
+        System.out.println("\nBEGIN OUTPUT");
+        System.out.println(result.getGroupBy() + " " + String.join(" ", result.getColumns()));
+        for (Entry<String, double[]> row : result.getRows().entrySet()) {
+            StringBuilder line = new StringBuilder(row.getKey());
+            double[] values = row.getValue();
+            for (int i = 0; i < values.length; i++) {
+                // counts are whole numbers, other aggregates use 4 decimals like action 3
+                line.append(' ').append(result.isCount(i) ? String.valueOf((long) values[i])
+                        : String.format("%.4f", values[i]));
+            }
+            System.out.println(line);
+        }
+        System.out.println("END OUTPUT");
+    }
+
     /**
      * Shows average market value for properties for a specified ZIP Code
      */
@@ -280,12 +443,93 @@ public class UserInterface {
         
         for (Map.Entry<Integer, Double> entry : results.entrySet()) {
             // print out zip code value and number of unvacced persons per 100 sq ft
-            System.out.println(entry.getKey() + ": " + String.format("%.4f", entry.getValue()));
+            System.out.println(formatZip(entry.getKey()) + ": " + String.format("%.4f", entry.getValue()));
         }
         
         System.out.println("END OUTPUT");
     }
 
+    /**
+     * Shows a percentile (approximate, from a quantile sketch) of market values for a specified ZIP Code
+     */
+    private void showMarketValuePercentile() {
+        String zipCode = getValidZipCode();
+        Double percentile = getValidPercentile();
+        System.out.println("\nBEGIN OUTPUT");
+        System.out.println(processor.getMarketValuePercentile(zipCode, percentile));
+        System.out.println("END OUTPUT");
+    }
+
+    /**
+     * Shows a percentile (approximate, from a quantile sketch) of total livable areas for a specified ZIP Code
+     */
+    private void showLivableAreaPercentile() {
+        String zipCode = getValidZipCode();
+        Double percentile = getValidPercentile();
+        System.out.println("\nBEGIN OUTPUT");
+        System.out.println(processor.getLivableAreaPercentile(zipCode, percentile));
+        System.out.println("END OUTPUT");
+    }
+
+    /**
+     * Shows estimated bytes retained by each structure of the loaded data, then by each ZIP Code
+     */
+    private void showFootprint() {
+        FootprintReport report = processor.getFootprintReport();
+
+        System.out.println("\nBEGIN OUTPUT");
+        for (Map.Entry<String, Long> entry : report.getStructureBytes().entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+        }
+        System.out.println("totalHeap: " + report.getTotalHeapBytes());
+        System.out.println("totalOffHeap: " + report.getTotalOffHeapBytes());
+        for (Map.Entry<Integer, Long> entry : report.getZipCodeBytes().entrySet()) {
+            System.out.println(formatZip(entry.getKey()) + " " + entry.getValue());
+        }
+        System.out.println("END OUTPUT");
+    }
+
+    /**
+     * Shows the K ZIP Codes with the highest or lowest partial or full vaccinations per capita for a specified date,
+     * in rank order
+     */
+    private void showTopVaccinationsPerCapita() {
+        Boolean partialOrTotal = getPartialOrTotal();
+        String date = getValidDate();
+        boolean highest = getHighestOrLowest();
+        int k = getValidCount();
+
+        LinkedHashMap<Integer, Double> ranked = processor.getTopVaccinationsPerCapita(date, partialOrTotal, k, highest);
+
+        System.out.println("\nBEGIN OUTPUT");
+        for (Entry<Integer, Double> entry : ranked.entrySet()) {
+            System.out.println(formatZip(entry.getKey()) + " " + String.format("%.4f", entry.getValue()));
+        }
+        System.out.println("END OUTPUT");
+    }
+
+    /**
+     * Shows the K ZIP Codes with the highest or lowest total market value of properties per capita, in rank order
+     */
+    private void showTopMarketValuePerCapita() {
+        boolean highest = getHighestOrLowest();
+        int k = getValidCount();
+
+        LinkedHashMap<Integer, Double> ranked = processor.getTopMarketValuePerCapita(k, highest);
+
+        System.out.println("\nBEGIN OUTPUT");
+        for (Entry<Integer, Double> entry : ranked.entrySet()) {
+            // truncated to an integer, same as action 6
+            System.out.println(formatZip(entry.getKey()) + " " + entry.getValue().intValue());
+        }
+        System.out.println("END OUTPUT");
+    }
+
+    // zip codes are stored as integers, so restore leading zeros (e.g. 2134 -> "02134") when printing
+    private static String formatZip(Integer zipCode) {
+        return String.format("%05d", zipCode);
+    }
+
     // HELPER METHODS FOR INPUT VALIDATION
 
     /**
@@ -302,10 +546,10 @@ public class UserInterface {
 
                 try {
                     int choice = Integer.parseInt(input);
-                    if (choice >= 0 && choice <= 7) {
+                    if (choice >= 0 && choice <= MAX_ACTION) {
                         return choice;
                     } else {
-                        System.err.println("Invalid choice. Please enter a number between 0 and 7.");
+                        System.err.println("Invalid choice. Please enter a number between 0 and " + MAX_ACTION + ".");
                     }
                 } catch (NumberFormatException e) {
                     System.err.println("Invalid input. Please enter a valid integer.");
@@ -367,6 +611,136 @@ public class UserInterface {
             
     }
 
+    /**
+     * Gets a valid ISO week (weeks start on Monday) from the user.
+     * @return the valid week in format YYYY-Www
+     */
+    private String getValidWeek() {
+        while (true) {
+            System.out.println("Please enter an ISO week in format [YYYY-Www] (e.g. 2022-W29): ");
+
+            if (scanner.hasNextLine()) {
+                String input = scanner.nextLine();
+
+                // log the input as an event
+                logger.log(input);
+
+                if (input.matches("\\d{4}-W(0[1-9]|[1-4]\\d|5[0-3])")) {
+                    return input;
+                }
+                System.err.println("Invalid week format. Please enter a week in YYYY-Www format.");
+            }
+            System.out.println("> ");
+        }
+    }
+
+    /**
+     * Gets a valid aggregate query from the user, compiled by the processor.
+     * @return the compiled query
+     */
+    private Query getValidQuery() {
+        while (true) {
+            System.out.println("Please enter a query (e.g. sum(full_vacs), max(deaths) where zip between 19102 " +
+                    "and 19154 and date >= 2022-01-01 group by zip): ");
+
+            if (scanner.hasNextLine()) {
+                String input = scanner.nextLine();
+
+                // log the input as an event
+                logger.log(input);
+
+                try {
+                    return processor.compileQuery(input);
+                } catch (QueryParseException e) {
+                    System.err.println("Invalid query. " + e.getMessage() + ".");
+                }
+            }
+            System.out.println("> ");
+        }
+    }
+
+    /**
+     * Gets a valid percentile (0 to 100) from the user.
+     * @return the valid percentile
+     */
+    private Double getValidPercentile() {
+        while (true) {
+            System.out.println("Please enter a percentile between 0 and 100 (50 for the median): ");
+
+            if (scanner.hasNextLine()) {
+                String input = scanner.nextLine();
+
+                // log the input as an event
+                logger.log(input);
+
+                try {
+                    double percentile = Double.parseDouble(input);
+                    if (percentile >= 0 && percentile <= 100) {
+                        return percentile;
+                    }
+                } catch (NumberFormatException e) {
+                    // falls through to error message below
+                }
+                System.err.println("Invalid percentile. Please enter a number between 0 and 100.");
+            }
+            System.out.println("> ");
+        }
+    }
+
+    /**
+     * Prompts the user for a valid choice between highest and lowest values.
+     * @return true if highest, false if lowest
+     */
+    private boolean getHighestOrLowest() {
+
+        while (true) {
+            System.out.println("Would you like to see the highest or lowest values? Enter 'highest' or 'lowest': ");
+            if (scanner.hasNextLine()) {
+                String input = scanner.nextLine();
+
+                // log the input as an event
+                logger.log(input);
+
+                if (input.equals("highest")) {
+                    return true;
+                } else if (input.equals("lowest")) {
+                    return false;
+                } else {
+                    System.err.println("Invalid input. Please enter 'highest' or 'lowest'.");
+                }
+            }
+            System.out.println("> ");
+        }
+    }
+
+    /**
+     * Gets a valid number of ZIP Codes to show (a positive integer) from the user.
+     * @return the valid number of ZIP Codes
+     */
+    private int getValidCount() {
+        while (true) {
+            System.out.println("Please enter the number of ZIP Codes to show: ");
+
+            if (scanner.hasNextLine()) {
+                String input = scanner.nextLine();
+
+                // log the input as an event
+                logger.log(input);
+
+                try {
+                    int count = Integer.parseInt(input);
+                    if (count > 0) {
+                        return count;
+                    }
+                } catch (NumberFormatException e) {
+                    // falls through to error message below
+                }
+                System.err.println("Invalid number. Please enter a positive whole number.");
+            }
+            System.out.println("> ");
+        }
+    }
+
     /**
      * Prompts the user for a valid choice between partial and total vaccinations.
      * @return true if partial, false if total
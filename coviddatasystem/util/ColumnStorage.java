@@ -0,0 +1,45 @@
+package coviddatasystem.util;
+
+/**
+ * Where property columns of a {@code ZipCode} are stored: on the Java heap or in native (off-heap) memory.
+ */
+public enum ColumnStorage {
+    HEAP,
+    OFF_HEAP;
+
+    /**
+     * @return new empty column using this storage
+     */
+    public DoubleColumn newColumn() {
+        if (this == OFF_HEAP) {
+            return new OffHeapDoubleColumn();
+        }
+        return new HeapDoubleColumn();
+    }
+
+    /**
+     * @param capacity number of values the column holds before it grows
+     * @return new empty column using this storage
+     */
+    public DoubleColumn newColumn(int capacity) {
+        if (this == OFF_HEAP) {
+            return new OffHeapDoubleColumn(capacity);
+        }
+        return new HeapDoubleColumn(capacity);
+    }
+
+    /**
+     * Parses runtime argument value ("heap" or "offheap", case-insensitive)
+     * @param value String from the "--storage=" runtime argument
+     * @return matching storage, or null if value is not recognized
+     */
+    public static ColumnStorage fromArgument(String value) {
+        if (value.equalsIgnoreCase("heap")) {
+            return HEAP;
+        }
+        if (value.equalsIgnoreCase("offheap")) {
+            return OFF_HEAP;
+        }
+        return null;
+    }
+}
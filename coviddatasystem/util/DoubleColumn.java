@@ -0,0 +1,53 @@
+package coviddatasystem.util;
+
+/**
+ * {@code DoubleColumn} is an append-only column of primitive doubles used to store per-zip property data
+ * (market values and total livable areas) without boxing each value.
+ *
+ * Implementations may keep their values on the Java heap or in native memory, so a column must be closed once it is
+ * no longer needed. Reading from a closed column throws an {@code IllegalStateException}.
+ */
+public interface DoubleColumn extends AutoCloseable {
+
+    /**
+     * @return number of values stored in the column
+     */
+    int size();
+
+    /**
+     * @param index position of the value, from 0 (inclusive) to size() (exclusive)
+     * @return value stored at index
+     */
+    double get(int index);
+
+    /**
+     * Appends a value to the end of the column
+     * @param value double to store
+     */
+    void add(double value);
+
+    /**
+     * @return number of values the column can hold before it has to grow its storage
+     */
+    int capacity();
+
+    /**
+     * @return true if the values of this column are stored outside of the Java heap
+     */
+    default boolean isOffHeap() {
+        return false;
+    }
+
+    /**
+     * @return true if no values are stored in the column
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Releases the storage held by the column. Closing a previously closed column has no effect.
+     */
+    @Override
+    void close();
+}
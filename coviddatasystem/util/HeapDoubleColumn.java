@@ -0,0 +1,77 @@
+package coviddatasystem.util;
+
+import java.util.Arrays;
+
+/**
+ * {@code HeapDoubleColumn} stores its values in a growable {@code double[]} on the Java heap.
+ */
+public class HeapDoubleColumn implements DoubleColumn {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] values;
+
+    private int size = 0;
+
+    public HeapDoubleColumn() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of values the column holds before it grows (e.g. the exact size of a column built once)
+     */
+    public HeapDoubleColumn(int capacity) {
+        this.values = new double[Math.max(capacity, 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return values == null ? 0 : values.length;
+    }
+
+    @Override
+    public double get(int index) {
+        checkOpen();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    @Override
+    public void add(double value) {
+        checkOpen();
+        if (size == values.length) {
+            // double capacity when backing array is full
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Returns the backing array without copying. Only the first size() elements are valid values.
+     * @return backing array of the column
+     */
+    public double[] array() {
+        checkOpen();
+        return values;
+    }
+
+    @Override
+    public void close() {
+        // drop reference to backing array so it can be garbage collected
+        values = null;
+        size = 0;
+    }
+
+    private void checkOpen() {
+        if (values == null) {
+            throw new IllegalStateException("Column has been closed");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package coviddatasystem.util;
+
+/**
+ * {@code LatencyHistogram} records non-negative long values (latencies in nanoseconds) into log-linear buckets, in the
+ * style of HdrHistogram. Values below 256 are counted exactly. Larger values fall into one of 128 equal sub-buckets of
+ * their power of two range, so any reported percentile is within 1/128 (under 1%) of the true recorded value.
+ *
+ * Recording is a shift and an array increment with no allocation. The histogram is not thread-safe: record into one
+ * histogram per thread and merge them when reporting.
+ */
+public class LatencyHistogram {
+
+    // values below 2^EXACT_BITS have a bucket each
+    private static final int EXACT_BITS = 8;
+
+    // number of sub-buckets per power of two above the exact range
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int EXACT_BUCKETS = 1 << EXACT_BITS;
+
+    // exact buckets, then SUB_BUCKETS buckets for each power of two from 2^EXACT_BITS to 2^62
+    private static final int NUM_BUCKETS = EXACT_BUCKETS + (63 - EXACT_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+
+    private long totalCount = 0;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = 0;
+
+    private double sum = 0;
+
+    /**
+     * Records a value
+     * @param value non-negative value, e.g. latency in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        }
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one
+     * @param other histogram to merge (not modified)
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return smallest recorded value, or 0 if nothing was recorded
+     */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    /**
+     * @return largest recorded value, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean of recorded values, or NaN if nothing was recorded
+     */
+    public double getMean() {
+        return totalCount == 0 ? Double.NaN : sum / totalCount;
+    }
+
+    /**
+     * Returns the value at a percentile: the largest value in the bucket holding the value of that rank (never more
+     * than the recorded maximum)
+     * @param percentile percentile between 0.0 and 100.0
+     * @return value at percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Percentile must be between 0.0 and 100.0: " + percentile);
+        }
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        // rank of the requested value (1-based), at least the first value
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), max);
+            }
+        }
+        return max;
+    }
+
+    // bucket of a value: exact below 2^EXACT_BITS, otherwise power of two range and sub-bucket within it
+    static int bucketIndex(long value) {
+        if (value < EXACT_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return EXACT_BUCKETS + (exponent - EXACT_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    // largest value that maps to a bucket
+    static long highestValueInBucket(int index) {
+        if (index < EXACT_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - EXACT_BUCKETS) / SUB_BUCKETS + EXACT_BITS;
+        int subBucket = (index - EXACT_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (subBucket + 1) << shift) - 1;
+    }
+}
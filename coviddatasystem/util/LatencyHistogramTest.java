@@ -0,0 +1,64 @@
+package coviddatasystem.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class LatencyHistogramTest {
+    
+    @Test
+    void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        
+        // values below 256 have a bucket each
+        assertEquals(50, histogram.getValueAtPercentile(50.0));
+        assertEquals(99, histogram.getValueAtPercentile(99.0));
+        assertEquals(100, histogram.getValueAtPercentile(100.0));
+        assertEquals(1, histogram.getMin());
+        assertEquals(50.5, histogram.getMean());
+    }
+    
+    @Test
+    void testPercentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] values = new long[100000];
+        
+        for (int i = 0; i < values.length; i++) {
+            // log-normal latencies around 50 microseconds
+            values[i] = (long) (50000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        
+        // reported value is the top of the bucket holding the exact value, at most 1/128 above it
+        for (double percentile : new double[]{50.0, 99.0, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(reported >= exact);
+            assertTrue(reported <= exact + exact / 128 + 1);
+        }
+    }
+    
+    @Test
+    void testMergeMatchesSingleHistogram() {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        
+        for (long value = 0; value < 1000000; value += 997) {
+            all.record(value);
+            (value % 2 == 0 ? first : second).record(value);
+        }
+        first.merge(second);
+        
+        assertEquals(all.getCount(), first.getCount());
+        assertEquals(all.getMax(), first.getMax());
+        assertEquals(all.getValueAtPercentile(99.0), first.getValueAtPercentile(99.0));
+    }
+}
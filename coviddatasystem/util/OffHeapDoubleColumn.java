@@ -0,0 +1,138 @@
+package coviddatasystem.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@code OffHeapDoubleColumn} stores its values in a direct {@code ByteBuffer}, outside of the Java heap, so large
+ * property columns do not add to garbage collection work.
+ *
+ * Native memory is released as soon as {@link #close()} is called instead of waiting for the buffer to be garbage
+ * collected, so a column must be closed when the data it holds is no longer needed.
+ */
+public class OffHeapDoubleColumn implements DoubleColumn {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // sun.misc.Unsafe.invokeCleaner(ByteBuffer), used to free direct buffers eagerly (null if unavailable)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // fall back to releasing memory when the buffer is garbage collected
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private ByteBuffer buffer;
+
+    private int size = 0;
+
+    public OffHeapDoubleColumn() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of values the column holds before it grows (e.g. the exact size of a column built once)
+     */
+    public OffHeapDoubleColumn(int capacity) {
+        this.buffer = allocate(Math.max(capacity, 1));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return buffer == null ? 0 : buffer.capacity() / Double.BYTES;
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return true;
+    }
+
+    @Override
+    public double get(int index) {
+        checkOpen();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return buffer.getDouble(index * Double.BYTES);
+    }
+
+    @Override
+    public void add(double value) {
+        checkOpen();
+        if ((size + 1) * Double.BYTES > buffer.capacity()) {
+            // double capacity when buffer is full, copying existing values and freeing old buffer
+            ByteBuffer grown = allocate(buffer.capacity() / Double.BYTES * 2);
+            ByteBuffer old = buffer.duplicate();
+            old.position(0).limit(size * Double.BYTES);
+            grown.put(old);
+            grown.clear();
+            free(buffer);
+            buffer = grown;
+        }
+        buffer.putDouble(size * Double.BYTES, value);
+        size++;
+    }
+
+    /**
+     * Returns a read-only view of the values in native byte order without copying them. The view must not be used
+     * after the column is closed.
+     * @return buffer whose limit is size() * Double.BYTES
+     */
+    public ByteBuffer asByteBuffer() {
+        checkOpen();
+        ByteBuffer view = buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        view.position(0).limit(size * Double.BYTES);
+        return view;
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            free(buffer);
+            buffer = null;
+            size = 0;
+        }
+    }
+
+    private void checkOpen() {
+        if (buffer == null) {
+            throw new IllegalStateException("Column has been closed");
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Double.BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    private static void free(ByteBuffer directBuffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, directBuffer);
+        } catch (ReflectiveOperationException e) {
+            // memory is released once the buffer is garbage collected instead
+        }
+    }
+}
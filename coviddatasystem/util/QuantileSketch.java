@@ -0,0 +1,296 @@
+package coviddatasystem.util;
+
+import java.util.Arrays;
+
+/**
+ * {@code QuantileSketch} is a streaming KLL quantile sketch. Values are added one at a time in a single pass and the
+ * sketch answers approximate rank queries (median, percentiles) without storing every value.
+ *
+ * Values are kept in a hierarchy of compactors: level h holds items that each stand for 2^h inserted values. When a
+ * level fills up it is sorted and every other item is promoted to the next level, so memory stays bounded by roughly
+ * 3k items no matter how many values are added. The rank error is about 1.7 / k (around 1% for the default k = 200).
+ *
+ * Compaction uses a fixed-seed random offset, so the same input in the same order always gives the same answers.
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    // smallest capacity of any level
+    private static final int MIN_CAPACITY = 2;
+
+    // ratio between the capacities of consecutive levels
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    private final int k;
+
+    private double[][] levels = new double[1][];
+
+    private int[] levelSizes = new int[1];
+
+    private int numLevels = 1;
+
+    // total number of values added (including compacted ones)
+    private long count = 0;
+
+    private double min = Double.NaN;
+
+    private double max = Double.NaN;
+
+    // xorshift state for choosing which half of a compacted level is promoted
+    private long randomState = 0x9E3779B97F4A7C15L;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k accuracy parameter: larger k gives lower rank error and uses more memory
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY);
+        }
+        this.k = k;
+        this.levels[0] = new double[k];
+    }
+
+    /**
+     * Constructs a copy of another sketch, which answers the same and stays unchanged when either sketch is added to
+     * @param other sketch to copy
+     */
+    public QuantileSketch(QuantileSketch other) {
+        this.k = other.k;
+        this.levels = new double[other.levels.length][];
+        for (int h = 0; h < other.levels.length; h++) {
+            this.levels[h] = (other.levels[h] != null) ? other.levels[h].clone() : null;
+        }
+        this.levelSizes = other.levelSizes.clone();
+        this.numLevels = other.numLevels;
+        this.count = other.count;
+        this.min = other.min;
+        this.max = other.max;
+        this.randomState = other.randomState;
+    }
+
+    /**
+     * Adds a value to the sketch. NaN values are ignored.
+     * @param value double to add
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+
+        append(0, value);
+        compress();
+    }
+
+    /**
+     * @return number of values added to the sketch
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return true if no values have been added
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return number of items currently retained by the sketch (bounds its memory use)
+     */
+    public int getRetainedItems() {
+        int retained = 0;
+        for (int h = 0; h < numLevels; h++) {
+            retained += levelSizes[h];
+        }
+        return retained;
+    }
+
+    /**
+     * @return allocated capacity of all levels, in items (retained items plus free space in level arrays)
+     */
+    public int getAllocatedItems() {
+        int allocated = 0;
+        for (int h = 0; h < numLevels; h++) {
+            allocated += levels[h].length;
+        }
+        return allocated;
+    }
+
+    /**
+     * @return number of compactor levels
+     */
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    /**
+     * Estimates the value at a given rank
+     * @param fraction rank between 0.0 (minimum) and 1.0 (maximum), e.g. 0.5 for the median
+     * @return approximate value at that rank, or NaN if the sketch is empty
+     */
+    public double getQuantile(double fraction) {
+        if (fraction < 0.0 || fraction > 1.0) {
+            throw new IllegalArgumentException("Rank must be between 0.0 and 1.0: " + fraction);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        // min and max are tracked exactly
+        if (fraction == 0.0) {
+            return min;
+        }
+        if (fraction == 1.0) {
+            return max;
+        }
+
+        // gather retained items with their weights (an item at level h stands for 2^h values)
+        int retained = getRetainedItems();
+        double[] values = new double[retained];
+        long[] weights = new long[retained];
+        int n = 0;
+        for (int h = 0; h < numLevels; h++) {
+            for (int i = 0; i < levelSizes[h]; i++) {
+                values[n] = levels[h][i];
+                weights[n] = 1L << h;
+                n++;
+            }
+        }
+        sortByValue(values, weights);
+
+        // walk the weighted items until the cumulative weight reaches the requested rank
+        double targetWeight = fraction * count;
+        long cumulativeWeight = 0;
+        for (int i = 0; i < n; i++) {
+            cumulativeWeight += weights[i];
+            if (cumulativeWeight >= targetWeight) {
+                return values[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Merges the values summarized by another sketch into this one
+     * @param other sketch to merge (left unchanged)
+     */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        while (numLevels < other.numLevels) {
+            addLevel();
+        }
+        for (int h = 0; h < other.numLevels; h++) {
+            for (int i = 0; i < other.levelSizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        min = (count == 0) ? other.min : Math.min(min, other.min);
+        max = (count == 0) ? other.max : Math.max(max, other.max);
+        count += other.count;
+        compress();
+    }
+
+    // capacity of level h, highest level has capacity k and lower levels shrink geometrically
+    private int capacity(int h) {
+        int depth = numLevels - 1 - h;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void append(int h, double value) {
+        if (levelSizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], Math.max(MIN_CAPACITY, levels[h].length * 2));
+        }
+        levels[h][levelSizes[h]++] = value;
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, numLevels + 1);
+        levelSizes = Arrays.copyOf(levelSizes, numLevels + 1);
+        levels[numLevels] = new double[k];
+        numLevels++;
+    }
+
+    // compact every level that is at or over capacity, cascading upwards
+    private void compress() {
+        for (int h = 0; h < numLevels; h++) {
+            if (levelSizes[h] >= capacity(h)) {
+                if (h + 1 == numLevels) {
+                    addLevel();
+                }
+                compact(h);
+            }
+        }
+    }
+
+    // sort level h and promote every other item (starting at a random offset) to level h + 1
+    private void compact(int h) {
+        double[] level = levels[h];
+        int size = levelSizes[h];
+        Arrays.sort(level, 0, size);
+
+        // with an odd number of items, the smallest one stays behind so the promoted weight is exact
+        int start = size % 2;
+        int offset = nextBit();
+        for (int i = start + offset; i < size; i += 2) {
+            append(h + 1, level[i]);
+        }
+        levelSizes[h] = start;
+    }
+
+    private int nextBit() {
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+        return (int) (randomState >>> 63);
+    }
+
+    // bottom-up merge sort of parallel arrays by value (retained items are few, so no index boxing is needed)
+    private static void sortByValue(double[] values, long[] weights) {
+        int n = values.length;
+        double[] valueBuffer = new double[n];
+        long[] weightBuffer = new long[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int out = lo;
+                while (i < mid && j < hi) {
+                    if (values[i] <= values[j]) {
+                        valueBuffer[out] = values[i];
+                        weightBuffer[out++] = weights[i++];
+                    } else {
+                        valueBuffer[out] = values[j];
+                        weightBuffer[out++] = weights[j++];
+                    }
+                }
+                while (i < mid) {
+                    valueBuffer[out] = values[i];
+                    weightBuffer[out++] = weights[i++];
+                }
+                while (j < hi) {
+                    valueBuffer[out] = values[j];
+                    weightBuffer[out++] = weights[j++];
+                }
+                System.arraycopy(valueBuffer, lo, values, lo, hi - lo);
+                System.arraycopy(weightBuffer, lo, weights, lo, hi - lo);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package coviddatasystem.util;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class QuantileSketchTest {
+    
+    @Test
+    void testEmptySketch() {
+        QuantileSketch sketch = new QuantileSketch();
+        
+        // empty sketch has no quantiles
+        assertTrue(sketch.isEmpty());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    }
+    
+    @Test
+    void testSmallInputIsExact() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 1; i <= 5; i++) {
+            sketch.add(i);
+        }
+        
+        // fewer values than k are never compacted, so ranks are exact
+        assertEquals(1.0, sketch.getQuantile(0.0));
+        assertEquals(3.0, sketch.getQuantile(0.5));
+        assertEquals(5.0, sketch.getQuantile(1.0));
+    }
+    
+    @Test
+    void testLargeInputWithinRankError() {
+        QuantileSketch sketch = new QuantileSketch();
+        Random random = new Random(1);
+        int n = 1000000;
+        
+        for (int i = 0; i < n; i++) {
+            sketch.add(random.nextInt(n));
+        }
+        
+        // uniform values, so value / n approximates rank; default k keeps rank error around 1%
+        assertEquals(0.5, sketch.getQuantile(0.5) / n, 0.02);
+        assertEquals(0.9, sketch.getQuantile(0.9) / n, 0.02);
+        
+        // memory stays bounded regardless of input size
+        assertTrue(sketch.getRetainedItems() < 3 * QuantileSketch.DEFAULT_K + 64);
+    }
+}
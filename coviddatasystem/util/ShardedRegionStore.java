@@ -0,0 +1,192 @@
+package coviddatasystem.util;
+
+import java.util.*;
+
+/**
+ * {@code ShardedRegionStore} maps region keys (zip codes) to {@code ZipCode} objects, split into a fixed number of
+ * shards by a hash of the key. Each shard is its own sorted map, so:
+ *
+ * - ingest can route records to shards and merge every shard on its own thread, without locking
+ * - queries can evaluate shards in parallel and merge per-shard results
+ * - each shard's ZipCode objects are created and merged by one thread, which keeps them close together in memory
+ *
+ * As a {@code Map}, the store iterates in ascending key order (merging the sorted shards), so it can replace a
+ * {@code TreeMap} in code that expects zip codes in order. Like TreeMap it is not thread-safe; concurrent writers must
+ * each own a different shard (see getShard()).
+ */
+public class ShardedRegionStore extends AbstractMap<Integer, ZipCode> {
+
+    // default number of shards, one per available processor
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    private final List<TreeMap<Integer, ZipCode>> shards;
+
+    /**
+     * Creates store with one shard per available processor
+     */
+    public ShardedRegionStore() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param shardCount number of shards (at least 1)
+     */
+    public ShardedRegionStore(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1: " + shardCount);
+        }
+        this.shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the shard a key belongs to. Keys are mixed before taking the remainder, so consecutive zip codes are
+     * spread evenly over shards.
+     * @param key region key
+     * @return shard index between 0 and getShardCount() - 1
+     */
+    public int shardOf(int key) {
+        int hash = key * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shards.size());
+    }
+
+    /**
+     * Returns a shard's own map. Writes to it are seen by the store, and different shards can be written by
+     * different threads at the same time.
+     * @param index shard index
+     * @return sorted map of the shard's zip codes
+     */
+    public TreeMap<Integer, ZipCode> getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * @return ZipCode objects of each shard, each array sorted by zip code
+     */
+    public List<ZipCode[]> getShardValues() {
+        List<ZipCode[]> values = new ArrayList<>(shards.size());
+        for (TreeMap<Integer, ZipCode> shard : shards) {
+            values.add(shard.values().toArray(new ZipCode[0]));
+        }
+        return values;
+    }
+
+    private TreeMap<Integer, ZipCode> shardFor(Object key) {
+        return (key instanceof Integer) ? shards.get(shardOf((Integer) key)) : null;
+    }
+
+    @Override
+    public ZipCode get(Object key) {
+        TreeMap<Integer, ZipCode> shard = shardFor(key);
+        return shard == null ? null : shard.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        TreeMap<Integer, ZipCode> shard = shardFor(key);
+        return shard != null && shard.containsKey(key);
+    }
+
+    @Override
+    public ZipCode put(Integer key, ZipCode value) {
+        return shards.get(shardOf(key)).put(key, value);
+    }
+
+    @Override
+    public ZipCode remove(Object key) {
+        TreeMap<Integer, ZipCode> shard = shardFor(key);
+        return shard == null ? null : shard.remove(key);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (TreeMap<Integer, ZipCode> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (TreeMap<Integer, ZipCode> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<Integer, ZipCode>> entrySet() {
+        return new AbstractSet<Entry<Integer, ZipCode>>() {
+            @Override
+            public Iterator<Entry<Integer, ZipCode>> iterator() {
+                if (shards.size() == 1) {
+                    return shards.get(0).entrySet().iterator();
+                }
+                return new MergingIterator();
+            }
+
+            @Override
+            public int size() {
+                return ShardedRegionStore.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over all shards in ascending key order, keeping the next entry of each shard in a heap. Entries cannot
+     * be removed through this iterator (use Map.remove()).
+     */
+    private class MergingIterator implements Iterator<Entry<Integer, ZipCode>> {
+        // shard iterators ordered by the next entry each will return
+        private final PriorityQueue<ShardHead> heads = new PriorityQueue<>(
+                Comparator.comparing((ShardHead head) -> head.next.getKey()));
+
+        MergingIterator() {
+            for (TreeMap<Integer, ZipCode> shard : shards) {
+                ShardHead head = new ShardHead(shard.entrySet().iterator());
+                if (head.next != null) {
+                    heads.add(head);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry<Integer, ZipCode> next() {
+            ShardHead head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<Integer, ZipCode> entry = head.next;
+            head.next = head.iterator.hasNext() ? head.iterator.next() : null;
+            if (head.next != null) {
+                heads.add(head);
+            }
+            return entry;
+        }
+    }
+
+    // shard iterator together with the entry it will return next
+    private static class ShardHead {
+        private final Iterator<Entry<Integer, ZipCode>> iterator;
+        private Entry<Integer, ZipCode> next;
+
+        ShardHead(Iterator<Entry<Integer, ZipCode>> iterator) {
+            this.iterator = iterator;
+            this.next = iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package coviddatasystem.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class ShardedRegionStoreTest {
+    
+    @Test
+    void testBehavesLikeTreeMap() {
+        ShardedRegionStore store = new ShardedRegionStore(4);
+        TreeMap<Integer, ZipCode> expected = new TreeMap<>();
+        
+        for (int zip = 19154; zip >= 19102; zip -= 3) {
+            ZipCode zipCode = new ZipCode(zip, zip - 19000);
+            store.put(zip, zipCode);
+            expected.put(zip, zipCode);
+        }
+        store.remove(19103);
+        expected.remove(19103);
+        
+        // lookups are routed to the owning shard, iteration merges shards in key order
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected.get(19106), store.get(19106));
+        assertFalse(store.containsKey(19103));
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(store.keySet()));
+        assertEquals(expected, store);
+    }
+    
+    @Test
+    void testShardsPartitionKeys() {
+        ShardedRegionStore store = new ShardedRegionStore(3);
+        for (int zip = 19102; zip <= 19154; zip++) {
+            store.put(zip, new ZipCode(zip, 0));
+        }
+        
+        // every key lives only in the shard it is routed to, and every shard gets some keys
+        int total = 0;
+        for (int shard = 0; shard < store.getShardCount(); shard++) {
+            assertFalse(store.getShard(shard).isEmpty());
+            for (Integer zip : store.getShard(shard).keySet()) {
+                assertEquals(shard, store.shardOf(zip));
+            }
+            total += store.getShard(shard).size();
+        }
+        assertEquals(store.size(), total);
+        
+        // each shard's values are sorted by zip code
+        List<ZipCode[]> values = store.getShardValues();
+        for (ZipCode[] shardValues : values) {
+            for (int i = 1; i < shardValues.length; i++) {
+                assertTrue(shardValues[i - 1].getZipCode() < shardValues[i].getZipCode());
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package coviddatasystem.util;
+
+import java.util.Arrays;
+
+/**
+ * {@code ValueRangeIndex} is a sorted copy of a property column with prefix sums, built once after a column has been
+ * parsed, so the count, sum, min and max of the values within a range cost two binary searches (O(log n)) instead of a
+ * scan of the column. The row of each sorted value is kept too, so the rows selected by a range can be read from
+ * another column of the same rows (the property columns of a zip code are row aligned).
+ *
+ * All arrays are stored in columns of the same storage as the indexed column (on or off heap), and must be closed
+ * with it. NaN values are left out of the index, as range conditions never match them. Sums are differences of
+ * prefix sums, so they are exact while the prefix sums are (integral values with sums below 2^53, as market values and
+ * livable areas are); otherwise they may differ from a scan in the last bits.
+ */
+public class ValueRangeIndex implements AutoCloseable {
+
+    // indexed values in ascending order
+    private final DoubleColumn sortedValues;
+
+    // sortedRows.get(i) is the row of sortedValues.get(i) in the indexed column (row numbers are exact as doubles)
+    private final DoubleColumn sortedRows;
+
+    // prefixSums.get(i) is the sum of the first i sorted values (size + 1 entries)
+    private final DoubleColumn prefixSums;
+
+    private ValueRangeIndex(DoubleColumn sortedValues, DoubleColumn sortedRows, DoubleColumn prefixSums) {
+        this.sortedValues = sortedValues;
+        this.sortedRows = sortedRows;
+        this.prefixSums = prefixSums;
+    }
+
+    /**
+     * Builds the index of a column
+     * @param column property column, not modified
+     * @return index stored on or off heap like the column
+     */
+    public static ValueRangeIndex build(DoubleColumn column) {
+        double[] values = new double[column.size()];
+        int size = 0;
+        for (int i = 0; i < column.size(); i++) {
+            double value = column.get(i);
+            if (!Double.isNaN(value)) {
+                values[size++] = value;
+            }
+        }
+        Arrays.sort(values, 0, size);
+
+        // place each row at the first free position of its value, so equal values keep their rows in column order
+        int[] rows = new int[size];
+        int[] placed = new int[size];
+        for (int row = 0; row < column.size(); row++) {
+            double value = column.get(row);
+            if (!Double.isNaN(value)) {
+                int first = lowerBound(values, size, value);
+                rows[first + placed[first]++] = row;
+            }
+        }
+
+        ColumnStorage storage = column.isOffHeap() ? ColumnStorage.OFF_HEAP : ColumnStorage.HEAP;
+        DoubleColumn sortedValues = storage.newColumn(size);
+        DoubleColumn sortedRows = storage.newColumn(size);
+        DoubleColumn prefixSums = storage.newColumn(size + 1);
+        double sum = 0;
+        prefixSums.add(sum);
+        for (int i = 0; i < size; i++) {
+            sortedValues.add(values[i]);
+            sortedRows.add(rows[i]);
+            sum += values[i];
+            prefixSums.add(sum);
+        }
+        return new ValueRangeIndex(sortedValues, sortedRows, prefixSums);
+    }
+
+    // position of the first of the size sorted values that is >= value
+    private static int lowerBound(double[] values, int size, double value) {
+        int from = 0;
+        int to = size;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (values[middle] < value) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return number of indexed values
+     */
+    public int size() {
+        return sortedValues.size();
+    }
+
+    /**
+     * @param lo lower bound (inclusive)
+     * @param hi upper bound (inclusive)
+     * @return number of values from lo to hi
+     */
+    public int count(double lo, double hi) {
+        return Math.max(0, upperBound(hi) - lowerBound(lo));
+    }
+
+    /**
+     * @param lo lower bound (inclusive)
+     * @param hi upper bound (inclusive)
+     * @return sum of the values from lo to hi, or 0 if there are none
+     */
+    public double sum(double lo, double hi) {
+        int from = lowerBound(lo);
+        int to = upperBound(hi);
+        return (to > from) ? prefixSums.get(to) - prefixSums.get(from) : 0;
+    }
+
+    /**
+     * @param lo lower bound (inclusive)
+     * @param hi upper bound (inclusive)
+     * @return smallest value from lo to hi, or positive infinity if there are none
+     */
+    public double min(double lo, double hi) {
+        int from = lowerBound(lo);
+        return (from < upperBound(hi)) ? sortedValues.get(from) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param lo lower bound (inclusive)
+     * @param hi upper bound (inclusive)
+     * @return largest value from lo to hi, or negative infinity if there are none
+     */
+    public double max(double lo, double hi) {
+        int to = upperBound(hi);
+        return (lowerBound(lo) < to) ? sortedValues.get(to - 1) : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @param lo lower bound (inclusive)
+     * @return sorted position of the first value >= lo, the first position of the range from lo to any hi
+     */
+    public int lowerBound(double lo) {
+        int from = 0;
+        int to = sortedValues.size();
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (sortedValues.get(middle) < lo) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @param hi upper bound (inclusive)
+     * @return sorted position after the last value <= hi, the end of the range from any lo to hi
+     */
+    public int upperBound(double hi) {
+        int from = 0;
+        int to = sortedValues.size();
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (sortedValues.get(middle) <= hi) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @param position sorted position, from 0 to size() - 1
+     * @return row of the value at that position in the indexed column
+     */
+    public int row(int position) {
+        return (int) sortedRows.get(position);
+    }
+
+    /**
+     * @return columns holding the index, e.g. to estimate its footprint or close it with replaced property columns
+     */
+    public DoubleColumn[] getColumns() {
+        return new DoubleColumn[]{sortedValues, sortedRows, prefixSums};
+    }
+
+    /**
+     * Releases the storage held by the index
+     */
+    @Override
+    public void close() {
+        sortedValues.close();
+        sortedRows.close();
+        prefixSums.close();
+    }
+}
@@ -0,0 +1,77 @@
+package coviddatasystem.util;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class ValueRangeIndexTest {
+
+    @Test
+    void testRangesMatchScan() {
+        Random random = new Random(7);
+        for (ColumnStorage storage : ColumnStorage.values()) {
+            DoubleColumn column = storage.newColumn();
+            for (int i = 0; i < 5000; i++) {
+                // integral values with duplicates, like market values
+                column.add(random.nextInt(1000) * 100);
+            }
+            column.add(Double.NaN);
+
+            ValueRangeIndex index = ValueRangeIndex.build(column);
+            assertEquals(5000, index.size());
+            assertEquals(storage == ColumnStorage.OFF_HEAP, index.getColumns()[0].isOffHeap());
+
+            for (int range = 0; range < 200; range++) {
+                double lo = random.nextInt(1100) * 100 - 5000;
+                double hi = lo + random.nextInt(30000);
+
+                // same filter as a query scanning the column
+                int count = 0;
+                double sum = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < column.size(); i++) {
+                    double value = column.get(i);
+                    if (value >= lo && value <= hi) {
+                        count++;
+                        sum += value;
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+                assertEquals(count, index.count(lo, hi));
+                assertEquals(sum, index.sum(lo, hi));
+                assertEquals(min, index.min(lo, hi));
+                assertEquals(max, index.max(lo, hi));
+
+                // the rows of a range hold the values of the range
+                double rowSum = 0;
+                for (int position = index.lowerBound(lo); position < index.upperBound(hi); position++) {
+                    rowSum += column.get(index.row(position));
+                }
+                assertEquals(sum, rowSum);
+            }
+            index.close();
+            column.close();
+        }
+    }
+
+    @Test
+    void testEmptyAndInvertedRanges() {
+        DoubleColumn column = new HeapDoubleColumn();
+        ValueRangeIndex empty = ValueRangeIndex.build(column);
+        assertEquals(0, empty.count(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        assertEquals(0.0, empty.sum(0, 10));
+
+        column.add(5);
+        column.add(1);
+        ValueRangeIndex index = ValueRangeIndex.build(column);
+        // bounds are inclusive
+        assertEquals(2, index.count(1, 5));
+        assertEquals(0, index.count(5, 1));
+        assertEquals(0.0, index.sum(2, 4));
+        assertEquals(Double.POSITIVE_INFINITY, index.min(2, 4));
+        assertEquals(Double.NEGATIVE_INFINITY, index.max(2, 4));
+    }
+}
@@ -1,8 +1,12 @@
 package coviddatasystem.util;
 
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
 import java.util.*;
 
-public class ZipCode {
+public class ZipCode implements AutoCloseable {
     
     // 5 digit zip code
     private Integer zipCode = 0;
@@ -10,14 +14,35 @@ public class ZipCode {
     // maps timestamps to partial vacs, total vacs, neg tests, pos tests, booster doses, total hospitalize, and total deaths
         // timestamp in format (YYYY-MM-DD hh:mm:ss)
     private TreeMap<String, Double[]> covidDataAsOfTime = new TreeMap<>();
+
+    // rollups of covidDataAsOfTime kept up to date by putCovidData(): the last snapshot of each day (YYYY-MM-DD) and
+        // of each ISO week (YYYY-Www), sharing the snapshot arrays
+    private TreeMap<String, Double[]> dailyCovidData = new TreeMap<>();
+
+    private TreeMap<String, Double[]> weeklyCovidData = new TreeMap<>();
+
+    // sorts after every "hh:mm:ss" suffix of a date
+    private static final String END_OF_DAY = "\uffff";
     
     private Double totalProperties = 0.0;
     
     private Integer population = 0;
 
-    private ArrayList<Double> propertiesMarketValueList = new ArrayList<Double>();
+    // property columns are created lazily so zip codes without properties data don't allocate any storage; both hold
+    // one value per property record (NaN if it can't be parsed), so they are row aligned
+    private DoubleColumn propertiesMarketValueColumn;
+
+    private DoubleColumn propertiesTotalLivableAreaColumn;
 
-    private ArrayList<Double> propertiesTotalLivableAreaList = new ArrayList<Double>();
+    // bounded-memory quantile sketches of property values, built while properties are parsed
+    private QuantileSketch marketValueSketch;
+
+    private QuantileSketch livableAreaSketch;
+
+    // sorted value-range indexes of the property columns, built once the columns are complete (null until then)
+    private ValueRangeIndex marketValueIndex;
+
+    private ValueRangeIndex livableAreaIndex;
     
     // constructors
     
@@ -29,7 +54,7 @@ public class ZipCode {
         this.zipCode = Integer.parseInt(zipCode);
         
         // add entry to covidDataAsOfTime instance var
-        covidDataAsOfTime.put(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac), 
+        putCovidData(timeStamp, new Double[]{Double.parseDouble(partialVac), Double.parseDouble(fullVac), 
         Double.parseDouble(negInfectionTests), Double.parseDouble(posInfectionTests), Double.parseDouble(deaths), 
         Double.parseDouble(hospitalized), Double.parseDouble(boosted)});
     }
@@ -40,10 +65,64 @@ public class ZipCode {
         this.population = population;
     }
 
-    public ZipCode(Integer zipCode, ArrayList<Double> propertiesMarketValueList, ArrayList<Double> propertiesTotalLivableAreaList) {
+    public ZipCode(Integer zipCode, DoubleColumn propertiesMarketValueColumn, DoubleColumn propertiesTotalLivableAreaColumn) {
         this.zipCode = zipCode;
-        this.propertiesMarketValueList = propertiesMarketValueList;
-        this.propertiesTotalLivableAreaList = propertiesTotalLivableAreaList;
+        this.propertiesMarketValueColumn = propertiesMarketValueColumn;
+        this.propertiesTotalLivableAreaColumn = propertiesTotalLivableAreaColumn;
+    }
+
+    /**
+     * Constructs a shallow copy of a ZipCode object for a new dataset version. The copy shares covid maps, property
+     * columns and sketches with the original, so neither object may be modified afterwards except by replacing a
+     * dataset's fields as a whole (setPopulation(), setCovidData(), setProperties()).
+     */
+    public ZipCode(ZipCode other) {
+        this.zipCode = other.zipCode;
+        this.covidDataAsOfTime = other.covidDataAsOfTime;
+        this.dailyCovidData = other.dailyCovidData;
+        this.weeklyCovidData = other.weeklyCovidData;
+        this.totalProperties = other.totalProperties;
+        this.population = other.population;
+        this.propertiesMarketValueColumn = other.propertiesMarketValueColumn;
+        this.propertiesTotalLivableAreaColumn = other.propertiesTotalLivableAreaColumn;
+        this.marketValueSketch = other.marketValueSketch;
+        this.livableAreaSketch = other.livableAreaSketch;
+        this.marketValueIndex = other.marketValueIndex;
+        this.livableAreaIndex = other.livableAreaIndex;
+    }
+
+    /**
+     * Constructs a deep copy of the data merged into a ZipCode object so far, e.g. for a partial snapshot published
+     * while the original keeps receiving records. Covid maps, property columns (in the same storage, sized exactly)
+     * and sketches are copied; value-range indexes are not, since they are only built once the columns are complete.
+     * @param other ZipCode object being merged into, which must not be modified during the copy
+     * @return copy that later merges into other do not change
+     */
+    public static ZipCode snapshotOf(ZipCode other) {
+        ZipCode copy = new ZipCode(other.zipCode, other.population);
+        copy.covidDataAsOfTime = new TreeMap<>(other.covidDataAsOfTime);
+        copy.dailyCovidData = new TreeMap<>(other.dailyCovidData);
+        copy.weeklyCovidData = new TreeMap<>(other.weeklyCovidData);
+        copy.totalProperties = other.totalProperties;
+        copy.propertiesMarketValueColumn = copyColumn(other.propertiesMarketValueColumn);
+        copy.propertiesTotalLivableAreaColumn = copyColumn(other.propertiesTotalLivableAreaColumn);
+        copy.marketValueSketch = (other.marketValueSketch != null)
+                ? new QuantileSketch(other.marketValueSketch) : null;
+        copy.livableAreaSketch = (other.livableAreaSketch != null)
+                ? new QuantileSketch(other.livableAreaSketch) : null;
+        return copy;
+    }
+
+    private static DoubleColumn copyColumn(DoubleColumn column) {
+        if (column == null) {
+            return null;
+        }
+        ColumnStorage storage = column.isOffHeap() ? ColumnStorage.OFF_HEAP : ColumnStorage.HEAP;
+        DoubleColumn copy = storage.newColumn(column.size());
+        for (int i = 0; i < column.size(); i++) {
+            copy.add(column.get(i));
+        }
+        return copy;
     }
 
     //getters
@@ -51,28 +130,284 @@ public class ZipCode {
         return zipCode;
     }
 
+    /**
+     * @return raw covid snapshots by timestamp (add snapshots with putCovidData(), so rollups stay up to date)
+     */
     public TreeMap<String, Double[]> getCovidDataAsOfTime() {
         return this.covidDataAsOfTime;
     }
 
+    /**
+     * @return last covid snapshot of each day, keyed by date (YYYY-MM-DD)
+     */
+    public NavigableMap<String, Double[]> getDailyCovidData() {
+        return Collections.unmodifiableNavigableMap(dailyCovidData);
+    }
+
+    /**
+     * @return last covid snapshot of each ISO week, keyed by week (YYYY-Www, e.g. 2022-W29)
+     */
+    public NavigableMap<String, Double[]> getWeeklyCovidData() {
+        return Collections.unmodifiableNavigableMap(weeklyCovidData);
+    }
+
+    /**
+     * Adds (or replaces) the covid snapshot of a timestamp and updates the daily and weekly rollups. Snapshots may be
+     * added in any order; each rollup keeps the snapshot with the latest timestamp of its day or week.
+     * @param timeStamp timestamp in format (YYYY-MM-DD hh:mm:ss)
+     * @param covidData partial vacs, total vacs, neg tests, pos tests, deaths, hospitalized, booster doses
+     */
+    public void putCovidData(String timeStamp, Double[] covidData) {
+        covidDataAsOfTime.put(timeStamp, covidData);
+
+        // latest snapshot up to the end of the day is in the same day, since it is at or after timeStamp
+        String date = timeStamp.substring(0, 10);
+        dailyCovidData.put(date, covidDataAsOfTime.floorEntry(date + END_OF_DAY).getValue());
+
+        LocalDate day;
+        try {
+            day = LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            // timestamps are validated by readers, but a date like 2021-02-30 has no week
+            return;
+        }
+        String week = isoWeek(day);
+        String sunday = day.with(DayOfWeek.SUNDAY).toString();
+        weeklyCovidData.put(week, covidDataAsOfTime.floorEntry(sunday + END_OF_DAY).getValue());
+    }
+
+    /**
+     * @param day a date
+     * @return ISO week of the date in format YYYY-Www (weeks start on Monday, week 1 contains the first Thursday)
+     */
+    public static String isoWeek(LocalDate day) {
+        return String.format("%d-W%02d", day.get(IsoFields.WEEK_BASED_YEAR), day.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+    }
+
     public Double getTotalProperties() {
         return totalProperties;
     }
 
+    /**
+     * @return market value column, or null if this zip code has no properties data (no storage is allocated)
+     */
+    public DoubleColumn peekPropertiesMarketValueColumn() {
+        return propertiesMarketValueColumn;
+    }
+
+    /**
+     * @return livable area column, or null if this zip code has no properties data (no storage is allocated)
+     */
+    public DoubleColumn peekPropertiesLivableAreaColumn() {
+        return propertiesTotalLivableAreaColumn;
+    }
+
+    /**
+     * @return market value sketch, or null if none has been created
+     */
+    public QuantileSketch peekMarketValueSketch() {
+        return marketValueSketch;
+    }
+
+    /**
+     * @return livable area sketch, or null if none has been created
+     */
+    public QuantileSketch peekLivableAreaSketch() {
+        return livableAreaSketch;
+    }
+
+    /**
+     * @return value-range index of market values, or null if none has been built
+     */
+    public ValueRangeIndex peekMarketValueIndex() {
+        return marketValueIndex;
+    }
+
+    /**
+     * @return value-range index of total livable areas, or null if none has been built
+     */
+    public ValueRangeIndex peekLivableAreaIndex() {
+        return livableAreaIndex;
+    }
+
     public Integer getPopulation() {
         return population;
     }
 
-    public ArrayList<Double> getPropertiesMarketValueList() {
-        return propertiesMarketValueList;
+    /**
+     * Retrieves market value column, creating it with the given storage if this zip code has no properties data yet
+     * @param storage heap or off-heap storage for a newly created column
+     */
+    public DoubleColumn getPropertiesMarketValueColumn(ColumnStorage storage) {
+        if (propertiesMarketValueColumn == null) {
+            propertiesMarketValueColumn = storage.newColumn();
+        }
+        return propertiesMarketValueColumn;
+    }
+
+    /**
+     * Retrieves livable area column, creating it with the given storage if this zip code has no properties data yet
+     * @param storage heap or off-heap storage for a newly created column
+     */
+    public DoubleColumn getPropertiesLivableAreaColumn(ColumnStorage storage) {
+        if (propertiesTotalLivableAreaColumn == null) {
+            propertiesTotalLivableAreaColumn = storage.newColumn();
+        }
+        return propertiesTotalLivableAreaColumn;
+    }
+
+    /**
+     * @return market value column, or an empty column (not retained) if this zip code has no properties data
+     */
+    public DoubleColumn getPropertiesMarketValueColumn() {
+        return propertiesMarketValueColumn != null ? propertiesMarketValueColumn : new HeapDoubleColumn();
+    }
+
+    /**
+     * @return livable area column, or an empty column (not retained) if this zip code has no properties data
+     */
+    public DoubleColumn getPropertiesLivableAreaColumn() {
+        return propertiesTotalLivableAreaColumn != null ? propertiesTotalLivableAreaColumn : new HeapDoubleColumn();
+    }
+
+    /**
+     * @return quantile sketch of market values, created empty on first use
+     */
+    public QuantileSketch getMarketValueSketch() {
+        if (marketValueSketch == null) {
+            marketValueSketch = new QuantileSketch();
+        }
+        return marketValueSketch;
     }
 
-    public ArrayList<Double> getPropertiesLivableAreaList() {
-        return propertiesTotalLivableAreaList;
+    /**
+     * @return quantile sketch of total livable areas, created empty on first use
+     */
+    public QuantileSketch getLivableAreaSketch() {
+        if (livableAreaSketch == null) {
+            livableAreaSketch = new QuantileSketch();
+        }
+        return livableAreaSketch;
     }
     
     //setters
     public void setPopulation(Integer population) {
         this.population = population;
     }
+
+    /**
+     * Replaces the covid data of this zip code with the covid snapshots and rollups of another ZipCode object
+     * @param source ZipCode object holding covid data, which must not be used afterwards, or null to remove covid data
+     */
+    public void setCovidData(ZipCode source) {
+        this.covidDataAsOfTime = (source != null) ? source.covidDataAsOfTime : new TreeMap<>();
+        this.dailyCovidData = (source != null) ? source.dailyCovidData : new TreeMap<>();
+        this.weeklyCovidData = (source != null) ? source.weeklyCovidData : new TreeMap<>();
+    }
+
+    /**
+     * Replaces the properties data (columns and quantile sketches) of this zip code with those of another ZipCode
+     * object. The replaced columns are not closed, since other dataset versions may still read them.
+     * @param source ZipCode object holding properties data, which must not be used afterwards, or null to remove
+     *        properties data
+     */
+    public void setProperties(ZipCode source) {
+        this.propertiesMarketValueColumn = (source != null) ? source.propertiesMarketValueColumn : null;
+        this.propertiesTotalLivableAreaColumn = (source != null) ? source.propertiesTotalLivableAreaColumn : null;
+        this.marketValueSketch = (source != null) ? source.marketValueSketch : null;
+        this.livableAreaSketch = (source != null) ? source.livableAreaSketch : null;
+        this.marketValueIndex = (source != null) ? source.marketValueIndex : null;
+        this.livableAreaIndex = (source != null) ? source.livableAreaIndex : null;
+    }
+
+    /**
+     * Builds value-range indexes of the property columns once all properties have been added, replacing (and closing)
+     * indexes built before. Columns must not be appended to afterwards without building the indexes again.
+     */
+    public void buildPropertyIndexes() {
+        closePropertyIndexes();
+        if (propertiesMarketValueColumn != null) {
+            marketValueIndex = ValueRangeIndex.build(propertiesMarketValueColumn);
+        }
+        if (propertiesTotalLivableAreaColumn != null) {
+            livableAreaIndex = ValueRangeIndex.build(propertiesTotalLivableAreaColumn);
+        }
+    }
+
+    // drop indexes of columns that are about to change
+    private void closePropertyIndexes() {
+        if (marketValueIndex != null) {
+            marketValueIndex.close();
+            marketValueIndex = null;
+        }
+        if (livableAreaIndex != null) {
+            livableAreaIndex.close();
+            livableAreaIndex = null;
+        }
+    }
+
+    /**
+     * @return true if this zip code has covid, population or properties data
+     */
+    public boolean hasData() {
+        return !covidDataAsOfTime.isEmpty() || population != 0 || hasProperties();
+    }
+
+    /**
+     * @return true if this zip code has property columns
+     */
+    public boolean hasProperties() {
+        return propertiesMarketValueColumn != null || propertiesTotalLivableAreaColumn != null;
+    }
+
+    /**
+     * Adds the properties data (columns and quantile sketches) of another ZipCode object for the same zip code.
+     * Columns are taken over as-is when this object has none yet, otherwise the other object's values are appended.
+     * Value-range indexes of both objects are dropped, so buildPropertyIndexes() must be called again.
+     * @param other ZipCode object holding properties data, which must not be used afterwards
+     */
+    public void mergeProperties(ZipCode other) {
+        closePropertyIndexes();
+        other.closePropertyIndexes();
+        if (other.propertiesMarketValueColumn != null) {
+            propertiesMarketValueColumn = appendColumn(propertiesMarketValueColumn, other.propertiesMarketValueColumn);
+        }
+        if (other.propertiesTotalLivableAreaColumn != null) {
+            propertiesTotalLivableAreaColumn = appendColumn(propertiesTotalLivableAreaColumn,
+                    other.propertiesTotalLivableAreaColumn);
+        }
+        if (other.marketValueSketch != null) {
+            getMarketValueSketch().merge(other.marketValueSketch);
+        }
+        if (other.livableAreaSketch != null) {
+            getLivableAreaSketch().merge(other.livableAreaSketch);
+        }
+    }
+
+    // returns column holding values of target followed by values of source
+    private static DoubleColumn appendColumn(DoubleColumn target, DoubleColumn source) {
+        if (target == null) {
+            return source;
+        }
+        for (int i = 0; i < source.size(); i++) {
+            target.add(source.get(i));
+        }
+        source.close();
+        return target;
+    }
+
+    /**
+     * Releases storage held by property columns and their indexes (required for off-heap columns to free native
+     * memory)
+     */
+    @Override
+    public void close() {
+        closePropertyIndexes();
+        if (propertiesMarketValueColumn != null) {
+            propertiesMarketValueColumn.close();
+        }
+        if (propertiesTotalLivableAreaColumn != null) {
+            propertiesTotalLivableAreaColumn.close();
+        }
+    }
 }
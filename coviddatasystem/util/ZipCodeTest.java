@@ -0,0 +1,45 @@
+package coviddatasystem.util;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.*;
+
+public class ZipCodeTest {
+    
+    private static Double[] snapshot(double fullVacs) {
+        return new Double[]{0.0, fullVacs, 0.0, 0.0, 0.0, 0.0, 0.0};
+    }
+    
+    @Test
+    void testRollupsKeepLastSnapshotOfPeriod() {
+        ZipCode zipCode = new ZipCode(19104, 1000);
+        
+        // snapshots added out of order, two on the same day
+        zipCode.putCovidData("2022-07-18 16:01:11", snapshot(3.0));
+        zipCode.putCovidData("2022-07-18 09:00:00", snapshot(2.0));
+        zipCode.putCovidData("2022-07-24 23:59:59", snapshot(4.0));
+        zipCode.putCovidData("2022-07-11 15:00:01", snapshot(1.0));
+        zipCode.putCovidData("2022-07-25 11:00:01", snapshot(5.0));
+        
+        assertEquals(5, zipCode.getCovidDataAsOfTime().size());
+        assertEquals(4, zipCode.getDailyCovidData().size());
+        assertEquals(3.0, zipCode.getDailyCovidData().get("2022-07-18")[1]);
+        
+        // 2022-07-18 (Monday) to 2022-07-24 (Sunday) is week 29, 2022-07-25 starts week 30
+        assertEquals(1.0, zipCode.getWeeklyCovidData().get("2022-W28")[1]);
+        assertEquals(4.0, zipCode.getWeeklyCovidData().get("2022-W29")[1]);
+        assertEquals(5.0, zipCode.getWeeklyCovidData().get("2022-W30")[1]);
+        
+        // replacing a snapshot updates the rollups that hold it
+        zipCode.putCovidData("2022-07-24 23:59:59", snapshot(6.0));
+        assertEquals(6.0, zipCode.getWeeklyCovidData().get("2022-W29")[1]);
+    }
+    
+    @Test
+    void testIsoWeekAtYearBoundary() {
+        // January 1st 2021 is a Friday, so it belongs to the last week of 2020
+        assertEquals("2020-W53", ZipCode.isoWeek(LocalDate.of(2021, 1, 1)));
+        assertEquals("2021-W01", ZipCode.isoWeek(LocalDate.of(2021, 1, 4)));
+    }
+}
@@ -0,0 +1,49 @@
+package coviddatasystem.datamanagement;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernel of {@code StructuralIndex}, using the incubating Vector API.
+ *
+ * This class is in the separately compiled {@code vector} source root, since compiling it needs
+ * {@code --add-modules jdk.incubator.vector}; {@code StructuralIndex} loads it by name when asked to, and falls back to
+ * a scalar loop when the module is not present or this class was not compiled. Characters are compared 16 at a time
+ * (one 256-bit vector). The mask of matching lanes is turned into 16 bits by OR-ing lane weights 1, 2, 4, ... under
+ * the mask, which compiles to SIMD instructions; {@code VectorMask.toLong()} would be shorter but is not intrinsic on
+ * JDK 17 and allocates on every call. The remaining tail characters are indexed by the scalar loop.
+ */
+final class VectorStructuralIndex implements StructuralKernel {
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_256;
+
+    // lane i holds 1 << i
+    private static final ShortVector LANE_BITS = ShortVector.broadcast(SPECIES, (short) 1)
+            .lanewise(VectorOperators.LSHL, ShortVector.zero(SPECIES).addIndex(1));
+
+    VectorStructuralIndex() {}
+
+    // the platform compares 256-bit vectors in hardware (otherwise the scalar loop is faster)
+    @Override
+    public boolean isSupported() {
+        return ShortVector.SPECIES_PREFERRED.vectorBitSize() >= SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void index(char[] chars, int length, long[] structural, long[] quotes) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            ShortVector block = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> quote = block.eq((short) StructuralIndex.DOUBLE_QUOTE);
+            VectorMask<Short> any = quote.or(block.eq((short) StructuralIndex.COMMA))
+                    .or(block.eq((short) StructuralIndex.LINE_FEED))
+                    .or(block.eq((short) StructuralIndex.CARRIAGE_RETURN));
+            structural[i >>> 6] |= (LANE_BITS.reduceLanes(VectorOperators.OR, any) & 0xFFFFL) << i;
+            quotes[i >>> 6] |= (LANE_BITS.reduceLanes(VectorOperators.OR, quote) & 0xFFFFL) << i;
+        }
+        StructuralIndex.scalarIndex(chars, i, length, structural, quotes);
+    }
+}
@@ -0,0 +1,188 @@
+package coviddatasystem.processor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels over primitive double arrays and native-order byte buffers, using the incubating Vector API.
+ *
+ * This class is in the separately compiled {@code vector} source root, since compiling it needs
+ * {@code --add-modules jdk.incubator.vector}. {@code AggregationKernels} loads it by name when the module is present,
+ * and falls back to scalar loops when it is not or when this class was not compiled. Each kernel processes full
+ * vectors of the platform's preferred width and finishes the remaining tail elements with a scalar loop. NaN lanes are
+ * masked out of sums and replaced by the identity of min and max.
+ */
+final class VectorKernels implements DoubleKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+    VectorKernels() {}
+
+    @Override
+    public double sum(double[] values, int size) {
+        // two accumulators hide the latency of dependent vector adds
+        DoubleVector acc0 = DoubleVector.zero(SPECIES);
+        DoubleVector acc1 = DoubleVector.zero(SPECIES);
+        int step = SPECIES.length();
+        int i = 0;
+        for (; i + 2 * step <= size; i += 2 * step) {
+            acc0 = addNotNaN(acc0, DoubleVector.fromArray(SPECIES, values, i));
+            acc1 = addNotNaN(acc1, DoubleVector.fromArray(SPECIES, values, i + step));
+        }
+        for (; i + step <= size; i += step) {
+            acc0 = addNotNaN(acc0, DoubleVector.fromArray(SPECIES, values, i));
+        }
+        double total = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < size; i++) {
+            if (!Double.isNaN(values[i])) {
+                total += values[i];
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public double sum(ByteBuffer buffer, int size) {
+        DoubleVector acc0 = DoubleVector.zero(SPECIES);
+        DoubleVector acc1 = DoubleVector.zero(SPECIES);
+        int step = SPECIES.length();
+        int i = 0;
+        for (; i + 2 * step <= size; i += 2 * step) {
+            acc0 = addNotNaN(acc0, DoubleVector.fromByteBuffer(SPECIES, buffer, i * Double.BYTES, ORDER));
+            acc1 = addNotNaN(acc1, DoubleVector.fromByteBuffer(SPECIES, buffer, (i + step) * Double.BYTES, ORDER));
+        }
+        for (; i + step <= size; i += step) {
+            acc0 = addNotNaN(acc0, DoubleVector.fromByteBuffer(SPECIES, buffer, i * Double.BYTES, ORDER));
+        }
+        double total = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+        for (; i < size; i++) {
+            double value = buffer.getDouble(i * Double.BYTES);
+            if (!Double.isNaN(value)) {
+                total += value;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int count(double[] values, int size) {
+        int count = 0;
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            count += DoubleVector.fromArray(SPECIES, values, i).test(VectorOperators.IS_NAN).not().trueCount();
+        }
+        for (; i < size; i++) {
+            if (!Double.isNaN(values[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int count(ByteBuffer buffer, int size) {
+        int count = 0;
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromByteBuffer(SPECIES, buffer, i * Double.BYTES, ORDER);
+            count += v.test(VectorOperators.IS_NAN).not().trueCount();
+        }
+        for (; i < size; i++) {
+            if (!Double.isNaN(buffer.getDouble(i * Double.BYTES))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public double min(double[] values, int size) {
+        DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            acc = acc.min(withoutNaN(DoubleVector.fromArray(SPECIES, values, i), Double.POSITIVE_INFINITY));
+        }
+        double min = acc.reduceLanes(VectorOperators.MIN);
+        for (; i < size; i++) {
+            // NaN compares false, so it never replaces the minimum
+            if (values[i] < min) {
+                min = values[i];
+            }
+        }
+        return min;
+    }
+
+    @Override
+    public double min(ByteBuffer buffer, int size) {
+        DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromByteBuffer(SPECIES, buffer, i * Double.BYTES, ORDER);
+            acc = acc.min(withoutNaN(v, Double.POSITIVE_INFINITY));
+        }
+        double min = acc.reduceLanes(VectorOperators.MIN);
+        for (; i < size; i++) {
+            double value = buffer.getDouble(i * Double.BYTES);
+            if (value < min) {
+                min = value;
+            }
+        }
+        return min;
+    }
+
+    @Override
+    public double max(double[] values, int size) {
+        DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            acc = acc.max(withoutNaN(DoubleVector.fromArray(SPECIES, values, i), Double.NEGATIVE_INFINITY));
+        }
+        double max = acc.reduceLanes(VectorOperators.MAX);
+        for (; i < size; i++) {
+            if (values[i] > max) {
+                max = values[i];
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public double max(ByteBuffer buffer, int size) {
+        DoubleVector acc = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+        int i = 0;
+        int bound = SPECIES.loopBound(size);
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromByteBuffer(SPECIES, buffer, i * Double.BYTES, ORDER);
+            acc = acc.max(withoutNaN(v, Double.NEGATIVE_INFINITY));
+        }
+        double max = acc.reduceLanes(VectorOperators.MAX);
+        for (; i < size; i++) {
+            double value = buffer.getDouble(i * Double.BYTES);
+            if (value > max) {
+                max = value;
+            }
+        }
+        return max;
+    }
+
+    // adds the lanes of v that are not NaN to acc
+    private static DoubleVector addNotNaN(DoubleVector acc, DoubleVector v) {
+        return acc.add(v, v.test(VectorOperators.IS_NAN).not());
+    }
+
+    // v with its NaN lanes replaced by identity
+    private static DoubleVector withoutNaN(DoubleVector v, double identity) {
+        return v.blend(identity, v.test(VectorOperators.IS_NAN));
+    }
+}